@@ -0,0 +1,264 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.jitsi.service.packetlogging.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the cost of {@link PacketLoggingService#logPacket} on the threads
+ * which log packets, with 1, 8 and 64 such threads, for 60 byte SIP
+ * keepalives, 200 byte RTP audio packets and 1200 byte RTP video packets,
+ * with packet logging disabled, enabled with a filter which rejects the
+ * packets and enabled with every packet written.
+ * <p>
+ * The benchmarks are built by the {@code jmh} profile and run with the
+ * allocation profiler in order to also report the bytes allocated per call:
+ * </p>
+ * <pre>
+ * mvn -Pjmh package
+ * java -jar target/jitsi-base-services-1.0-SNAPSHOT-benchmarks.jar -prof gc
+ * </pre>
+ * <p>
+ * The capture files are written to the directory named by the
+ * {@link #DIRECTORY_PROPERTY_NAME} system property, by default
+ * {@code /dev/shm} if it exists, so that disk performance does not skew the
+ * results; pass it with {@code -jvmArgsAppend -D...} to the forked JVMs.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class PacketLoggingServiceBenchmark
+{
+    /**
+     * The system property which names the directory to write the capture
+     * files to.
+     */
+    public static final String DIRECTORY_PROPERTY_NAME
+        = "org.jitsi.service.packetlogging.benchmark.DIRECTORY";
+
+    /**
+     * The prefix of the names of the capture files.
+     */
+    private static final String BASE_NAME = "jmh-packetlogging";
+
+    /**
+     * The size of a capture file.
+     */
+    private static final long FILE_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The number of capture files.
+     */
+    private static final int FILE_COUNT = 2;
+
+    /**
+     * The ways packet logging is set up.
+     */
+    public enum LoggingMode
+    {
+        /**
+         * Packet logging is disabled.
+         */
+        DISABLED,
+
+        /**
+         * Packet logging is enabled with a filter which rejects the packets.
+         */
+        FILTERED,
+
+        /**
+         * Packet logging is enabled and every packet is written.
+         */
+        FULL
+    }
+
+    /**
+     * The size in bytes of the logged packets: a SIP keepalive, an RTP audio
+     * packet and an RTP video packet.
+     */
+    @Param({ "60", "200", "1200" })
+    public int packetSize;
+
+    /**
+     * The way packet logging is set up.
+     */
+    @Param
+    public LoggingMode mode;
+
+    /**
+     * The directory the capture files are written to.
+     */
+    private File directory;
+
+    /**
+     * The service under measurement.
+     */
+    private AbstractPacketLoggingService service;
+
+    /**
+     * The protocol of the logged packets.
+     */
+    private ProtocolName protocol;
+
+    /**
+     * The packet which is logged.
+     */
+    private byte[] packet;
+
+    /**
+     * The source address of the logged packet.
+     */
+    private final byte[] sourceAddress = { 10, 0, 0, 1 };
+
+    /**
+     * The destination address of the logged packet.
+     */
+    private final byte[] destinationAddress = { 10, 0, 0, 2 };
+
+    /**
+     * Starts the service under measurement.
+     *
+     * @throws Exception if starting the service fails
+     */
+    @Setup(Level.Trial)
+    public void setUp()
+        throws Exception
+    {
+        String path = System.getProperty(DIRECTORY_PROPERTY_NAME);
+
+        if (path == null)
+        {
+            File shm = new File("/dev/shm");
+
+            path
+                = shm.isDirectory()
+                    ? shm.getPath()
+                    : System.getProperty("java.io.tmpdir");
+        }
+        directory = new File(path);
+
+        final PacketLoggingConfiguration configuration
+            = new PacketLoggingConfiguration();
+
+        configuration.setGlobalLoggingEnabled(mode != LoggingMode.DISABLED);
+        if (mode == LoggingMode.FILTERED)
+            configuration.setFilter(PacketFilter.compile("port 9"));
+        configuration.setLimit(FILE_SIZE);
+        configuration.setLogfileCount(FILE_COUNT);
+
+        protocol = (packetSize <= 60) ? ProtocolName.SIP : ProtocolName.RTP;
+        packet = new byte[packetSize];
+        packet[0] = (byte) 0x80;
+
+        service
+            = new AbstractPacketLoggingService(configuration)
+            {
+                @Override
+                protected PacketRecordSink createSink()
+                    throws IOException
+                {
+                    return
+                        new MappedPcapFileSink(
+                                directory,
+                                BASE_NAME,
+                                configuration);
+                }
+            };
+        service.start();
+    }
+
+    /**
+     * Stops the service under measurement and deletes the capture files.
+     *
+     * @throws IOException if stopping the service fails
+     */
+    @TearDown(Level.Trial)
+    public void tearDown()
+        throws IOException
+    {
+        try
+        {
+            service.stop();
+        }
+        finally
+        {
+            File[] files = directory.listFiles();
+
+            if (files != null)
+            {
+                for (File file : files)
+                {
+                    if (file.getName().startsWith(BASE_NAME))
+                        file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Logs a packet from a single thread.
+     */
+    @Benchmark
+    @Threads(1)
+    public void logPacket1Thread()
+    {
+        logPacket();
+    }
+
+    /**
+     * Logs a packet from 8 threads concurrently.
+     */
+    @Benchmark
+    @Threads(8)
+    public void logPacket8Threads()
+    {
+        logPacket();
+    }
+
+    /**
+     * Logs a packet from 64 threads concurrently.
+     */
+    @Benchmark
+    @Threads(64)
+    public void logPacket64Threads()
+    {
+        logPacket();
+    }
+
+    /**
+     * Logs {@link #packet} as an outgoing packet.
+     */
+    private void logPacket()
+    {
+        service.logPacket(
+                protocol,
+                sourceAddress,
+                5004,
+                destinationAddress,
+                5006,
+                TransportName.UDP,
+                true,
+                packet);
+    }
+}
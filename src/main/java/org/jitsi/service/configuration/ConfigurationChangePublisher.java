@@ -0,0 +1,471 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.configuration;
+
+import java.beans.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/**
+ * Publishes the property changes of a {@link ConfigurationService} to
+ * {@link ConfigurationChangeSubscriber}s. Every subscription has a bounded
+ * buffer of its own and receives events on an {@link Executor} according to
+ * the demand it has signaled. {@link #publish(PropertyChangeEvent)} never
+ * blocks: when the buffer of a slow subscriber is full, its oldest buffered
+ * event is dropped and counted so that the callers of
+ * {@link ConfigurationService#setProperty(String, Object)} are not held up by
+ * metrics exporters, remote mirrors and the like.
+ */
+public class ConfigurationChangePublisher
+{
+    /**
+     * The {@code Logger} used by the {@code ConfigurationChangePublisher}
+     * class and its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(ConfigurationChangePublisher.class.getName());
+
+    /**
+     * The executor subscribers are notified on.
+     */
+    private final Executor executor;
+
+    /**
+     * The active subscriptions.
+     */
+    private final List<SubscriptionImpl> subscriptions
+        = new CopyOnWriteArrayList<SubscriptionImpl>();
+
+    /**
+     * Whether this publisher has been closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Initializes a new {@code ConfigurationChangePublisher} instance.
+     *
+     * @param executor the executor to notify subscribers on
+     */
+    public ConfigurationChangePublisher(Executor executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * Subscribes a {@link ConfigurationChangeSubscriber} to the changes of the
+     * properties with a specific name or dotted prefix.
+     *
+     * @param keyPrefix the name of the property or the dotted prefix of the
+     * properties to receive changes of or {@code null} to receive the changes
+     * of all properties
+     * @param bufferCapacity the maximum number of changes to buffer for the
+     * subscriber before dropping the oldest ones
+     * @param subscriber the subscriber to notify
+     */
+    public void subscribe(
+            String keyPrefix,
+            int bufferCapacity,
+            ConfigurationChangeSubscriber subscriber)
+    {
+        if (bufferCapacity <= 0)
+        {
+            throw new IllegalArgumentException(
+                    "bufferCapacity " + bufferCapacity);
+        }
+
+        SubscriptionImpl subscription
+            = new SubscriptionImpl(keyPrefix, bufferCapacity, subscriber);
+
+        subscriber.onSubscribe(subscription);
+        if (closed)
+        {
+            subscription.complete();
+        }
+        else
+        {
+            subscriptions.add(subscription);
+            // Do not miss the completion if we raced with close().
+            if (closed)
+                subscription.complete();
+        }
+    }
+
+    /**
+     * Publishes a property change to the subscriptions interested in it. Does
+     * not invoke any subscriber on the calling thread and never blocks.
+     *
+     * @param event the property change to publish
+     */
+    public void publish(PropertyChangeEvent event)
+    {
+        String propertyName = event.getPropertyName();
+
+        for (SubscriptionImpl subscription : subscriptions)
+        {
+            if (subscription.matches(propertyName))
+                subscription.offer(event);
+        }
+    }
+
+    /**
+     * Closes this publisher. Each subscriber is notified through
+     * {@link ConfigurationChangeSubscriber#onComplete()} after the changes
+     * buffered for it have been delivered.
+     */
+    public void close()
+    {
+        closed = true;
+        for (SubscriptionImpl subscription : subscriptions)
+            subscription.complete();
+    }
+
+    /**
+     * Gets the number of active subscriptions.
+     *
+     * @return the number of active subscriptions
+     */
+    public int getSubscriptionCount()
+    {
+        return subscriptions.size();
+    }
+
+    /**
+     * The subscription of a single {@link ConfigurationChangeSubscriber}. Also
+     * the task which drains its buffer on {@link #executor}; at most one drain
+     * runs at a time.
+     */
+    private class SubscriptionImpl
+        implements ConfigurationChangeSubscription,
+                   Runnable
+    {
+        /**
+         * The name or dotted prefix of the properties of interest or
+         * {@code null} for all properties.
+         */
+        private final String keyPrefix;
+
+        /**
+         * The maximum number of buffered events.
+         */
+        private final int bufferCapacity;
+
+        /**
+         * The notified subscriber.
+         */
+        private final ConfigurationChangeSubscriber subscriber;
+
+        /**
+         * The buffered events. Guarded by itself.
+         */
+        private final ArrayDeque<PropertyChangeEvent> buffer;
+
+        /**
+         * The outstanding demand of {@link #subscriber}.
+         */
+        private final AtomicLong requested = new AtomicLong();
+
+        /**
+         * The number of events dropped because {@link #buffer} was full.
+         */
+        private final AtomicLong dropped = new AtomicLong();
+
+        /**
+         * The number of pending drain signals; a drain is scheduled on the
+         * transition from zero.
+         */
+        private final AtomicInteger wip = new AtomicInteger();
+
+        /**
+         * Whether {@link #subscriber} has cancelled.
+         */
+        private volatile boolean cancelled = false;
+
+        /**
+         * Whether the stream is to complete once {@link #buffer} is empty.
+         */
+        private volatile boolean completed = false;
+
+        /**
+         * The error to deliver to {@link #subscriber}, if any.
+         */
+        private volatile Throwable error;
+
+        /**
+         * Whether a terminal signal has been delivered to {@link #subscriber}.
+         * Only accessed by the drain.
+         */
+        private boolean terminated = false;
+
+        /**
+         * Initializes a new {@code SubscriptionImpl} instance.
+         *
+         * @param keyPrefix the name or dotted prefix of the properties of
+         * interest or {@code null} for all properties
+         * @param bufferCapacity the maximum number of buffered events
+         * @param subscriber the notified subscriber
+         */
+        SubscriptionImpl(
+                String keyPrefix,
+                int bufferCapacity,
+                ConfigurationChangeSubscriber subscriber)
+        {
+            this.keyPrefix = keyPrefix;
+            this.bufferCapacity = bufferCapacity;
+            this.subscriber = subscriber;
+            buffer
+                = new ArrayDeque<PropertyChangeEvent>(
+                        Math.min(bufferCapacity, 16));
+        }
+
+        /**
+         * Determines whether a property is of interest to this subscription.
+         *
+         * @param propertyName the name of the changed property
+         * @return {@code true} if changes of {@code propertyName} are to be
+         * delivered to {@link #subscriber}
+         */
+        boolean matches(String propertyName)
+        {
+            if (keyPrefix == null)
+                return true;
+            if (propertyName == null)
+                return false;
+
+            return
+                propertyName.startsWith(keyPrefix)
+                    && ((propertyName.length() == keyPrefix.length())
+                            || (propertyName.charAt(keyPrefix.length())
+                                    == '.'));
+        }
+
+        /**
+         * Buffers an event, dropping the oldest buffered one if
+         * {@link #buffer} is full, and schedules a drain.
+         *
+         * @param event the event to buffer
+         */
+        void offer(PropertyChangeEvent event)
+        {
+            if (cancelled || completed)
+                return;
+
+            synchronized (buffer)
+            {
+                if (buffer.size() >= bufferCapacity)
+                {
+                    buffer.poll();
+                    dropped.incrementAndGet();
+                }
+                buffer.offer(event);
+            }
+            if (requested.get() != 0)
+                signal();
+        }
+
+        /**
+         * Marks the stream as completed and schedules a drain to deliver the
+         * completion.
+         */
+        void complete()
+        {
+            completed = true;
+            signal();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void request(long n)
+        {
+            if (n <= 0)
+            {
+                error
+                    = new IllegalArgumentException(
+                            "non-positive request " + n);
+            }
+            else
+            {
+                long r, u;
+
+                do
+                {
+                    r = requested.get();
+                    u = r + n;
+                    if (u < 0)
+                        u = Long.MAX_VALUE;
+                }
+                while (!requested.compareAndSet(r, u));
+            }
+            signal();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void cancel()
+        {
+            cancelled = true;
+            subscriptions.remove(this);
+            synchronized (buffer)
+            {
+                buffer.clear();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getDroppedEventCount()
+        {
+            return dropped.get();
+        }
+
+        /**
+         * Schedules a drain on {@link #executor} unless one is already
+         * pending.
+         */
+        private void signal()
+        {
+            if (wip.getAndIncrement() == 0)
+            {
+                try
+                {
+                    executor.execute(this);
+                }
+                catch (RejectedExecutionException ree)
+                {
+                    wip.set(0);
+                    cancel();
+                }
+            }
+        }
+
+        /**
+         * Delivers buffered events to {@link #subscriber} as long as there is
+         * demand and then the terminal signal, if any.
+         */
+        @Override
+        public void run()
+        {
+            int missed = 1;
+
+            do
+            {
+                drain();
+                missed = wip.addAndGet(-missed);
+            }
+            while (missed != 0);
+        }
+
+        /**
+         * Performs a single pass of {@link #run()}.
+         */
+        private void drain()
+        {
+            if (terminated)
+                return;
+
+            try
+            {
+                while (!cancelled)
+                {
+                    Throwable cause = error;
+
+                    if (cause != null)
+                    {
+                        terminated = true;
+                        cancel();
+                        subscriber.onError(cause);
+                        return;
+                    }
+
+                    long r = requested.get();
+                    PropertyChangeEvent event = null;
+
+                    if (r != 0)
+                    {
+                        synchronized (buffer)
+                        {
+                            event = buffer.poll();
+                        }
+                    }
+                    if (event == null)
+                    {
+                        if (completed && isBufferEmpty())
+                        {
+                            terminated = true;
+                            cancel();
+                            subscriber.onComplete();
+                        }
+                        return;
+                    }
+                    if (r != Long.MAX_VALUE)
+                        requested.decrementAndGet();
+                    subscriber.onNext(event);
+                }
+            }
+            catch (Throwable t)
+            {
+                // A misbehaving subscriber must not take the executor down
+                // but an Error is not ours to swallow.
+                boolean signaled = terminated;
+
+                terminated = true;
+                cancel();
+                logger.log(
+                        Level.WARNING,
+                        "Cancelling configuration change subscriber "
+                            + subscriber + " which failed",
+                        t);
+                if (t instanceof Error)
+                    throw (Error) t;
+                if (!signaled)
+                {
+                    try
+                    {
+                        subscriber.onError(t);
+                    }
+                    catch (RuntimeException re)
+                    {
+                        logger.log(
+                                Level.WARNING,
+                                "Configuration change subscriber "
+                                    + subscriber + " failed in onError",
+                                re);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Determines whether {@link #buffer} is empty.
+         *
+         * @return {@code true} if {@link #buffer} is empty
+         */
+        private boolean isBufferEmpty()
+        {
+            synchronized (buffer)
+            {
+                return buffer.isEmpty();
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.configuration;
+
+import java.beans.*;
+
+/**
+ * Receives the property changes of a {@link ConfigurationService} as a stream
+ * with backpressure. Unlike a {@link PropertyChangeListener}, a subscriber is
+ * never invoked on the thread which changes the property and only receives as
+ * many events as it has requested through its
+ * {@link ConfigurationChangeSubscription}. Modeled after the Reactive Streams
+ * {@code Subscriber}.
+ */
+public interface ConfigurationChangeSubscriber
+{
+    /**
+     * Invoked once before any other method with the subscription through which
+     * this subscriber requests events and eventually cancels.
+     *
+     * @param subscription the subscription of this subscriber
+     */
+    void onSubscribe(ConfigurationChangeSubscription subscription);
+
+    /**
+     * Invoked for each property change this subscriber has requested.
+     *
+     * @param event the property change
+     */
+    void onNext(PropertyChangeEvent event);
+
+    /**
+     * Invoked when the subscription has failed e.g. because of an invalid
+     * request. No further methods are invoked afterwards.
+     *
+     * @param cause the reason for the failure
+     */
+    void onError(Throwable cause);
+
+    /**
+     * Invoked when the stream of property changes has ended e.g. because the
+     * {@code ConfigurationService} has been stopped. No further methods are
+     * invoked afterwards.
+     */
+    void onComplete();
+}
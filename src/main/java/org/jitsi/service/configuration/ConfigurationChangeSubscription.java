@@ -0,0 +1,48 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.configuration;
+
+/**
+ * The link between a {@link ConfigurationChangeSubscriber} and the
+ * {@link ConfigurationService} it receives property changes from. Modeled
+ * after the Reactive Streams {@code Subscription}.
+ */
+public interface ConfigurationChangeSubscription
+{
+    /**
+     * Requests a specific number of further property changes to be delivered
+     * to the subscriber. Passing {@link Long#MAX_VALUE} effectively disables
+     * backpressure.
+     *
+     * @param n the number of additional property changes to deliver; must be
+     * positive
+     */
+    void request(long n);
+
+    /**
+     * Stops the delivery of property changes to the subscriber and releases
+     * the buffered ones.
+     */
+    void cancel();
+
+    /**
+     * Gets the number of property changes which have been dropped because the
+     * subscriber fell behind and its buffer was full.
+     *
+     * @return the number of dropped property changes
+     */
+    long getDroppedEventCount();
+}
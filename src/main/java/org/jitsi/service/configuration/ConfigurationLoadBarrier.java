@@ -0,0 +1,322 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.configuration;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Coordinates readers of a {@link ConfigurationService} with a configuration
+ * load which runs on a background thread. The service may be registered and
+ * used right away while the configuration file is still being parsed: a read
+ * of a property which has not been loaded yet blocks only until the subtree of
+ * the configuration containing the property (for example the XML element
+ * corresponding to one of its dotted prefixes) or the whole load has
+ * completed.
+ * <p>
+ * The loader calls {@link #markPrefixLoaded(String)} whenever it has finished
+ * a subtree and {@link #markLoaded()} or {@link #markFailed(IOException)} once
+ * it is done. Readers call {@link #awaitProperty(String)} before looking a
+ * property up. After the load has completed, {@code awaitProperty} costs a
+ * single volatile read.
+ * </p>
+ * <p>
+ * The barrier also records how long the load took and how much time readers
+ * spent blocked on it so that the startup latency of the eager and background
+ * modes can be compared.
+ * </p>
+ */
+public class ConfigurationLoadBarrier
+{
+    /**
+     * The time in nanoseconds at which this barrier was created i.e. at which
+     * the background load was started.
+     */
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * The dotted prefixes of the properties which have been completely loaded.
+     */
+    private final Set<String> loadedPrefixes
+        = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Whether the load has completed, successfully or not.
+     */
+    private volatile boolean loaded = false;
+
+    /**
+     * The time in nanoseconds the load took or {@code -1} if it has not
+     * completed yet.
+     */
+    private volatile long loadDurationNanos = -1;
+
+    /**
+     * The exception which made the load fail, if any.
+     */
+    private volatile IOException failure;
+
+    /**
+     * The number of times a reader had to block waiting for the load.
+     */
+    private long blockedReads = 0;
+
+    /**
+     * The total time in nanoseconds readers spent blocked waiting for the
+     * load.
+     */
+    private long blockedNanos = 0;
+
+    /**
+     * The number of times a reader was interrupted before the property it
+     * waited for had been loaded.
+     */
+    private long interruptedReads = 0;
+
+    /**
+     * Blocks the current thread until the property with a specific name is
+     * available i.e. until either the whole configuration or a subtree which
+     * contains the property has been loaded. If the current thread is
+     * interrupted while waiting, returns early with the interrupted status of
+     * the thread set and {@code false}: the property may not have been loaded
+     * yet so reading it may yield {@code null} even though the configuration
+     * file sets it. Callers which cannot tell an unset property from one which
+     * has not been loaded yet are to check the return value.
+     *
+     * @param propertyName the name of the property which is about to be read
+     * @return {@code true} if the property has been loaded; {@code false} if
+     * the wait was interrupted before it was
+     */
+    public boolean awaitProperty(String propertyName)
+    {
+        if (loaded || isPrefixLoaded(propertyName))
+            return true;
+
+        long waitStart = System.nanoTime();
+        boolean available = true;
+
+        synchronized (this)
+        {
+            try
+            {
+                while (!loaded && !isPrefixLoaded(propertyName))
+                    wait();
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                available = loaded || isPrefixLoaded(propertyName);
+                if (!available)
+                    interruptedReads++;
+            }
+            blockedReads++;
+            blockedNanos += System.nanoTime() - waitStart;
+        }
+        return available;
+    }
+
+    /**
+     * Blocks the current thread until the whole configuration has been loaded
+     * or a specific timeout has elapsed.
+     *
+     * @param timeout the maximum time to wait in milliseconds; {@code 0} to
+     * wait indefinitely
+     * @return {@code true} if the configuration has been loaded;
+     * {@code false} if the timeout elapsed first
+     * @throws InterruptedException if the current thread was interrupted while
+     * waiting
+     */
+    public boolean awaitLoaded(long timeout)
+        throws InterruptedException
+    {
+        if (loaded)
+            return true;
+
+        // System.nanoTime() is not affected by changes of the wall clock.
+        long deadline
+            = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        synchronized (this)
+        {
+            while (!loaded)
+            {
+                if (timeout == 0)
+                {
+                    wait();
+                }
+                else
+                {
+                    long remaining = deadline - System.nanoTime();
+
+                    if (remaining <= 0)
+                        break;
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Notifies this barrier that all properties with a specific dotted prefix
+     * have been loaded and wakes up the readers waiting for any of them.
+     *
+     * @param prefix the dotted prefix of the loaded properties e.g.
+     * {@code net.java.sip.communicator.impl.protocol}
+     */
+    public void markPrefixLoaded(String prefix)
+    {
+        if (loadedPrefixes.add(prefix))
+        {
+            synchronized (this)
+            {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Notifies this barrier that the whole configuration has been loaded and
+     * wakes up all waiting readers.
+     */
+    public void markLoaded()
+    {
+        complete(null);
+    }
+
+    /**
+     * Notifies this barrier that loading the configuration failed and wakes up
+     * all waiting readers. Properties which have not been loaded will appear
+     * to be unset.
+     *
+     * @param cause the exception which made the load fail
+     */
+    public void markFailed(IOException cause)
+    {
+        complete(cause);
+    }
+
+    /**
+     * Determines whether the configuration load has completed, successfully
+     * or not.
+     *
+     * @return {@code true} if the load has completed; otherwise,
+     * {@code false}
+     */
+    public boolean isLoaded()
+    {
+        return loaded;
+    }
+
+    /**
+     * Gets the exception which made the configuration load fail.
+     *
+     * @return the exception which made the load fail or {@code null} if the
+     * load has not completed yet or has succeeded
+     */
+    public IOException getFailure()
+    {
+        return failure;
+    }
+
+    /**
+     * Gets the time the configuration load took.
+     *
+     * @return the time in nanoseconds between the creation of this barrier and
+     * the completion of the load or {@code -1} if the load has not completed
+     * yet
+     */
+    public long getLoadDurationNanos()
+    {
+        return loadDurationNanos;
+    }
+
+    /**
+     * Gets the number of reads which had to block waiting for the load.
+     *
+     * @return the number of reads which had to block waiting for the load
+     */
+    public synchronized long getBlockedReadCount()
+    {
+        return blockedReads;
+    }
+
+    /**
+     * Gets the number of reads which were interrupted before the property they
+     * waited for had been loaded and thus may have missed its value.
+     *
+     * @return the number of reads which were interrupted before the property
+     * they waited for had been loaded
+     */
+    public synchronized long getInterruptedReadCount()
+    {
+        return interruptedReads;
+    }
+
+    /**
+     * Gets the total time readers spent blocked waiting for the load. This is
+     * the part of the load which remained on the critical path of the
+     * bundles using the {@code ConfigurationService}.
+     *
+     * @return the total time in nanoseconds readers spent blocked
+     */
+    public synchronized long getBlockedNanos()
+    {
+        return blockedNanos;
+    }
+
+    /**
+     * Marks the load as completed and wakes up all waiting readers.
+     *
+     * @param cause the exception which made the load fail or {@code null} if
+     * it succeeded
+     */
+    private synchronized void complete(IOException cause)
+    {
+        if (loaded)
+            return;
+
+        failure = cause;
+        loadDurationNanos = System.nanoTime() - startNanos;
+        loaded = true;
+        loadedPrefixes.clear();
+        notifyAll();
+    }
+
+    /**
+     * Determines whether a specific property or one of its dotted prefixes has
+     * been reported as loaded.
+     *
+     * @param propertyName the name of the property to check
+     * @return {@code true} if {@code propertyName} is covered by a loaded
+     * prefix; otherwise, {@code false}
+     */
+    private boolean isPrefixLoaded(String propertyName)
+    {
+        if (loadedPrefixes.isEmpty())
+            return false;
+
+        for (int i = propertyName.indexOf('.');
+                i != -1;
+                i = propertyName.indexOf('.', i + 1))
+        {
+            if (loadedPrefixes.contains(propertyName.substring(0, i)))
+                return true;
+        }
+        return loadedPrefixes.contains(propertyName);
+    }
+}
@@ -75,6 +75,28 @@ public interface ConfigurationService
     String PNAME_CONFIGURATION_FILE_NAME
         = "net.java.sip.communicator.CONFIGURATION_FILE_NAME";
 
+    /**
+     * The name of the boolean system property which indicates whether the
+     * configuration file is to be loaded on a background thread. If
+     * {@code true}, the service is usable as soon as it is registered and
+     * reads of properties which have not been loaded yet block until they
+     * are. The default value is {@code false} which means that the whole
+     * configuration is loaded before the service becomes available.
+     */
+    String PNAME_CONFIGURATION_LOAD_IN_BACKGROUND
+        = "net.java.sip.communicator.CONFIGURATION_LOAD_IN_BACKGROUND";
+
+    /**
+     * The name of the integer system property which specifies the minimum
+     * length in characters of a property value to be stored in a separate file
+     * under the home directory rather than in the configuration file. Such
+     * values are read lazily and only rewritten when they change. The default
+     * value is {@code 0} which means that all values are stored in the
+     * configuration file.
+     */
+    String PNAME_OUT_OF_LINE_VALUE_THRESHOLD
+        = "net.java.sip.communicator.CONFIGURATION_OUT_OF_LINE_VALUE_THRESHOLD";
+
     /**
      * Sets the property with the specified name to the specified value. Calling
      * this method would first trigger a PropertyChangeEvent that will
@@ -132,7 +154,11 @@ public interface ConfigurationService
 
     /**
      * Returns the value of the property with the specified name or null if no
-     * such property exists.
+     * such property exists. If the configuration is being loaded in the
+     * background, blocks until the property has been loaded. If the calling
+     * thread is interrupted while blocked, returns early with its interrupted
+     * status set and the value may be missing because the property has not
+     * been loaded yet.
      * @param propertyName the name of the property that is being queried.
      * @return the value of the property with the specified name.
      */
@@ -372,6 +398,107 @@ public interface ConfigurationService
     void removePropertyChangeListener(String propertyName,
                                       PropertyChangeListener listener);
 
+    /**
+     * Adds a PropertyChangeListener to the listener list for a specific
+     * property and holds it through a weak reference only. The listener is
+     * dropped from the listener list once it has been garbage collected so a
+     * component which never calls
+     * {@link #removePropertyChangeListener(String, PropertyChangeListener)}
+     * does not leak it. The caller must keep a strong reference to the
+     * listener for as long as it is to receive events.
+     * <p>
+     * The default implementation registers a forwarder which holds the
+     * listener weakly and unregisters itself on the first event after the
+     * listener has been collected. Such a registration cannot be removed
+     * explicitly. Implementations which keep their listeners in a
+     * {@link PropertyChangeListenerRegistry} override it to register the
+     * listener weakly there.
+     * </p>
+     * @param propertyName one of the property names listed above or
+     * {@code null} to register the listener for all properties
+     * @param listener the PropertyChangeListener to be added
+     */
+    default void addWeakPropertyChangeListener(
+            String propertyName,
+            PropertyChangeListener listener)
+    {
+        PropertyChangeListener forwarder
+            = new WeakPropertyChangeListener(this, propertyName, listener);
+
+        if (propertyName == null)
+            addPropertyChangeListener(forwarder);
+        else
+            addPropertyChangeListener(propertyName, forwarder);
+    }
+
+    /**
+     * Returns the number of PropertyChangeListeners which are currently
+     * registered for a specific property, including weakly registered ones
+     * which have not been garbage collected yet. Meant to be exported as a
+     * metric so that listener leaks are visible.
+     *
+     * @param propertyName a valid property name or {@code null} to get the
+     * number of listeners registered for all properties
+     * @return the number of PropertyChangeListeners registered for the
+     * specified property or {@code -1} if the implementation does not count
+     * its listeners, which is what the default implementation returns
+     */
+    default int getPropertyChangeListenerCount(String propertyName)
+    {
+        return -1;
+    }
+
+    /**
+     * Subscribes to the changes of a specific property or of all properties
+     * with a specific dotted prefix as a stream with backpressure. The
+     * subscriber is notified asynchronously and only receives as many changes
+     * as it has requested. Changes which arrive while its buffer of
+     * {@code bufferCapacity} events is full cause the oldest buffered change
+     * to be dropped and counted, so a slow subscriber never blocks the callers
+     * of {@link #setProperty(String, Object)}.
+     * <p>
+     * The default implementation is for services which do not publish their
+     * changes: it signals an {@link UnsupportedOperationException} to the
+     * subscriber through
+     * {@link ConfigurationChangeSubscriber#onError(Throwable)} right away.
+     * </p>
+     *
+     * @param keyPrefix the name of the property or the dotted prefix of the
+     * properties to receive the changes of or {@code null} for all properties
+     * @param bufferCapacity the maximum number of changes to buffer for the
+     * subscriber
+     * @param subscriber the {@link ConfigurationChangeSubscriber} to notify
+     */
+    default void subscribe(
+            String keyPrefix,
+            int bufferCapacity,
+            ConfigurationChangeSubscriber subscriber)
+    {
+        subscriber.onSubscribe(
+                new ConfigurationChangeSubscription()
+                {
+                    @Override
+                    public void request(long n)
+                    {
+                    }
+
+                    @Override
+                    public void cancel()
+                    {
+                    }
+
+                    @Override
+                    public long getDroppedEventCount()
+                    {
+                        return 0;
+                    }
+                });
+        subscriber.onError(
+                new UnsupportedOperationException(
+                        getClass().getName()
+                            + " does not publish configuration changes"));
+    }
+
     /**
      * Adds a VetoableChangeListener to the listener list. The listener is
      * registered for all properties in the configuration.
@@ -449,6 +576,21 @@ public interface ConfigurationService
     void reloadConfiguration()
         throws IOException;
 
+    /**
+     * Determines whether the configuration has been completely loaded. Always
+     * {@code true} unless {@link #PNAME_CONFIGURATION_LOAD_IN_BACKGROUND} is
+     * set and the background load is still running.
+     *
+     * @return {@code true} if the configuration has been completely loaded;
+     * otherwise, {@code false}. The default implementation returns
+     * {@code true} for services which always load the configuration before
+     * they become available.
+     */
+    default boolean isConfigurationLoaded()
+    {
+        return true;
+    }
+
     /**
      * Removes all locally stored properties leaving an empty configuration.
      * Implementations that use a file for storing properties may simply delete
@@ -0,0 +1,398 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.configuration;
+
+import java.io.*;
+import java.lang.ref.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.logging.*;
+
+/**
+ * Stores the values of properties which exceed a specific size in separate
+ * files instead of the configuration file itself. Large values such as
+ * serialized certificates, history cursors or JSON documents are then neither
+ * rewritten on every {@link ConfigurationService#storeConfiguration()} nor
+ * copied on every {@link ConfigurationService#reloadConfiguration()}, and they
+ * do not have to stay in the heap for the lifetime of the service.
+ * <p>
+ * A {@code ConfigurationService} implementation keeps an
+ * {@link OutOfLineValue} in its property map in place of a large value. The
+ * configuration file only contains a short marker which refers to the file the
+ * value is stored in. The value itself is read lazily the first time it is
+ * requested through the normal {@code getProperty} path, is only softly
+ * referenced afterwards and its file is only rewritten when the value has
+ * changed.
+ * </p>
+ * <p>
+ * Short values which happen to start with {@link #MARKER_PREFIX} or
+ * {@link #ESCAPE_PREFIX} are written to the configuration file with an
+ * additional {@code ESCAPE_PREFIX} so that they are not mistaken for markers
+ * when the configuration is read back.
+ * </p>
+ */
+public class OutOfLinePropertyStore
+{
+    /**
+     * The prefix of the marker which is written to the configuration file in
+     * place of a value stored out of line.
+     */
+    public static final String MARKER_PREFIX = "@@out-of-line@@:";
+
+    /**
+     * The prefix which is prepended to a value written to the configuration
+     * file which would otherwise be mistaken for a marker.
+     */
+    public static final String ESCAPE_PREFIX = "@@escaped@@:";
+
+    /**
+     * The name of the directory in the home directory of the
+     * {@code ConfigurationService} where values stored out of line are kept.
+     */
+    public static final String DIRECTORY_NAME = "config-values";
+
+    /**
+     * The extension of the files values stored out of line are kept in.
+     */
+    private static final String FILE_EXTENSION = ".value";
+
+    /**
+     * The {@code Logger} used by the {@code OutOfLinePropertyStore} class
+     * and its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(OutOfLinePropertyStore.class.getName());
+
+    /**
+     * The directory the values stored out of line are kept in.
+     */
+    private final File directory;
+
+    /**
+     * The minimum length in characters of a value to be stored out of line.
+     */
+    private final int threshold;
+
+    /**
+     * Initializes a new {@code OutOfLinePropertyStore} instance.
+     *
+     * @param directory the directory to keep the values stored out of line in,
+     * usually {@link #DIRECTORY_NAME} in the home directory of the
+     * {@code ConfigurationService}
+     * @param threshold the minimum length in characters of a value to be
+     * stored out of line; {@code 0} or less disables out-of-line storage
+     */
+    public OutOfLinePropertyStore(File directory, int threshold)
+    {
+        this.directory = directory;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Converts the value of a property which is being set into the
+     * representation to be kept in the property map.
+     *
+     * @param propertyName the name of the property being set
+     * @param value the new value of the property
+     * @return an {@link OutOfLineValue} if {@code value} is to be stored out of
+     * line; otherwise, {@code value} itself
+     */
+    public Object toStoredValue(String propertyName, Object value)
+    {
+        return toStoredValue(propertyName, value, null);
+    }
+
+    /**
+     * Converts the value of a property which is being set into the
+     * representation to be kept in the property map. If the property is
+     * already stored out of line with an equal value, the current
+     * representation is kept so that its file is not rewritten.
+     *
+     * @param propertyName the name of the property being set
+     * @param value the new value of the property
+     * @param storedValue the value currently kept in the property map for
+     * {@code propertyName} or {@code null}
+     * @return an {@link OutOfLineValue} if {@code value} is to be stored out of
+     * line; otherwise, {@code value} itself
+     */
+    public Object toStoredValue(
+            String propertyName,
+            Object value,
+            Object storedValue)
+    {
+        if ((threshold <= 0) || !(value instanceof String))
+            return value;
+
+        String s = (String) value;
+
+        if (s.length() < threshold)
+            return value;
+
+        File file = getFile(propertyName);
+
+        if (storedValue instanceof OutOfLineValue)
+        {
+            OutOfLineValue current = (OutOfLineValue) storedValue;
+
+            if (current.file.equals(file) && s.equals(current.getValue()))
+                return current;
+        }
+        return new OutOfLineValue(file, s);
+    }
+
+    /**
+     * Converts the value of a property as read from the configuration file
+     * into the representation to be kept in the property map. Values stored
+     * out of line are not read until they are requested.
+     *
+     * @param propertyName the name of the property read
+     * @param persistedValue the value read from the configuration file
+     * @return an {@link OutOfLineValue} if {@code persistedValue} is a marker
+     * of a value stored out of line; otherwise, {@code persistedValue} itself
+     * without a leading {@link #ESCAPE_PREFIX}
+     */
+    public Object fromPersistedValue(String propertyName, String persistedValue)
+    {
+        if (persistedValue == null)
+            return null;
+        if (persistedValue.startsWith(ESCAPE_PREFIX))
+            return persistedValue.substring(ESCAPE_PREFIX.length());
+        if (!persistedValue.startsWith(MARKER_PREFIX))
+            return persistedValue;
+
+        String fileName = persistedValue.substring(MARKER_PREFIX.length());
+
+        // The name comes from the configuration file so it must not be allowed
+        // to refer to a file outside of the directory.
+        if (!isValidFileName(fileName))
+        {
+            logger.warning(
+                    "Ignoring invalid out-of-line value file name of "
+                        + propertyName + ": " + fileName);
+            return null;
+        }
+        return new OutOfLineValue(new File(directory, fileName), null);
+    }
+
+    /**
+     * Converts a value from the property map into the value to be written to
+     * the configuration file. If the value is stored out of line and has
+     * changed since it was last written, its file is rewritten.
+     *
+     * @param storedValue the value from the property map
+     * @return the value to be written to the configuration file
+     * @throws IOException if writing the file of a value stored out of line
+     * fails
+     */
+    public Object toPersistedValue(Object storedValue)
+        throws IOException
+    {
+        if (!(storedValue instanceof OutOfLineValue))
+        {
+            if ((storedValue instanceof String)
+                    && (((String) storedValue).startsWith(MARKER_PREFIX)
+                        || ((String) storedValue).startsWith(ESCAPE_PREFIX)))
+            {
+                return ESCAPE_PREFIX + storedValue;
+            }
+            return storedValue;
+        }
+
+        OutOfLineValue value = (OutOfLineValue) storedValue;
+
+        value.store();
+        return MARKER_PREFIX + value.file.getName();
+    }
+
+    /**
+     * Resolves a value from the property map into the value to be returned by
+     * {@code getProperty}, reading it if it is stored out of line and is not
+     * in memory.
+     *
+     * @param storedValue the value from the property map
+     * @return the value of the property
+     */
+    public static Object resolve(Object storedValue)
+    {
+        return
+            (storedValue instanceof OutOfLineValue)
+                ? ((OutOfLineValue) storedValue).getValue()
+                : storedValue;
+    }
+
+    /**
+     * Deletes the file of a property which has been removed or whose value is
+     * no longer stored out of line.
+     *
+     * @param propertyName the name of the property
+     * @throws IOException if deleting the file fails
+     */
+    public void remove(String propertyName)
+        throws IOException
+    {
+        Files.deleteIfExists(getFile(propertyName).toPath());
+    }
+
+    /**
+     * Determines whether a file name read from a marker may be one generated by
+     * {@link #getFile(String)}, i.e. has no path separators and cannot escape
+     * {@link #directory}.
+     *
+     * @param fileName the file name to check
+     * @return {@code true} if {@code fileName} is valid; otherwise,
+     * {@code false}
+     */
+    private static boolean isValidFileName(String fileName)
+    {
+        return
+            fileName.endsWith(FILE_EXTENSION)
+                && fileName.matches("[A-Za-z0-9._-]+");
+    }
+
+    /**
+     * Gets the file the value of a specific property is stored in when stored
+     * out of line.
+     *
+     * @param propertyName the name of the property
+     * @return the file the value of {@code propertyName} is stored in
+     */
+    private File getFile(String propertyName)
+    {
+        String fileName = propertyName.replaceAll("[^A-Za-z0-9._-]", "_");
+
+        if (!fileName.equals(propertyName))
+        {
+            fileName
+                += "-" + Integer.toHexString(propertyName.hashCode());
+        }
+        return new File(directory, fileName + FILE_EXTENSION);
+    }
+
+    /**
+     * The value of a property which is stored in a separate file.
+     */
+    public static class OutOfLineValue
+    {
+        /**
+         * The file the value is stored in.
+         */
+        private final File file;
+
+        /**
+         * The value if it has changed and has not been written to
+         * {@link #file} yet.
+         */
+        private String pendingValue;
+
+        /**
+         * The value as last read from or written to {@link #file}. Only
+         * softly referenced so that it may be reclaimed and read again.
+         */
+        private Reference<String> cachedValue;
+
+        /**
+         * Initializes a new {@code OutOfLineValue} instance.
+         *
+         * @param file the file the value is stored in
+         * @param pendingValue the new value to be written or {@code null} if
+         * the value is to be read from {@code file}
+         */
+        OutOfLineValue(File file, String pendingValue)
+        {
+            this.file = file;
+            this.pendingValue = pendingValue;
+        }
+
+        /**
+         * Gets the value, reading it from its file if necessary.
+         *
+         * @return the value or {@code null} if it could not be read
+         */
+        public synchronized String getValue()
+        {
+            if (pendingValue != null)
+                return pendingValue;
+
+            String value = (cachedValue == null) ? null : cachedValue.get();
+
+            if (value == null)
+            {
+                try
+                {
+                    value
+                        = new String(
+                                Files.readAllBytes(file.toPath()),
+                                StandardCharsets.UTF_8);
+                }
+                catch (IOException ioe)
+                {
+                    logger.log(
+                            Level.WARNING,
+                            "Failed to read out-of-line value from " + file,
+                            ioe);
+                    return null;
+                }
+                cachedValue = new SoftReference<String>(value);
+            }
+            return value;
+        }
+
+        /**
+         * Writes the value to its file if it has changed since it was last
+         * written. The file is replaced atomically so that a crash never
+         * leaves a partially written value behind.
+         *
+         * @throws IOException if writing the file fails
+         */
+        synchronized void store()
+            throws IOException
+        {
+            if (pendingValue == null)
+                return;
+
+            File dir = file.getParentFile();
+
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Failed to create " + dir);
+
+            Path tmp = new File(dir, file.getName() + ".tmp").toPath();
+
+            Files.write(tmp, pendingValue.getBytes(StandardCharsets.UTF_8));
+            Files.move(
+                    tmp,
+                    file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+
+            cachedValue = new SoftReference<String>(pendingValue);
+            pendingValue = null;
+        }
+
+        /**
+         * Returns the value so that {@link ConfigurationService#getString(
+         * String)} and friends work on values stored out of line.
+         *
+         * @return the value or an empty string if it could not be read
+         */
+        @Override
+        public String toString()
+        {
+            String value = getValue();
+
+            return (value == null) ? "" : value;
+        }
+    }
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.configuration;
+
+import java.beans.*;
+import java.lang.ref.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Keeps the {@link PropertyChangeListener}s registered with a
+ * {@link ConfigurationService} and dispatches {@link PropertyChangeEvent}s to
+ * them. Listeners may be registered either strongly, in which case they stay
+ * registered until explicitly removed, or weakly, in which case they are only
+ * referenced through a {@link WeakReference} and are dropped from the registry
+ * once they have been garbage collected.
+ * <p>
+ * Cleared weak registrations are purged while events are dispatched to the
+ * listeners of the respective property, so a component which forgets to
+ * unregister a weakly registered listener does not cause the listener lists to
+ * grow without bound. Note that a weakly registered listener must be strongly
+ * referenced by its owner for as long as it is to receive events.
+ * </p>
+ * <p>
+ * The registry is safe for concurrent use. Dispatching does not hold any lock
+ * while listeners are being notified.
+ * </p>
+ */
+public class PropertyChangeListenerRegistry
+{
+    /**
+     * The listeners registered for all properties.
+     */
+    private final ListenerList globalListeners = new ListenerList(null);
+
+    /**
+     * The listeners registered for specific properties, mapped by the property
+     * names.
+     */
+    private final ConcurrentMap<String, ListenerList> propertyListeners
+        = new ConcurrentHashMap<String, ListenerList>();
+
+    /**
+     * Registers a {@link PropertyChangeListener} for a specific property or for
+     * all properties.
+     *
+     * @param propertyName the name of the property to register
+     * {@code listener} for or {@code null} to register it for all properties
+     * @param listener the {@code PropertyChangeListener} to register
+     * @param weak {@code true} if {@code listener} is to be referenced through
+     * a {@link WeakReference} only; otherwise, {@code false}
+     */
+    public void addPropertyChangeListener(
+            String propertyName,
+            PropertyChangeListener listener,
+            boolean weak)
+    {
+        if (listener == null)
+            throw new NullPointerException("listener");
+
+        Entry entry = new Entry(listener, weak);
+
+        if (propertyName == null)
+        {
+            globalListeners.add(entry);
+            return;
+        }
+
+        while (true)
+        {
+            ListenerList list = propertyListeners.get(propertyName);
+
+            if (list == null)
+            {
+                ListenerList newList = new ListenerList(propertyName);
+
+                list = propertyListeners.putIfAbsent(propertyName, newList);
+                if (list == null)
+                    list = newList;
+            }
+            // The list may have been purged and detached from the map in the
+            // meantime in which case we have to try again with a fresh one.
+            if (list.add(entry))
+                break;
+        }
+    }
+
+    /**
+     * Unregisters a {@link PropertyChangeListener} from a specific property or
+     * from all properties. Both strong and weak registrations of
+     * {@code listener} are removed.
+     *
+     * @param propertyName the name of the property to unregister
+     * {@code listener} from or {@code null} to unregister it from the listeners
+     * for all properties
+     * @param listener the {@code PropertyChangeListener} to unregister
+     */
+    public void removePropertyChangeListener(
+            String propertyName,
+            PropertyChangeListener listener)
+    {
+        if (propertyName == null)
+        {
+            globalListeners.remove(listener);
+        }
+        else
+        {
+            ListenerList list = propertyListeners.get(propertyName);
+
+            if ((list != null) && list.remove(listener))
+                detachIfEmpty(list);
+        }
+    }
+
+    /**
+     * Notifies the listeners registered for all properties and the listeners
+     * registered for the property of a specific {@link PropertyChangeEvent}
+     * about the event. Weak registrations which have been cleared are purged
+     * along the way.
+     *
+     * @param event the {@code PropertyChangeEvent} to dispatch
+     */
+    public void firePropertyChange(PropertyChangeEvent event)
+    {
+        Object oldValue = event.getOldValue();
+        Object newValue = event.getNewValue();
+
+        if ((oldValue != null) && oldValue.equals(newValue))
+            return;
+
+        globalListeners.fire(event);
+
+        String propertyName = event.getPropertyName();
+
+        if (propertyName != null)
+        {
+            ListenerList list = propertyListeners.get(propertyName);
+
+            if ((list != null) && list.fire(event))
+                detachIfEmpty(list);
+        }
+    }
+
+    /**
+     * Determines whether there are any listeners which would be notified about
+     * a change of a specific property.
+     *
+     * @param propertyName the name of the property to check
+     * @return {@code true} if there is at least one listener registered for
+     * {@code propertyName} or for all properties; otherwise, {@code false}
+     */
+    public boolean hasListeners(String propertyName)
+    {
+        if (globalListeners.size() != 0)
+            return true;
+
+        ListenerList list
+            = (propertyName == null)
+                ? null
+                : propertyListeners.get(propertyName);
+
+        return (list != null) && (list.size() != 0);
+    }
+
+    /**
+     * Gets the number of listeners registered for a specific property or for
+     * all properties. Weak registrations which have been cleared are purged
+     * before counting so the returned value reflects the listeners which are
+     * still alive.
+     *
+     * @param propertyName the name of the property to get the number of
+     * listeners of or {@code null} to get the number of listeners registered
+     * for all properties
+     * @return the number of listeners registered for {@code propertyName}
+     */
+    public int getListenerCount(String propertyName)
+    {
+        if (propertyName == null)
+        {
+            globalListeners.purge();
+            return globalListeners.size();
+        }
+
+        ListenerList list = propertyListeners.get(propertyName);
+
+        if (list == null)
+            return 0;
+        if (list.purge())
+            detachIfEmpty(list);
+        return list.size();
+    }
+
+    /**
+     * Gets the number of listeners registered for each property which has at
+     * least one listener. The result is meant to be exported as a metric so
+     * that components leaking listeners are easy to spot.
+     *
+     * @return a {@link Map} of property names to the number of listeners
+     * registered for them
+     */
+    public Map<String, Integer> getListenerCounts()
+    {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+
+        for (String propertyName : propertyListeners.keySet())
+        {
+            int count = getListenerCount(propertyName);
+
+            if (count != 0)
+                counts.put(propertyName, count);
+        }
+        return counts;
+    }
+
+    /**
+     * Removes a specific {@code ListenerList} from {@link #propertyListeners}
+     * if it has become empty.
+     *
+     * @param list the {@code ListenerList} to detach if it is empty
+     */
+    private void detachIfEmpty(ListenerList list)
+    {
+        if (list.detachIfEmpty())
+            propertyListeners.remove(list.propertyName, list);
+    }
+
+    /**
+     * A strong or weak registration of a {@link PropertyChangeListener}.
+     */
+    private static class Entry
+    {
+        /**
+         * The listener if it is registered strongly.
+         */
+        private final PropertyChangeListener listener;
+
+        /**
+         * The reference to the listener if it is registered weakly.
+         */
+        private final Reference<PropertyChangeListener> reference;
+
+        /**
+         * Initializes a new {@code Entry} instance.
+         *
+         * @param listener the registered listener
+         * @param weak {@code true} if {@code listener} is to be referenced
+         * weakly
+         */
+        Entry(PropertyChangeListener listener, boolean weak)
+        {
+            if (weak)
+            {
+                this.listener = null;
+                this.reference
+                    = new WeakReference<PropertyChangeListener>(listener);
+            }
+            else
+            {
+                this.listener = listener;
+                this.reference = null;
+            }
+        }
+
+        /**
+         * Gets the registered listener.
+         *
+         * @return the registered listener or {@code null} if it was registered
+         * weakly and has been garbage collected
+         */
+        PropertyChangeListener get()
+        {
+            return (reference == null) ? listener : reference.get();
+        }
+    }
+
+    /**
+     * The copy-on-write list of registrations for a single property or for all
+     * properties.
+     */
+    private static class ListenerList
+    {
+        /**
+         * The empty array of registrations shared by all empty lists.
+         */
+        private static final Entry[] NO_ENTRIES = new Entry[0];
+
+        /**
+         * The name of the property this list is associated with or
+         * {@code null} for the listeners registered for all properties.
+         */
+        final String propertyName;
+
+        /**
+         * The current registrations. Replaced as a whole on every modification
+         * so that dispatching may iterate it without locking.
+         */
+        private volatile Entry[] entries = NO_ENTRIES;
+
+        /**
+         * Whether this list has been removed from the map of property
+         * listeners and must not accept new registrations anymore.
+         */
+        private boolean detached = false;
+
+        /**
+         * Initializes a new {@code ListenerList} instance.
+         *
+         * @param propertyName the name of the associated property
+         */
+        ListenerList(String propertyName)
+        {
+            this.propertyName = propertyName;
+        }
+
+        /**
+         * Adds a registration to this list.
+         *
+         * @param entry the registration to add
+         * @return {@code true} if {@code entry} was added; {@code false} if
+         * this list has been detached
+         */
+        synchronized boolean add(Entry entry)
+        {
+            if (detached)
+                return false;
+
+            Entry[] oldEntries = entries;
+            Entry[] newEntries
+                = Arrays.copyOf(oldEntries, oldEntries.length + 1);
+
+            newEntries[oldEntries.length] = entry;
+            entries = newEntries;
+            return true;
+        }
+
+        /**
+         * Removes all registrations of a specific listener as well as all
+         * cleared weak registrations from this list.
+         *
+         * @param listener the listener to remove
+         * @return {@code true} if this list was modified
+         */
+        synchronized boolean remove(PropertyChangeListener listener)
+        {
+            return retain(listener);
+        }
+
+        /**
+         * Removes all cleared weak registrations from this list.
+         *
+         * @return {@code true} if this list was modified
+         */
+        synchronized boolean purge()
+        {
+            return retain(null);
+        }
+
+        /**
+         * Marks this list as detached if it is empty.
+         *
+         * @return {@code true} if this list is empty and has been marked as
+         * detached
+         */
+        synchronized boolean detachIfEmpty()
+        {
+            if (entries.length == 0)
+                detached = true;
+            return detached;
+        }
+
+        /**
+         * Notifies the listeners in this list about a specific event.
+         *
+         * @param event the event to dispatch
+         * @return {@code true} if cleared weak registrations were encountered
+         * and purged from this list
+         */
+        boolean fire(PropertyChangeEvent event)
+        {
+            boolean purge = false;
+
+            for (Entry entry : entries)
+            {
+                PropertyChangeListener listener = entry.get();
+
+                if (listener == null)
+                    purge = true;
+                else
+                    listener.propertyChange(event);
+            }
+            return purge && purge();
+        }
+
+        /**
+         * Gets the number of registrations in this list.
+         *
+         * @return the number of registrations in this list
+         */
+        int size()
+        {
+            return entries.length;
+        }
+
+        /**
+         * Replaces {@link #entries} with the registrations which are still
+         * alive and which do not refer to a specific listener.
+         *
+         * @param listener the listener to drop or {@code null} to drop only
+         * the cleared weak registrations
+         * @return {@code true} if {@link #entries} was modified
+         */
+        private boolean retain(PropertyChangeListener listener)
+        {
+            Entry[] oldEntries = entries;
+            List<Entry> newEntries = new ArrayList<Entry>(oldEntries.length);
+
+            for (Entry entry : oldEntries)
+            {
+                PropertyChangeListener l = entry.get();
+
+                if ((l != null) && ((listener == null) || !listener.equals(l)))
+                    newEntries.add(entry);
+            }
+            if (newEntries.size() == oldEntries.length)
+                return false;
+
+            entries = newEntries.toArray(NO_ENTRIES);
+            return true;
+        }
+    }
+}
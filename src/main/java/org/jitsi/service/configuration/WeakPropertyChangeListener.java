@@ -0,0 +1,85 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.configuration;
+
+import java.beans.*;
+import java.lang.ref.*;
+
+/**
+ * Forwards {@link PropertyChangeEvent}s to a weakly referenced
+ * {@link PropertyChangeListener} and unregisters itself from its
+ * {@link ConfigurationService} on the first event after the listener has been
+ * garbage collected. Backs the default implementation of
+ * {@link ConfigurationService#addWeakPropertyChangeListener(String,
+ * PropertyChangeListener)} for services which do not keep weak registrations
+ * themselves.
+ */
+class WeakPropertyChangeListener
+    implements PropertyChangeListener
+{
+    /**
+     * The service this forwarder is registered with.
+     */
+    private final ConfigurationService configurationService;
+
+    /**
+     * The name of the property this forwarder is registered for or
+     * {@code null} if it is registered for all properties.
+     */
+    private final String propertyName;
+
+    /**
+     * The reference to the listener the events are forwarded to.
+     */
+    private final Reference<PropertyChangeListener> reference;
+
+    /**
+     * Initializes a new {@code WeakPropertyChangeListener} instance.
+     *
+     * @param configurationService the service the new instance is to be
+     * registered with
+     * @param propertyName the name of the property the new instance is to be
+     * registered for or {@code null} for all properties
+     * @param listener the listener to forward the events to
+     */
+    WeakPropertyChangeListener(
+            ConfigurationService configurationService,
+            String propertyName,
+            PropertyChangeListener listener)
+    {
+        this.configurationService = configurationService;
+        this.propertyName = propertyName;
+        this.reference = new WeakReference<PropertyChangeListener>(listener);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void propertyChange(PropertyChangeEvent event)
+    {
+        PropertyChangeListener listener = reference.get();
+
+        if (listener != null)
+            listener.propertyChange(event);
+        else if (propertyName == null)
+            configurationService.removePropertyChangeListener(this);
+        else
+            configurationService.removePropertyChangeListener(
+                    propertyName,
+                    this);
+    }
+}
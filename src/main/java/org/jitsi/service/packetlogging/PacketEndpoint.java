@@ -0,0 +1,171 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging;
+
+import java.util.*;
+
+/**
+ * An immutable address and port pair identifying one end of the packets
+ * handed to a {@link PacketLoggingService}. Callers which log many packets of
+ * the same flow create the endpoints once and reuse them instead of passing
+ * the address bytes with every packet, preferably through
+ * {@link PacketLoggingService#endpoint(byte[], int)} which may return a
+ * handle caching per-flow state.
+ */
+public class PacketEndpoint
+{
+    /**
+     * The address of endpoints whose address is unknown.
+     */
+    private static final byte[] NO_ADDRESS = new byte[0];
+
+    /**
+     * The IPv4 or IPv6 address of this endpoint.
+     */
+    private final byte[] address;
+
+    /**
+     * The port of this endpoint.
+     */
+    private final int port;
+
+    /**
+     * Initializes a new {@code PacketEndpoint} instance.
+     *
+     * @param address the IPv4 or IPv6 address of the new endpoint; copied.
+     * {@code null} or an empty array if the address is unknown.
+     * @param port the port of the new endpoint
+     * @throws IllegalArgumentException if {@code address} is neither 4 nor 16
+     * bytes long and not empty
+     */
+    public PacketEndpoint(byte[] address, int port)
+    {
+        if ((address == null) || (address.length == 0))
+        {
+            this.address = NO_ADDRESS;
+        }
+        else if ((address.length == 4) || (address.length == 16))
+        {
+            this.address = address.clone();
+        }
+        else
+        {
+            throw new IllegalArgumentException(
+                    "address length " + address.length);
+        }
+        this.port = port;
+    }
+
+    /**
+     * Gets the address of this endpoint.
+     *
+     * @return a copy of the address of this endpoint
+     */
+    public byte[] getAddress()
+    {
+        return address.clone();
+    }
+
+    /**
+     * Gets the length of the address of this endpoint.
+     *
+     * @return 4 for IPv4, 16 for IPv6 or 0 if the address is unknown
+     */
+    public int getAddressLength()
+    {
+        return address.length;
+    }
+
+    /**
+     * Copies the address of this endpoint into a specific array without
+     * allocating.
+     *
+     * @param dst the array to copy the address into
+     * @param offset the offset in {@code dst} to copy the address at
+     * @return the number of bytes copied
+     */
+    public int copyAddressTo(byte[] dst, int offset)
+    {
+        System.arraycopy(address, 0, dst, offset, address.length);
+        return address.length;
+    }
+
+    /**
+     * Determines whether the address of this endpoint equals a specific
+     * address without allocating.
+     *
+     * @param address the address to compare to
+     * @return {@code true} if the address of this endpoint equals
+     * {@code address}
+     */
+    public boolean hasAddress(byte[] address)
+    {
+        return Arrays.equals(this.address, address);
+    }
+
+    /**
+     * Gets the port of this endpoint.
+     *
+     * @return the port of this endpoint
+     */
+    public int getPort()
+    {
+        return port;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (obj == this)
+            return true;
+        if (!(obj instanceof PacketEndpoint))
+            return false;
+
+        PacketEndpoint other = (PacketEndpoint) obj;
+
+        return (port == other.port) && Arrays.equals(address, other.address);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode()
+    {
+        return hashCode(address, port);
+    }
+
+    /**
+     * Computes the hash code an endpoint with a specific address and port
+     * has, without creating it. Packets logged with addresses and ports
+     * rather than endpoints are hashed with it so that they hash like the
+     * packets of the same flow logged with endpoints.
+     *
+     * @param address the address of the endpoint; {@code null} if it is
+     * unknown, which hashes like an empty address
+     * @param port the port of the endpoint
+     * @return the hash code of the endpoint
+     */
+    public static int hashCode(byte[] address, int port)
+    {
+        return
+            31 * Arrays.hashCode((address == null) ? NO_ADDRESS : address)
+                + port;
+    }
+}
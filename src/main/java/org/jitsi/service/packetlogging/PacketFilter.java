@@ -0,0 +1,750 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging;
+
+import java.net.*;
+import java.nio.*;
+import java.text.*;
+import java.util.*;
+
+/**
+ * A compiled capture filter which a {@link PacketLoggingService} evaluates on
+ * the thread which logs a packet, before the packet is copied, in order to
+ * capture only the traffic of interest, for example the traffic of a single
+ * conference on a bridge which handles thousands.
+ * <p>
+ * Filters are compiled once from a small language modeled after the one of
+ * tcpdump:
+ * </p>
+ * <pre>
+ * expr    := expr "or" expr | expr "and" expr | "not" expr | "(" expr ")"
+ *          | primitive
+ * primitive
+ *         := "sip" | "jabber" | "rtp" | "ice4j" | "dns" | "arbitrary"
+ *          | "udp" | "tcp"
+ *          | "sender" | "outbound" | "inbound"
+ *          | ["src" | "dst"] "host" address
+ *          | ["src" | "dst"] "port" number
+ *          | "payload" "[" offset "]" ["&amp;" mask] ("=" | "!=") value
+ * </pre>
+ * <p>
+ * {@code &&}, {@code ||} and {@code !} may be used in place of {@code and},
+ * {@code or} and {@code not}. Numbers are decimal or hexadecimal with a
+ * {@code 0x} prefix. Addresses are IPv4 or IPv6 literals; host names are not
+ * resolved. For example: {@code rtp and dst port 10000 and not sender}.
+ * </p>
+ */
+public abstract class PacketFilter
+{
+    /**
+     * The per-thread holders of the fields of the packet being evaluated, so
+     * that evaluating a filter does not allocate.
+     */
+    private static final ThreadLocal<Packet> PACKETS
+        = new ThreadLocal<Packet>()
+        {
+            @Override
+            protected Packet initialValue()
+            {
+                return new Packet();
+            }
+        };
+
+    /**
+     * The expression this filter was compiled from.
+     */
+    private String expression;
+
+    /**
+     * Compiles a filter expression.
+     *
+     * @param expression the filter expression to compile
+     * @return the compiled filter
+     * @throws ParseException if {@code expression} is not a valid filter
+     * expression
+     */
+    public static PacketFilter compile(String expression)
+        throws ParseException
+    {
+        PacketFilter filter = new Parser(expression).parse();
+
+        filter.expression = expression;
+        return filter;
+    }
+
+    /**
+     * Determines whether a packet passes this filter.
+     *
+     * @param protocol the protocol which logged the packet
+     * @param sourceAddress the source address of the packet
+     * @param sourcePort the source port of the packet
+     * @param destinationAddress the destination address of the packet
+     * @param destinationPort the destination port of the packet
+     * @param transport the transport of the packet
+     * @param sender whether we are the sender of the packet
+     * @param packet the bytes of the packet
+     * @param offset the offset in {@code packet} at which the packet starts
+     * @param length the length of the packet
+     * @return {@code true} if the packet is to be captured
+     */
+    public boolean matches(
+            ProtocolName protocol,
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            TransportName transport,
+            boolean sender,
+            byte[] packet,
+            int offset,
+            int length)
+    {
+        Packet p = PACKETS.get();
+
+        p.protocol = protocol;
+        p.transport = transport;
+        p.sourceAddress = sourceAddress;
+        p.sourceEndpoint = null;
+        p.sourcePort = sourcePort;
+        p.destinationAddress = destinationAddress;
+        p.destinationEndpoint = null;
+        p.destinationPort = destinationPort;
+        p.sender = sender;
+        p.array = packet;
+        p.buffer = null;
+        p.offset = offset;
+        p.length = length;
+        try
+        {
+            return eval(p);
+        }
+        finally
+        {
+            p.array = null;
+            p.sourceAddress = p.destinationAddress = null;
+        }
+    }
+
+    /**
+     * Determines whether a packet held in a {@link ByteBuffer} passes this
+     * filter. The position and limit of {@code packet} are not modified.
+     *
+     * @param protocol the protocol which logged the packet
+     * @param source the source endpoint of the packet
+     * @param destination the destination endpoint of the packet
+     * @param transport the transport of the packet
+     * @param sender whether we are the sender of the packet
+     * @param packet the packet between its position and limit
+     * @return {@code true} if the packet is to be captured
+     */
+    public boolean matches(
+            ProtocolName protocol,
+            PacketEndpoint source,
+            PacketEndpoint destination,
+            TransportName transport,
+            boolean sender,
+            ByteBuffer packet)
+    {
+        Packet p = PACKETS.get();
+
+        p.protocol = protocol;
+        p.transport = transport;
+        p.sourceAddress = null;
+        p.sourceEndpoint = source;
+        p.sourcePort = (source == null) ? 0 : source.getPort();
+        p.destinationAddress = null;
+        p.destinationEndpoint = destination;
+        p.destinationPort = (destination == null) ? 0 : destination.getPort();
+        p.sender = sender;
+        p.array = null;
+        p.buffer = packet;
+        p.offset = packet.position();
+        p.length = packet.remaining();
+        try
+        {
+            return eval(p);
+        }
+        finally
+        {
+            p.buffer = null;
+            p.sourceEndpoint = p.destinationEndpoint = null;
+        }
+    }
+
+    /**
+     * Evaluates this filter on a packet.
+     *
+     * @param p the packet
+     * @return {@code true} if the packet passes this filter
+     */
+    abstract boolean eval(Packet p);
+
+    /**
+     * Returns the expression this filter was compiled from.
+     *
+     * @return the expression this filter was compiled from
+     */
+    @Override
+    public String toString()
+    {
+        return expression;
+    }
+
+    /**
+     * The fields of the packet being evaluated.
+     */
+    static final class Packet
+    {
+        ProtocolName protocol;
+        TransportName transport;
+        byte[] sourceAddress;
+        PacketEndpoint sourceEndpoint;
+        int sourcePort;
+        byte[] destinationAddress;
+        PacketEndpoint destinationEndpoint;
+        int destinationPort;
+        boolean sender;
+        byte[] array;
+        ByteBuffer buffer;
+        int offset;
+        int length;
+
+        /**
+         * Gets a byte of the payload.
+         *
+         * @param index the index of the byte relative to the start of the
+         * packet
+         * @return the byte as an unsigned value or {@code -1} if
+         * {@code index} is beyond the end of the packet
+         */
+        int byteAt(int index)
+        {
+            if (index >= length)
+                return -1;
+            return
+                ((array != null)
+                        ? array[offset + index]
+                        : buffer.get(offset + index))
+                    & 0xff;
+        }
+
+        /**
+         * Determines whether the source address equals a specific address.
+         *
+         * @param address the address to compare to
+         * @return {@code true} if the source address equals {@code address}
+         */
+        boolean isSourceAddress(byte[] address)
+        {
+            return
+                (sourceEndpoint != null)
+                    ? sourceEndpoint.hasAddress(address)
+                    : Arrays.equals(sourceAddress, address);
+        }
+
+        /**
+         * Determines whether the destination address equals a specific
+         * address.
+         *
+         * @param address the address to compare to
+         * @return {@code true} if the destination address equals
+         * {@code address}
+         */
+        boolean isDestinationAddress(byte[] address)
+        {
+            return
+                (destinationEndpoint != null)
+                    ? destinationEndpoint.hasAddress(address)
+                    : Arrays.equals(destinationAddress, address);
+        }
+    }
+
+    /**
+     * The kinds of fields a primitive matches.
+     */
+    private enum Field
+    {
+        PROTOCOL, TRANSPORT, SENDER,
+        SRC_HOST, DST_HOST, HOST,
+        SRC_PORT, DST_PORT, PORT
+    }
+
+    /**
+     * A primitive which compares a single field of a packet.
+     */
+    private static final class Primitive
+        extends PacketFilter
+    {
+        private final Field field;
+        private final Object value;
+        private final int port;
+
+        Primitive(Field field, Object value, int port)
+        {
+            this.field = field;
+            this.value = value;
+            this.port = port;
+        }
+
+        @Override
+        boolean eval(Packet p)
+        {
+            switch (field)
+            {
+            case PROTOCOL:
+                return p.protocol == value;
+            case TRANSPORT:
+                return p.transport == value;
+            case SENDER:
+                return p.sender;
+            case SRC_HOST:
+                return p.isSourceAddress((byte[]) value);
+            case DST_HOST:
+                return p.isDestinationAddress((byte[]) value);
+            case HOST:
+                return
+                    p.isSourceAddress((byte[]) value)
+                        || p.isDestinationAddress((byte[]) value);
+            case SRC_PORT:
+                return p.sourcePort == port;
+            case DST_PORT:
+                return p.destinationPort == port;
+            case PORT:
+                return (p.sourcePort == port) || (p.destinationPort == port);
+            default:
+                return false;
+            }
+        }
+    }
+
+    /**
+     * A comparison of a payload byte.
+     */
+    private static final class PayloadByte
+        extends PacketFilter
+    {
+        private final int index;
+        private final int mask;
+        private final int value;
+        private final boolean equal;
+
+        PayloadByte(int index, int mask, int value, boolean equal)
+        {
+            this.index = index;
+            this.mask = mask;
+            this.value = value;
+            this.equal = equal;
+        }
+
+        @Override
+        boolean eval(Packet p)
+        {
+            int b = p.byteAt(index);
+
+            return (b != -1) && (((b & mask) == value) == equal);
+        }
+    }
+
+    /**
+     * The conjunction of two filters.
+     */
+    private static final class And
+        extends PacketFilter
+    {
+        private final PacketFilter left;
+        private final PacketFilter right;
+
+        And(PacketFilter left, PacketFilter right)
+        {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean eval(Packet p)
+        {
+            return left.eval(p) && right.eval(p);
+        }
+    }
+
+    /**
+     * The disjunction of two filters.
+     */
+    private static final class Or
+        extends PacketFilter
+    {
+        private final PacketFilter left;
+        private final PacketFilter right;
+
+        Or(PacketFilter left, PacketFilter right)
+        {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean eval(Packet p)
+        {
+            return left.eval(p) || right.eval(p);
+        }
+    }
+
+    /**
+     * The negation of a filter.
+     */
+    private static final class Not
+        extends PacketFilter
+    {
+        private final PacketFilter operand;
+
+        Not(PacketFilter operand)
+        {
+            this.operand = operand;
+        }
+
+        @Override
+        boolean eval(Packet p)
+        {
+            return !operand.eval(p);
+        }
+    }
+
+    /**
+     * A recursive descent parser of filter expressions.
+     */
+    private static final class Parser
+    {
+        /**
+         * The expression being parsed.
+         */
+        private final String expression;
+
+        /**
+         * The tokens of {@link #expression}.
+         */
+        private final List<String> tokens = new ArrayList<String>();
+
+        /**
+         * The offsets in {@link #expression} of {@link #tokens}.
+         */
+        private final List<Integer> offsets = new ArrayList<Integer>();
+
+        /**
+         * The index in {@link #tokens} of the next token.
+         */
+        private int next = 0;
+
+        /**
+         * Initializes a new {@code Parser} and tokenizes an expression.
+         *
+         * @param expression the expression to parse
+         * @throws ParseException if {@code expression} contains an invalid
+         * character
+         */
+        Parser(String expression)
+            throws ParseException
+        {
+            this.expression = expression;
+
+            int i = 0;
+            int length = expression.length();
+
+            while (i < length)
+            {
+                char c = expression.charAt(i);
+                int start = i;
+
+                if (Character.isWhitespace(c))
+                {
+                    i++;
+                    continue;
+                }
+                if (Character.isLetterOrDigit(c)
+                        || (c == '.') || (c == ':') || (c == '_'))
+                {
+                    while ((i < length)
+                            && (Character.isLetterOrDigit(
+                                        c = expression.charAt(i))
+                                    || (c == '.') || (c == ':')
+                                    || (c == '_')))
+                        i++;
+                }
+                else if (expression.startsWith("&&", i)
+                        || expression.startsWith("||", i)
+                        || expression.startsWith("==", i)
+                        || expression.startsWith("!=", i))
+                {
+                    i += 2;
+                }
+                else if ("()[]&=!".indexOf(c) != -1)
+                {
+                    i++;
+                }
+                else
+                {
+                    throw new ParseException(
+                            "Unexpected character '" + c + "'",
+                            i);
+                }
+                tokens.add(expression.substring(start, i).toLowerCase());
+                offsets.add(start);
+            }
+        }
+
+        /**
+         * Parses the whole expression.
+         *
+         * @return the compiled filter
+         * @throws ParseException if the expression is not valid
+         */
+        PacketFilter parse()
+            throws ParseException
+        {
+            PacketFilter filter = parseOr();
+
+            if (next < tokens.size())
+                throw error("Unexpected '" + tokens.get(next) + "'");
+            return filter;
+        }
+
+        private PacketFilter parseOr()
+            throws ParseException
+        {
+            PacketFilter filter = parseAnd();
+
+            while (accept("or") || accept("||"))
+                filter = new Or(filter, parseAnd());
+            return filter;
+        }
+
+        private PacketFilter parseAnd()
+            throws ParseException
+        {
+            PacketFilter filter = parseNot();
+
+            while (accept("and") || accept("&&"))
+                filter = new And(filter, parseNot());
+            return filter;
+        }
+
+        private PacketFilter parseNot()
+            throws ParseException
+        {
+            if (accept("not") || accept("!"))
+                return new Not(parseNot());
+            if (accept("("))
+            {
+                PacketFilter filter = parseOr();
+
+                expect(")");
+                return filter;
+            }
+            return parsePrimitive();
+        }
+
+        private PacketFilter parsePrimitive()
+            throws ParseException
+        {
+            String token = take();
+
+            for (ProtocolName protocol : ProtocolName.values())
+            {
+                if (protocol.name().equalsIgnoreCase(token))
+                    return new Primitive(Field.PROTOCOL, protocol, 0);
+            }
+            for (TransportName transport : TransportName.values())
+            {
+                if (transport.name().equalsIgnoreCase(token))
+                    return new Primitive(Field.TRANSPORT, transport, 0);
+            }
+            if (token.equals("sender") || token.equals("outbound"))
+                return new Primitive(Field.SENDER, null, 0);
+            if (token.equals("inbound"))
+                return new Not(new Primitive(Field.SENDER, null, 0));
+            if (token.equals("payload"))
+                return parsePayload();
+
+            String direction = null;
+
+            if (token.equals("src") || token.equals("dst"))
+            {
+                direction = token;
+                token = take();
+            }
+            if (token.equals("host"))
+            {
+                byte[] address = parseAddress(take());
+
+                return
+                    new Primitive(
+                            (direction == null)
+                                ? Field.HOST
+                                : direction.equals("src")
+                                    ? Field.SRC_HOST
+                                    : Field.DST_HOST,
+                            address,
+                            0);
+            }
+            if (token.equals("port"))
+            {
+                int port = parseNumber(take(), 0xffff);
+
+                return
+                    new Primitive(
+                            (direction == null)
+                                ? Field.PORT
+                                : direction.equals("src")
+                                    ? Field.SRC_PORT
+                                    : Field.DST_PORT,
+                            null,
+                            port);
+            }
+            next--;
+            throw error("Unknown primitive '" + token + "'");
+        }
+
+        private PacketFilter parsePayload()
+            throws ParseException
+        {
+            expect("[");
+
+            int index = parseNumber(take(), Integer.MAX_VALUE);
+            int mask = 0xff;
+
+            expect("]");
+            if (accept("&"))
+                mask = parseNumber(take(), 0xff);
+
+            boolean equal;
+
+            if (accept("=") || accept("=="))
+                equal = true;
+            else if (accept("!="))
+                equal = false;
+            else
+                throw error("Expected '=' or '!='");
+
+            int value = parseNumber(take(), 0xff);
+
+            return new PayloadByte(index, mask, value & mask, equal);
+        }
+
+        private byte[] parseAddress(String token)
+            throws ParseException
+        {
+            if (token.indexOf(':') != -1)
+            {
+                // A literal IPv6 address is parsed without any lookup.
+                try
+                {
+                    return InetAddress.getByName(token).getAddress();
+                }
+                catch (UnknownHostException uhe)
+                {
+                    next--;
+                    throw error("Invalid IPv6 address '" + token + "'");
+                }
+            }
+
+            String[] parts = token.split("\\.", -1);
+
+            if (parts.length == 4)
+            {
+                byte[] address = new byte[4];
+
+                try
+                {
+                    for (int i = 0; i < 4; i++)
+                    {
+                        int b = Integer.parseInt(parts[i]);
+
+                        if ((b < 0) || (b > 255))
+                            break;
+                        address[i] = (byte) b;
+                        if (i == 3)
+                            return address;
+                    }
+                }
+                catch (NumberFormatException nfe)
+                {
+                    // Reported below.
+                }
+            }
+            next--;
+            throw error("Invalid IPv4 address '" + token + "'");
+        }
+
+        private int parseNumber(String token, int max)
+            throws ParseException
+        {
+            try
+            {
+                long value
+                    = token.startsWith("0x")
+                        ? Long.parseLong(token.substring(2), 16)
+                        : Long.parseLong(token);
+
+                if ((value >= 0) && (value <= max))
+                    return (int) value;
+            }
+            catch (NumberFormatException nfe)
+            {
+                // Reported below.
+            }
+            next--;
+            throw error("Invalid number '" + token + "'");
+        }
+
+        private boolean accept(String token)
+        {
+            if ((next < tokens.size()) && tokens.get(next).equals(token))
+            {
+                next++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token)
+            throws ParseException
+        {
+            if (!accept(token))
+                throw error("Expected '" + token + "'");
+        }
+
+        private String take()
+            throws ParseException
+        {
+            if (next >= tokens.size())
+                throw error("Unexpected end of expression");
+            return tokens.get(next++);
+        }
+
+        private ParseException error(String message)
+        {
+            int offset
+                = (next < offsets.size())
+                    ? offsets.get(next)
+                    : expression.length();
+
+            return
+                new ParseException(
+                        message + " at offset " + offset + " of \""
+                            + expression + "\"",
+                        offset);
+        }
+    }
+}
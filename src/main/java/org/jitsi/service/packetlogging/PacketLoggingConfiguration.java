@@ -17,6 +17,15 @@ package org.jitsi.service.packetlogging;
 
 /**
  * Stores the configuration used by {@code PacketLoggingService}.
+ * <p>
+ * The settings are kept in an immutable {@link Snapshot} which is replaced as
+ * a whole whenever a setting changes, so a change made on one thread is
+ * immediately visible to all the I/O threads which log packets and each of
+ * them always sees a consistent set of settings. The protocols for which
+ * logging is enabled are packed into a bitmask indexed by the ordinal of
+ * {@link ProtocolName}, which makes {@link #isLoggingEnabled(ProtocolName)} a
+ * single volatile read and a bit test.
+ * </p>
  *
  * @author Damian Minkov
  */
@@ -56,6 +65,13 @@ public class PacketLoggingConfiguration
     public final static String PACKET_LOGGING_ICE4J_ENABLED_PROPERTY_NAME
         = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_ICE4J_ENABLED";
 
+    /**
+     * Configuration property for packet logging for
+     * DNS enabled/disabled.
+     */
+    public final static String PACKET_LOGGING_DNS_ENABLED_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_DNS_ENABLED";
+
     /**
      * Configuration property for enabling/disabling arbitrary packet logging.
      * The default value is {@code false} because the arbitrary packet logging
@@ -80,49 +96,195 @@ public class PacketLoggingConfiguration
         = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_FILE_SIZE";
 
     /**
-     * Is {@code PacketLoggingService} enabled.
+     * Configuration property for rotating the packet logging files every N
+     * minutes in addition to when they reach their size limit.
      */
-    private boolean globalLoggingEnabled = true;
+    public final static String PACKET_LOGGING_ROTATION_INTERVAL_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_ROTATION_INTERVAL";
 
     /**
-     * Is {@code PacketLoggingService} enabled for sip protocol.
+     * Configuration property for the maximum number of bytes all packet
+     * logging files may take up together.
      */
-    private boolean sipLoggingEnabled = true;
+    public final static String PACKET_LOGGING_DISK_QUOTA_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_DISK_QUOTA";
 
     /**
-     * Is {@code PacketLoggingService} enabled for jabber protocol.
+     * Configuration property for the number of packets which may be queued
+     * for writing before further packets are dropped.
      */
-    private boolean jabberLoggingEnabled = true;
+    public final static String PACKET_LOGGING_QUEUE_CAPACITY_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_QUEUE_CAPACITY";
 
     /**
-     * Is {@code PacketLoggingService} enabled for rtp.
+     * Prefix of the configuration properties for capturing only one in N
+     * packets of a protocol. The name of the {@link ProtocolName} is appended,
+     * e.g. {@code ...PACKET_LOGGING_SAMPLE_EVERY.RTP}.
      */
-    private boolean rtpLoggingEnabled = true;
+    public final static String PACKET_LOGGING_SAMPLE_EVERY_PROPERTY_NAME_PREFIX
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_SAMPLE_EVERY.";
 
     /**
-     * Is {@code PacketLoggingService} enabled for ice4j.
+     * Prefix of the configuration properties for the maximum number of packets
+     * per second captured for a protocol. The name of the
+     * {@link ProtocolName} is appended, e.g.
+     * {@code ...PACKET_LOGGING_MAX_PACKETS_PER_SECOND.RTP}.
      */
-    private boolean ice4jLoggingEnabled = true;
+    public final static String
+        PACKET_LOGGING_MAX_PACKETS_PER_SECOND_PROPERTY_NAME_PREFIX
+            = "net.java.sip.communicator.packetlogging."
+                + "PACKET_LOGGING_MAX_PACKETS_PER_SECOND.";
 
     /**
-     * Is {@code PacketLoggingService} enabled for arbitrary packets. The
-     * arbitrary packet logging was designed for the purposes of debugging. Its
-     * use in production environments is discouraged because it dramatically
-     * increases the number of logged packets and, thus, noticeably impacts the
-     * performance of the library.
+     * Prefix of the configuration properties for the maximum number of bytes
+     * captured of each packet of a protocol. The name of the
+     * {@link ProtocolName} is appended, e.g.
+     * {@code ...PACKET_LOGGING_SNAP_LENGTH.RTP}.
      */
-    private boolean arbitraryLoggingEnabled = false;
+    public final static String PACKET_LOGGING_SNAP_LENGTH_PROPERTY_NAME_PREFIX
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_SNAP_LENGTH.";
 
     /**
-     * The limit for the file size.
-     * 0 means no limit.
+     * The snap length which captures only the RTP or RTCP header of each
+     * {@link ProtocolName#RTP} packet, including its CSRCs and header
+     * extension, and drops the (usually encrypted) payload. Other protocols
+     * treat it as no limit.
      */
-    private long limit = 5000000;
+    public final static int SNAP_LENGTH_HEADER_ONLY = -1;
 
-     /**
-     * The counter for number of files.
+    /**
+     * Configuration property for the number of stripes of the packet queue,
+     * each of which is shared by a subset of the threads which log packets.
+     */
+    public final static String PACKET_LOGGING_QUEUE_STRIPES_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_QUEUE_STRIPES";
+
+    /**
+     * Configuration property for the number of writer lanes, each of which
+     * writes the packets of a subset of the flows to its own capture files.
+     */
+    public final static String PACKET_LOGGING_WRITER_LANES_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_WRITER_LANES";
+
+    /**
+     * Configuration property for computing per-SSRC statistics of the
+     * {@link ProtocolName#RTP} packets instead of capturing them.
+     */
+    public final static String PACKET_LOGGING_RTP_STATISTICS_ONLY_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_RTP_STATISTICS_ONLY";
+
+    /**
+     * Configuration property for the interval in seconds at which the RTP
+     * statistics are summarized.
      */
-    private int logfileCount = 3;
+    public final static String
+        PACKET_LOGGING_RTP_STATISTICS_INTERVAL_PROPERTY_NAME
+            = "net.java.sip.communicator.packetlogging." +
+                "PACKET_LOGGING_RTP_STATISTICS_INTERVAL";
+
+    /**
+     * Configuration property for the loopback TCP port a consumer connects
+     * to in order to receive the captured packets as a live pcap stream.
+     */
+    public final static String PACKET_LOGGING_STREAM_PORT_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_STREAM_PORT";
+
+    /**
+     * Configuration property for the named pipe a consumer opens in order to
+     * receive the captured packets as a live pcap stream.
+     */
+    public final static String PACKET_LOGGING_STREAM_FIFO_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_STREAM_FIFO";
+
+    /**
+     * Configuration property for the size in bytes of the buffer between the
+     * writer thread and the live stream consumer.
+     */
+    public final static String PACKET_LOGGING_STREAM_BUFFER_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_STREAM_BUFFER";
+
+    /**
+     * Configuration property for streaming the captured packets without
+     * also writing them to the capture files.
+     */
+    public final static String PACKET_LOGGING_STREAM_ONLY_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_STREAM_ONLY";
+
+    /**
+     * Configuration property for compressing rotated packet logging files
+     * in the background.
+     */
+    public final static String PACKET_LOGGING_COMPRESS_ROTATED_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_COMPRESS_ROTATED";
+
+    /**
+     * Configuration property for keeping the captured packets in memory and
+     * only writing them to disk when a dump is requested.
+     */
+    public final static String PACKET_LOGGING_FLIGHT_RECORDER_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_FLIGHT_RECORDER";
+
+    /**
+     * Configuration property for the size in bytes of the memory in which the
+     * flight recorder keeps the captured packets.
+     */
+    public final static String
+        PACKET_LOGGING_FLIGHT_RECORDER_SIZE_PROPERTY_NAME
+            = "net.java.sip.communicator.packetlogging."
+                + "PACKET_LOGGING_FLIGHT_RECORDER_SIZE";
+
+    /**
+     * Configuration property for the number of seconds of captured packets
+     * the flight recorder writes out when a dump is requested.
+     */
+    public final static String
+        PACKET_LOGGING_FLIGHT_RECORDER_SECONDS_PROPERTY_NAME
+            = "net.java.sip.communicator.packetlogging."
+                + "PACKET_LOGGING_FLIGHT_RECORDER_SECONDS";
+
+    /**
+     * Configuration property for the number of bytes the captured packets
+     * are batched in before they are written to the file.
+     */
+    public final static String PACKET_LOGGING_FLUSH_THRESHOLD_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_FLUSH_THRESHOLD";
+
+    /**
+     * Configuration property for the maximum number of milliseconds a
+     * captured packet may remain batched before it is written to the file.
+     */
+    public final static String PACKET_LOGGING_FLUSH_LATENCY_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_FLUSH_LATENCY";
+
+    /**
+     * Configuration property for the number of bytes of a capture file
+     * covered by an entry of its time index.
+     */
+    public final static String PACKET_LOGGING_INDEX_INTERVAL_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_INDEX_INTERVAL";
+
+    /**
+     * Configuration property for the capture filter expression, see
+     * {@link PacketFilter}.
+     */
+    public final static String PACKET_LOGGING_FILTER_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_FILTER";
+
+    /**
+     * The current settings.
+     */
+    private volatile Snapshot snapshot = new Snapshot();
+
+    /**
+     * Gets the current settings as an immutable value. Code which checks
+     * several settings for the same packet should read them from a single
+     * snapshot.
+     * @return the current settings.
+     */
+    public Snapshot getSnapshot()
+    {
+        return snapshot;
+    }
 
     /**
      * Checks whether packet logging is enabled in the configuration.
@@ -130,7 +292,18 @@ public class PacketLoggingConfiguration
      */
     public boolean isGlobalLoggingEnabled()
     {
-        return globalLoggingEnabled;
+        return snapshot.isGlobalLoggingEnabled();
+    }
+
+    /**
+     * Checks whether packet logging is enabled in the configuration for a
+     * specific protocol, taking into account whether it is enabled globally.
+     * @param protocol the protocol.
+     * @return {@code true} if packet logging is enabled for the protocol.
+     */
+    public boolean isLoggingEnabled(ProtocolName protocol)
+    {
+        return snapshot.isLoggingEnabled(protocol);
     }
 
     /**
@@ -140,7 +313,7 @@ public class PacketLoggingConfiguration
      */
     public boolean isSipLoggingEnabled()
     {
-        return sipLoggingEnabled;
+        return snapshot.isFlagSet(ProtocolName.SIP);
     }
 
     /**
@@ -150,7 +323,7 @@ public class PacketLoggingConfiguration
      */
     public boolean isJabberLoggingEnabled()
     {
-        return jabberLoggingEnabled;
+        return snapshot.isFlagSet(ProtocolName.JABBER);
     }
 
     /**
@@ -160,7 +333,7 @@ public class PacketLoggingConfiguration
      */
     public boolean isRTPLoggingEnabled()
     {
-        return rtpLoggingEnabled;
+        return snapshot.isFlagSet(ProtocolName.RTP);
     }
 
     /**
@@ -170,7 +343,17 @@ public class PacketLoggingConfiguration
      */
     public boolean isIce4JLoggingEnabled()
     {
-        return ice4jLoggingEnabled;
+        return snapshot.isFlagSet(ProtocolName.ICE4J);
+    }
+
+    /**
+     * Checks whether packet logging is enabled in the configuration
+     * for DNS.
+     * @return {@code true} if packet logging is enabled for DNS.
+     */
+    public boolean isDnsLoggingEnabled()
+    {
+        return snapshot.isFlagSet(ProtocolName.DNS);
     }
 
     /**
@@ -181,7 +364,7 @@ public class PacketLoggingConfiguration
      */
     public boolean isArbitraryLoggingEnabled()
     {
-        return arbitraryLoggingEnabled;
+        return snapshot.isFlagSet(ProtocolName.ARBITRARY);
     }
 
     /**
@@ -190,7 +373,7 @@ public class PacketLoggingConfiguration
      */
     public long getLimit()
     {
-        return limit;
+        return snapshot.getLimit();
     }
 
     /**
@@ -199,26 +382,282 @@ public class PacketLoggingConfiguration
      */
     public int getLogfileCount()
     {
-        return logfileCount;
+        return snapshot.getLogfileCount();
+    }
+
+    /**
+     * The number of minutes after which a file is rotated even if it has not
+     * reached its size limit. The rotations are aligned to multiples of the
+     * interval since the epoch, so that e.g. 60 yields files starting on the
+     * hour (UTC).
+     * @return the rotation interval in minutes, 0 for size based rotation
+     * only.
+     */
+    public int getRotationInterval()
+    {
+        return snapshot.getRotationInterval();
+    }
+
+    /**
+     * The maximum number of bytes all files, including rotated and
+     * compressed ones, may take up together. The oldest files are deleted
+     * first when the quota is exceeded.
+     * @return the disk quota in bytes, 0 means no quota.
+     */
+    public long getDiskQuota()
+    {
+        return snapshot.getDiskQuota();
+    }
+
+    /**
+     * The number of packets which may be queued for writing before further
+     * packets are dropped, per stripe of the queue (see
+     * {@link #getQueueStripes()}). Each slot of a stripe which a thread has
+     * logged packets to keeps about 2 KiB for reuse, so the queue retains up
+     * to the number of stripes times this capacity times 2 KiB of heap, for
+     * example 256 MiB with 128 stripes and a capacity of 1024. Packets larger
+     * than 2 KiB take up their captured length in addition while they are
+     * queued and release it once they have been written.
+     * @return the capacity of each stripe of the packet queue.
+     */
+    public int getQueueCapacity()
+    {
+        return snapshot.getQueueCapacity();
+    }
+
+    /**
+     * The number of stripes of the packet queue, each of which is shared by
+     * a subset of the threads which log packets.
+     * @return the number of stripes, 0 or less means twice the number of
+     * available processors.
+     */
+    public int getQueueStripes()
+    {
+        return snapshot.getQueueStripes();
+    }
+
+    /**
+     * The number of writer lanes, each of which has a queue, a writer thread
+     * and capture files of its own and handles the packets of a subset of the
+     * flows. Ignored in flight recorder mode.
+     * @return the number of writer lanes.
+     */
+    public int getWriterLanes()
+    {
+        return snapshot.getWriterLanes();
+    }
+
+    /**
+     * Whether the {@link ProtocolName#RTP} packets are only accounted for in
+     * per-SSRC statistics of loss, reordering, jitter and bitrate, which are
+     * summarized periodically, instead of being captured. RTCP and other
+     * packets multiplexed with RTP are still captured.
+     * @return {@code true} if only the RTP statistics are kept.
+     */
+    public boolean isRtpStatisticsOnly()
+    {
+        return snapshot.isRtpStatisticsOnly();
+    }
+
+    /**
+     * The interval at which the RTP statistics are summarized.
+     * @return the interval in seconds.
+     */
+    public int getRtpStatisticsInterval()
+    {
+        return snapshot.getRtpStatisticsInterval();
+    }
+
+    /**
+     * The loopback TCP port a consumer connects to in order to receive the
+     * captured packets as a live pcap stream.
+     * @return the port, 0 if streaming over TCP is disabled.
+     */
+    public int getStreamPort()
+    {
+        return snapshot.getStreamPort();
+    }
+
+    /**
+     * The named pipe a consumer opens in order to receive the captured
+     * packets as a live pcap stream.
+     * @return the path of the named pipe, {@code null} if streaming to a
+     * named pipe is disabled.
+     */
+    public String getStreamFifo()
+    {
+        return snapshot.getStreamFifo();
+    }
+
+    /**
+     * The size in bytes of the buffer between the writer thread and the live
+     * stream consumer. Packets which do not fit are dropped.
+     * @return the size of the stream buffer in bytes.
+     */
+    public int getStreamBufferSize()
+    {
+        return snapshot.getStreamBufferSize();
+    }
+
+    /**
+     * Whether the captured packets are only streamed and not written to the
+     * capture files.
+     * @return {@code true} if the capture files are not written.
+     */
+    public boolean isStreamOnly()
+    {
+        return snapshot.isStreamOnly();
+    }
+
+    /**
+     * The number of bytes the captured packets are batched in before they
+     * are written to the file.
+     * @return the flush threshold in bytes, 0 writes every packet at once.
+     */
+    public int getFlushThreshold()
+    {
+        return snapshot.getFlushThreshold();
+    }
+
+    /**
+     * The maximum time a captured packet may remain batched before it is
+     * written to the file.
+     * @return the flush latency in milliseconds.
+     */
+    public int getFlushLatency()
+    {
+        return snapshot.getFlushLatency();
+    }
+
+    /**
+     * The number of bytes of a capture file covered by an entry of the time
+     * index written next to it.
+     * @return the index interval in bytes, 0 means capture files are not
+     * indexed.
+     */
+    public int getIndexInterval()
+    {
+        return snapshot.getIndexInterval();
+    }
+
+    /**
+     * Checks whether rotated files are compressed in the background. The
+     * compressed files are kept for as long as all files fit in
+     * {@link #getDiskQuota()} or, without a quota, in {@link #getLimit()}
+     * times {@link #getLogfileCount()} bytes. Without either, at most
+     * {@link #getLogfileCount()} compressed files are kept.
+     * @return {@code true} if rotated files are compressed.
+     */
+    public boolean isCompressRotatedFiles()
+    {
+        return snapshot.isCompressRotatedFiles();
+    }
+
+    /**
+     * Checks whether captured packets are kept in memory and only written to
+     * disk when a dump is requested.
+     * @return {@code true} if the flight recorder mode is enabled.
+     */
+    public boolean isFlightRecorderEnabled()
+    {
+        return snapshot.isFlightRecorderEnabled();
+    }
+
+    /**
+     * The size of the memory in which the flight recorder keeps the captured
+     * packets.
+     * @return the size in bytes.
+     */
+    public int getFlightRecorderSize()
+    {
+        return snapshot.getFlightRecorderSize();
+    }
+
+    /**
+     * The number of seconds of captured packets the flight recorder writes
+     * out when a dump is requested. 0 means as much as is kept in memory.
+     * @return the number of seconds.
+     */
+    public int getFlightRecorderSeconds()
+    {
+        return snapshot.getFlightRecorderSeconds();
+    }
+
+    /**
+     * The filter packets have to pass to be captured.
+     * @return the capture filter or {@code null} to capture all packets.
+     */
+    public PacketFilter getFilter()
+    {
+        return snapshot.getFilter();
+    }
+
+    /**
+     * Only one in this many packets of a protocol is captured.
+     * @param protocol the protocol.
+     * @return the sampling ratio, 1 or less means every packet.
+     */
+    public int getSampleEvery(ProtocolName protocol)
+    {
+        return snapshot.getSampleEvery(protocol);
+    }
+
+    /**
+     * The maximum number of packets of a protocol captured per second.
+     * @param protocol the protocol.
+     * @return the packets-per-second cap, 0 means no limit.
+     */
+    public int getMaxPacketsPerSecond(ProtocolName protocol)
+    {
+        return snapshot.getMaxPacketsPerSecond(protocol);
+    }
+
+    /**
+     * The maximum number of bytes captured of each packet of a protocol.
+     * @param protocol the protocol.
+     * @return the snap length, 0 means no limit and
+     * {@link #SNAP_LENGTH_HEADER_ONLY} means only the RTP header.
+     */
+    public int getSnapLength(ProtocolName protocol)
+    {
+        return snapshot.getSnapLength(protocol);
     }
 
     /**
      * Change whether packet logging is enabled.
      * @param enabled {@code true} if we enable it.
      */
-    public void setGlobalLoggingEnabled(boolean enabled)
+    public synchronized void setGlobalLoggingEnabled(boolean enabled)
     {
+        Snapshot s = snapshot.copy();
+
         if(!enabled)
         {
             // as we are globally off, set it and to services
-            arbitraryLoggingEnabled = false;
-            ice4jLoggingEnabled = false;
-            jabberLoggingEnabled = false;
-            rtpLoggingEnabled = false;
-            sipLoggingEnabled = false;
+            s.enabledMask = 0;
         }
 
-        globalLoggingEnabled = enabled;
+        s.globalLoggingEnabled = enabled;
+        snapshot = s.seal();
+    }
+
+    /**
+     * Change whether packet logging for a specific protocol is enabled.
+     * @param protocol the protocol.
+     * @param enabled {@code true} if we enable it.
+     */
+    public synchronized void setLoggingEnabled(
+            ProtocolName protocol,
+            boolean enabled)
+    {
+        Snapshot s = snapshot.copy();
+        int bit = 1 << protocol.ordinal();
+
+        if (enabled)
+            s.enabledMask |= bit;
+        else
+            s.enabledMask &= ~bit;
+        snapshot = s.seal();
     }
 
     /**
@@ -227,7 +666,7 @@ public class PacketLoggingConfiguration
      */
     public void setSipLoggingEnabled(boolean enabled)
     {
-        sipLoggingEnabled = enabled;
+        setLoggingEnabled(ProtocolName.SIP, enabled);
     }
 
     /**
@@ -236,7 +675,7 @@ public class PacketLoggingConfiguration
      */
     public void setJabberLoggingEnabled(boolean enabled)
     {
-        jabberLoggingEnabled = enabled;
+        setLoggingEnabled(ProtocolName.JABBER, enabled);
     }
 
     /**
@@ -245,7 +684,7 @@ public class PacketLoggingConfiguration
      */
     public void setRTPLoggingEnabled(boolean enabled)
     {
-        rtpLoggingEnabled = enabled;
+        setLoggingEnabled(ProtocolName.RTP, enabled);
     }
 
     /**
@@ -254,7 +693,16 @@ public class PacketLoggingConfiguration
      */
     public void setIce4JLoggingEnabled(boolean enabled)
     {
-        ice4jLoggingEnabled = enabled;
+        setLoggingEnabled(ProtocolName.ICE4J, enabled);
+    }
+
+    /**
+     * Change whether packet logging for DNS is enabled.
+     * @param enabled {@code true} if we enable it.
+     */
+    public void setDnsLoggingEnabled(boolean enabled)
+    {
+        setLoggingEnabled(ProtocolName.DNS, enabled);
     }
 
     /**
@@ -263,24 +711,838 @@ public class PacketLoggingConfiguration
      */
     public void setArbitraryLoggingEnabled(boolean enabled)
     {
-        arbitraryLoggingEnabled = enabled;
+        setLoggingEnabled(ProtocolName.ARBITRARY, enabled);
     }
 
     /**
      * Changes the file size limit.
      * @param limit the new limit size.
      */
-    public void setLimit(long limit)
+    public synchronized void setLimit(long limit)
     {
-        this.limit = limit;
+        Snapshot s = snapshot.copy();
+
+        s.limit = limit;
+        snapshot = s.seal();
     }
 
     /**
      * Changes file count.
      * @param logfileCount the new file count.
      */
-    public void setLogfileCount(int logfileCount)
+    public synchronized void setLogfileCount(int logfileCount)
+    {
+        Snapshot s = snapshot.copy();
+
+        s.logfileCount = logfileCount;
+        snapshot = s.seal();
+    }
+
+    /**
+     * Changes the number of minutes after which a file is rotated even if it
+     * has not reached its size limit. Takes effect the next time the service
+     * is started.
+     * @param rotationInterval the new rotation interval in minutes, 0 for
+     * size based rotation only.
+     */
+    public synchronized void setRotationInterval(int rotationInterval)
+    {
+        Snapshot s = snapshot.copy();
+
+        s.rotationInterval = rotationInterval;
+        snapshot = s.seal();
+    }
+
+    /**
+     * Changes the maximum number of bytes all files may take up together.
+     * Takes effect the next time the service is started.
+     * @param diskQuota the new disk quota in bytes, 0 for no quota.
+     */
+    public synchronized void setDiskQuota(long diskQuota)
+    {
+        Snapshot s = snapshot.copy();
+
+        s.diskQuota = diskQuota;
+        snapshot = s.seal();
+    }
+
+    /**
+     * Changes the capacity of the packet queue. Takes effect the next time
+     * the service is started.
+     * @param queueCapacity the new capacity of the packet queue.
+     */
+    public synchronized void setQueueCapacity(int queueCapacity)
+    {
+        Snapshot s = snapshot.copy();
+
+        s.queueCapacity = queueCapacity;
+        snapshot = s.seal();
+    }
+
+    /**
+     * Changes the number of stripes of the packet queue. Takes effect the
+     * next time the service is started.
+     * @param queueStripes the new number of stripes, 0 or less for twice the
+     * number of available processors.
+     */
+    public synchronized void setQueueStripes(int queueStripes)
+    {
+        Snapshot s = snapshot.copy();
+
+        s.queueStripes = queueStripes;
+        snapshot = s.seal();
+    }
+
+    /**
+     * Changes the number of writer lanes. Takes effect the next time the
+     * service is started.
+     * @param writerLanes the new number of writer lanes.
+     */
+    public synchronized void setWriterLanes(int writerLanes)
+    {
+        Snapshot s = snapshot.copy();
+
+        s.writerLanes = writerLanes;
+        snapshot = s.seal();
+    }
+
+    /**
+     * Changes whether the {@link ProtocolName#RTP} packets are only
+     * accounted for in per-SSRC statistics. Takes effect the next time the
+     * service is started.
+     * @param rtpStatisticsOnly {@code true} to keep only the RTP statistics.
+     */
+    public synchronized void setRtpStatisticsOnly(boolean rtpStatisticsOnly)
+    {
+        Snapshot s = snapshot.copy();
+
+        s.rtpStatisticsOnly = rtpStatisticsOnly;
+        snapshot = s.seal();
+    }
+
+    /**
+     * Changes the interval at which the RTP statistics are summarized. Takes
+     * effect the next time the service is started.
+     * @param rtpStatisticsInterval the new interval in seconds.
+     */
+    public synchronized void setRtpStatisticsInterval(
+            int rtpStatisticsInterval)
+    {
+        Snapshot s = snapshot.copy();
+
+        s.rtpStatisticsInterval = rtpStatisticsInterval;
+        snapshot = s.seal();
+    }
+
+    /**
+     * Changes the loopback TCP port a consumer connects to in order to
+     * receive the captured packets as a live pcap stream. Takes effect the
+     * next time the service is started.
+     * @param streamPort the new port, 0 to disable streaming over TCP.
+     */
+    public synchronized void setStreamPort(int streamPort)
+    {
+        Snapshot s = snapshot.copy();
+
+        s.streamPort = streamPort;
+        snapshot = s.seal();
+    }
+
+    /**
+     * Changes the named pipe a consumer opens in order to receive the
+     * captured packets as a live pcap stream. Takes effect the next time the
+     * service is started.
+     * @param streamFifo the path of an existing named pipe, {@code null} to
+     * disable streaming to a named pipe.
+     */
+    public synchronized void setStreamFifo(String streamFifo)
+    {
+        Snapshot s = snapshot.copy();
+
+        s.streamFifo = streamFifo;
+        snapshot = s.seal();
+    }
+
+    /**
+     * Changes the size in bytes of the buffer between the writer thread and
+     * the live stream consumer. Takes effect the next time the service is
+     * started.
+     * @param streamBufferSize the new size of the stream buffer in bytes.
+     */
+    public synchronized void setStreamBufferSize(int streamBufferSize)
     {
-        this.logfileCount = logfileCount;
+        Snapshot s = snapshot.copy();
+
+        s.streamBufferSize = streamBufferSize;
+        snapshot = s.seal();
+    }
+
+    /**
+     * Changes whether the captured packets are only streamed and not written
+     * to the capture files. Takes effect the next time the service is
+     * started.
+     * @param streamOnly {@code true} to not write the capture files.
+     */
+    public synchronized void setStreamOnly(boolean streamOnly)
+    {
+        Snapshot s = snapshot.copy();
+
+        s.streamOnly = streamOnly;
+        snapshot = s.seal();
+    }
+
+    /**
+     * Changes the number of bytes the captured packets are batched in before
+     * they are written to the file. Takes effect the next time the service
+     * is started.
+     * @param flushThreshold the new flush threshold in bytes.
+     */
+    public synchronized void setFlushThreshold(int flushThreshold)
+    {
+        Snapshot s = snapshot.copy();
+
+        s.flushThreshold = flushThreshold;
+        snapshot = s.seal();
+    }
+
+    /**
+     * Changes the maximum time a captured packet may remain batched before it
+     * is written to the file. Takes effect the next time the service is
+     * started.
+     * @param flushLatency the new flush latency in milliseconds.
+     */
+    public synchronized void setFlushLatency(int flushLatency)
+    {
+        Snapshot s = snapshot.copy();
+
+        s.flushLatency = flushLatency;
+        snapshot = s.seal();
+    }
+
+    /**
+     * Changes the number of bytes of a capture file covered by an entry of
+     * its time index. Takes effect the next time the service is started.
+     * @param indexInterval the new index interval in bytes, 0 to not index
+     * capture files.
+     */
+    public synchronized void setIndexInterval(int indexInterval)
+    {
+        Snapshot s = snapshot.copy();
+
+        s.indexInterval = indexInterval;
+        snapshot = s.seal();
+    }
+
+    /**
+     * Changes whether rotated files are compressed in the background.
+     * @param compressRotatedFiles {@code true} to compress rotated files.
+     */
+    public synchronized void setCompressRotatedFiles(
+            boolean compressRotatedFiles)
+    {
+        Snapshot s = snapshot.copy();
+
+        s.compressRotatedFiles = compressRotatedFiles;
+        snapshot = s.seal();
+    }
+
+    /**
+     * Changes whether captured packets are kept in memory and only written to
+     * disk when a dump is requested. Takes effect the next time the service
+     * is started.
+     * @param enabled {@code true} to enable the flight recorder mode.
+     */
+    public synchronized void setFlightRecorderEnabled(boolean enabled)
+    {
+        Snapshot s = snapshot.copy();
+
+        s.flightRecorderEnabled = enabled;
+        snapshot = s.seal();
+    }
+
+    /**
+     * Changes the size of the memory in which the flight recorder keeps the
+     * captured packets. Takes effect the next time the service is started.
+     * @param flightRecorderSize the new size in bytes.
+     */
+    public synchronized void setFlightRecorderSize(int flightRecorderSize)
+    {
+        Snapshot s = snapshot.copy();
+
+        s.flightRecorderSize = flightRecorderSize;
+        snapshot = s.seal();
+    }
+
+    /**
+     * Changes the number of seconds of captured packets the flight recorder
+     * writes out when a dump is requested. Takes effect the next time the
+     * service is started.
+     * @param flightRecorderSeconds the new number of seconds, 0 means as
+     * much as is kept in memory.
+     */
+    public synchronized void setFlightRecorderSeconds(
+            int flightRecorderSeconds)
+    {
+        Snapshot s = snapshot.copy();
+
+        s.flightRecorderSeconds = flightRecorderSeconds;
+        snapshot = s.seal();
+    }
+
+    /**
+     * Changes the filter packets have to pass to be captured.
+     * @param filter the capture filter compiled with
+     * {@link PacketFilter#compile(String)} or {@code null} to capture all
+     * packets.
+     */
+    public synchronized void setFilter(PacketFilter filter)
+    {
+        Snapshot s = snapshot.copy();
+
+        s.filter = filter;
+        snapshot = s.seal();
+    }
+
+    /**
+     * Changes the sampling ratio of a protocol.
+     * @param protocol the protocol.
+     * @param sampleEvery capture only one in this many packets, 1 or less
+     * means every packet.
+     */
+    public synchronized void setSampleEvery(
+            ProtocolName protocol,
+            int sampleEvery)
+    {
+        Snapshot s = snapshot.copy();
+
+        s.sampleEvery[protocol.ordinal()] = sampleEvery;
+        snapshot = s.seal();
+    }
+
+    /**
+     * Changes the packets-per-second cap of a protocol.
+     * @param protocol the protocol.
+     * @param maxPacketsPerSecond the new cap, 0 means no limit.
+     */
+    public synchronized void setMaxPacketsPerSecond(
+            ProtocolName protocol,
+            int maxPacketsPerSecond)
+    {
+        Snapshot s = snapshot.copy();
+
+        s.maxPacketsPerSecond[protocol.ordinal()] = maxPacketsPerSecond;
+        snapshot = s.seal();
+    }
+
+    /**
+     * Changes the snap length of a protocol.
+     * @param protocol the protocol.
+     * @param snapLength the maximum number of bytes captured of each packet,
+     * 0 means no limit and {@link #SNAP_LENGTH_HEADER_ONLY} means only the
+     * RTP header.
+     */
+    public synchronized void setSnapLength(
+            ProtocolName protocol,
+            int snapLength)
+    {
+        Snapshot s = snapshot.copy();
+
+        s.snapLength[protocol.ordinal()] = snapLength;
+        snapshot = s.seal();
+    }
+
+    /**
+     * An immutable set of packet logging settings. Instances are only
+     * modified by {@link PacketLoggingConfiguration} before they are
+     * published.
+     */
+    public static final class Snapshot
+    {
+        /**
+         * Is {@code PacketLoggingService} enabled.
+         */
+        private boolean globalLoggingEnabled = true;
+
+        /**
+         * The protocols for which {@code PacketLoggingService} is enabled,
+         * one bit per {@link ProtocolName} ordinal, regardless of
+         * {@link #globalLoggingEnabled}. Arbitrary packet logging is off by
+         * default because it was designed for the purposes of debugging and
+         * dramatically increases the number of logged packets.
+         */
+        private int enabledMask
+            = ~(1 << ProtocolName.ARBITRARY.ordinal())
+                & ((1 << ProtocolName.values().length) - 1);
+
+        /**
+         * {@link #enabledMask} if {@link #globalLoggingEnabled}; otherwise,
+         * 0.
+         */
+        private int effectiveMask;
+
+        /**
+         * The limit for the file size.
+         * 0 means no limit.
+         */
+        private long limit = 5000000;
+
+        /**
+         * The counter for number of files.
+         */
+        private int logfileCount = 3;
+
+        /**
+         * The number of minutes after which a file is rotated.
+         * 0 means size based rotation only.
+         */
+        private int rotationInterval = 0;
+
+        /**
+         * The maximum number of bytes all files may take up together.
+         * 0 means no quota.
+         */
+        private long diskQuota = 0;
+
+        /**
+         * The number of packets which may be queued for writing before
+         * further packets are dropped.
+         */
+        private int queueCapacity = 1024;
+
+        /**
+         * The number of stripes of the packet queue, 0 or less for twice
+         * the number of available processors.
+         */
+        private int queueStripes = 0;
+
+        /**
+         * The number of writer lanes.
+         */
+        private int writerLanes = 1;
+
+        /**
+         * Whether the RTP packets are only accounted for in statistics.
+         */
+        private boolean rtpStatisticsOnly = false;
+
+        /**
+         * The interval in seconds at which the RTP statistics are
+         * summarized.
+         */
+        private int rtpStatisticsInterval = 10;
+
+        /**
+         * The loopback TCP port of the live stream, 0 if disabled.
+         */
+        private int streamPort = 0;
+
+        /**
+         * The named pipe of the live stream, {@code null} if disabled.
+         */
+        private String streamFifo = null;
+
+        /**
+         * The size in bytes of the buffer of the live stream.
+         */
+        private int streamBufferSize = 4 * 1024 * 1024;
+
+        /**
+         * Whether the captured packets are only streamed.
+         */
+        private boolean streamOnly = false;
+
+        /**
+         * The number of bytes the captured packets are batched in before
+         * they are written to the file.
+         */
+        private int flushThreshold = 256 * 1024;
+
+        /**
+         * The maximum number of milliseconds a captured packet may remain
+         * batched before it is written to the file.
+         */
+        private int flushLatency = 100;
+
+        /**
+         * The number of bytes of a capture file covered by an entry of its
+         * time index, 0 if capture files are not indexed.
+         */
+        private int indexInterval = 1024 * 1024;
+
+        /**
+         * Whether rotated files are compressed in the background.
+         */
+        private boolean compressRotatedFiles = false;
+
+        /**
+         * Whether captured packets are kept in memory and only written to
+         * disk when a dump is requested.
+         */
+        private boolean flightRecorderEnabled = false;
+
+        /**
+         * The size in bytes of the memory in which the flight recorder keeps
+         * the captured packets.
+         */
+        private int flightRecorderSize = 32 * 1024 * 1024;
+
+        /**
+         * The number of seconds of captured packets the flight recorder
+         * writes out when a dump is requested. 0 means as much as is kept in
+         * memory.
+         */
+        private int flightRecorderSeconds = 30;
+
+        /**
+         * The filter packets have to pass to be captured or {@code null} to
+         * capture all packets.
+         */
+        private PacketFilter filter;
+
+        /**
+         * For each protocol, indexed by ordinal, capture only one in this
+         * many packets. 1 or less means every packet.
+         */
+        private int[] sampleEvery = new int[ProtocolName.values().length];
+
+        /**
+         * For each protocol, indexed by ordinal, the maximum number of
+         * packets captured per second. 0 means no limit.
+         */
+        private int[] maxPacketsPerSecond
+            = new int[ProtocolName.values().length];
+
+        /**
+         * For each protocol, indexed by ordinal, the maximum number of bytes
+         * captured of each packet. 0 means no limit.
+         */
+        private int[] snapLength = new int[ProtocolName.values().length];
+
+        /**
+         * Initializes a new {@code Snapshot} with the default settings.
+         */
+        private Snapshot()
+        {
+            seal();
+        }
+
+        /**
+         * Initializes a new {@code Snapshot} with the settings of another one.
+         *
+         * @param other the {@code Snapshot} to copy
+         */
+        private Snapshot(Snapshot other)
+        {
+            globalLoggingEnabled = other.globalLoggingEnabled;
+            enabledMask = other.enabledMask;
+            limit = other.limit;
+            logfileCount = other.logfileCount;
+            rotationInterval = other.rotationInterval;
+            diskQuota = other.diskQuota;
+            queueCapacity = other.queueCapacity;
+            queueStripes = other.queueStripes;
+            writerLanes = other.writerLanes;
+            rtpStatisticsOnly = other.rtpStatisticsOnly;
+            rtpStatisticsInterval = other.rtpStatisticsInterval;
+            streamPort = other.streamPort;
+            streamFifo = other.streamFifo;
+            streamBufferSize = other.streamBufferSize;
+            streamOnly = other.streamOnly;
+            flushThreshold = other.flushThreshold;
+            flushLatency = other.flushLatency;
+            indexInterval = other.indexInterval;
+            compressRotatedFiles = other.compressRotatedFiles;
+            flightRecorderEnabled = other.flightRecorderEnabled;
+            flightRecorderSize = other.flightRecorderSize;
+            flightRecorderSeconds = other.flightRecorderSeconds;
+            filter = other.filter;
+            sampleEvery = other.sampleEvery.clone();
+            maxPacketsPerSecond = other.maxPacketsPerSecond.clone();
+            snapLength = other.snapLength.clone();
+        }
+
+        /**
+         * Creates a modifiable copy of this snapshot.
+         *
+         * @return a copy of this snapshot
+         */
+        private Snapshot copy()
+        {
+            return new Snapshot(this);
+        }
+
+        /**
+         * Computes the derived fields of this snapshot before it is
+         * published.
+         *
+         * @return this snapshot
+         */
+        private Snapshot seal()
+        {
+            effectiveMask = globalLoggingEnabled ? enabledMask : 0;
+            return this;
+        }
+
+        /**
+         * Checks whether packet logging is enabled.
+         * @return {@code true} if packet logging is enabled.
+         */
+        public boolean isGlobalLoggingEnabled()
+        {
+            return globalLoggingEnabled;
+        }
+
+        /**
+         * Checks whether packet logging is enabled for a specific protocol,
+         * taking into account whether it is enabled globally.
+         * @param protocol the protocol.
+         * @return {@code true} if packet logging is enabled for the protocol.
+         */
+        public boolean isLoggingEnabled(ProtocolName protocol)
+        {
+            return (effectiveMask & (1 << protocol.ordinal())) != 0;
+        }
+
+        /**
+         * Checks whether the flag of a specific protocol is set, regardless
+         * of whether packet logging is enabled globally.
+         * @param protocol the protocol.
+         * @return {@code true} if the flag of the protocol is set.
+         */
+        boolean isFlagSet(ProtocolName protocol)
+        {
+            return (enabledMask & (1 << protocol.ordinal())) != 0;
+        }
+
+        /**
+         * The limit for the file size. 0 means no limit.
+         * @return the file size limit.
+         */
+        public long getLimit()
+        {
+            return limit;
+        }
+
+        /**
+         * The counter for number of files.
+         * @return the number of file counts.
+         */
+        public int getLogfileCount()
+        {
+            return logfileCount;
+        }
+
+        /**
+         * The number of minutes after which a file is rotated.
+         * @return the rotation interval in minutes, 0 for size based
+         * rotation only.
+         */
+        public int getRotationInterval()
+        {
+            return rotationInterval;
+        }
+
+        /**
+         * The maximum number of bytes all files may take up together.
+         * @return the disk quota in bytes, 0 means no quota.
+         */
+        public long getDiskQuota()
+        {
+            return diskQuota;
+        }
+
+        /**
+         * The number of packets which may be queued for writing before
+         * further packets are dropped.
+         * @return the capacity of the packet queue.
+         */
+        public int getQueueCapacity()
+        {
+            return queueCapacity;
+        }
+
+        /**
+         * The number of stripes of the packet queue.
+         * @return the number of stripes, 0 or less for twice the number of
+         * available processors.
+         */
+        public int getQueueStripes()
+        {
+            return queueStripes;
+        }
+
+        /**
+         * The number of writer lanes.
+         * @return the number of writer lanes.
+         */
+        public int getWriterLanes()
+        {
+            return writerLanes;
+        }
+
+        /**
+         * Whether the RTP packets are only accounted for in statistics.
+         * @return {@code true} if only the RTP statistics are kept.
+         */
+        public boolean isRtpStatisticsOnly()
+        {
+            return rtpStatisticsOnly;
+        }
+
+        /**
+         * The interval at which the RTP statistics are summarized.
+         * @return the interval in seconds.
+         */
+        public int getRtpStatisticsInterval()
+        {
+            return rtpStatisticsInterval;
+        }
+
+        /**
+         * The loopback TCP port of the live stream.
+         * @return the port, 0 if streaming over TCP is disabled.
+         */
+        public int getStreamPort()
+        {
+            return streamPort;
+        }
+
+        /**
+         * The named pipe of the live stream.
+         * @return the path of the named pipe, {@code null} if disabled.
+         */
+        public String getStreamFifo()
+        {
+            return streamFifo;
+        }
+
+        /**
+         * The size in bytes of the buffer of the live stream.
+         * @return the size of the stream buffer in bytes.
+         */
+        public int getStreamBufferSize()
+        {
+            return streamBufferSize;
+        }
+
+        /**
+         * Whether the captured packets are only streamed.
+         * @return {@code true} if the capture files are not written.
+         */
+        public boolean isStreamOnly()
+        {
+            return streamOnly;
+        }
+
+        /**
+         * The number of bytes the captured packets are batched in before
+         * they are written to the file.
+         * @return the flush threshold in bytes.
+         */
+        public int getFlushThreshold()
+        {
+            return flushThreshold;
+        }
+
+        /**
+         * The maximum time a captured packet may remain batched before it is
+         * written to the file.
+         * @return the flush latency in milliseconds.
+         */
+        public int getFlushLatency()
+        {
+            return flushLatency;
+        }
+
+        /**
+         * The number of bytes of a capture file covered by an entry of its
+         * time index.
+         * @return the index interval in bytes.
+         */
+        public int getIndexInterval()
+        {
+            return indexInterval;
+        }
+
+        /**
+         * Checks whether rotated files are compressed in the background.
+         * @return {@code true} if rotated files are compressed.
+         */
+        public boolean isCompressRotatedFiles()
+        {
+            return compressRotatedFiles;
+        }
+
+        /**
+         * Checks whether captured packets are kept in memory and only
+         * written to disk when a dump is requested.
+         * @return {@code true} if the flight recorder mode is enabled.
+         */
+        public boolean isFlightRecorderEnabled()
+        {
+            return flightRecorderEnabled;
+        }
+
+        /**
+         * The size of the memory in which the flight recorder keeps the
+         * captured packets.
+         * @return the size in bytes.
+         */
+        public int getFlightRecorderSize()
+        {
+            return flightRecorderSize;
+        }
+
+        /**
+         * The number of seconds of captured packets the flight recorder
+         * writes out when a dump is requested.
+         * @return the number of seconds, 0 means as much as is kept in
+         * memory.
+         */
+        public int getFlightRecorderSeconds()
+        {
+            return flightRecorderSeconds;
+        }
+
+        /**
+         * The filter packets have to pass to be captured.
+         * @return the capture filter or {@code null} to capture all packets.
+         */
+        public PacketFilter getFilter()
+        {
+            return filter;
+        }
+
+        /**
+         * Only one in this many packets of a protocol is captured.
+         * @param protocol the protocol.
+         * @return the sampling ratio, 1 or less means every packet.
+         */
+        public int getSampleEvery(ProtocolName protocol)
+        {
+            return sampleEvery[protocol.ordinal()];
+        }
+
+        /**
+         * The maximum number of packets of a protocol captured per second.
+         * @param protocol the protocol.
+         * @return the packets-per-second cap, 0 means no limit.
+         */
+        public int getMaxPacketsPerSecond(ProtocolName protocol)
+        {
+            return maxPacketsPerSecond[protocol.ordinal()];
+        }
+
+        /**
+         * The maximum number of bytes captured of each packet of a protocol.
+         * @param protocol the protocol.
+         * @return the snap length, 0 means no limit and
+         * {@link PacketLoggingConfiguration#SNAP_LENGTH_HEADER_ONLY} means
+         * only the RTP header.
+         */
+        public int getSnapLength(ProtocolName protocol)
+        {
+            return snapLength[protocol.ordinal()];
+        }
     }
 }
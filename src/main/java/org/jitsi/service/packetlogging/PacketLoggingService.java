@@ -15,6 +15,10 @@
  */
 package org.jitsi.service.packetlogging;
 
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
 /**
  * A Packet Logging Service to log packets that were send/received
  * by protocols or any other network related services in various formats.
@@ -90,6 +94,141 @@ public interface PacketLoggingService
             int packetOffset,
             int packetLength);
 
+    /**
+     * Log a packet held in a {@link ByteBuffer}, for example a direct buffer
+     * of the I/O layer, without first copying it into a {@code byte[]}. The
+     * bytes between the position and the limit of {@code packetContent} are
+     * logged; neither is modified.
+     * <p>
+     * The default implementation hands the packet to
+     * {@link #logPacket(ProtocolName, byte[], int, byte[], int, TransportName,
+     * boolean, byte[], int, int)}, copying it first unless it is backed by an
+     * accessible array.
+     * </p>
+     *
+     * @param protocol the source protocol that logs this packet.
+     * @param source the source endpoint of the packet.
+     * @param destination the destination endpoint of the packet.
+     * @param transport the transport this packet uses.
+     * @param sender are we the sender of the packet or not.
+     * @param packetContent the packet content.
+     */
+    default void logPacket(
+            ProtocolName protocol,
+            PacketEndpoint source,
+            PacketEndpoint destination,
+            TransportName transport,
+            boolean sender,
+            ByteBuffer packetContent)
+    {
+        if (!isLoggingEnabled(protocol))
+            return;
+
+        byte[] packet;
+        int offset;
+        int length = packetContent.remaining();
+
+        if (packetContent.hasArray())
+        {
+            packet = packetContent.array();
+            offset = packetContent.arrayOffset() + packetContent.position();
+        }
+        else
+        {
+            packet = new byte[length];
+            offset = 0;
+            packetContent.duplicate().get(packet);
+        }
+        logPacket(
+                protocol,
+                (source == null) ? null : source.getAddress(),
+                (source == null) ? 0 : source.getPort(),
+                (destination == null) ? null : destination.getAddress(),
+                (destination == null) ? 0 : destination.getPort(),
+                transport,
+                sender,
+                packet, offset, length);
+    }
+
+    /**
+     * Gets a handle for one end of the packets of a flow, to be created once
+     * when the flow is established and passed to
+     * {@link #logPacket(ProtocolName, PacketEndpoint, PacketEndpoint,
+     * TransportName, boolean, ByteBuffer)} with each of its packets.
+     * Implementations may cache per-flow state in the handle, such as the
+     * encoded IP and transport headers of the flow, so that logging a packet
+     * of an established flow does not allocate. The default implementation
+     * returns a plain {@link PacketEndpoint}.
+     *
+     * @param address the IPv4 or IPv6 address of the endpoint.
+     * @param port the port of the endpoint.
+     * @return the endpoint handle.
+     */
+    default PacketEndpoint endpoint(byte[] address, int port)
+    {
+        return new PacketEndpoint(address, port);
+    }
+
+    /**
+     * Writes the packets kept in memory by the flight recorder mode (see
+     * {@link PacketLoggingConfiguration#isFlightRecorderEnabled()}) out to a
+     * new capture file, for example when a call has failed and the last few
+     * seconds of signaling and media are needed. Capture continues while the
+     * file is being written.
+     *
+     * @param reason a short description of why the dump is taken.
+     * @return the written capture file or {@code null} if this service is not
+     * in flight recorder mode, which is all the default implementation
+     * supports.
+     * @throws IOException if writing the capture file fails.
+     */
+    default File dump(String reason)
+        throws IOException
+    {
+        return null;
+    }
+
+    /**
+     * Returns a snapshot of the counters of this service: per protocol the
+     * packets offered, filtered out, sampled out, dropped because the queue
+     * was full and written, as well as the queue depth, the flush latencies
+     * of the writer and the number of capture file rotations.
+     *
+     * @return a snapshot of the counters of this service. The default
+     * implementation, for services which do not count, returns all zeros.
+     */
+    default PacketLoggingStatistics getStatistics()
+    {
+        int protocolCount = ProtocolName.values().length;
+
+        return
+            new PacketLoggingStatistics(
+                    new long[protocolCount],
+                    new long[protocolCount],
+                    new long[protocolCount],
+                    new long[protocolCount],
+                    new long[protocolCount],
+                    new long[protocolCount],
+                    new long[PacketLoggingStatistics.FLUSH_LATENCY_BUCKETS],
+                    0,
+                    0,
+                    0);
+    }
+
+    /**
+     * Returns the summaries of the RTP streams seen during the last
+     * completed interval in RTP statistics-only mode (see
+     * {@link PacketLoggingConfiguration#isRtpStatisticsOnly()}).
+     *
+     * @return the summaries of the RTP streams, empty if the mode is not
+     * enabled or no interval has completed yet. The default implementation,
+     * for services which do not support the mode, returns an empty list.
+     */
+    default List<RtpStreamStatistics> getRtpStatistics()
+    {
+        return Collections.emptyList();
+    }
+
     /**
      * Returns the current Packet Logging Configuration.
      *
@@ -0,0 +1,286 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging;
+
+/**
+ * An immutable snapshot of the counters of a {@link PacketLoggingService},
+ * for telling whether packet logging loses packets or slows down I/O. The
+ * counters are cumulative since the service was created; rates are obtained
+ * by comparing two snapshots.
+ * <p>
+ * A packet of a protocol whose logging is enabled is <i>offered</i>. It is
+ * then either <i>filtered</i> out by the {@link PacketFilter}, <i>sampled
+ * out</i>, <i>dropped</i> because the queue of the writer is full, or queued
+ * and eventually <i>written</i>. In RTP statistics-only mode, the RTP packets
+ * which pass the filter are accounted for in {@link RtpStreamStatistics}
+ * instead.
+ * </p>
+ */
+public class PacketLoggingStatistics
+{
+    /**
+     * The number of buckets of the flush latency histogram.
+     */
+    public static final int FLUSH_LATENCY_BUCKETS = 24;
+
+    /**
+     * The number of packets offered, indexed by protocol ordinal.
+     */
+    private final long[] offered;
+
+    /**
+     * The number of packets filtered out, indexed by protocol ordinal.
+     */
+    private final long[] filtered;
+
+    /**
+     * The number of packets sampled out, indexed by protocol ordinal.
+     */
+    private final long[] sampledOut;
+
+    /**
+     * The number of packets dropped, indexed by protocol ordinal.
+     */
+    private final long[] dropped;
+
+    /**
+     * The number of packets written, indexed by protocol ordinal.
+     */
+    private final long[] packetsWritten;
+
+    /**
+     * The number of bytes written, indexed by protocol ordinal.
+     */
+    private final long[] bytesWritten;
+
+    /**
+     * The number of flushes per latency bucket.
+     */
+    private final long[] flushLatencies;
+
+    /**
+     * The number of packets in the queue.
+     */
+    private final int queueDepth;
+
+    /**
+     * The capacity of the queue.
+     */
+    private final int queueCapacity;
+
+    /**
+     * The number of capture file rotations.
+     */
+    private final long rotationCount;
+
+    /**
+     * Initializes a new {@code PacketLoggingStatistics} instance. The arrays
+     * are owned by the new instance.
+     *
+     * @param offered the number of packets offered, indexed by protocol
+     * ordinal
+     * @param filtered the number of packets filtered out, indexed by protocol
+     * ordinal
+     * @param sampledOut the number of packets sampled out, indexed by
+     * protocol ordinal
+     * @param dropped the number of packets dropped because the queue was
+     * full, indexed by protocol ordinal
+     * @param packetsWritten the number of packets written, indexed by
+     * protocol ordinal
+     * @param bytesWritten the number of captured packet bytes written,
+     * indexed by protocol ordinal
+     * @param flushLatencies the number of flushes per latency bucket, see
+     * {@link #getFlushLatencyBucketBound(int)}
+     * @param queueDepth the number of packets in the queue
+     * @param queueCapacity the capacity of the queue
+     * @param rotationCount the number of capture file rotations
+     */
+    public PacketLoggingStatistics(
+            long[] offered,
+            long[] filtered,
+            long[] sampledOut,
+            long[] dropped,
+            long[] packetsWritten,
+            long[] bytesWritten,
+            long[] flushLatencies,
+            int queueDepth,
+            int queueCapacity,
+            long rotationCount)
+    {
+        this.offered = offered;
+        this.filtered = filtered;
+        this.sampledOut = sampledOut;
+        this.dropped = dropped;
+        this.packetsWritten = packetsWritten;
+        this.bytesWritten = bytesWritten;
+        this.flushLatencies = flushLatencies;
+        this.queueDepth = queueDepth;
+        this.queueCapacity = queueCapacity;
+        this.rotationCount = rotationCount;
+    }
+
+    /**
+     * Gets the number of packets of a protocol offered to the service while
+     * logging of the protocol was enabled.
+     *
+     * @param protocol the protocol
+     * @return the number of packets of {@code protocol} offered
+     */
+    public long getOfferedPacketCount(ProtocolName protocol)
+    {
+        return offered[protocol.ordinal()];
+    }
+
+    /**
+     * Gets the number of packets of a protocol rejected by the capture
+     * filter.
+     *
+     * @param protocol the protocol
+     * @return the number of packets of {@code protocol} filtered out
+     */
+    public long getFilteredPacketCount(ProtocolName protocol)
+    {
+        return filtered[protocol.ordinal()];
+    }
+
+    /**
+     * Gets the number of packets of a protocol sampled out or rejected by the
+     * rate limit.
+     *
+     * @param protocol the protocol
+     * @return the number of packets of {@code protocol} sampled out
+     */
+    public long getSampledOutPacketCount(ProtocolName protocol)
+    {
+        return sampledOut[protocol.ordinal()];
+    }
+
+    /**
+     * Gets the number of packets of a protocol dropped because the queue of
+     * the writer was full.
+     *
+     * @param protocol the protocol
+     * @return the number of packets of {@code protocol} dropped
+     */
+    public long getDroppedPacketCount(ProtocolName protocol)
+    {
+        return dropped[protocol.ordinal()];
+    }
+
+    /**
+     * Gets the number of packets of a protocol written to the sink.
+     *
+     * @param protocol the protocol
+     * @return the number of packets of {@code protocol} written
+     */
+    public long getWrittenPacketCount(ProtocolName protocol)
+    {
+        return packetsWritten[protocol.ordinal()];
+    }
+
+    /**
+     * Gets the number of captured bytes of the packets of a protocol written
+     * to the sink, excluding the headers of the capture file format.
+     *
+     * @param protocol the protocol
+     * @return the number of bytes of {@code protocol} written
+     */
+    public long getWrittenByteCount(ProtocolName protocol)
+    {
+        return bytesWritten[protocol.ordinal()];
+    }
+
+    /**
+     * Gets the number of sink flushes whose latency fell into a bucket of the
+     * flush latency histogram.
+     *
+     * @param bucket the index of the bucket, less than
+     * {@link #FLUSH_LATENCY_BUCKETS}
+     * @return the number of flushes in {@code bucket}
+     */
+    public long getFlushCount(int bucket)
+    {
+        return flushLatencies[bucket];
+    }
+
+    /**
+     * Gets the exclusive upper bound of the flush latencies counted in a
+     * bucket of the flush latency histogram. Bucket {@code i} counts flushes
+     * which took at least the bound of bucket {@code i - 1}; the last bucket
+     * has no upper bound.
+     *
+     * @param bucket the index of the bucket
+     * @return the upper bound of {@code bucket} in microseconds or
+     * {@link Long#MAX_VALUE} for the last bucket
+     */
+    public static long getFlushLatencyBucketBound(int bucket)
+    {
+        return
+            (bucket >= FLUSH_LATENCY_BUCKETS - 1)
+                ? Long.MAX_VALUE
+                : (1L << bucket);
+    }
+
+    /**
+     * Gets the index of the bucket of the flush latency histogram which
+     * counts a specific latency.
+     *
+     * @param latencyMicros the latency in microseconds
+     * @return the index of the bucket which counts {@code latencyMicros}
+     */
+    public static int getFlushLatencyBucket(long latencyMicros)
+    {
+        int bucket
+            = (latencyMicros <= 0)
+                ? 0
+                : (64 - Long.numberOfLeadingZeros(latencyMicros));
+
+        return Math.min(bucket, FLUSH_LATENCY_BUCKETS - 1);
+    }
+
+    /**
+     * Gets the number of packets in the queue of the writer.
+     *
+     * @return the number of packets in the queue or {@code 0} if the service
+     * is not started
+     */
+    public int getQueueDepth()
+    {
+        return queueDepth;
+    }
+
+    /**
+     * Gets the capacity of the queue of the writer.
+     *
+     * @return the capacity of the queue or {@code 0} if the service is not
+     * started
+     */
+    public int getQueueCapacity()
+    {
+        return queueCapacity;
+    }
+
+    /**
+     * Gets the number of times a capture file has been filled and writing has
+     * moved on to the next one.
+     *
+     * @return the number of capture file rotations
+     */
+    public long getRotationCount()
+    {
+        return rotationCount;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging;
+
+/**
+ * An immutable summary of one RTP stream, identified by its SSRC and
+ * direction, as computed from the headers of its packets by a
+ * {@link PacketLoggingService} in RTP statistics-only mode (see
+ * {@link PacketLoggingConfiguration#isRtpStatisticsOnly()}). The packet
+ * counters are cumulative since the service was started; the bitrate and the
+ * interval counters cover the last reporting interval.
+ * <p>
+ * Loss is computed from the RTP sequence numbers as in RFC 3550: the number
+ * of packets expected from the highest sequence number seen minus the number
+ * of packets received. Duplicates therefore offset losses. A packet which
+ * arrives with a lower sequence number than one received before it is
+ * counted as reordered.
+ * </p>
+ */
+public class RtpStreamStatistics
+{
+    /**
+     * The SSRC of the stream.
+     */
+    private final long ssrc;
+
+    /**
+     * Whether we sent the stream rather than received it.
+     */
+    private final boolean sender;
+
+    /**
+     * The number of packets seen.
+     */
+    private final long packetCount;
+
+    /**
+     * The number of packets lost.
+     */
+    private final long lostPacketCount;
+
+    /**
+     * The number of packets reordered.
+     */
+    private final long reorderedPacketCount;
+
+    /**
+     * The number of packets seen during the last interval.
+     */
+    private final long intervalPacketCount;
+
+    /**
+     * The number of packets lost during the last interval.
+     */
+    private final long intervalLostPacketCount;
+
+    /**
+     * The interarrival jitter in RTP timestamp units.
+     */
+    private final double jitter;
+
+    /**
+     * The RTP clock rate in Hz or {@code 0} if it is not known yet.
+     */
+    private final int clockRate;
+
+    /**
+     * The bitrate during the last interval in bits per second.
+     */
+    private final long bitrate;
+
+    /**
+     * Initializes a new {@code RtpStreamStatistics} instance.
+     *
+     * @param ssrc the SSRC of the stream
+     * @param sender whether we sent the stream rather than received it
+     * @param packetCount the number of packets seen
+     * @param lostPacketCount the number of packets lost
+     * @param reorderedPacketCount the number of packets reordered
+     * @param intervalPacketCount the number of packets seen during the last
+     * interval
+     * @param intervalLostPacketCount the number of packets lost during the
+     * last interval
+     * @param jitter the interarrival jitter in RTP timestamp units
+     * @param clockRate the RTP clock rate in Hz or {@code 0} if it is not
+     * known
+     * @param bitrate the bitrate during the last interval in bits per second
+     */
+    public RtpStreamStatistics(
+            long ssrc,
+            boolean sender,
+            long packetCount,
+            long lostPacketCount,
+            long reorderedPacketCount,
+            long intervalPacketCount,
+            long intervalLostPacketCount,
+            double jitter,
+            int clockRate,
+            long bitrate)
+    {
+        this.ssrc = ssrc;
+        this.sender = sender;
+        this.packetCount = packetCount;
+        this.lostPacketCount = lostPacketCount;
+        this.reorderedPacketCount = reorderedPacketCount;
+        this.intervalPacketCount = intervalPacketCount;
+        this.intervalLostPacketCount = intervalLostPacketCount;
+        this.jitter = jitter;
+        this.clockRate = clockRate;
+        this.bitrate = bitrate;
+    }
+
+    /**
+     * Gets the SSRC of the stream.
+     *
+     * @return the SSRC of the stream as an unsigned 32-bit value
+     */
+    public long getSsrc()
+    {
+        return ssrc;
+    }
+
+    /**
+     * Determines whether we sent the stream rather than received it.
+     *
+     * @return {@code true} if we sent the stream
+     */
+    public boolean isSender()
+    {
+        return sender;
+    }
+
+    /**
+     * Gets the number of packets of the stream seen since the service was
+     * started.
+     *
+     * @return the number of packets seen
+     */
+    public long getPacketCount()
+    {
+        return packetCount;
+    }
+
+    /**
+     * Gets the number of packets of the stream lost since the service was
+     * started.
+     *
+     * @return the number of packets lost, never negative
+     */
+    public long getLostPacketCount()
+    {
+        return lostPacketCount;
+    }
+
+    /**
+     * Gets the number of packets of the stream which arrived out of order
+     * since the service was started.
+     *
+     * @return the number of packets reordered
+     */
+    public long getReorderedPacketCount()
+    {
+        return reorderedPacketCount;
+    }
+
+    /**
+     * Gets the number of packets of the stream seen during the last interval.
+     *
+     * @return the number of packets seen during the last interval
+     */
+    public long getIntervalPacketCount()
+    {
+        return intervalPacketCount;
+    }
+
+    /**
+     * Gets the number of packets of the stream lost during the last interval.
+     *
+     * @return the number of packets lost during the last interval, never
+     * negative
+     */
+    public long getIntervalLostPacketCount()
+    {
+        return intervalLostPacketCount;
+    }
+
+    /**
+     * Gets the interarrival jitter of the stream as defined by RFC 3550.
+     *
+     * @return the interarrival jitter in RTP timestamp units
+     */
+    public double getJitter()
+    {
+        return jitter;
+    }
+
+    /**
+     * Gets the RTP clock rate of the stream, as estimated from the advance of
+     * its RTP timestamps against the arrival times of its packets and rounded
+     * to a common rate.
+     *
+     * @return the RTP clock rate in Hz or {@code 0} if it is not known yet
+     */
+    public int getClockRate()
+    {
+        return clockRate;
+    }
+
+    /**
+     * Gets the interarrival jitter of the stream in milliseconds.
+     *
+     * @return the interarrival jitter in milliseconds or {@link Double#NaN}
+     * if the clock rate is not known yet
+     */
+    public double getJitterMillis()
+    {
+        return (clockRate == 0) ? Double.NaN : 1000 * jitter / clockRate;
+    }
+
+    /**
+     * Gets the bitrate of the stream during the last interval, counting the
+     * RTP packets including their headers.
+     *
+     * @return the bitrate in bits per second
+     */
+    public long getBitrate()
+    {
+        return bitrate;
+    }
+}
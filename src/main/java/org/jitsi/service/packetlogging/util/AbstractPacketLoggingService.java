@@ -0,0 +1,1049 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * Base implementation of {@link PacketLoggingService} which keeps file I/O off
+ * the threads which log packets. {@code logPacket} only copies the packet into
+ * a bounded, lock-free {@link StripedPacketQueue}, in the stripe of the
+ * calling thread; a dedicated {@link AsyncPacketWriter} thread merges the
+ * stripes by timestamp and drains them to the {@link PacketRecordSink}
+ * provided by the extender. When the queue is full, packets are dropped and
+ * counted instead of blocking the caller. The captured packets may also be
+ * streamed live to a local consumer through a {@link PcapStreamSink}.
+ * <p>
+ * With several {@link PacketLoggingConfiguration#getWriterLanes() writer
+ * lanes}, a {@link PartitionedPacketQueue} spreads the flows over lanes which
+ * each have a writer thread and a sink of their own, see
+ * {@link #createSink(int)}.
+ * </p>
+ * <p>
+ * In {@link PacketLoggingConfiguration#isRtpStatisticsOnly() RTP
+ * statistics-only mode}, the RTP packets are accounted for in an
+ * {@link RtpStatisticsTable} on the threads which log them instead of being
+ * queued, and a background thread periodically summarizes the streams, see
+ * {@link #createRtpSummaryWriter()}.
+ * </p>
+ */
+public abstract class AbstractPacketLoggingService
+    implements PacketLoggingService
+{
+    /**
+     * The {@code Logger} used by the {@code AbstractPacketLoggingService}
+     * class and its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(AbstractPacketLoggingService.class.getName());
+
+    /**
+     * The configuration of this service.
+     */
+    private final PacketLoggingConfiguration configuration;
+
+    /**
+     * The clock captured packets are timestamped with.
+     */
+    private final PacketClock clock = new PacketClock();
+
+    /**
+     * The executor which periodically recalibrates {@link #clock} or
+     * {@code null} if this service is not started.
+     */
+    private ScheduledExecutorService clockCalibrator;
+
+    /**
+     * The samplers of the protocols, indexed by ordinal.
+     */
+    private final PacketSampler[] samplers;
+
+    /**
+     * The queue of captured packets or {@code null} if this service is not
+     * started.
+     */
+    private volatile PacketQueue queue;
+
+    /**
+     * The writers which drain the lanes of {@link #queue}.
+     */
+    private AsyncPacketWriter[] writers;
+
+    /**
+     * The sinks {@link #writers} write to, indexed by lane. The elements are
+     * {@code null} if the packets are only streamed.
+     */
+    private volatile PacketRecordSink[] sinks;
+
+    /**
+     * The disk quota shared by {@link #sinks} or {@code null} if none of them
+     * has asked for it by {@link #getDiskQuota(File)}.
+     */
+    private CaptureDiskQuota diskQuota;
+
+    /**
+     * The sink which streams the captured packets to a live consumer or
+     * {@code null} if streaming is disabled.
+     */
+    private volatile PcapStreamSink streamSink;
+
+    /**
+     * The per-SSRC statistics of the RTP packets or {@code null} if this
+     * service is not started in RTP statistics-only mode.
+     */
+    private volatile RtpStatisticsTable rtpStatistics;
+
+    /**
+     * The executor which periodically summarizes {@link #rtpStatistics} or
+     * {@code null}.
+     */
+    private ScheduledExecutorService rtpReporter;
+
+    /**
+     * The writer of the summaries of {@link #rtpStatistics} or {@code null}.
+     */
+    private RtpStatisticsSummaryWriter rtpSummaryWriter;
+
+    /**
+     * The summaries of the RTP streams of the last completed interval.
+     */
+    private volatile List<RtpStreamStatistics> rtpSummary
+        = Collections.emptyList();
+
+    /**
+     * The number of packets dropped by the queues of previous runs of this
+     * service.
+     */
+    private volatile long previouslyDroppedPackets = 0;
+
+    /**
+     * The number of capture file rotations of the sinks of previous runs of
+     * this service.
+     */
+    private volatile long previousRotations = 0;
+
+    /**
+     * The counters of this service.
+     */
+    private final PacketLoggingMetrics metrics = new PacketLoggingMetrics();
+
+    /**
+     * Initializes a new {@code AbstractPacketLoggingService} instance.
+     *
+     * @param configuration the configuration of the new instance
+     */
+    protected AbstractPacketLoggingService(
+            PacketLoggingConfiguration configuration)
+    {
+        this.configuration = configuration;
+
+        ProtocolName[] protocols = ProtocolName.values();
+
+        samplers = new PacketSampler[protocols.length];
+        for (ProtocolName protocol : protocols)
+            samplers[protocol.ordinal()] = new PacketSampler(protocol);
+    }
+
+    /**
+     * Starts capturing packets.
+     *
+     * @throws IOException if the sink cannot be created
+     */
+    public synchronized void start()
+        throws IOException
+    {
+        if (writers != null)
+            return;
+
+        // A flight recorder dump needs all the packets in a single sink.
+        int laneCount
+            = configuration.isFlightRecorderEnabled()
+                ? 1
+                : Math.max(1, configuration.getWriterLanes());
+
+        if ((laneCount > 1) && !supportsWriterLanes())
+        {
+            logger.warning(
+                    getClass().getName() + " does not support writer lanes;"
+                        + " using a single lane instead of " + laneCount);
+            laneCount = 1;
+        }
+
+        PacketQueue queue;
+        PacketQueue[] laneQueues = new PacketQueue[laneCount];
+
+        if (laneCount == 1)
+        {
+            queue
+                = new StripedPacketQueue(
+                        configuration.getQueueCapacity(),
+                        configuration.getQueueStripes());
+            laneQueues[0] = queue;
+        }
+        else
+        {
+            PartitionedPacketQueue partitionedQueue
+                = new PartitionedPacketQueue(
+                        laneCount,
+                        configuration.getQueueCapacity(),
+                        configuration.getQueueStripes());
+
+            for (int i = 0; i < laneCount; i++)
+                laneQueues[i] = partitionedQueue.getLane(i);
+            queue = partitionedQueue;
+        }
+
+        PcapStreamSink streamSink = createStreamSink();
+        PacketRecordSink[] sinks = new PacketRecordSink[laneCount];
+
+        if ((streamSink == null) || !configuration.isStreamOnly())
+        {
+            try
+            {
+                for (int i = 0; i < laneCount; i++)
+                    sinks[i] = createSink(i);
+            }
+            catch (IOException ioe)
+            {
+                for (PacketRecordSink sink : sinks)
+                {
+                    if (sink != null)
+                        sink.close();
+                }
+                if (streamSink != null)
+                    streamSink.close();
+                shutdownDiskQuota();
+                throw ioe;
+            }
+        }
+
+        AsyncPacketWriter[] writers = new AsyncPacketWriter[laneCount];
+
+        for (int i = 0; i < laneCount; i++)
+        {
+            PacketRecordSink sink = sinks[i];
+            PacketRecordSink writerSink;
+
+            if (streamSink == null)
+                writerSink = sink;
+            else if (sink == null)
+                writerSink = streamSink;
+            else
+                writerSink = new TeePacketRecordSink(sink, streamSink);
+
+            writers[i]
+                = new AsyncPacketWriter(
+                        laneQueues[i],
+                        writerSink,
+                        TimeUnit.MILLISECONDS.toNanos(
+                                configuration.getFlushLatency()),
+                        metrics.getLane(i));
+            writers[i].start(
+                    getClass().getName() + " writer"
+                        + ((laneCount == 1) ? "" : " " + i));
+        }
+        this.writers = writers;
+        this.sinks = sinks;
+        this.streamSink = streamSink;
+        this.queue = queue;
+        startClockCalibration();
+
+        if (configuration.isRtpStatisticsOnly())
+        {
+            try
+            {
+                startRtpStatistics();
+            }
+            catch (IOException ioe)
+            {
+                stop();
+                throw ioe;
+            }
+        }
+    }
+
+    /**
+     * Starts recalibrating {@link #clock} every
+     * {@link PacketClock#CALIBRATION_INTERVAL_MILLIS} milliseconds so that the
+     * timestamps of the captured packets do not drift from the wall clock.
+     */
+    private void startClockCalibration()
+    {
+        ScheduledExecutorService calibrator
+            = new ScheduledThreadPoolExecutor(
+                    1,
+                    new ThreadFactory()
+                    {
+                        @Override
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread t
+                                = new Thread(
+                                        r,
+                                        AbstractPacketLoggingService.this
+                                                .getClass().getName()
+                                            + " clock calibration");
+
+                            t.setDaemon(true);
+                            t.setPriority(Thread.MIN_PRIORITY);
+                            return t;
+                        }
+                    });
+
+        calibrator.scheduleWithFixedDelay(
+                new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        clock.calibrate();
+                    }
+                },
+                PacketClock.CALIBRATION_INTERVAL_MILLIS,
+                PacketClock.CALIBRATION_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+        clockCalibrator = calibrator;
+    }
+
+    /**
+     * Stops recalibrating {@link #clock}.
+     */
+    private void stopClockCalibration()
+    {
+        if (clockCalibrator != null)
+        {
+            clockCalibrator.shutdown();
+            clockCalibrator = null;
+        }
+    }
+
+    /**
+     * Starts accounting for the RTP packets in per-SSRC statistics and
+     * summarizing them periodically.
+     *
+     * @throws IOException if the summary writer cannot be created
+     */
+    private void startRtpStatistics()
+        throws IOException
+    {
+        final RtpStatisticsSummaryWriter summaryWriter
+            = createRtpSummaryWriter();
+        final RtpStatisticsTable table
+            = new RtpStatisticsTable(
+                    RtpStatisticsTable.DEFAULT_CAPACITY,
+                    currentTimeNanos());
+        ScheduledExecutorService reporter
+            = new ScheduledThreadPoolExecutor(
+                    1,
+                    new ThreadFactory()
+                    {
+                        @Override
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread t
+                                = new Thread(
+                                        r,
+                                        AbstractPacketLoggingService.this
+                                                .getClass().getName()
+                                            + " RTP statistics");
+
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        long interval = Math.max(1, configuration.getRtpStatisticsInterval());
+
+        reporter.scheduleAtFixedRate(
+                new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        reportRtpStatistics(table, summaryWriter);
+                    }
+                },
+                interval, interval, TimeUnit.SECONDS);
+        rtpSummaryWriter = summaryWriter;
+        rtpReporter = reporter;
+        rtpStatistics = table;
+    }
+
+    /**
+     * Summarizes the RTP streams seen since the last summary and writes the
+     * summaries.
+     *
+     * @param table the statistics of the RTP streams
+     * @param summaryWriter the writer of the summaries or {@code null}
+     */
+    private void reportRtpStatistics(
+            RtpStatisticsTable table,
+            RtpStatisticsSummaryWriter summaryWriter)
+    {
+        long nowNanos = currentTimeNanos();
+        List<RtpStreamStatistics> summary = table.report(nowNanos);
+
+        rtpSummary = Collections.unmodifiableList(summary);
+        if (summaryWriter != null)
+        {
+            try
+            {
+                summaryWriter.write(nowNanos / 1000000L, summary);
+            }
+            catch (IOException ioe)
+            {
+                // The summary remains available from getRtpStatistics().
+            }
+        }
+    }
+
+    /**
+     * Stops the periodic summaries of the RTP streams after a last one.
+     *
+     * @throws IOException if closing the summary writer fails
+     */
+    private void stopRtpStatistics()
+        throws IOException
+    {
+        RtpStatisticsTable table = rtpStatistics;
+        ScheduledExecutorService reporter = rtpReporter;
+        RtpStatisticsSummaryWriter summaryWriter = rtpSummaryWriter;
+
+        rtpStatistics = null;
+        rtpReporter = null;
+        rtpSummaryWriter = null;
+        if (reporter == null)
+            return;
+
+        reporter.shutdown();
+        try
+        {
+            reporter.awaitTermination(1, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+        }
+        reportRtpStatistics(table, summaryWriter);
+        if (summaryWriter != null)
+            summaryWriter.close();
+    }
+
+    /**
+     * Creates the writer of the periodic summaries of the RTP streams in RTP
+     * statistics-only mode. Invoked by {@link #start()}. Extenders return a
+     * {@link RtpStatisticsSummaryWriter} of a file next to the capture files.
+     * The default implementation returns {@code null}: the summaries are
+     * then only available from {@link #getRtpStatistics()}.
+     *
+     * @return the writer of the summaries or {@code null}
+     * @throws IOException if the writer cannot be created
+     */
+    protected RtpStatisticsSummaryWriter createRtpSummaryWriter()
+        throws IOException
+    {
+        return null;
+    }
+
+    /**
+     * Creates the sink which streams the captured packets to a live consumer
+     * as configured by {@link PacketLoggingConfiguration#getStreamPort()} and
+     * {@link PacketLoggingConfiguration#getStreamFifo()}.
+     *
+     * @return the stream sink or {@code null} if streaming is disabled
+     * @throws IOException if listening on the configured port fails
+     */
+    private PcapStreamSink createStreamSink()
+        throws IOException
+    {
+        int bufferSize = configuration.getStreamBufferSize();
+
+        if (configuration.getStreamPort() > 0)
+        {
+            return
+                new PcapStreamSink(configuration.getStreamPort(), bufferSize);
+        }
+        else if (configuration.getStreamFifo() != null)
+        {
+            return
+                new PcapStreamSink(
+                        new File(configuration.getStreamFifo()),
+                        bufferSize);
+        }
+        else
+            return null;
+    }
+
+    /**
+     * Stops capturing packets, writes the ones which are still queued and
+     * closes the sink.
+     *
+     * @throws IOException if closing the sink fails
+     */
+    public synchronized void stop()
+        throws IOException
+    {
+        if (writers == null)
+            return;
+
+        previouslyDroppedPackets += queue.getDroppedCount();
+        previousRotations += getRotationCount(sinks);
+        queue = null;
+
+        IOException failure = null;
+
+        try
+        {
+            stopRtpStatistics();
+        }
+        catch (IOException ioe)
+        {
+            failure = ioe;
+        }
+        try
+        {
+            for (AsyncPacketWriter writer : writers)
+            {
+                try
+                {
+                    writer.stop();
+                }
+                catch (IOException ioe)
+                {
+                    if (failure == null)
+                        failure = ioe;
+                }
+            }
+        }
+        finally
+        {
+            writers = null;
+            sinks = null;
+            streamSink = null;
+            shutdownDiskQuota();
+            stopClockCalibration();
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Gets the sink which streams the captured packets to a live consumer.
+     *
+     * @return the stream sink or {@code null} if this service is not started
+     * or streaming is disabled
+     */
+    public PcapStreamSink getStreamSink()
+    {
+        return streamSink;
+    }
+
+    /**
+     * Creates the sink the captured packets are written to. Invoked by
+     * {@link #createSink(int)} for the single lane. Extenders return a
+     * {@link PacketFlightRecorder} if
+     * {@link PacketLoggingConfiguration#isFlightRecorderEnabled()} and pass
+     * {@link PacketLoggingConfiguration#getFlushThreshold()} and
+     * {@link PacketLoggingConfiguration#getIndexInterval()} to the file
+     * sinks.
+     *
+     * @return the sink the captured packets are to be written to
+     * @throws IOException if the sink cannot be created
+     */
+    protected abstract PacketRecordSink createSink()
+        throws IOException;
+
+    /**
+     * Creates the sink of one of the writer lanes. Invoked by {@link #start()}
+     * for each lane. Extenders which support several lanes override it and
+     * give each lane files of its own, for example by appending the lane and
+     * a separator which is not a digit to the base name of a
+     * {@link MappedPcapFileSink}; the files of the lanes are read back merged
+     * by a {@link MergingCaptureFileReader}. The sinks of the lanes share the
+     * disk quota returned by {@link #getDiskQuota(File)}. The default
+     * implementation supports a single lane and returns {@link #createSink()};
+     * if an extender does not override it, {@link #start()} logs a warning
+     * and uses a single lane whatever the configured number of lanes.
+     *
+     * @param lane the index of the writer lane
+     * @return the sink the captured packets of {@code lane} are to be written
+     * to
+     * @throws IOException if the sink cannot be created or {@code lane} is
+     * not supported
+     */
+    protected PacketRecordSink createSink(int lane)
+        throws IOException
+    {
+        if (lane != 0)
+        {
+            throw new IOException(
+                    getClass().getName() + " does not support writer lanes");
+        }
+        return createSink();
+    }
+
+    /**
+     * Determines whether this service supports several writer lanes, that is
+     * whether its class overrides {@link #createSink(int)}.
+     *
+     * @return {@code true} if {@link #createSink(int)} is overridden;
+     * otherwise, {@code false}
+     */
+    private boolean supportsWriterLanes()
+    {
+        for (Class<?> c = getClass();
+                c != AbstractPacketLoggingService.class;
+                c = c.getSuperclass())
+        {
+            try
+            {
+                c.getDeclaredMethod("createSink", int.class);
+                return true;
+            }
+            catch (NoSuchMethodException nsme)
+            {
+                // Not declared by c; look further up.
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the disk quota to be shared by the sinks of all the writer lanes.
+     * Extenders pass it to the {@link MappedPcapFileSink}s they create in
+     * {@link #createSink(int)} so that
+     * {@link PacketLoggingConfiguration#getDiskQuota()} bounds the files of
+     * all the lanes together rather than those of each lane. The quota is
+     * created by the first call after this service is started and is shut
+     * down when it is stopped.
+     *
+     * @param directory the directory the sinks of the writer lanes write to
+     * @return the disk quota shared by the sinks of the writer lanes or
+     * {@code null} if {@link PacketLoggingConfiguration#getDiskQuota()} sets
+     * no quota
+     * @throws IllegalArgumentException if the quota has already been created
+     * for another directory
+     */
+    protected synchronized CaptureDiskQuota getDiskQuota(File directory)
+    {
+        if (diskQuota == null)
+        {
+            long quota = configuration.getDiskQuota();
+
+            if (quota > 0)
+                diskQuota = new CaptureDiskQuota(directory, quota);
+        }
+        else if (!diskQuota.getDirectory().equals(directory))
+        {
+            throw new IllegalArgumentException("directory " + directory);
+        }
+        return diskQuota;
+    }
+
+    /**
+     * Shuts down the disk quota shared by the sinks of the writer lanes, if
+     * it has been created.
+     */
+    private void shutdownDiskQuota()
+    {
+        if (diskQuota != null)
+        {
+            diskQuota.shutdown();
+            diskQuota = null;
+        }
+    }
+
+    /**
+     * Gets the current time to timestamp captured packets with.
+     *
+     * @return the current time in nanoseconds since the epoch
+     */
+    protected long currentTimeNanos()
+    {
+        return clock.currentTimeNanos();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isLoggingEnabled()
+    {
+        return configuration.isGlobalLoggingEnabled();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isLoggingEnabled(ProtocolName protocol)
+    {
+        return configuration.isLoggingEnabled(protocol);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void logPacket(
+            ProtocolName protocol,
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            TransportName transport,
+            boolean sender,
+            byte[] packetContent)
+    {
+        logPacket(
+                protocol,
+                sourceAddress, sourcePort,
+                destinationAddress, destinationPort,
+                transport,
+                sender,
+                packetContent, 0, packetContent.length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void logPacket(
+            ProtocolName protocol,
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            TransportName transport,
+            boolean sender,
+            byte[] packetContent,
+            int packetOffset,
+            int packetLength)
+    {
+        PacketQueue queue = this.queue;
+        PacketLoggingConfiguration.Snapshot settings
+            = configuration.getSnapshot();
+
+        if ((queue == null) || !settings.isLoggingEnabled(protocol))
+            return;
+
+        metrics.packetOffered(protocol);
+
+        PacketFilter filter = settings.getFilter();
+
+        if ((filter != null)
+                && !filter.matches(
+                        protocol,
+                        sourceAddress, sourcePort,
+                        destinationAddress, destinationPort,
+                        transport,
+                        sender,
+                        packetContent, packetOffset, packetLength))
+        {
+            metrics.packetFiltered(protocol);
+            return;
+        }
+
+        long timestampNanos = currentTimeNanos();
+
+        RtpStatisticsTable rtpStatistics = this.rtpStatistics;
+
+        // Not sampled: the statistics need every packet.
+        if ((rtpStatistics != null)
+                && (protocol == ProtocolName.RTP)
+                && rtpStatistics.update(
+                        sender,
+                        packetContent, packetOffset, packetLength,
+                        timestampNanos))
+        {
+            return;
+        }
+
+        if (!samplers[protocol.ordinal()].sample(settings, timestampNanos))
+            return;
+
+        if (!queue.offer(
+                protocol,
+                sourceAddress, sourcePort,
+                destinationAddress, destinationPort,
+                transport,
+                sender,
+                timestampNanos,
+                packetContent, packetOffset, packetLength,
+                getCapturedLength(
+                        settings,
+                        protocol,
+                        packetContent, packetOffset, packetLength)))
+            metrics.packetDropped(protocol);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void logPacket(
+            ProtocolName protocol,
+            PacketEndpoint source,
+            PacketEndpoint destination,
+            TransportName transport,
+            boolean sender,
+            ByteBuffer packetContent)
+    {
+        PacketQueue queue = this.queue;
+        PacketLoggingConfiguration.Snapshot settings
+            = configuration.getSnapshot();
+
+        if ((queue == null) || !settings.isLoggingEnabled(protocol))
+            return;
+
+        metrics.packetOffered(protocol);
+
+        PacketFilter filter = settings.getFilter();
+
+        if ((filter != null)
+                && !filter.matches(
+                        protocol,
+                        source, destination,
+                        transport,
+                        sender,
+                        packetContent))
+        {
+            metrics.packetFiltered(protocol);
+            return;
+        }
+
+        long timestampNanos = currentTimeNanos();
+
+        RtpStatisticsTable rtpStatistics = this.rtpStatistics;
+
+        // Not sampled: the statistics need every packet.
+        if ((rtpStatistics != null)
+                && (protocol == ProtocolName.RTP)
+                && rtpStatistics.update(
+                        sender,
+                        packetContent,
+                        timestampNanos))
+        {
+            return;
+        }
+
+        if (!samplers[protocol.ordinal()].sample(settings, timestampNanos))
+            return;
+
+        if (!queue.offer(
+                protocol,
+                source, destination,
+                transport,
+                sender,
+                timestampNanos,
+                packetContent,
+                getCapturedLength(settings, protocol, packetContent)))
+            metrics.packetDropped(protocol);
+    }
+
+    /**
+     * Gets the number of bytes of a packet to capture according to the snap
+     * length of its protocol.
+     *
+     * @param settings the packet logging settings to apply
+     * @param protocol the protocol which logged the packet
+     * @param packet the bytes of the packet
+     * @param offset the offset in {@code packet} at which the packet starts
+     * @param length the length of the packet
+     * @return the number of bytes of the packet to capture
+     */
+    private static int getCapturedLength(
+            PacketLoggingConfiguration.Snapshot settings,
+            ProtocolName protocol,
+            byte[] packet,
+            int offset,
+            int length)
+    {
+        int snapLength = settings.getSnapLength(protocol);
+
+        if (snapLength == PacketLoggingConfiguration.SNAP_LENGTH_HEADER_ONLY)
+        {
+            return
+                (protocol == ProtocolName.RTP)
+                    ? RtpHeaders.getHeaderLength(packet, offset, length)
+                    : length;
+        }
+        return (snapLength > 0) ? Math.min(snapLength, length) : length;
+    }
+
+    /**
+     * Gets the number of bytes of a packet held in a {@link ByteBuffer} to
+     * capture according to the snap length of its protocol.
+     *
+     * @param settings the packet logging settings to apply
+     * @param protocol the protocol which logged the packet
+     * @param packet the packet between its position and limit
+     * @return the number of bytes of the packet to capture
+     */
+    private static int getCapturedLength(
+            PacketLoggingConfiguration.Snapshot settings,
+            ProtocolName protocol,
+            ByteBuffer packet)
+    {
+        int snapLength = settings.getSnapLength(protocol);
+        int length = packet.remaining();
+
+        if (snapLength == PacketLoggingConfiguration.SNAP_LENGTH_HEADER_ONLY)
+        {
+            return
+                (protocol == ProtocolName.RTP)
+                    ? RtpHeaders.getHeaderLength(packet)
+                    : length;
+        }
+        return (snapLength > 0) ? Math.min(snapLength, length) : length;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The handle caches the encoded headers of the flows it is the source of.
+     */
+    @Override
+    public PacketEndpoint endpoint(byte[] address, int port)
+    {
+        return new CachingPacketEndpoint(address, port);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File dump(String reason)
+        throws IOException
+    {
+        PacketRecordSink[] sinks = this.sinks;
+        PacketRecordSink sink = (sinks == null) ? null : sinks[0];
+
+        return
+            (sink instanceof PacketFlightRecorder)
+                ? ((PacketFlightRecorder) sink).dump(
+                        reason,
+                        currentTimeNanos())
+                : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PacketLoggingConfiguration getConfiguration()
+    {
+        return configuration;
+    }
+
+    /**
+     * Gets the number of packets dropped because the queue was full.
+     *
+     * @return the number of packets dropped because the queue was full
+     */
+    public long getDroppedPacketCount()
+    {
+        PacketQueue queue = this.queue;
+
+        return
+            previouslyDroppedPackets
+                + ((queue == null) ? 0 : queue.getDroppedCount());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PacketLoggingStatistics getStatistics()
+    {
+        PacketQueue queue = this.queue;
+
+        return
+            metrics.getStatistics(
+                    samplers,
+                    (queue == null) ? 0 : queue.size(),
+                    (queue == null) ? 0 : queue.getCapacity(),
+                    previousRotations + getRotationCount(sinks));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<RtpStreamStatistics> getRtpStatistics()
+    {
+        return rtpSummary;
+    }
+
+    /**
+     * Gets the number of capture file rotations of the sinks of the writer
+     * lanes.
+     *
+     * @param sinks the sinks or {@code null}
+     * @return the number of capture file rotations of {@code sinks}
+     */
+    private static long getRotationCount(PacketRecordSink[] sinks)
+    {
+        long rotationCount = 0;
+
+        if (sinks != null)
+        {
+            for (PacketRecordSink sink : sinks)
+            {
+                if (sink instanceof MappedPcapFileSink)
+                {
+                    rotationCount
+                        += ((MappedPcapFileSink) sink).getRotationCount();
+                }
+            }
+        }
+        return rotationCount;
+    }
+
+    /**
+     * Gets the rate at which packets of a specific protocol are actually
+     * captured after sampling and rate limiting. The configured settings are
+     * available through {@link PacketLoggingConfiguration#getSampleEvery(
+     * ProtocolName)} and {@link PacketLoggingConfiguration#
+     * getMaxPacketsPerSecond(ProtocolName)}.
+     *
+     * @param protocol the protocol
+     * @return the rate at which packets of {@code protocol} are captured in
+     * packets per second
+     */
+    public double getActualPacketRate(ProtocolName protocol)
+    {
+        return samplers[protocol.ordinal()].getActualRate();
+    }
+
+    /**
+     * Gets the number of packets of a specific protocol which have been
+     * sampled out or rejected by the rate limit.
+     *
+     * @param protocol the protocol
+     * @return the number of packets of {@code protocol} which have been
+     * sampled out
+     */
+    public long getSampledOutPacketCount(ProtocolName protocol)
+    {
+        return samplers[protocol.ordinal()].getSampledOutCount();
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.logging.*;
+
+/**
+ * Drains a {@link PacketQueue} to a {@link PacketRecordSink} on a
+ * dedicated thread so that the threads which log packets never perform file
+ * I/O themselves. The sink is flushed once the oldest packet written to it
+ * since the last flush reaches the flush latency, and when the writer stops.
+ */
+public class AsyncPacketWriter
+    implements Runnable
+{
+    /**
+     * The maximum number of packets written between two checks whether the
+     * writer has been stopped.
+     */
+    private static final int DRAIN_BATCH = 256;
+
+    /**
+     * The maximum time in nanoseconds the writer thread sleeps when it finds
+     * the queue empty. The producers wake it up as soon as they queue a
+     * packet so this only bounds how long a missed wakeup could go unnoticed.
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The {@code Logger} used by the {@code AsyncPacketWriter} class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(AsyncPacketWriter.class.getName());
+
+    /**
+     * The queue the captured packets are taken from.
+     */
+    private final PacketQueue queue;
+
+    /**
+     * The sink the captured packets are written to.
+     */
+    private final PacketRecordSink sink;
+
+    /**
+     * The sink {@link #queue} is drained to, which counts the written packets
+     * in {@link #metrics} before handing them to {@link #sink}.
+     */
+    private final PacketRecordSink drainSink;
+
+    /**
+     * The counters of the written packets and of the flushes or
+     * {@code null}.
+     */
+    private final PacketLoggingMetrics metrics;
+
+    /**
+     * The maximum time in nanoseconds a written packet may remain unflushed
+     * in {@link #sink}.
+     */
+    private final long flushLatencyNanos;
+
+    /**
+     * The thread which drains {@link #queue}.
+     */
+    private Thread thread;
+
+    /**
+     * Whether the writer thread is to keep running.
+     */
+    private volatile boolean running = false;
+
+    /**
+     * The number of failed attempts to write to {@link #sink}.
+     */
+    private volatile long writeFailures = 0;
+
+    /**
+     * The last exception thrown by {@link #sink}.
+     */
+    private volatile IOException lastFailure;
+
+    /**
+     * The number of times {@link #sink} threw a {@link RuntimeException}.
+     */
+    private volatile long unexpectedFailures = 0;
+
+    /**
+     * Initializes a new {@code AsyncPacketWriter} instance.
+     *
+     * @param queue the queue to take the captured packets from
+     * @param sink the sink to write the captured packets to
+     */
+    public AsyncPacketWriter(PacketQueue queue, PacketRecordSink sink)
+    {
+        this(queue, sink, 0, null);
+    }
+
+    /**
+     * Initializes a new {@code AsyncPacketWriter} instance.
+     *
+     * @param queue the queue to take the captured packets from
+     * @param sink the sink to write the captured packets to
+     * @param flushLatencyNanos the maximum time in nanoseconds a written
+     * packet may remain unflushed in {@code sink}; {@code 0} flushes whenever
+     * the queue has been drained
+     * @param metrics the counters to count the written packets and the
+     * flushes in or {@code null}
+     */
+    public AsyncPacketWriter(
+            PacketQueue queue,
+            PacketRecordSink sink,
+            long flushLatencyNanos,
+            PacketLoggingMetrics metrics)
+    {
+        this.queue = queue;
+        this.sink = sink;
+        this.flushLatencyNanos = Math.max(0, flushLatencyNanos);
+        this.metrics = metrics;
+        drainSink = (metrics == null) ? sink : new MeteredSink();
+    }
+
+    /**
+     * Starts the writer thread.
+     *
+     * @param threadName the name of the writer thread
+     */
+    public synchronized void start(String threadName)
+    {
+        if (thread != null)
+            return;
+
+        running = true;
+        thread = new Thread(this, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the writer thread after it has written the packets which are
+     * still queued and closes the sink.
+     *
+     * @throws IOException if closing the sink fails
+     */
+    public synchronized void stop()
+        throws IOException
+    {
+        if (thread == null)
+            return;
+
+        running = false;
+        LockSupport.unpark(thread);
+
+        boolean interrupted = false;
+
+        while (thread.isAlive())
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException ie)
+            {
+                interrupted = true;
+            }
+        }
+        thread = null;
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        sink.close();
+    }
+
+    /**
+     * Runs the writer loop.
+     */
+    @Override
+    public void run()
+    {
+        boolean dirty = false;
+        long dirtySince = 0;
+
+        while (true)
+        {
+            boolean stopping = !running;
+            int written = drain();
+
+            if ((written != 0) && !dirty)
+            {
+                dirty = true;
+                dirtySince = System.nanoTime();
+            }
+
+            long unflushedNanos
+                = dirty ? (System.nanoTime() - dirtySince) : 0;
+
+            if (dirty
+                    && (((written == 0)
+                                && (stopping || (flushLatencyNanos == 0)))
+                            || ((flushLatencyNanos != 0)
+                                    && (unflushedNanos >= flushLatencyNanos))))
+            {
+                flush();
+                dirty = false;
+            }
+            if (written != 0)
+                continue;
+            if (stopping)
+                break;
+            queue.awaitPackets(
+                    dirty
+                        ? Math.min(
+                                IDLE_PARK_NANOS,
+                                flushLatencyNanos - unflushedNanos)
+                        : IDLE_PARK_NANOS);
+        }
+    }
+
+    /**
+     * Writes a batch of queued packets to {@link #sink}.
+     *
+     * @return the number of packets taken from {@link #queue}
+     */
+    private int drain()
+    {
+        try
+        {
+            return queue.drain(drainSink, DRAIN_BATCH);
+        }
+        catch (IOException ioe)
+        {
+            onFailure(ioe);
+            // The packet which failed has been taken from the queue.
+            return 1;
+        }
+        catch (RuntimeException re)
+        {
+            // A bug in the sink must not silently stop the capture.
+            onUnexpectedFailure(re);
+            return 1;
+        }
+    }
+
+    /**
+     * Flushes {@link #sink} and measures how long that takes.
+     */
+    private void flush()
+    {
+        long start = System.nanoTime();
+
+        try
+        {
+            sink.flush();
+        }
+        catch (IOException ioe)
+        {
+            onFailure(ioe);
+        }
+        catch (RuntimeException re)
+        {
+            onUnexpectedFailure(re);
+        }
+        if (metrics != null)
+            metrics.sinkFlushed(System.nanoTime() - start);
+    }
+
+    /**
+     * Records a failure to write to {@link #sink}.
+     *
+     * @param ioe the exception thrown by {@link #sink}
+     */
+    private void onFailure(IOException ioe)
+    {
+        lastFailure = ioe;
+        writeFailures++;
+    }
+
+    /**
+     * Records and logs a {@link RuntimeException} thrown by {@link #sink}.
+     * Only the first and then every power of two occurrence is logged so that
+     * a sink which fails on every packet does not flood the log.
+     *
+     * @param re the exception thrown by {@link #sink}
+     */
+    private void onUnexpectedFailure(RuntimeException re)
+    {
+        long count = ++unexpectedFailures;
+
+        writeFailures++;
+        if ((count & (count - 1)) == 0)
+        {
+            logger.log(
+                    Level.SEVERE,
+                    "Packet sink " + sink + " failed unexpectedly (" + count
+                        + " times so far)",
+                    re);
+        }
+    }
+
+    /**
+     * Gets the number of times the sink threw a {@link RuntimeException}.
+     * These are also counted by {@link #getWriteFailureCount()}.
+     *
+     * @return the number of times the sink threw a {@code RuntimeException}
+     */
+    public long getUnexpectedFailureCount()
+    {
+        return unexpectedFailures;
+    }
+
+    /**
+     * Gets the number of failed attempts to write to the sink.
+     *
+     * @return the number of failed attempts to write to the sink
+     */
+    public long getWriteFailureCount()
+    {
+        return writeFailures;
+    }
+
+    /**
+     * Gets the last exception thrown by the sink.
+     *
+     * @return the last exception thrown by the sink or {@code null}
+     */
+    public IOException getLastFailure()
+    {
+        return lastFailure;
+    }
+
+    /**
+     * Counts the packets written to {@link #sink} in {@link #metrics}.
+     */
+    private class MeteredSink
+        implements PacketRecordSink
+    {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(PacketRecord record)
+            throws IOException
+        {
+            sink.write(record);
+            metrics.packetWritten(record);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void flush()
+            throws IOException
+        {
+            sink.flush();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void close()
+            throws IOException
+        {
+            sink.close();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Batches the records of a capture file into large direct buffers and writes
+ * them to a {@link FileChannel} with gathering writes, so that writing a
+ * packet costs a small fraction of a system call instead of one or two.
+ * The batched records are written when they exceed a byte threshold or when
+ * {@link #flush()} is invoked, which {@link AsyncPacketWriter} does once the
+ * oldest batched record reaches its latency deadline.
+ * <p>
+ * Instances are not thread-safe; they are only used by the writer thread.
+ * </p>
+ */
+public class BatchingChannelWriter
+{
+    /**
+     * The default number of batched bytes which triggers a write.
+     */
+    public static final int DEFAULT_FLUSH_THRESHOLD = 256 * 1024;
+
+    /**
+     * The size of the buffers the records are batched in, a multiple of the
+     * page size.
+     */
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    /**
+     * The channel the batched records are written to.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The number of batched bytes which triggers a write.
+     */
+    private final int flushThreshold;
+
+    /**
+     * The buffers the records are batched in.
+     */
+    private final ByteBuffer[] segments;
+
+    /**
+     * The index in {@link #segments} of the buffer records are currently
+     * batched in.
+     */
+    private int current = 0;
+
+    /**
+     * The number of bytes batched in the buffers before {@link #current}.
+     */
+    private int filled = 0;
+
+    /**
+     * The number of records committed.
+     */
+    private long recordCount = 0;
+
+    /**
+     * The number of calls to {@link FileChannel#write(ByteBuffer[], int,
+     * int)}.
+     */
+    private long writeCallCount = 0;
+
+    /**
+     * The number of bytes written to {@link #channel}.
+     */
+    private long bytesWritten = 0;
+
+    /**
+     * Initializes a new {@code BatchingChannelWriter} instance.
+     *
+     * @param channel the channel to write the batched records to
+     * @param flushThreshold the number of batched bytes which triggers a
+     * write; {@code 0} or less writes every record as soon as it is committed
+     */
+    public BatchingChannelWriter(FileChannel channel, int flushThreshold)
+    {
+        this.channel = channel;
+        this.flushThreshold = Math.max(0, flushThreshold);
+
+        int segmentCount
+            = Math.max(
+                    1,
+                    (this.flushThreshold + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+
+        segments = new ByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++)
+            segments[i] = ByteBuffer.allocateDirect(SEGMENT_SIZE);
+    }
+
+    /**
+     * Reserves space for the next record. The caller puts the encoded record
+     * into the returned buffer starting at its position and then invokes
+     * {@link #commit()}; data which is not followed by {@code commit()}, like
+     * file headers, is written along with the next batch.
+     *
+     * @param length the encoded length of the next record
+     * @return a big-endian buffer with at least {@code length} bytes remaining
+     * @throws IOException if writing the batched records to make room fails
+     */
+    public ByteBuffer reserve(int length)
+        throws IOException
+    {
+        ByteBuffer segment = segments[current];
+
+        if (segment.remaining() >= length)
+            return segment;
+
+        if (current + 1 < segments.length && segment.position() != 0)
+        {
+            filled += segment.position();
+            segment = segments[++current];
+        }
+        else
+        {
+            flush();
+            segment = segments[current];
+        }
+        if (segment.capacity() < length)
+        {
+            segment
+                = ByteBuffer.allocateDirect(
+                        (length + SEGMENT_SIZE - 1) / SEGMENT_SIZE
+                            * SEGMENT_SIZE);
+            segments[current] = segment;
+        }
+        segment.order(ByteOrder.BIG_ENDIAN);
+        return segment;
+    }
+
+    /**
+     * Marks the end of a record put into the buffer returned by
+     * {@link #reserve(int)} and writes the batched records if they exceed the
+     * threshold.
+     *
+     * @throws IOException if writing the batched records fails
+     */
+    public void commit()
+        throws IOException
+    {
+        recordCount++;
+        if (filled + segments[current].position() >= flushThreshold)
+            flush();
+    }
+
+    /**
+     * Writes the batched records to the channel.
+     *
+     * @throws IOException if writing fails; the batched records are discarded
+     */
+    public void flush()
+        throws IOException
+    {
+        ByteBuffer last = segments[current];
+
+        if (filled + last.position() == 0)
+            return;
+
+        for (int i = 0; i <= current; i++)
+            segments[i].flip();
+        try
+        {
+            do
+            {
+                bytesWritten += channel.write(segments, 0, current + 1);
+                writeCallCount++;
+            }
+            while (last.hasRemaining());
+        }
+        finally
+        {
+            for (int i = 0; i <= current; i++)
+                segments[i].clear();
+            current = 0;
+            filled = 0;
+        }
+    }
+
+    /**
+     * Gets the offset in the file at which the next reserved record will be
+     * written.
+     *
+     * @return the number of bytes written and batched
+     */
+    public long getPosition()
+    {
+        return bytesWritten + filled + segments[current].position();
+    }
+
+    /**
+     * Gets the number of records committed.
+     *
+     * @return the number of records committed
+     */
+    public long getRecordCount()
+    {
+        return recordCount;
+    }
+
+    /**
+     * Gets the number of write calls made on the channel.
+     *
+     * @return the number of write calls made on the channel
+     */
+    public long getWriteCallCount()
+    {
+        return writeCallCount;
+    }
+
+    /**
+     * Gets the number of bytes written to the channel.
+     *
+     * @return the number of bytes written to the channel
+     */
+    public long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    /**
+     * Gets the average number of write calls made per committed record.
+     *
+     * @return the average number of write calls made per committed record
+     */
+    public double getWriteCallsPerRecord()
+    {
+        return
+            (recordCount == 0) ? 0 : ((double) writeCallCount) / recordCount;
+    }
+}
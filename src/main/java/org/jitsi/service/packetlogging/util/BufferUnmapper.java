@@ -0,0 +1,152 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.lang.reflect.*;
+import java.nio.*;
+
+/**
+ * Releases the memory of direct and mapped {@link ByteBuffer}s right away
+ * instead of when they are garbage collected. A file cannot be truncated,
+ * renamed over or deleted on Windows while it is mapped, and Java offers no
+ * public way to unmap, so this goes through {@code sun.misc.Unsafe} on Java 9
+ * and later and through the cleaner of the buffer on Java 8. A released buffer
+ * must never be accessed again.
+ */
+final class BufferUnmapper
+{
+    /**
+     * The {@code sun.misc.Unsafe} instance on Java 9 and later or
+     * {@code null}.
+     */
+    private static final Object UNSAFE;
+
+    /**
+     * {@code sun.misc.Unsafe.invokeCleaner(ByteBuffer)} on Java 9 and later or
+     * {@code null}.
+     */
+    private static final Method INVOKE_CLEANER;
+
+    /**
+     * {@code java.nio.DirectByteBuffer.cleaner()} on Java 8 or {@code null}.
+     */
+    private static final Method CLEANER;
+
+    /**
+     * {@code sun.misc.Cleaner.clean()} on Java 8 or {@code null}.
+     */
+    private static final Method CLEAN;
+
+    static
+    {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        Method cleaner = null;
+        Method clean = null;
+
+        try
+        {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+
+            invokeCleaner
+                = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        }
+        catch (Exception e)
+        {
+            unsafe = null;
+            invokeCleaner = null;
+            try
+            {
+                cleaner
+                    = Class.forName("java.nio.DirectByteBuffer")
+                        .getMethod("cleaner");
+                cleaner.setAccessible(true);
+                clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+                clean.setAccessible(true);
+            }
+            catch (Exception e2)
+            {
+                cleaner = null;
+                clean = null;
+            }
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+        CLEANER = cleaner;
+        CLEAN = clean;
+    }
+
+    /**
+     * Prevents the initialization of {@code BufferUnmapper} instances.
+     */
+    private BufferUnmapper()
+    {
+    }
+
+    /**
+     * Determines whether buffers can be released on this runtime.
+     *
+     * @return {@code true} if {@link #unmap(ByteBuffer)} releases buffers;
+     * otherwise, {@code false}
+     */
+    static boolean isSupported()
+    {
+        return (INVOKE_CLEANER != null) || (CLEAN != null);
+    }
+
+    /**
+     * Releases the memory or the mapping of a direct buffer.
+     *
+     * @param buffer the buffer to release; not to be accessed afterwards
+     * @return {@code true} if {@code buffer} has been released; {@code false}
+     * if it is not direct or releasing is not supported, in which case it is
+     * released when it is garbage collected
+     */
+    static boolean unmap(ByteBuffer buffer)
+    {
+        if ((buffer == null) || !buffer.isDirect())
+            return false;
+
+        try
+        {
+            if (INVOKE_CLEANER != null)
+            {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                return true;
+            }
+            if (CLEAN != null)
+            {
+                Object cleaner = CLEANER.invoke(buffer);
+
+                if (cleaner != null)
+                {
+                    CLEAN.invoke(cleaner);
+                    return true;
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            // Leave the buffer to the garbage collector.
+        }
+        return false;
+    }
+}
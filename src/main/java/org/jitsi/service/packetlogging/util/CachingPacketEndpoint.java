@@ -0,0 +1,91 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * A {@link PacketEndpoint} handed out by
+ * {@link AbstractPacketLoggingService#endpoint(byte[], int)} which caches the
+ * {@link NetworkHeaderTemplate}s of the flows it is the source of. Logging
+ * further packets of an established flow then neither allocates nor encodes
+ * the addresses and ports again. The templates are kept in a small
+ * direct-mapped cache keyed by destination and transport, so that an
+ * endpoint which sends to a few peers, such as a bridge endpoint which
+ * forwards to several receivers, keeps the template of each of them. Two
+ * flows which map to the same entry merely encode their templates anew when
+ * they alternate.
+ */
+class CachingPacketEndpoint
+    extends PacketEndpoint
+{
+    /**
+     * The number of templates cached by an endpoint. A power of two.
+     */
+    private static final int TEMPLATE_CACHE_SIZE = 8;
+
+    /**
+     * The templates of the flows this endpoint is the source of, indexed by
+     * the hash of their destination and transport. The elements are
+     * {@code null} until used.
+     */
+    private final AtomicReferenceArray<NetworkHeaderTemplate> templates
+        = new AtomicReferenceArray<NetworkHeaderTemplate>(
+                TEMPLATE_CACHE_SIZE);
+
+    /**
+     * Initializes a new {@code CachingPacketEndpoint} instance.
+     *
+     * @param address the IPv4 or IPv6 address of the new endpoint; copied
+     * @param port the port of the new endpoint
+     */
+    CachingPacketEndpoint(byte[] address, int port)
+    {
+        super(address, port);
+    }
+
+    /**
+     * Gets the template of the headers of the packets sent from this endpoint
+     * to a specific destination, encoding it if it is not cached. Does not
+     * allocate if it is.
+     *
+     * @param destination the destination of the packets
+     * @param transport the transport of the packets; {@code null} is encoded
+     * as UDP like everywhere else and shares the template of UDP
+     * @return the template of the headers of the packets
+     */
+    NetworkHeaderTemplate getTemplate(
+            PacketEndpoint destination,
+            TransportName transport)
+    {
+        if (transport == null)
+            transport = TransportName.UDP;
+
+        int hash = 31 * destination.hashCode() + transport.ordinal();
+        int index = (hash ^ (hash >>> 16)) & (TEMPLATE_CACHE_SIZE - 1);
+        NetworkHeaderTemplate template = templates.get(index);
+
+        if ((template == null) || !template.matches(destination, transport))
+        {
+            template
+                = new NetworkHeaderTemplate(this, destination, transport);
+            templates.set(index, template);
+        }
+        return template;
+    }
+}
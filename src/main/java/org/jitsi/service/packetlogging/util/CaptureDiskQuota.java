@@ -0,0 +1,301 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Keeps the capture files in a directory within a byte quota by deleting the
+ * oldest ones first. The directory is scanned on a low-priority background
+ * thread so that the writer thread, which requests the enforcement whenever
+ * it rotates, never waits on it. Requests made while a scan is pending are
+ * coalesced.
+ * <p>
+ * The quota is shared by all the sinks which write to the directory, for
+ * example those of the writer lanes of a service: each of them names its
+ * base name and its current file in {@link #enforce(String, File)}. The
+ * files which count against the quota are those named
+ * {@code <baseName><index>.pcap} after one of these base names, followed by
+ * nothing or by the suffix of a time index, of a file being prepared or of a
+ * compressed file left by a {@link RotatedFileCompressor}; see
+ * {@link #isCaptureFileName(String, String)}. Every file counts with its
+ * actual size. The current files and the files still being prepared or
+ * compressed are never deleted; the index of a capture file is deleted along
+ * with it.
+ * </p>
+ */
+public class CaptureDiskQuota
+{
+    /**
+     * The directory of the capture files.
+     */
+    private final File directory;
+
+    /**
+     * The base names of the capture files which count against the quota.
+     */
+    private final Set<String> baseNames = new CopyOnWriteArraySet<String>();
+
+    /**
+     * The maximum number of bytes the capture files may take up.
+     */
+    private final long quota;
+
+    /**
+     * The executor the scans run on.
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Whether a scan has been requested and has not started yet.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * The capture files being written, which are never deleted, by base name.
+     */
+    private final Map<String, File> currentFiles
+        = new ConcurrentHashMap<String, File>();
+
+    /**
+     * The number of capture files deleted to stay within the quota.
+     */
+    private final AtomicLong deletedFiles = new AtomicLong();
+
+    /**
+     * Initializes a new {@code CaptureDiskQuota} instance.
+     *
+     * @param directory the directory of the capture files
+     * @param quota the maximum number of bytes the capture files may take up
+     */
+    public CaptureDiskQuota(File directory, long quota)
+    {
+        if (quota <= 0)
+            throw new IllegalArgumentException("quota " + quota);
+
+        this.directory = directory;
+        this.quota = quota;
+
+        executor
+            = new ThreadPoolExecutor(
+                    1, 1,
+                    0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory()
+                    {
+                        @Override
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread t
+                                = new Thread(
+                                        r,
+                                        CaptureDiskQuota.class
+                                            .getSimpleName());
+
+                            t.setDaemon(true);
+                            t.setPriority(Thread.MIN_PRIORITY);
+                            return t;
+                        }
+                    });
+    }
+
+    /**
+     * Requests that the quota be enforced in the background. Returns
+     * immediately. The files named after {@code baseName} count against the
+     * quota from now on.
+     *
+     * @param baseName the base name of the capture files of the calling sink
+     * @param current the capture file the calling sink is writing, which is
+     * not to be deleted, or {@code null} if it is not writing any
+     */
+    public void enforce(String baseName, File current)
+    {
+        baseNames.add(baseName);
+        if (current == null)
+            currentFiles.remove(baseName);
+        else
+            currentFiles.put(baseName, current);
+        if (!scheduled.compareAndSet(false, true))
+            return;
+
+        try
+        {
+            executor.execute(
+                    new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            scheduled.set(false);
+                            enforceNow();
+                        }
+                    });
+        }
+        catch (RejectedExecutionException ree)
+        {
+            // Shut down.
+            scheduled.set(false);
+        }
+    }
+
+    /**
+     * Gets the directory of the capture files.
+     *
+     * @return the directory of the capture files
+     */
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Stops the background thread. A scan which is in progress completes.
+     */
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    /**
+     * Deletes the oldest capture files until all of them fit in the quota.
+     */
+    private void enforceNow()
+    {
+        File[] files = directory.listFiles();
+
+        if (files == null)
+            return;
+
+        Set<File> current = new HashSet<File>(currentFiles.values());
+        List<File> deletable = new ArrayList<File>();
+        long total = 0;
+
+        for (File file : files)
+        {
+            String name = file.getName();
+
+            if (!isCaptureFileName(name) || !file.isFile())
+                continue;
+
+            total += file.length();
+            if (!current.contains(file)
+                    && !name.endsWith(CaptureIndex.FILE_EXTENSION)
+                    && !name.endsWith(MappedPcapFileSink.PREPARED_SUFFIX)
+                    && !name.endsWith(RotatedFileCompressor.PENDING_EXTENSION))
+            {
+                deletable.add(file);
+            }
+        }
+        if (total <= quota)
+            return;
+
+        Collections.sort(
+                deletable,
+                new Comparator<File>()
+                {
+                    @Override
+                    public int compare(File f1, File f2)
+                    {
+                        return
+                            Long.compare(f1.lastModified(), f2.lastModified());
+                    }
+                });
+
+        for (File file : deletable)
+        {
+            if (total <= quota)
+                break;
+
+            long length = file.length();
+
+            if (file.delete())
+            {
+                total -= length;
+                deletedFiles.incrementAndGet();
+
+                File index = CaptureIndex.getIndexFile(file);
+                long indexLength = index.length();
+
+                if (index.delete())
+                    total -= indexLength;
+            }
+        }
+    }
+
+    /**
+     * Determines whether a file counts against the quota.
+     *
+     * @param name the name of the file
+     * @return {@code true} if {@code name} is the name of a capture file of
+     * one of {@link #baseNames}; otherwise, {@code false}
+     */
+    private boolean isCaptureFileName(String name)
+    {
+        for (String baseName : baseNames)
+        {
+            if (isCaptureFileName(name, baseName))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Determines whether a file is a rotation file named
+     * {@code <baseName><index>.pcap} or a file derived from one by appending
+     * a suffix which starts with a dot, such as its time index. Unlike a mere
+     * prefix match, the capture files of a base name {@code lane1} do not
+     * match {@code lane1-old.pcap} or {@code lane1.log}. A base name which
+     * ends with a digit remains ambiguous with the longer base names which
+     * extend it with digits.
+     *
+     * @param name the name of the file
+     * @param baseName the base name of the rotation files
+     * @return {@code true} if {@code name} is the name of a capture file of
+     * {@code baseName}; otherwise, {@code false}
+     */
+    static boolean isCaptureFileName(String name, String baseName)
+    {
+        if (!name.startsWith(baseName))
+            return false;
+
+        int start = baseName.length();
+        int end = name.length();
+        int i = start;
+
+        while ((i < end) && (name.charAt(i) >= '0') && (name.charAt(i) <= '9'))
+            i++;
+        if ((i == start)
+                || !name.startsWith(MappedPcapFileSink.FILE_EXTENSION, i))
+        {
+            return false;
+        }
+        i += MappedPcapFileSink.FILE_EXTENSION.length();
+        return (i == end) || (name.charAt(i) == '.');
+    }
+
+    /**
+     * Gets the number of capture files deleted to stay within the quota.
+     *
+     * @return the number of capture files deleted
+     */
+    public long getDeletedFileCount()
+    {
+        return deletedFiles.get();
+    }
+}
@@ -0,0 +1,794 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * Decodes the records of the pcap and pcapng files written by
+ * {@link PcapFileSink}, {@link MappedPcapFileSink} and {@link PcapngFileSink}
+ * in place, without copying their payloads. The protocol and direction of a
+ * pcap record are recovered from the tag in its synthesized IP header (see
+ * {@link PcapFormat#getPacketTag(PacketRecord)}); those of a pcapng record
+ * from its interface and its flags.
+ * <p>
+ * Instances are not thread-safe. The fields describing the last decoded
+ * packet are overwritten by the next call to
+ * {@link #decode(ByteBuffer, int, int)}.
+ * </p>
+ */
+class CaptureFileDecoder
+{
+    /**
+     * The magic number of a pcap file with nanosecond timestamps.
+     */
+    private static final int PCAP_NANOSECOND_MAGIC = 0xa1b23c4d;
+
+    /**
+     * The protocols indexed by ordinal.
+     */
+    private static final ProtocolName[] PROTOCOLS = ProtocolName.values();
+
+    /**
+     * Whether the file is a pcapng file rather than a pcap file.
+     */
+    private final boolean pcapng;
+
+    /**
+     * The byte order of the headers of the file format.
+     */
+    private ByteOrder byteOrder;
+
+    /**
+     * The factor which converts the timestamps of a pcap file to nanoseconds.
+     */
+    private final long pcapTimestampScale;
+
+    /**
+     * The length of the file header, which precedes the first record.
+     */
+    private final int fileHeaderLength;
+
+    /**
+     * The protocols of the interfaces of a pcapng file, in the order their
+     * Interface Description Blocks appeared.
+     */
+    private final List<ProtocolName> interfaceProtocols
+        = new ArrayList<ProtocolName>();
+
+    /**
+     * The transports of the interfaces of a pcapng file.
+     */
+    private final List<TransportName> interfaceTransports
+        = new ArrayList<TransportName>();
+
+    /**
+     * The factors which convert the timestamps of the interfaces of a pcapng
+     * file to nanoseconds.
+     */
+    private final List<Long> interfaceTimestampScales = new ArrayList<Long>();
+
+    /**
+     * The IPv4 source address of the last decoded packet.
+     */
+    private final byte[] sourceAddress4 = new byte[4];
+
+    /**
+     * The IPv4 destination address of the last decoded packet.
+     */
+    private final byte[] destinationAddress4 = new byte[4];
+
+    /**
+     * The IPv6 source address of the last decoded packet.
+     */
+    private final byte[] sourceAddress6 = new byte[16];
+
+    /**
+     * The IPv6 destination address of the last decoded packet.
+     */
+    private final byte[] destinationAddress6 = new byte[16];
+
+    /**
+     * Whether the last decoded block was a packet.
+     */
+    private boolean packet;
+
+    /**
+     * The protocol of the last decoded packet.
+     */
+    private ProtocolName protocol;
+
+    /**
+     * The transport of the last decoded packet or {@code null}.
+     */
+    private TransportName transport;
+
+    /**
+     * The source address of the last decoded packet or {@code null}.
+     */
+    private byte[] sourceAddress;
+
+    /**
+     * The source port of the last decoded packet.
+     */
+    private int sourcePort;
+
+    /**
+     * The destination address of the last decoded packet or {@code null}.
+     */
+    private byte[] destinationAddress;
+
+    /**
+     * The destination port of the last decoded packet.
+     */
+    private int destinationPort;
+
+    /**
+     * Whether we sent the last decoded packet.
+     */
+    private boolean sender;
+
+    /**
+     * The time the last decoded packet was captured in nanoseconds since the
+     * epoch.
+     */
+    private long timestampNanos;
+
+    /**
+     * The absolute offset of the payload of the last decoded packet.
+     */
+    private int payloadOffset;
+
+    /**
+     * The number of payload bytes of the last decoded packet in the file.
+     */
+    private int capturedLength;
+
+    /**
+     * The original length of the payload of the last decoded packet.
+     */
+    private int originalLength;
+
+    /**
+     * Initializes a new {@code CaptureFileDecoder} for the file which starts
+     * with a specific file header.
+     *
+     * @param buf a buffer which holds the file header at its absolute offset
+     * {@code 0}
+     * @throws IOException if the file is neither a pcap nor a pcapng file
+     */
+    CaptureFileDecoder(ByteBuffer buf)
+        throws IOException
+    {
+        if (buf.limit() < 12)
+            throw new EOFException("Truncated capture file header");
+
+        int magic = buf.getInt(0);
+        int swappedMagic = Integer.reverseBytes(magic);
+
+        if (magic == PcapngFileSink.SECTION_HEADER_BLOCK)
+        {
+            pcapng = true;
+            pcapTimestampScale = 0;
+            byteOrder
+                = (buf.getInt(8) == PcapngFileSink.BYTE_ORDER_MAGIC)
+                    ? buf.order()
+                    : opposite(buf.order());
+
+            ByteOrder order = buf.order();
+
+            fileHeaderLength = buf.order(byteOrder).getInt(4);
+            buf.order(order);
+            return;
+        }
+        else if ((magic == PcapFormat.MAGIC)
+                || (swappedMagic == PcapFormat.MAGIC))
+        {
+            pcapng = false;
+            pcapTimestampScale = 1000;
+            byteOrder
+                = (magic == PcapFormat.MAGIC)
+                    ? buf.order()
+                    : opposite(buf.order());
+        }
+        else if ((magic == PCAP_NANOSECOND_MAGIC)
+                || (swappedMagic == PCAP_NANOSECOND_MAGIC))
+        {
+            pcapng = false;
+            pcapTimestampScale = 1;
+            byteOrder
+                = (magic == PCAP_NANOSECOND_MAGIC)
+                    ? buf.order()
+                    : opposite(buf.order());
+        }
+        else
+        {
+            throw new IOException(
+                    "Not a pcap or pcapng file: magic 0x"
+                        + Integer.toHexString(magic));
+        }
+        fileHeaderLength = PcapFormat.FILE_HEADER_LENGTH;
+    }
+
+    /**
+     * Gets the byte order opposite to a specific one.
+     *
+     * @param order the byte order
+     * @return the byte order opposite to {@code order}
+     */
+    private static ByteOrder opposite(ByteOrder order)
+    {
+        return
+            (order == ByteOrder.BIG_ENDIAN)
+                ? ByteOrder.LITTLE_ENDIAN
+                : ByteOrder.BIG_ENDIAN;
+    }
+
+    /**
+     * Gets the length of the file header, which precedes the first record;
+     * the Section Header Block in the case of a pcapng file.
+     *
+     * @return the length of the file header
+     */
+    int getFileHeaderLength()
+    {
+        return fileHeaderLength;
+    }
+
+    /**
+     * Decodes the record or block at an absolute offset of a buffer. If it is
+     * a packet, {@link #isPacket()} returns {@code true} and the getters of
+     * this decoder describe it until the next call.
+     *
+     * @param buf the buffer which holds the file or a region of it
+     * @param offset the absolute offset in {@code buf} of the record
+     * @param limit the absolute offset in {@code buf} at which the available
+     * bytes end
+     * @return the length of the record, {@code 0} if it is not completely
+     * available in {@code buf} or {@code -1} if the data at {@code offset} is
+     * not a record, for example the zeroed unwritten end of a preallocated
+     * file
+     */
+    int decode(ByteBuffer buf, int offset, int limit)
+    {
+        ByteOrder order = buf.order();
+
+        packet = false;
+        try
+        {
+            return pcapng
+                ? decodeBlock(buf, offset, limit)
+                : decodeRecord(buf, offset, limit);
+        }
+        finally
+        {
+            buf.order(order);
+        }
+    }
+
+    /**
+     * Decodes a pcap record.
+     *
+     * @param buf the buffer which holds the record
+     * @param offset the absolute offset in {@code buf} of the record
+     * @param limit the absolute offset in {@code buf} at which the available
+     * bytes end
+     * @return the length of the record, {@code 0} if it is incomplete or
+     * {@code -1} if it is not a record
+     */
+    private int decodeRecord(ByteBuffer buf, int offset, int limit)
+    {
+        if (limit - offset < PcapFormat.RECORD_HEADER_LENGTH)
+            return 0;
+
+        buf.order(byteOrder);
+
+        long seconds = buf.getInt(offset) & 0xffffffffL;
+        long fraction = buf.getInt(offset + 4) & 0xffffffffL;
+        int includedLength = buf.getInt(offset + 8);
+        int length = buf.getInt(offset + 12);
+
+        if ((includedLength == 0 && length == 0)
+                || (includedLength < 0)
+                || (includedLength > length))
+            return -1;
+
+        int recordLength = PcapFormat.RECORD_HEADER_LENGTH + includedLength;
+
+        if (limit - offset < recordLength)
+            return 0;
+
+        timestampNanos
+            = seconds * 1000000000L + fraction * pcapTimestampScale;
+        decodeNetworkHeaders(
+                buf,
+                offset + PcapFormat.RECORD_HEADER_LENGTH,
+                includedLength,
+                length,
+                true);
+        packet = true;
+        return recordLength;
+    }
+
+    /**
+     * Decodes a pcapng block.
+     *
+     * @param buf the buffer which holds the block
+     * @param offset the absolute offset in {@code buf} of the block
+     * @param limit the absolute offset in {@code buf} at which the available
+     * bytes end
+     * @return the length of the block, {@code 0} if it is incomplete or
+     * {@code -1} if it is not a block
+     */
+    private int decodeBlock(ByteBuffer buf, int offset, int limit)
+    {
+        if (limit - offset < 12)
+            return 0;
+
+        int type = buf.getInt(offset);
+
+        if (type == PcapngFileSink.SECTION_HEADER_BLOCK)
+        {
+            int magic = buf.getInt(offset + 8);
+
+            byteOrder
+                = (magic == PcapngFileSink.BYTE_ORDER_MAGIC)
+                    ? buf.order()
+                    : opposite(buf.order());
+            interfaceProtocols.clear();
+            interfaceTransports.clear();
+            interfaceTimestampScales.clear();
+        }
+        else if (byteOrder == null)
+        {
+            return -1;
+        }
+        buf.order(byteOrder);
+        type = buf.getInt(offset);
+
+        int blockLength = buf.getInt(offset + 4);
+
+        if ((blockLength < 12) || ((blockLength & 3) != 0))
+            return -1;
+        if (limit - offset < blockLength)
+            return 0;
+
+        if (type == PcapngFileSink.INTERFACE_DESCRIPTION_BLOCK)
+            decodeInterface(buf, offset, blockLength);
+        else if (type == PcapngFileSink.ENHANCED_PACKET_BLOCK)
+            decodePacket(buf, offset, blockLength);
+        return blockLength;
+    }
+
+    /**
+     * Decodes a pcapng Interface Description Block.
+     *
+     * @param buf the buffer which holds the block
+     * @param offset the absolute offset in {@code buf} of the block
+     * @param blockLength the length of the block
+     */
+    private void decodeInterface(ByteBuffer buf, int offset, int blockLength)
+    {
+        ProtocolName protocol = ProtocolName.ARBITRARY;
+        TransportName transport = null;
+        long timestampScale = 1000;
+        int end = offset + blockLength - 4;
+
+        for (int i = offset + 16; i + 4 <= end;)
+        {
+            int code = buf.getShort(i) & 0xffff;
+            int length = buf.getShort(i + 2) & 0xffff;
+
+            if ((code == 0) || (i + 4 + length > end))
+                break;
+            if (code == PcapngFileSink.OPT_IF_NAME)
+            {
+                byte[] bytes = new byte[length];
+
+                for (int j = 0; j < length; j++)
+                    bytes[j] = buf.get(i + 4 + j);
+
+                String name = new String(bytes, StandardCharsets.UTF_8);
+                int slash = name.indexOf('/');
+
+                protocol
+                    = parse(
+                            ProtocolName.class,
+                            (slash == -1) ? name : name.substring(0, slash),
+                            ProtocolName.ARBITRARY);
+                if (slash != -1)
+                {
+                    transport
+                        = parse(
+                                TransportName.class,
+                                name.substring(slash + 1),
+                                null);
+                }
+            }
+            else if ((code == PcapngFileSink.OPT_IF_TSRESOL) && (length >= 1))
+            {
+                int resolution = buf.get(i + 4);
+
+                if ((resolution & 0x80) == 0 && resolution <= 9)
+                {
+                    timestampScale = 1;
+                    for (int j = resolution; j < 9; j++)
+                        timestampScale *= 10;
+                }
+            }
+            i += 4 + ((length + 3) & ~3);
+        }
+        interfaceProtocols.add(protocol);
+        interfaceTransports.add(transport);
+        interfaceTimestampScales.add(timestampScale);
+    }
+
+    /**
+     * Parses the name of an enum constant.
+     *
+     * @param type the enum type
+     * @param name the name of the constant
+     * @param defaultValue the value to return if {@code name} is not the name
+     * of a constant of {@code type}
+     * @return the constant of {@code type} named {@code name} or
+     * {@code defaultValue}
+     */
+    private static <T extends Enum<T>> T parse(
+            Class<T> type,
+            String name,
+            T defaultValue)
+    {
+        try
+        {
+            return Enum.valueOf(type, name);
+        }
+        catch (IllegalArgumentException iae)
+        {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Decodes a pcapng Enhanced Packet Block.
+     *
+     * @param buf the buffer which holds the block
+     * @param offset the absolute offset in {@code buf} of the block
+     * @param blockLength the length of the block
+     */
+    private void decodePacket(ByteBuffer buf, int offset, int blockLength)
+    {
+        if (blockLength < 32)
+            return;
+
+        int interfaceId = buf.getInt(offset + 8);
+        long timestamp
+            = ((buf.getInt(offset + 12) & 0xffffffffL) << 32)
+                | (buf.getInt(offset + 16) & 0xffffffffL);
+        int includedLength = buf.getInt(offset + 20);
+        int length = buf.getInt(offset + 24);
+        int dataOffset = offset + 28;
+        int end = offset + blockLength - 4;
+
+        if ((includedLength < 0) || (dataOffset + includedLength > end))
+            return;
+
+        boolean known
+            = (interfaceId >= 0)
+                && (interfaceId < interfaceProtocols.size());
+
+        timestampNanos
+            = timestamp
+                * (known ? interfaceTimestampScales.get(interfaceId) : 1000);
+        decodeNetworkHeaders(buf, dataOffset, includedLength, length, !known);
+        if (known)
+        {
+            protocol = interfaceProtocols.get(interfaceId);
+            if (interfaceTransports.get(interfaceId) != null)
+                transport = interfaceTransports.get(interfaceId);
+        }
+
+        for (int i = dataOffset + ((includedLength + 3) & ~3); i + 4 <= end;)
+        {
+            int code = buf.getShort(i) & 0xffff;
+            int optionLength = buf.getShort(i + 2) & 0xffff;
+
+            if ((code == 0) || (i + 4 + optionLength > end))
+                break;
+            if ((code == PcapngFileSink.OPT_EPB_FLAGS) && (optionLength >= 4))
+            {
+                int direction = buf.getInt(i + 4) & 3;
+
+                if (direction == PcapngFileSink.EPB_FLAGS_OUTBOUND)
+                    sender = true;
+                else if (direction == PcapngFileSink.EPB_FLAGS_INBOUND)
+                    sender = false;
+            }
+            i += 4 + ((optionLength + 3) & ~3);
+        }
+        packet = true;
+    }
+
+    /**
+     * Decodes the synthesized IP and transport headers which precede the
+     * payload of a packet. Packets whose headers cannot be decoded are
+     * reported as {@link ProtocolName#ARBITRARY} packets without addresses.
+     *
+     * @param buf the buffer which holds the packet
+     * @param offset the absolute offset in {@code buf} of the IP header
+     * @param includedLength the number of bytes of the packet in the file
+     * @param length the original length of the packet
+     * @param useTag {@code true} to take the protocol and direction from the
+     * tag in the IP header
+     */
+    private void decodeNetworkHeaders(
+            ByteBuffer buf,
+            int offset,
+            int includedLength,
+            int length,
+            boolean useTag)
+    {
+        int version = (includedLength > 0) ? ((buf.get(offset) >> 4) & 0xf) : 0;
+        int ipHeaderLength;
+        int ipProtocol;
+        int tag;
+
+        protocol = ProtocolName.ARBITRARY;
+        transport = null;
+        sourceAddress = destinationAddress = null;
+        sourcePort = destinationPort = 0;
+        sender = false;
+        payloadOffset = offset;
+        capturedLength = includedLength;
+        originalLength = length;
+
+        if ((version == 4) && (includedLength >= 20))
+        {
+            ipHeaderLength = (buf.get(offset) & 0xf) * 4;
+            tag = getUnsignedShort(buf, offset + 4);
+            ipProtocol = buf.get(offset + 9) & 0xff;
+            sourceAddress = copy(buf, offset + 12, sourceAddress4);
+            destinationAddress = copy(buf, offset + 16, destinationAddress4);
+        }
+        else if ((version == 6) && (includedLength >= 40))
+        {
+            ipHeaderLength = 40;
+            tag = getUnsignedShort(buf, offset + 2);
+            ipProtocol = buf.get(offset + 6) & 0xff;
+            sourceAddress = copy(buf, offset + 8, sourceAddress6);
+            destinationAddress = copy(buf, offset + 24, destinationAddress6);
+        }
+        else
+        {
+            return;
+        }
+
+        int transportHeaderLength;
+
+        if (ipProtocol == PcapFormat.IPPROTO_UDP)
+        {
+            transport = TransportName.UDP;
+            transportHeaderLength = 8;
+        }
+        else if ((ipProtocol == PcapFormat.IPPROTO_TCP)
+                && (includedLength >= ipHeaderLength + 20))
+        {
+            transport = TransportName.TCP;
+            transportHeaderLength
+                = ((buf.get(offset + ipHeaderLength + 12) >> 4) & 0xf) * 4;
+        }
+        else
+        {
+            transportHeaderLength = 0;
+        }
+
+        int headerLength = ipHeaderLength + transportHeaderLength;
+
+        if (headerLength > includedLength)
+            return;
+        if (transportHeaderLength != 0)
+        {
+            sourcePort = getUnsignedShort(buf, offset + ipHeaderLength);
+            destinationPort
+                = getUnsignedShort(buf, offset + ipHeaderLength + 2);
+        }
+        if (useTag)
+        {
+            int ordinal = (tag & PcapFormat.TAG_PROTOCOL_MASK) - 1;
+
+            if ((ordinal >= 0) && (ordinal < PROTOCOLS.length))
+                protocol = PROTOCOLS[ordinal];
+            sender = (tag & PcapFormat.TAG_SENDER) != 0;
+        }
+        payloadOffset = offset + headerLength;
+        capturedLength = includedLength - headerLength;
+        originalLength = Math.max(length - headerLength, capturedLength);
+    }
+
+    /**
+     * Reads an unsigned 16-bit integer in network byte order.
+     *
+     * @param buf the buffer to read from
+     * @param offset the absolute offset in {@code buf} to read at
+     * @return the unsigned 16-bit integer at {@code offset}
+     */
+    private static int getUnsignedShort(ByteBuffer buf, int offset)
+    {
+        return ((buf.get(offset) & 0xff) << 8) | (buf.get(offset + 1) & 0xff);
+    }
+
+    /**
+     * Copies an address out of a buffer.
+     *
+     * @param buf the buffer to copy from
+     * @param offset the absolute offset in {@code buf} of the address
+     * @param address the array to copy the address into
+     * @return {@code address}
+     */
+    private static byte[] copy(ByteBuffer buf, int offset, byte[] address)
+    {
+        for (int i = 0; i < address.length; i++)
+            address[i] = buf.get(offset + i);
+        return address;
+    }
+
+    /**
+     * Copies the last decoded packet into a record.
+     *
+     * @param buf the buffer the packet was decoded from
+     * @param record the record to copy the packet into
+     */
+    void copyTo(ByteBuffer buf, PacketRecord record)
+    {
+        record.set(
+                protocol,
+                sourceAddress, sourcePort,
+                destinationAddress, destinationPort,
+                transport,
+                sender,
+                timestampNanos,
+                buf, payloadOffset, capturedLength,
+                originalLength);
+    }
+
+    /**
+     * Determines whether the last decoded record was a packet.
+     *
+     * @return {@code true} if the last decoded record was a packet
+     */
+    boolean isPacket()
+    {
+        return packet;
+    }
+
+    /**
+     * Gets the protocol of the last decoded packet.
+     *
+     * @return the protocol of the last decoded packet
+     */
+    ProtocolName getProtocol()
+    {
+        return protocol;
+    }
+
+    /**
+     * Gets the transport of the last decoded packet or {@code null}.
+     *
+     * @return the transport of the last decoded packet or {@code null}
+     */
+    TransportName getTransport()
+    {
+        return transport;
+    }
+
+    /**
+     * Gets the source address of the last decoded packet or {@code null}.
+     *
+     * @return the source address of the last decoded packet or {@code null}
+     */
+    byte[] getSourceAddress()
+    {
+        return sourceAddress;
+    }
+
+    /**
+     * Gets the source port of the last decoded packet.
+     *
+     * @return the source port of the last decoded packet
+     */
+    int getSourcePort()
+    {
+        return sourcePort;
+    }
+
+    /**
+     * Gets the destination address of the last decoded packet or {@code null}.
+     *
+     * @return the destination address of the last decoded packet or
+     * {@code null}
+     */
+    byte[] getDestinationAddress()
+    {
+        return destinationAddress;
+    }
+
+    /**
+     * Gets the destination port of the last decoded packet.
+     *
+     * @return the destination port of the last decoded packet
+     */
+    int getDestinationPort()
+    {
+        return destinationPort;
+    }
+
+    /**
+     * Determines whether we sent the last decoded packet.
+     *
+     * @return {@code true} if we sent the last decoded packet
+     */
+    boolean isSender()
+    {
+        return sender;
+    }
+
+    /**
+     * Gets the time the last decoded packet was captured in nanoseconds since
+     * the epoch.
+     *
+     * @return the time the last decoded packet was captured in nanoseconds
+     * since the epoch
+     */
+    long getTimestampNanos()
+    {
+        return timestampNanos;
+    }
+
+    /**
+     * Gets the absolute offset of the payload of the last decoded packet.
+     *
+     * @return the absolute offset of the payload of the last decoded packet
+     */
+    int getPayloadOffset()
+    {
+        return payloadOffset;
+    }
+
+    /**
+     * Gets the number of payload bytes of the last decoded packet in the file.
+     *
+     * @return the number of payload bytes of the last decoded packet in the
+     * file
+     */
+    int getCapturedLength()
+    {
+        return capturedLength;
+    }
+
+    /**
+     * Gets the original length of the payload of the last decoded packet.
+     *
+     * @return the original length of the payload of the last decoded packet
+     */
+    int getOriginalLength()
+    {
+        return originalLength;
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * Reads back the pcap and pcapng files written by {@link PcapFileSink},
+ * {@link MappedPcapFileSink} and {@link PcapngFileSink}. The file is memory
+ * mapped in windows of up to {@link #WINDOW_SIZE} bytes and the packets are
+ * iterated in place: {@link #getPayload()} is a read-only view of the mapped
+ * file rather than a copy, and the endpoints are only allocated when they
+ * change from one packet to the next.
+ * <p>
+ * The values returned by the getters describe the current packet and are
+ * only valid until the next call to {@link #next()}. Instances are not
+ * thread-safe.
+ * </p>
+ */
+public class CaptureFileReader
+    implements Closeable
+{
+    /**
+     * The maximum size of the mapped windows of the file.
+     */
+    public static final int WINDOW_SIZE = 256 * 1024 * 1024;
+
+    /**
+     * The channel of the capture file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The size of the capture file.
+     */
+    private final long size;
+
+    /**
+     * The decoder of the records of the capture file.
+     */
+    private final CaptureFileDecoder decoder;
+
+    /**
+     * The mapped window of the capture file.
+     */
+    private MappedByteBuffer window;
+
+    /**
+     * The offset in the capture file at which {@link #window} starts.
+     */
+    private long windowStart;
+
+    /**
+     * The read-only view of {@link #window} the payloads are exposed
+     * through.
+     */
+    private ByteBuffer payload;
+
+    /**
+     * The offset in {@link #window} of the next record.
+     */
+    private int offset;
+
+    /**
+     * The offset in the capture file of the current packet or {@code -1}.
+     */
+    private long packetOffset = -1;
+
+    /**
+     * The source endpoint of the current or a previous packet.
+     */
+    private PacketEndpoint source;
+
+    /**
+     * The destination endpoint of the current or a previous packet.
+     */
+    private PacketEndpoint destination;
+
+    /**
+     * Opens a capture file for reading.
+     *
+     * @param file the pcap or pcapng file to read
+     * @throws IOException if the file cannot be mapped or is neither a pcap
+     * nor a pcapng file
+     */
+    public CaptureFileReader(File file)
+        throws IOException
+    {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try
+        {
+            size = channel.size();
+            map(0);
+            decoder = new CaptureFileDecoder(window);
+            offset = decoder.getFileHeaderLength();
+        }
+        catch (IOException ioe)
+        {
+            channel.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Maps the window of the capture file which starts at a specific offset.
+     *
+     * @param start the offset in the capture file at which the window starts
+     * @throws IOException if mapping fails
+     */
+    private void map(long start)
+        throws IOException
+    {
+        window
+            = channel.map(
+                    FileChannel.MapMode.READ_ONLY,
+                    start,
+                    Math.min(WINDOW_SIZE, size - start));
+        windowStart = start;
+        payload = window.asReadOnlyBuffer();
+    }
+
+    /**
+     * Advances to the next packet of the capture file.
+     *
+     * @return {@code true} if there is a next packet; {@code false} at the
+     * end of the file, at a truncated last record and at the zeroed unwritten
+     * end of a preallocated file
+     * @throws IOException if mapping the next window of the file fails
+     */
+    public boolean next()
+        throws IOException
+    {
+        packetOffset = -1;
+        while (true)
+        {
+            int length = decoder.decode(window, offset, window.limit());
+
+            if (length == -1)
+                return false;
+            if (length == 0)
+            {
+                long position = windowStart + offset;
+
+                if ((windowStart + window.limit() >= size) || (offset == 0))
+                    return false;
+                map(position);
+                offset = 0;
+                continue;
+            }
+            if (decoder.isPacket())
+            {
+                packetOffset = windowStart + offset;
+                offset += length;
+                return true;
+            }
+            offset += length;
+        }
+    }
+
+    /**
+     * Gets the offset in the capture file of the record of the current
+     * packet.
+     *
+     * @return the offset in the capture file of the current packet
+     */
+    public long getOffset()
+    {
+        return packetOffset;
+    }
+
+    /**
+     * Gets the protocol which logged the current packet.
+     *
+     * @return the protocol of the current packet
+     */
+    public ProtocolName getProtocol()
+    {
+        return decoder.getProtocol();
+    }
+
+    /**
+     * Gets the transport of the current packet.
+     *
+     * @return the transport of the current packet or {@code null} if it is
+     * unknown
+     */
+    public TransportName getTransport()
+    {
+        return decoder.getTransport();
+    }
+
+    /**
+     * Gets the source endpoint of the current packet.
+     *
+     * @return the source endpoint of the current packet or {@code null} if it
+     * is unknown
+     */
+    public PacketEndpoint getSource()
+    {
+        source
+            = getEndpoint(
+                    source,
+                    decoder.getSourceAddress(),
+                    decoder.getSourcePort());
+        return source;
+    }
+
+    /**
+     * Gets the destination endpoint of the current packet.
+     *
+     * @return the destination endpoint of the current packet or {@code null}
+     * if it is unknown
+     */
+    public PacketEndpoint getDestination()
+    {
+        destination
+            = getEndpoint(
+                    destination,
+                    decoder.getDestinationAddress(),
+                    decoder.getDestinationPort());
+        return destination;
+    }
+
+    /**
+     * Gets an endpoint, reusing a previous one if it is equal.
+     *
+     * @param previous the previous endpoint or {@code null}
+     * @param address the address of the endpoint or {@code null}
+     * @param port the port of the endpoint
+     * @return {@code previous} if it has {@code address} and {@code port}, a
+     * new endpoint otherwise or {@code null} if {@code address} is
+     * {@code null}
+     */
+    private static PacketEndpoint getEndpoint(
+            PacketEndpoint previous,
+            byte[] address,
+            int port)
+    {
+        if (address == null)
+            return null;
+        if ((previous != null)
+                && (previous.getPort() == port)
+                && previous.hasAddress(address))
+        {
+            return previous;
+        }
+        return new PacketEndpoint(address, port);
+    }
+
+    /**
+     * Determines whether we sent the current packet.
+     *
+     * @return {@code true} if we sent the current packet
+     */
+    public boolean isSender()
+    {
+        return decoder.isSender();
+    }
+
+    /**
+     * Gets the time the current packet was captured.
+     *
+     * @return the time the current packet was captured in nanoseconds since
+     * the epoch
+     */
+    public long getTimestampNanos()
+    {
+        return decoder.getTimestampNanos();
+    }
+
+    /**
+     * Gets the payload of the current packet without copying it. The
+     * returned buffer is a read-only view of the mapped file whose position
+     * and limit enclose the payload; it is reused for the next packet.
+     *
+     * @return the captured bytes of the payload of the current packet
+     */
+    public ByteBuffer getPayload()
+    {
+        int start = decoder.getPayloadOffset();
+
+        payload.clear();
+        payload.limit(start + decoder.getCapturedLength());
+        payload.position(start);
+        return payload;
+    }
+
+    /**
+     * Gets the length of the payload of the current packet before it was
+     * truncated by the snap length.
+     *
+     * @return the original length of the payload of the current packet
+     */
+    public int getOriginalLength()
+    {
+        return decoder.getOriginalLength();
+    }
+
+    /**
+     * Copies the current packet into a record.
+     *
+     * @param record the record to copy the current packet into
+     */
+    public void copyTo(PacketRecord record)
+    {
+        decoder.copyTo(window, record);
+    }
+
+    /**
+     * Closes the capture file. The mapped windows are released once they are
+     * no longer referenced.
+     *
+     * @throws IOException if closing the capture file fails
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        channel.close();
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+
+/**
+ * Notified by a capture sink whenever it has finished writing one of its
+ * rotation files.
+ */
+public interface CaptureFileRotationListener
+{
+    /**
+     * Invoked on the writer thread after a rotation file has been finished and
+     * closed. Implementations must return quickly and hand any expensive work
+     * over to another thread.
+     *
+     * @param file the rotation file which has been finished
+     */
+    void captureFileFinished(File file);
+}
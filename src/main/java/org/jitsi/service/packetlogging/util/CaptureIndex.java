@@ -0,0 +1,403 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * Queries the packets of a time range and a set of protocols in a capture
+ * file written by {@link PcapFileSink}, {@link MappedPcapFileSink} or
+ * {@link PcapngFileSink}. The sparse index written by
+ * {@link CaptureIndexWriter} next to the capture file is used to read only
+ * the blocks of records which may hold matching packets; the end of the
+ * capture file which is not indexed yet, or the whole file if it has no
+ * index, is scanned.
+ * <p>
+ * The index file consists of a header, the magic number {@link #MAGIC} and
+ * the version {@link #VERSION}, followed by entries of
+ * {@link #ENTRY_LENGTH} bytes in the order of the blocks in the capture
+ * file: the earliest and the latest timestamp of the records of the block in
+ * nanoseconds since the epoch, the offset of the block (all three 64-bit),
+ * the length of the block, a bit per {@link ProtocolName} ordinal of the
+ * records of the block, flags and the number of records (all four 32-bit).
+ * All fields are big-endian.
+ * </p>
+ */
+public class CaptureIndex
+{
+    /**
+     * The suffix appended to the name of a capture file to get the name of
+     * its index file.
+     */
+    public static final String FILE_EXTENSION = ".idx";
+
+    /**
+     * The magic number of an index file, {@code "PLIX"}.
+     */
+    public static final int MAGIC = 0x504c4958;
+
+    /**
+     * The version of the index file format.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The length of the header of an index file.
+     */
+    public static final int HEADER_LENGTH = 8;
+
+    /**
+     * The length of an entry of an index file.
+     */
+    public static final int ENTRY_LENGTH = 40;
+
+    /**
+     * The flag of an entry of a block which is read regardless of time and
+     * protocol.
+     */
+    public static final int FLAG_METADATA = 1;
+
+    /**
+     * The size of the buffer the capture file is read through.
+     */
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Prevents the initialization of {@code CaptureIndex} instances.
+     */
+    private CaptureIndex()
+    {
+    }
+
+    /**
+     * Gets the index file of a specific capture file.
+     *
+     * @param captureFile the capture file
+     * @return the index file of {@code captureFile}
+     */
+    public static File getIndexFile(File captureFile)
+    {
+        return new File(captureFile.getPath() + FILE_EXTENSION);
+    }
+
+    /**
+     * Writes the packets of a capture file which were captured in a specific
+     * time range and logged by one of a specific set of protocols to a sink,
+     * in the order of the capture file.
+     *
+     * @param captureFile the capture file
+     * @param fromNanos the start of the time range in nanoseconds since the
+     * epoch, inclusive
+     * @param toNanos the end of the time range in nanoseconds since the
+     * epoch, inclusive
+     * @param protocols the protocols of the packets to write or {@code null}
+     * for all protocols
+     * @param sink the sink to write the matching packets to; it is neither
+     * flushed nor closed
+     * @return the number of packets written to {@code sink}
+     * @throws IOException if reading the capture file or writing to
+     * {@code sink} fails
+     */
+    public static long query(
+            File captureFile,
+            long fromNanos,
+            long toNanos,
+            Set<ProtocolName> protocols,
+            PacketRecordSink sink)
+        throws IOException
+    {
+        int protocolMask = 0;
+
+        for (ProtocolName protocol
+                : (protocols == null)
+                    ? EnumSet.allOf(ProtocolName.class)
+                    : protocols)
+        {
+            protocolMask |= 1 << protocol.ordinal();
+        }
+
+        FileChannel channel
+            = FileChannel.open(captureFile.toPath(), StandardOpenOption.READ);
+
+        try
+        {
+            ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+            read(channel, 0, buf);
+
+            CaptureFileDecoder decoder = new CaptureFileDecoder(buf);
+            Scan scan
+                = new Scan(
+                        channel, buf, decoder,
+                        fromNanos, toNanos, protocolMask,
+                        sink);
+            long end = decoder.getFileHeaderLength();
+
+            for (long[] entry : readEntries(getIndexFile(captureFile)))
+            {
+                long offset = entry[2];
+                long length = entry[3];
+                boolean metadata = (entry[5] & FLAG_METADATA) != 0;
+
+                if (offset < end)
+                    continue;
+                if (metadata
+                        || ((entry[1] >= fromNanos)
+                                && (entry[0] <= toNanos)
+                                && ((entry[4] & protocolMask) != 0)))
+                {
+                    if (scan.run(offset, offset + length) < offset + length)
+                        return scan.count;
+                }
+                end = offset + length;
+            }
+            scan.run(end, channel.size());
+            return scan.count;
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads the entries of an index file. Each entry is returned as an array
+     * of its seven fields in the order of the file format.
+     *
+     * @param indexFile the index file
+     * @return the entries of {@code indexFile} or an empty list if it does
+     * not exist or is not an index file
+     * @throws IOException if reading {@code indexFile} fails
+     */
+    private static List<long[]> readEntries(File indexFile)
+        throws IOException
+    {
+        List<long[]> entries = new ArrayList<long[]>();
+
+        if (!indexFile.isFile())
+            return entries;
+
+        DataInputStream in
+            = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(indexFile)));
+
+        try
+        {
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION))
+                return entries;
+
+            while (true)
+            {
+                long[] entry = new long[7];
+
+                try
+                {
+                    entry[0] = in.readLong();
+                    entry[1] = in.readLong();
+                    entry[2] = in.readLong();
+                    entry[3] = in.readInt() & 0xffffffffL;
+                    entry[4] = in.readInt();
+                    entry[5] = in.readInt();
+                    entry[6] = in.readInt();
+                }
+                catch (EOFException eofe)
+                {
+                    // A partially written last entry is ignored.
+                    break;
+                }
+                entries.add(entry);
+            }
+        }
+        catch (EOFException eofe)
+        {
+            // The header has not been written completely yet.
+        }
+        finally
+        {
+            in.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Reads a region of a file into a buffer, replacing its contents.
+     *
+     * @param channel the channel of the file
+     * @param position the offset in the file of the region
+     * @param buf the buffer to read into; on return its position is
+     * {@code 0} and its limit the number of bytes read
+     * @throws IOException if reading fails
+     */
+    private static void read(FileChannel channel, long position, ByteBuffer buf)
+        throws IOException
+    {
+        buf.clear();
+        while (buf.hasRemaining())
+        {
+            int read = channel.read(buf, position + buf.position());
+
+            if (read == -1)
+                break;
+        }
+        buf.flip();
+    }
+
+    /**
+     * Scans regions of a capture file for matching packets.
+     */
+    private static class Scan
+    {
+        /**
+         * The channel of the capture file.
+         */
+        final FileChannel channel;
+
+        /**
+         * The buffer the capture file is read through.
+         */
+        ByteBuffer buf;
+
+        /**
+         * The decoder of the records of the capture file.
+         */
+        final CaptureFileDecoder decoder;
+
+        /**
+         * The start of the time range of the query.
+         */
+        final long fromNanos;
+
+        /**
+         * The end of the time range of the query.
+         */
+        final long toNanos;
+
+        /**
+         * The protocols of the query, a bit per ordinal.
+         */
+        final int protocolMask;
+
+        /**
+         * The sink the matching packets are written to.
+         */
+        final PacketRecordSink sink;
+
+        /**
+         * The record the matching packets are copied into.
+         */
+        final PacketRecord record = new PacketRecord();
+
+        /**
+         * The number of packets written to {@link #sink}.
+         */
+        long count = 0;
+
+        /**
+         * Initializes a new {@code Scan} instance.
+         *
+         * @param channel the channel of the capture file
+         * @param buf the buffer the capture file is read through
+         * @param decoder the decoder of the records of the capture file
+         * @param fromNanos the start of the time range of the query
+         * @param toNanos the end of the time range of the query
+         * @param protocolMask the protocols of the query, a bit per ordinal
+         * @param sink the sink to write the matching packets to
+         */
+        Scan(
+                FileChannel channel,
+                ByteBuffer buf,
+                CaptureFileDecoder decoder,
+                long fromNanos,
+                long toNanos,
+                int protocolMask,
+                PacketRecordSink sink)
+        {
+            this.channel = channel;
+            this.buf = buf;
+            this.decoder = decoder;
+            this.fromNanos = fromNanos;
+            this.toNanos = toNanos;
+            this.protocolMask = protocolMask;
+            this.sink = sink;
+        }
+
+        /**
+         * Scans a region of the capture file.
+         *
+         * @param start the offset in the capture file at which the region
+         * starts, the start of a record
+         * @param end the offset in the capture file at which the region ends
+         * @return the offset at which the scan stopped, less than {@code end}
+         * if the data at that offset is not a record
+         * @throws IOException if reading the capture file or writing to
+         * {@link #sink} fails
+         */
+        long run(long start, long end)
+            throws IOException
+        {
+            long position = start;
+
+            while (position < end)
+            {
+                read(channel, position, buf);
+
+                int limit = (int) Math.min(buf.limit(), end - position);
+                int offset = 0;
+
+                while (offset < limit)
+                {
+                    int length = decoder.decode(buf, offset, limit);
+
+                    if (length == -1)
+                        return position + offset;
+                    if (length == 0)
+                        break;
+                    if (decoder.isPacket())
+                    {
+                        long timestampNanos = decoder.getTimestampNanos();
+
+                        if ((timestampNanos >= fromNanos)
+                                && (timestampNanos <= toNanos)
+                                && (((1 << decoder.getProtocol().ordinal())
+                                            & protocolMask)
+                                        != 0))
+                        {
+                            decoder.copyTo(buf, record);
+                            sink.write(record);
+                            count++;
+                        }
+                    }
+                    offset += length;
+                }
+                if (offset == 0)
+                {
+                    // The record does not fit in the buffer or is truncated.
+                    if (limit < buf.capacity())
+                        return position;
+                    buf = ByteBuffer.allocate(2 * buf.capacity());
+                }
+                position += offset;
+            }
+            return position;
+        }
+    }
+}
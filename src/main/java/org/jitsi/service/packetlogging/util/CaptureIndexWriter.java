@@ -0,0 +1,270 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * Writes the sparse time index of a capture file to its sidecar file (see
+ * {@link CaptureIndex#getIndexFile(File)}) while the capture file is being
+ * written. The records are grouped into blocks of consecutive records of
+ * about a specific number of bytes and an index entry is written for every
+ * block with the range of the timestamps and the set of protocols of its
+ * records, so that {@link CaptureIndex} can seek straight to the blocks which
+ * hold the packets of a time range and a set of protocols.
+ * <p>
+ * Blocks which a reader needs regardless of time and protocol, like the
+ * Interface Description Blocks of a pcapng file, are indexed as metadata.
+ * Instances are not thread-safe; they are only used by the writer thread.
+ * </p>
+ */
+public class CaptureIndexWriter
+{
+    /**
+     * The default number of bytes of a capture file covered by an index
+     * entry.
+     */
+    public static final int DEFAULT_INTERVAL = 1024 * 1024;
+
+    /**
+     * The number of entries buffered before they are written to the index
+     * file.
+     */
+    private static final int BUFFERED_ENTRIES = 128;
+
+    /**
+     * The channel of the index file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The number of bytes of the capture file covered by an index entry.
+     */
+    private final int interval;
+
+    /**
+     * The entries which have not been written to the index file yet.
+     */
+    private final ByteBuffer entries
+        = ByteBuffer.allocate(BUFFERED_ENTRIES * CaptureIndex.ENTRY_LENGTH);
+
+    /**
+     * The offset in the capture file of the open block or {@code -1} if no
+     * block is open.
+     */
+    private long blockOffset = -1;
+
+    /**
+     * The offset in the capture file at which the open block ends.
+     */
+    private long blockEnd;
+
+    /**
+     * The earliest timestamp of the records of the open block.
+     */
+    private long minTimestampNanos;
+
+    /**
+     * The latest timestamp of the records of the open block.
+     */
+    private long maxTimestampNanos;
+
+    /**
+     * The protocols of the records of the open block, a bit per ordinal.
+     */
+    private int protocolMask;
+
+    /**
+     * The number of records of the open block.
+     */
+    private int recordCount;
+
+    /**
+     * Initializes a new {@code CaptureIndexWriter} which (over)writes the
+     * index file of a specific capture file.
+     *
+     * @param captureFile the capture file to index
+     * @param interval the number of bytes of {@code captureFile} to be
+     * covered by an index entry
+     * @throws IOException if the index file cannot be opened
+     */
+    public CaptureIndexWriter(File captureFile, int interval)
+        throws IOException
+    {
+        this.interval = Math.max(1, interval);
+        channel
+            = FileChannel.open(
+                    CaptureIndex.getIndexFile(captureFile).toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+        entries.putInt(CaptureIndex.MAGIC);
+        entries.putInt(CaptureIndex.VERSION);
+    }
+
+    /**
+     * Adds a packet record written to the capture file to the index.
+     *
+     * @param record the record
+     * @param offset the offset in the capture file at which the record was
+     * written
+     * @param length the encoded length of the record
+     * @throws IOException if writing the index file fails
+     */
+    public void add(PacketRecord record, long offset, int length)
+        throws IOException
+    {
+        long timestampNanos = record.getTimestampNanos();
+
+        if (blockOffset == -1)
+        {
+            blockOffset = offset;
+            minTimestampNanos = maxTimestampNanos = timestampNanos;
+        }
+        else if (timestampNanos < minTimestampNanos)
+        {
+            minTimestampNanos = timestampNanos;
+        }
+        else if (timestampNanos > maxTimestampNanos)
+        {
+            maxTimestampNanos = timestampNanos;
+        }
+        protocolMask |= 1 << record.getProtocol().ordinal();
+        recordCount++;
+        blockEnd = offset + length;
+        if (blockEnd - blockOffset >= interval)
+            closeBlock();
+    }
+
+    /**
+     * Adds a block of the capture file which readers need regardless of time
+     * and protocol to the index.
+     *
+     * @param offset the offset in the capture file of the block
+     * @param length the length of the block
+     * @throws IOException if writing the index file fails
+     */
+    public void addMetadata(long offset, int length)
+        throws IOException
+    {
+        closeBlock();
+        putEntry(
+                Long.MIN_VALUE, Long.MAX_VALUE,
+                offset, length,
+                0, CaptureIndex.FLAG_METADATA, 0);
+    }
+
+    /**
+     * Writes the entries of the closed blocks to the index file. The open
+     * block is indexed once it is closed; until then readers scan it as the
+     * unindexed end of the capture file.
+     *
+     * @throws IOException if writing the index file fails
+     */
+    public void flush()
+        throws IOException
+    {
+        entries.flip();
+        try
+        {
+            while (entries.hasRemaining())
+                channel.write(entries);
+        }
+        finally
+        {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Closes the open block and the index file.
+     *
+     * @throws IOException if writing the index file fails
+     */
+    public void close()
+        throws IOException
+    {
+        try
+        {
+            closeBlock();
+            flush();
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Closes the open block and adds its entry.
+     *
+     * @throws IOException if writing the index file fails
+     */
+    private void closeBlock()
+        throws IOException
+    {
+        if (blockOffset == -1)
+            return;
+
+        putEntry(
+                minTimestampNanos, maxTimestampNanos,
+                blockOffset, (int) (blockEnd - blockOffset),
+                protocolMask, 0, recordCount);
+        blockOffset = -1;
+        protocolMask = 0;
+        recordCount = 0;
+    }
+
+    /**
+     * Adds an entry to {@link #entries}, writing them to the index file if it
+     * is full.
+     *
+     * @param minTimestampNanos the earliest timestamp of the records of the
+     * block
+     * @param maxTimestampNanos the latest timestamp of the records of the
+     * block
+     * @param offset the offset in the capture file of the block
+     * @param length the length of the block
+     * @param protocolMask the protocols of the records of the block
+     * @param flags the flags of the block
+     * @param recordCount the number of records of the block
+     * @throws IOException if writing the index file fails
+     */
+    private void putEntry(
+            long minTimestampNanos,
+            long maxTimestampNanos,
+            long offset,
+            int length,
+            int protocolMask,
+            int flags,
+            int recordCount)
+        throws IOException
+    {
+        if (entries.remaining() < CaptureIndex.ENTRY_LENGTH)
+            flush();
+
+        entries.putLong(minTimestampNanos);
+        entries.putLong(maxTimestampNanos);
+        entries.putLong(offset);
+        entries.putInt(length);
+        entries.putInt(protocolMask);
+        entries.putInt(flags);
+        entries.putInt(recordCount);
+    }
+}
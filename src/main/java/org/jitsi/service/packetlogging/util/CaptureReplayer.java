@@ -0,0 +1,183 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+import java.util.concurrent.locks.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * Replays the packets of a capture file, at their original pace, faster or
+ * as fast as possible, into a {@link PacketLoggingService} or a
+ * {@link CapturedPacketHandler}. Replaying a capture into a service is a
+ * realistic load test and a repeatable benchmark of the packet logging
+ * pipeline. The packets of several files, such as the ones written by
+ * parallel writer lanes, are replayed merged in the order of their
+ * timestamps.
+ */
+public class CaptureReplayer
+{
+    /**
+     * The speed at which packets are replayed as fast as possible.
+     */
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    /**
+     * The files the packets are replayed from.
+     */
+    private final File[] files;
+
+    /**
+     * The factor by which the replay is faster than the capture or
+     * {@link #AS_FAST_AS_POSSIBLE}.
+     */
+    private final double speed;
+
+    /**
+     * Initializes a new {@code CaptureReplayer} instance.
+     *
+     * @param file the pcap or pcapng file to replay
+     * @param speed the factor by which the replay is to be faster than the
+     * capture, {@code 1} for the original pace or
+     * {@link #AS_FAST_AS_POSSIBLE}
+     */
+    public CaptureReplayer(File file, double speed)
+    {
+        this(new File[] { file }, speed);
+    }
+
+    /**
+     * Initializes a new {@code CaptureReplayer} which merges the packets of
+     * several files.
+     *
+     * @param files the pcap or pcapng files to replay
+     * @param speed the factor by which the replay is to be faster than the
+     * capture, {@code 1} for the original pace or
+     * {@link #AS_FAST_AS_POSSIBLE}
+     */
+    public CaptureReplayer(File[] files, double speed)
+    {
+        if (speed < 0)
+            throw new IllegalArgumentException("speed " + speed);
+
+        this.files = files.clone();
+        this.speed = speed;
+    }
+
+    /**
+     * Replays the packets into a {@link PacketLoggingService}, with their
+     * original protocols, endpoints, transports and directions. The service
+     * timestamps them anew.
+     *
+     * @param service the service to log the packets with
+     * @return the number of packets replayed
+     * @throws IOException if reading the capture file fails
+     * @throws InterruptedException if interrupted while waiting for the time
+     * of a packet
+     */
+    public long replay(final PacketLoggingService service)
+        throws IOException, InterruptedException
+    {
+        return
+            replay(
+                    new CapturedPacketHandler()
+                    {
+                        @Override
+                        public void handlePacket(CaptureFileReader packet)
+                        {
+                            service.logPacket(
+                                    packet.getProtocol(),
+                                    packet.getSource(),
+                                    packet.getDestination(),
+                                    packet.getTransport(),
+                                    packet.isSender(),
+                                    packet.getPayload());
+                        }
+                    });
+    }
+
+    /**
+     * Replays the packets into a handler.
+     *
+     * @param handler the handler to hand the packets to
+     * @return the number of packets replayed
+     * @throws IOException if reading the capture file fails or
+     * {@code handler} throws
+     * @throws InterruptedException if interrupted while waiting for the time
+     * of a packet
+     */
+    public long replay(CapturedPacketHandler handler)
+        throws IOException, InterruptedException
+    {
+        MergingCaptureFileReader reader = new MergingCaptureFileReader(files);
+        long count = 0;
+
+        try
+        {
+            long firstTimestampNanos = 0;
+            long startNanos = 0;
+
+            while (reader.next())
+            {
+                CaptureFileReader packet = reader.getReader();
+                long timestampNanos = packet.getTimestampNanos();
+
+                if (count == 0)
+                {
+                    firstTimestampNanos = timestampNanos;
+                    startNanos = System.nanoTime();
+                }
+                else if (speed != AS_FAST_AS_POSSIBLE)
+                {
+                    long dueNanos
+                        = startNanos
+                            + (long)
+                                ((timestampNanos - firstTimestampNanos)
+                                    / speed);
+
+                    waitUntil(dueNanos);
+                }
+                handler.handlePacket(packet);
+                count++;
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return count;
+    }
+
+    /**
+     * Waits until {@link System#nanoTime()} reaches a specific value.
+     *
+     * @param dueNanos the value of {@link System#nanoTime()} to wait for
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static void waitUntil(long dueNanos)
+        throws InterruptedException
+    {
+        long remaining;
+
+        while ((remaining = dueNanos - System.nanoTime()) > 0)
+        {
+            LockSupport.parkNanos(remaining);
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+
+/**
+ * Handles the packets replayed by a {@link CaptureReplayer}.
+ */
+public interface CapturedPacketHandler
+{
+    /**
+     * Handles a replayed packet.
+     *
+     * @param packet the reader positioned at the replayed packet; its values
+     * are only valid during the call
+     * @throws IOException if handling the packet fails, which stops the
+     * replay
+     */
+    void handlePacket(CaptureFileReader packet)
+        throws IOException;
+}
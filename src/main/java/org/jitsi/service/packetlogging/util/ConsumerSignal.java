@@ -0,0 +1,70 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.util.concurrent.locks.*;
+
+/**
+ * Lets the single consumer of a {@link PacketQueue} sleep while the queue is
+ * empty and the producers wake it up. A producer only pays for a volatile read
+ * unless the consumer is actually sleeping.
+ */
+final class ConsumerSignal
+{
+    /**
+     * The consumer thread if it is sleeping or about to.
+     */
+    private volatile Thread waiter;
+
+    /**
+     * Blocks the consumer thread until {@link #signal()} is invoked, a
+     * specific time has elapsed or the thread is unparked, unless
+     * {@code queue} is not empty.
+     *
+     * @param queue the queue the consumer drains
+     * @param timeoutNanos the maximum time to wait in nanoseconds
+     */
+    void await(PacketQueue queue, long timeoutNanos)
+    {
+        if (timeoutNanos <= 0)
+            return;
+
+        waiter = Thread.currentThread();
+        try
+        {
+            // The producers publish before they read waiter, so either this
+            // sees their packet or they see waiter.
+            if (queue.size() == 0)
+                LockSupport.parkNanos(this, timeoutNanos);
+        }
+        finally
+        {
+            waiter = null;
+        }
+    }
+
+    /**
+     * Wakes the consumer thread up if it is sleeping. Invoked by producers
+     * after they have queued a packet.
+     */
+    void signal()
+    {
+        Thread waiter = this.waiter;
+
+        if (waiter != null)
+            LockSupport.unpark(waiter);
+    }
+}
@@ -0,0 +1,938 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * A {@link PacketRecordSink} which writes pcap files through memory mappings
+ * and rotates them according to {@link PacketLoggingConfiguration#getLimit()},
+ * {@link PacketLoggingConfiguration#getLogfileCount()} and
+ * {@link PacketLoggingConfiguration#getRotationInterval()}. Each rotation
+ * file is preallocated to the size limit and mapped once; records are then
+ * appended with plain memory writes instead of a {@code write} system call
+ * per packet. The next rotation file is created and preallocated under a
+ * temporary name while the current one is being filled so that rotating is a
+ * mere atomic rename followed by a new mapping.
+ * <p>
+ * The rotation files are named {@code <baseName><index>.pcap} and are used
+ * round-robin, the oldest one being overwritten when all of them are full.
+ * When a file is finished it is unmapped and then truncated to the records
+ * actually written, so that no file is ever renamed or truncated while it is
+ * mapped, which Windows does not allow. This sink is therefore only available
+ * where mappings can be released explicitly, see {@link #isSupported()}.
+ * The mapping of the next file is put in place before the finished one is
+ * released, and a released mapping is never written to: if rotating fails
+ * after the finished file has been released, the next {@link #write(
+ * PacketRecord)} opens the next file anew.
+ * If the size limit is {@code 0}, a single file is written and grown in
+ * chunks of {@link #UNLIMITED_CHUNK_SIZE} bytes. Each rotation file may be
+ * indexed by a {@link CaptureIndexWriter}.
+ * </p>
+ * <p>
+ * With a rotation interval, a file is also finished when a record is
+ * captured past the next multiple of the interval since the epoch, so that
+ * each file covers a fixed, aligned slice of time. With a disk quota, a
+ * {@link CaptureDiskQuota} deletes the oldest capture files in the background
+ * after each rotation. The sinks which write to the same directory, such as
+ * those of the writer lanes of a service, share a single
+ * {@code CaptureDiskQuota} so that the quota bounds all of their files
+ * together.
+ * </p>
+ */
+public class MappedPcapFileSink
+    implements PacketRecordSink
+{
+    /**
+     * The size of the mapped regions when there is no size limit.
+     */
+    public static final long UNLIMITED_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The extension of the rotation files.
+     */
+    public static final String FILE_EXTENSION = ".pcap";
+
+    /**
+     * The suffix of the temporary name of a prepared rotation file.
+     */
+    static final String PREPARED_SUFFIX = ".next";
+
+    /**
+     * The directory of the rotation files.
+     */
+    private final File directory;
+
+    /**
+     * The prefix of the names of the rotation files.
+     */
+    private final String baseName;
+
+    /**
+     * The size of a rotation file or {@code 0} if there is no limit.
+     */
+    private final long limit;
+
+    /**
+     * The number of rotation files.
+     */
+    private final int fileCount;
+
+    /**
+     * The number of bytes of a rotation file to be covered by an index entry
+     * or {@code 0} if the rotation files are not indexed.
+     */
+    private final int indexInterval;
+
+    /**
+     * The number of nanoseconds of capture time covered by a rotation file or
+     * {@code 0} if the rotation is only size based.
+     */
+    private final long rotationInterval;
+
+    /**
+     * The capture time in nanoseconds since the epoch at which the current
+     * rotation file is to be finished.
+     */
+    private long rotationDeadline = 0;
+
+    /**
+     * The enforcer of the disk quota or {@code null} if there is no quota.
+     */
+    private final CaptureDiskQuota diskQuota;
+
+    /**
+     * Whether {@link #diskQuota} has been created by this sink and is to be
+     * shut down when it is closed.
+     */
+    private final boolean ownsDiskQuota;
+
+    /**
+     * The writer of the index of the current rotation file or {@code null}.
+     */
+    private CaptureIndexWriter indexWriter;
+
+    /**
+     * The mapping records are currently appended to or {@code null} if it has
+     * been released and no other has been mapped yet.
+     */
+    private Segment current;
+
+    /**
+     * The index of the rotation file to open if {@link #current} is
+     * {@code null}.
+     */
+    private int reopenIndex;
+
+    /**
+     * Whether this sink has been closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * The prepared next rotation file or {@code null}.
+     */
+    private PreparedFile next;
+
+    /**
+     * The number of times a rotation file has been finished.
+     */
+    private volatile long rotationCount = 0;
+
+    /**
+     * The listener notified about finished rotation files or {@code null}.
+     */
+    private volatile CaptureFileRotationListener rotationListener;
+
+    /**
+     * Initializes a new {@code MappedPcapFileSink} with the size limit and
+     * rotation count of a specific {@link PacketLoggingConfiguration}.
+     *
+     * @param directory the directory to write the rotation files to
+     * @param baseName the prefix of the names of the rotation files
+     * @param configuration the configuration to take the size limit,
+     * rotation count, index interval, rotation interval and disk quota from
+     * @throws IOException if the first rotation file cannot be mapped
+     */
+    public MappedPcapFileSink(
+            File directory,
+            String baseName,
+            PacketLoggingConfiguration configuration)
+        throws IOException
+    {
+        this(
+                directory,
+                baseName,
+                configuration.getLimit(),
+                configuration.getLogfileCount(),
+                configuration.getIndexInterval(),
+                TimeUnit.MINUTES.toMillis(
+                        configuration.getRotationInterval()),
+                configuration.getDiskQuota());
+    }
+
+    /**
+     * Initializes a new {@code MappedPcapFileSink} with the size limit and
+     * rotation count of a specific {@link PacketLoggingConfiguration} and a
+     * disk quota shared with other sinks.
+     *
+     * @param directory the directory to write the rotation files to
+     * @param baseName the prefix of the names of the rotation files
+     * @param configuration the configuration to take the size limit,
+     * rotation count, index interval and rotation interval from
+     * @param diskQuota the disk quota shared by the sinks which write to
+     * {@code directory} or {@code null} for no quota
+     * @throws IOException if the first rotation file cannot be mapped
+     */
+    public MappedPcapFileSink(
+            File directory,
+            String baseName,
+            PacketLoggingConfiguration configuration,
+            CaptureDiskQuota diskQuota)
+        throws IOException
+    {
+        this(
+                directory,
+                baseName,
+                configuration.getLimit(),
+                configuration.getLogfileCount(),
+                configuration.getIndexInterval(),
+                TimeUnit.MINUTES.toMillis(
+                        configuration.getRotationInterval()),
+                diskQuota,
+                false);
+    }
+
+    /**
+     * Initializes a new {@code MappedPcapFileSink} instance.
+     *
+     * @param directory the directory to write the rotation files to
+     * @param baseName the prefix of the names of the rotation files
+     * @param limit the size of a rotation file in bytes or {@code 0} for no
+     * limit
+     * @param fileCount the number of rotation files
+     * @throws IOException if the first rotation file cannot be mapped
+     */
+    public MappedPcapFileSink(
+            File directory,
+            String baseName,
+            long limit,
+            int fileCount)
+        throws IOException
+    {
+        this(directory, baseName, limit, fileCount, 0);
+    }
+
+    /**
+     * Initializes a new {@code MappedPcapFileSink} instance.
+     *
+     * @param directory the directory to write the rotation files to
+     * @param baseName the prefix of the names of the rotation files
+     * @param limit the size of a rotation file in bytes or {@code 0} for no
+     * limit
+     * @param fileCount the number of rotation files
+     * @param indexInterval the number of bytes of a rotation file to be
+     * covered by an index entry or {@code 0} to not index the rotation files
+     * @throws IOException if the first rotation file cannot be mapped
+     */
+    public MappedPcapFileSink(
+            File directory,
+            String baseName,
+            long limit,
+            int fileCount,
+            int indexInterval)
+        throws IOException
+    {
+        this(directory, baseName, limit, fileCount, indexInterval, 0, 0);
+    }
+
+    /**
+     * Initializes a new {@code MappedPcapFileSink} instance.
+     *
+     * @param directory the directory to write the rotation files to
+     * @param baseName the prefix of the names of the rotation files
+     * @param limit the size of a rotation file in bytes or {@code 0} for no
+     * limit
+     * @param fileCount the number of rotation files
+     * @param indexInterval the number of bytes of a rotation file to be
+     * covered by an index entry or {@code 0} to not index the rotation files
+     * @param rotationInterval the number of milliseconds of capture time
+     * covered by a rotation file or {@code 0} to rotate on size only
+     * @param diskQuota the maximum number of bytes all the capture files in
+     * {@code directory} may take up or {@code 0} for no quota
+     * @throws IOException if the first rotation file cannot be mapped
+     */
+    public MappedPcapFileSink(
+            File directory,
+            String baseName,
+            long limit,
+            int fileCount,
+            int indexInterval,
+            long rotationInterval,
+            long diskQuota)
+        throws IOException
+    {
+        this(
+                directory,
+                baseName,
+                limit,
+                fileCount,
+                indexInterval,
+                rotationInterval,
+                (diskQuota > 0)
+                    ? new CaptureDiskQuota(directory, diskQuota)
+                    : null,
+                true);
+    }
+
+    /**
+     * Initializes a new {@code MappedPcapFileSink} instance.
+     *
+     * @param directory the directory to write the rotation files to
+     * @param baseName the prefix of the names of the rotation files
+     * @param limit the size of a rotation file in bytes or {@code 0} for no
+     * limit
+     * @param fileCount the number of rotation files
+     * @param indexInterval the number of bytes of a rotation file to be
+     * covered by an index entry or {@code 0} to not index the rotation files
+     * @param rotationInterval the number of milliseconds of capture time
+     * covered by a rotation file or {@code 0} to rotate on size only
+     * @param diskQuota the enforcer of the disk quota or {@code null} for no
+     * quota
+     * @param ownsDiskQuota {@code true} to shut {@code diskQuota} down when
+     * this sink is closed
+     * @throws IOException if the first rotation file cannot be mapped
+     */
+    private MappedPcapFileSink(
+            File directory,
+            String baseName,
+            long limit,
+            int fileCount,
+            int indexInterval,
+            long rotationInterval,
+            CaptureDiskQuota diskQuota,
+            boolean ownsDiskQuota)
+        throws IOException
+    {
+        if ((limit != 0)
+                && (limit < PcapFormat.FILE_HEADER_LENGTH
+                        + PcapFormat.RECORD_HEADER_LENGTH
+                        + PcapFormat.MAX_NETWORK_HEADER_LENGTH))
+        {
+            throw new IllegalArgumentException("limit " + limit);
+        }
+        if (limit > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("limit " + limit);
+        if (!isSupported())
+        {
+            throw new IOException(
+                    "Mapped capture files are not supported on this runtime");
+        }
+
+        this.directory = directory;
+        this.baseName = baseName;
+        this.limit = limit;
+        this.fileCount = Math.max(1, fileCount);
+        this.indexInterval = indexInterval;
+        this.rotationInterval
+            = TimeUnit.MILLISECONDS.toNanos(Math.max(0, rotationInterval));
+        this.diskQuota = diskQuota;
+        this.ownsDiskQuota = ownsDiskQuota;
+
+        try
+        {
+            current = openSegment(0);
+            openIndex();
+        }
+        catch (IOException ioe)
+        {
+            if (ownsDiskQuota && (diskQuota != null))
+                diskQuota.shutdown();
+            throw ioe;
+        }
+        if (diskQuota != null)
+            diskQuota.enforce(baseName, getFile(current.index));
+    }
+
+    /**
+     * Determines whether this runtime can release mappings explicitly, which
+     * {@code MappedPcapFileSink} needs to finish its files. Extenders fall
+     * back to a {@link PcapFileSink} otherwise.
+     *
+     * @return {@code true} if a {@code MappedPcapFileSink} may be created;
+     * otherwise, {@code false}
+     */
+    public static boolean isSupported()
+    {
+        return BufferUnmapper.isSupported();
+    }
+
+    /**
+     * Gets the rotation file with a specific index.
+     *
+     * @param index the index of the rotation file
+     * @return the rotation file with index {@code index}
+     */
+    public File getFile(int index)
+    {
+        return new File(directory, baseName + index + FILE_EXTENSION);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(PacketRecord record)
+        throws IOException
+    {
+        if (current == null)
+            reopen();
+
+        int encodedLength = PcapFormat.getEncodedLength(record);
+
+        if (rotationInterval != 0)
+        {
+            long timestamp = record.getTimestampNanos();
+
+            if (timestamp >= rotationDeadline)
+            {
+                if (!current.isEmpty())
+                    rotate(true);
+                rotationDeadline
+                    = (timestamp / rotationInterval + 1) * rotationInterval;
+            }
+        }
+
+        MappedByteBuffer buf = current.buffer;
+
+        if (buf.remaining() < encodedLength && !current.isEmpty())
+        {
+            rotate(false);
+            buf = current.buffer;
+        }
+
+        int capturedLength = record.getLength();
+
+        if (buf.remaining() < encodedLength)
+        {
+            // The record does not even fit in an empty file.
+            capturedLength -= encodedLength - buf.remaining();
+            encodedLength = buf.remaining();
+        }
+
+        long offset = current.base + buf.position();
+
+        PcapFormat.writeRecordHeaders(buf, record, capturedLength);
+        buf.put(record.getData(), 0, capturedLength);
+        if (indexWriter != null)
+            indexWriter.add(record, offset, encodedLength);
+
+        if ((next == null)
+                && (limit != 0)
+                && (fileCount > 1)
+                && (buf.position() > buf.capacity() / 2))
+        {
+            next = prepareFile((current.index + 1) % fileCount);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The mapped pages are written back by the operating system; flushing
+     * does not force them to the disk. It writes the index entries of the
+     * finished blocks of records.
+     */
+    @Override
+    public void flush()
+        throws IOException
+    {
+        if (indexWriter != null)
+            indexWriter.flush();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        if (closed)
+            return;
+
+        Segment finished = current;
+
+        closed = true;
+        current = null;
+        try
+        {
+            if (finished != null)
+                finished.finish();
+        }
+        finally
+        {
+            closeIndex();
+            if (diskQuota != null)
+            {
+                diskQuota.enforce(baseName, null);
+                if (ownsDiskQuota)
+                    diskQuota.shutdown();
+            }
+            if (next != null)
+            {
+                next.channel.close();
+                Files.deleteIfExists(next.file.toPath());
+                next = null;
+            }
+        }
+    }
+
+    /**
+     * Gets the number of times a rotation file has been filled and the
+     * writing has moved on to the next one.
+     *
+     * @return the number of rotations
+     */
+    public long getRotationCount()
+    {
+        return rotationCount;
+    }
+
+    /**
+     * Gets the number of capture files deleted to stay within the disk quota.
+     *
+     * @return the number of capture files deleted or {@code 0} if there is
+     * no disk quota
+     */
+    public long getQuotaDeletedFileCount()
+    {
+        return (diskQuota == null) ? 0 : diskQuota.getDeletedFileCount();
+    }
+
+    /**
+     * Sets the listener to notify whenever a rotation file has been filled
+     * and finished, for example a {@link RotatedFileCompressor}.
+     *
+     * @param rotationListener the listener or {@code null}
+     */
+    public void setRotationListener(
+            CaptureFileRotationListener rotationListener)
+    {
+        this.rotationListener = rotationListener;
+    }
+
+    /**
+     * Finishes the current rotation file and swaps in the mapping of the next
+     * one. The next mapping is put in place before the finished one is
+     * released, so that a failure to map it leaves the finished file current
+     * and mapped, and the rotation listener is notified last. Only with a
+     * single rotation file, which cannot be truncated while mapped, is there
+     * no mapping for a while; {@link #write(PacketRecord)} then opens the
+     * file anew if this fails.
+     *
+     * @param timed {@code true} if the rotation interval has elapsed,
+     * {@code false} if the current mapping is full
+     * @throws IOException if finishing the current rotation file or mapping
+     * the next one fails
+     */
+    private void rotate(boolean timed)
+        throws IOException
+    {
+        Segment finished = current;
+
+        if ((limit == 0) && !timed)
+        {
+            current = finished.extend();
+            if (diskQuota != null)
+                diskQuota.enforce(baseName, getFile(current.index));
+            return;
+        }
+
+        int index = (finished.index + 1) % fileCount;
+        Segment replacement;
+
+        if (next != null)
+        {
+            PreparedFile prepared = next;
+            File file = getFile(prepared.index);
+
+            next = null;
+            try
+            {
+                // The file it replaces is not the mapped one.
+                Files.move(
+                        prepared.file.toPath(),
+                        file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (IOException ioe)
+            {
+                prepared.channel.close();
+                Files.deleteIfExists(prepared.file.toPath());
+                throw ioe;
+            }
+            replacement = mapSegment(prepared.index, file, prepared.channel);
+            replacement.buffer.position(PcapFormat.FILE_HEADER_LENGTH);
+        }
+        else if (index != finished.index)
+        {
+            replacement = openSegment(index);
+        }
+        else
+        {
+            replacement = null;
+        }
+
+        // Detached before it is released.
+        current = replacement;
+        reopenIndex = index;
+        try
+        {
+            finished.finish();
+        }
+        finally
+        {
+            closeIndex();
+        }
+        if (current == null)
+            current = openSegment(index);
+        openIndex();
+        if (diskQuota != null)
+            diskQuota.enforce(baseName, getFile(current.index));
+        rotationCount++;
+
+        CaptureFileRotationListener rotationListener = this.rotationListener;
+
+        if (rotationListener != null)
+            rotationListener.captureFileFinished(getFile(finished.index));
+    }
+
+    /**
+     * Opens the rotation file to continue with after a rotation which has
+     * failed once the finished file had been released.
+     *
+     * @throws IOException if this sink has been closed or the rotation file
+     * cannot be mapped
+     */
+    private void reopen()
+        throws IOException
+    {
+        if (closed)
+            throw new IOException("closed");
+
+        current = openSegment(reopenIndex);
+        openIndex();
+        if (diskQuota != null)
+            diskQuota.enforce(baseName, getFile(current.index));
+    }
+
+    /**
+     * Starts the index of the current rotation file, replacing the index of
+     * the file it overwrites.
+     *
+     * @throws IOException if the index file cannot be opened
+     */
+    private void openIndex()
+        throws IOException
+    {
+        closeIndex();
+        if (indexInterval > 0)
+        {
+            indexWriter
+                = new CaptureIndexWriter(getFile(current.index), indexInterval);
+        }
+    }
+
+    /**
+     * Completes the index of the current rotation file.
+     *
+     * @throws IOException if writing the index file fails
+     */
+    private void closeIndex()
+        throws IOException
+    {
+        CaptureIndexWriter indexWriter = this.indexWriter;
+
+        if (indexWriter != null)
+        {
+            this.indexWriter = null;
+            indexWriter.close();
+        }
+    }
+
+    /**
+     * Creates the rotation file with a specific index, maps it at its full
+     * size and writes the pcap file header to it.
+     *
+     * @param index the index of the rotation file
+     * @return the mapping of the rotation file
+     * @throws IOException if the rotation file cannot be mapped
+     */
+    private Segment openSegment(int index)
+        throws IOException
+    {
+        File file = getFile(index);
+        Segment segment = mapSegment(index, file, createFile(file));
+
+        PcapFormat.writeFileHeader(segment.buffer);
+        return segment;
+    }
+
+    /**
+     * Creates the rotation file with a specific index under a temporary name
+     * so that the existing rotation file with the same index is kept until
+     * the writing actually moves on to the new one, preallocates it and
+     * writes the pcap file header to it. The file is not mapped until then.
+     *
+     * @param index the index of the rotation file
+     * @return the prepared rotation file
+     * @throws IOException if the rotation file cannot be created
+     */
+    private PreparedFile prepareFile(int index)
+        throws IOException
+    {
+        File file
+            = new File(directory, getFile(index).getName() + PREPARED_SUFFIX);
+        FileChannel channel = createFile(file);
+
+        try
+        {
+            ByteBuffer header
+                = ByteBuffer.allocate(PcapFormat.FILE_HEADER_LENGTH);
+
+            PcapFormat.writeFileHeader(header);
+            header.flip();
+            while (header.hasRemaining())
+                channel.write(header, header.position());
+            // Grows the file to its full size as mapping it would.
+            channel.write(ByteBuffer.allocate(1), limit - 1);
+        }
+        catch (IOException ioe)
+        {
+            channel.close();
+            throw ioe;
+        }
+        return new PreparedFile(index, file, channel);
+    }
+
+    /**
+     * Creates or truncates a rotation file.
+     *
+     * @param file the rotation file
+     * @return the channel of the rotation file
+     * @throws IOException if the rotation file cannot be opened
+     */
+    private static FileChannel createFile(File file)
+        throws IOException
+    {
+        return
+            FileChannel.open(
+                    file.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Maps a rotation file at its full size.
+     *
+     * @param index the index of the rotation file
+     * @param file the rotation file
+     * @param channel the channel of the rotation file; closed if mapping it
+     * fails
+     * @return the mapping of the rotation file
+     * @throws IOException if the rotation file cannot be mapped
+     */
+    private Segment mapSegment(int index, File file, FileChannel channel)
+        throws IOException
+    {
+        try
+        {
+            return
+                new Segment(
+                        index,
+                        file,
+                        channel,
+                        0,
+                        (limit == 0) ? UNLIMITED_CHUNK_SIZE : limit);
+        }
+        catch (IOException ioe)
+        {
+            channel.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * A rotation file which has been created and preallocated under a
+     * temporary name but not mapped yet.
+     */
+    private static class PreparedFile
+    {
+        /**
+         * The index of the rotation file.
+         */
+        final int index;
+
+        /**
+         * The rotation file under its temporary name.
+         */
+        final File file;
+
+        /**
+         * The channel of the rotation file.
+         */
+        final FileChannel channel;
+
+        /**
+         * Initializes a new {@code PreparedFile} instance.
+         *
+         * @param index the index of the rotation file
+         * @param file the rotation file under its temporary name
+         * @param channel the channel of the rotation file
+         */
+        PreparedFile(int index, File file, FileChannel channel)
+        {
+            this.index = index;
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * A mapped region of a rotation file.
+     */
+    private static class Segment
+    {
+        /**
+         * The index of the rotation file.
+         */
+        final int index;
+
+        /**
+         * The rotation file.
+         */
+        final File file;
+
+        /**
+         * The channel of the rotation file.
+         */
+        final FileChannel channel;
+
+        /**
+         * The offset in the rotation file at which the region starts.
+         */
+        final long base;
+
+        /**
+         * The mapping of the region.
+         */
+        final MappedByteBuffer buffer;
+
+        /**
+         * Maps a region of a rotation file, extending the file if necessary.
+         *
+         * @param index the index of the rotation file
+         * @param file the rotation file
+         * @param channel the channel of the rotation file
+         * @param base the offset in the rotation file at which the region
+         * starts
+         * @param size the size of the region
+         * @throws IOException if the region cannot be mapped
+         */
+        Segment(
+                int index,
+                File file,
+                FileChannel channel,
+                long base,
+                long size)
+            throws IOException
+        {
+            this.index = index;
+            this.file = file;
+            this.channel = channel;
+            this.base = base;
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, base, size);
+        }
+
+        /**
+         * Determines whether no record has been written to this region.
+         *
+         * @return {@code true} if no record has been written to this region
+         */
+        boolean isEmpty()
+        {
+            return
+                buffer.position()
+                    <= ((base == 0) ? PcapFormat.FILE_HEADER_LENGTH : 0);
+        }
+
+        /**
+         * Maps the region of the rotation file which follows the records
+         * written to this region.
+         *
+         * @return the new region
+         * @throws IOException if the new region cannot be mapped
+         */
+        Segment extend()
+            throws IOException
+        {
+            Segment extension
+                = new Segment(
+                        index,
+                        file,
+                        channel,
+                        base + buffer.position(),
+                        buffer.capacity());
+
+            // The written pages stay in the page cache of the file.
+            BufferUnmapper.unmap(buffer);
+            return extension;
+        }
+
+        /**
+         * Forces the written records to the disk, unmaps them, truncates the
+         * rotation file to them and closes it.
+         *
+         * @throws IOException if finishing the rotation file fails
+         */
+        void finish()
+            throws IOException
+        {
+            try
+            {
+                long length = base + buffer.position();
+
+                buffer.force();
+                BufferUnmapper.unmap(buffer);
+                channel.truncate(length);
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+    }
+}
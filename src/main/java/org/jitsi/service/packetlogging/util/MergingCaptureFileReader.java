@@ -0,0 +1,172 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+
+/**
+ * Reads several capture files at once, for example the files written at the
+ * same time by the writer lanes of a {@link PartitionedPacketQueue}, and
+ * iterates their packets merged in the order of their timestamps. Each file
+ * is read by a {@link CaptureFileReader} of its own; {@link #getReader()}
+ * gives access to the current packet in place.
+ * <p>
+ * Instances are not thread-safe.
+ * </p>
+ */
+public class MergingCaptureFileReader
+    implements Closeable
+{
+    /**
+     * The readers of the files.
+     */
+    private final CaptureFileReader[] readers;
+
+    /**
+     * Whether the readers are positioned on a packet which has not been
+     * returned yet, or on the current packet.
+     */
+    private final boolean[] pending;
+
+    /**
+     * The index of the reader of the current packet or {@code -1}.
+     */
+    private int current = -1;
+
+    /**
+     * Whether the readers have been positioned on their first packets.
+     */
+    private boolean started = false;
+
+    /**
+     * Opens capture files for reading.
+     *
+     * @param files the pcap or pcapng files to read
+     * @throws IOException if one of the files cannot be opened
+     */
+    public MergingCaptureFileReader(File... files)
+        throws IOException
+    {
+        readers = new CaptureFileReader[files.length];
+        pending = new boolean[files.length];
+        try
+        {
+            for (int i = 0; i < files.length; i++)
+                readers[i] = new CaptureFileReader(files[i]);
+        }
+        catch (IOException ioe)
+        {
+            close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Advances to the packet with the smallest timestamp among the next
+     * packets of the files.
+     *
+     * @return {@code true} if there is a next packet; {@code false} at the
+     * end of all files
+     * @throws IOException if reading one of the files fails
+     */
+    public boolean next()
+        throws IOException
+    {
+        if (!started)
+        {
+            for (int i = 0; i < readers.length; i++)
+                pending[i] = readers[i].next();
+            started = true;
+        }
+        else if (current != -1)
+        {
+            pending[current] = readers[current].next();
+        }
+
+        current = -1;
+
+        long oldestTimestampNanos = 0;
+
+        for (int i = 0; i < readers.length; i++)
+        {
+            if (pending[i]
+                    && ((current == -1)
+                        || (readers[i].getTimestampNanos()
+                                < oldestTimestampNanos)))
+            {
+                current = i;
+                oldestTimestampNanos = readers[i].getTimestampNanos();
+            }
+        }
+        return current != -1;
+    }
+
+    /**
+     * Gets the reader positioned on the current packet. Its getters describe
+     * the current packet until the next call to {@link #next()}; its
+     * {@code next()} is not to be called.
+     *
+     * @return the reader of the current packet
+     * @throws IllegalStateException if there is no current packet
+     */
+    public CaptureFileReader getReader()
+    {
+        if (current == -1)
+            throw new IllegalStateException("no current packet");
+
+        return readers[current];
+    }
+
+    /**
+     * Gets the index of the file of the current packet.
+     *
+     * @return the index in the files passed to the constructor of the file
+     * of the current packet or {@code -1} if there is no current packet
+     */
+    public int getFileIndex()
+    {
+        return current;
+    }
+
+    /**
+     * Closes the capture files.
+     *
+     * @throws IOException if closing one of the files fails
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        IOException failure = null;
+
+        for (CaptureFileReader reader : readers)
+        {
+            if (reader == null)
+                continue;
+            try
+            {
+                reader.close();
+            }
+            catch (IOException ioe)
+            {
+                if (failure == null)
+                    failure = ioe;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.nio.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * The synthesized IP and transport headers of the packets of one flow,
+ * encoded once so that the headers of each packet are written with a bulk
+ * copy followed by patching the fields which vary from packet to packet: the
+ * lengths, the tag in the IPv4 identification or IPv6 flow label, and the
+ * IPv4 header checksum, which is updated from a precomputed partial sum.
+ * Instances are immutable and are shared by the threads which log packets
+ * and the writer thread.
+ */
+final class NetworkHeaderTemplate
+{
+    /**
+     * The destination of the packets of the flow.
+     */
+    private final PacketEndpoint destination;
+
+    /**
+     * The transport of the packets of the flow.
+     */
+    private final TransportName transport;
+
+    /**
+     * The encoded headers with the varying fields set to zero.
+     */
+    private final byte[] header;
+
+    /**
+     * Whether {@link #header} starts with an IPv6 header.
+     */
+    private final boolean ipv6;
+
+    /**
+     * The ones' complement sum of the IPv4 header in {@link #header}, not
+     * folded.
+     */
+    private final int checksumBase;
+
+    /**
+     * Encodes the headers of the packets of a specific flow.
+     *
+     * @param source the source of the packets of the flow
+     * @param destination the destination of the packets of the flow
+     * @param transport the transport of the packets of the flow
+     */
+    NetworkHeaderTemplate(
+            PacketEndpoint source,
+            PacketEndpoint destination,
+            TransportName transport)
+    {
+        this.destination = destination;
+        this.transport = transport;
+
+        byte[] sourceAddress = source.getAddress();
+        byte[] destinationAddress = destination.getAddress();
+
+        header
+            = new byte[
+                    PcapFormat.getNetworkHeaderLength(
+                            sourceAddress.length,
+                            destinationAddress.length,
+                            transport)];
+
+        ByteBuffer buf = ByteBuffer.wrap(header);
+
+        PcapFormat.writeNetworkHeaders(
+                buf,
+                sourceAddress, sourceAddress.length, source.getPort(),
+                destinationAddress, destinationAddress.length,
+                destination.getPort(),
+                transport,
+                0,
+                0);
+        ipv6 = ((header[0] & 0xf0) == 0x60);
+
+        int sum = 0;
+
+        if (ipv6)
+        {
+            buf.putInt(0, 0x60000000);
+            buf.putShort(4, (short) 0);
+        }
+        else
+        {
+            buf.putShort(2, (short) 0); // total length
+            buf.putShort(4, (short) 0); // identification
+            buf.putShort(10, (short) 0); // checksum
+            for (int i = 0; i < 20; i += 2)
+                sum += buf.getShort(i) & 0xffff;
+        }
+        checksumBase = sum;
+        if (transport != TransportName.TCP)
+            buf.putShort(getIPHeaderLength() + 4, (short) 0);
+    }
+
+    /**
+     * Determines whether this template encodes the headers of the packets
+     * sent to a specific destination over a specific transport. The source
+     * is implied by the endpoint which caches the template.
+     *
+     * @param destination the destination of the packets
+     * @param transport the transport of the packets
+     * @return {@code true} if this template applies to the packets
+     */
+    boolean matches(PacketEndpoint destination, TransportName transport)
+    {
+        return
+            (this.transport == transport)
+                && this.destination.equals(destination);
+    }
+
+    /**
+     * Gets the length of the IP header in this template.
+     *
+     * @return 20 for IPv4 or 40 for IPv6
+     */
+    private int getIPHeaderLength()
+    {
+        return ipv6 ? 40 : 20;
+    }
+
+    /**
+     * Writes the headers of a packet of the flow of this template. Produces
+     * the same bytes as {@link PcapFormat#writeNetworkHeaders(ByteBuffer,
+     * PacketRecord)}.
+     *
+     * @param buf the buffer to write to
+     * @param tag the tag of the packet, see
+     * {@link PcapFormat#getPacketTag(PacketRecord)}
+     * @param originalLength the length of the payload of the packet as it was
+     * seen on the wire
+     */
+    void write(ByteBuffer buf, int tag, int originalLength)
+    {
+        int start = buf.position();
+        int payloadLength
+            = Math.min(
+                    header.length - getIPHeaderLength() + originalLength,
+                    0xffff);
+
+        buf.put(header);
+        if (ipv6)
+        {
+            buf.putInt(start, 0x60000000 | tag);
+            buf.putShort(start + 4, (short) payloadLength);
+        }
+        else
+        {
+            int totalLength = Math.min(20 + payloadLength, 0xffff);
+            int sum = checksumBase + totalLength + tag;
+
+            while ((sum >>> 16) != 0)
+                sum = (sum & 0xffff) + (sum >>> 16);
+            buf.putShort(start + 2, (short) totalLength);
+            buf.putShort(start + 4, (short) tag);
+            buf.putShort(start + 10, (short) ~sum);
+        }
+        if (transport != TransportName.TCP)
+        {
+            buf.putShort(
+                    start + getIPHeaderLength() + 4,
+                    (short) payloadLength);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+/**
+ * A wall clock with nanosecond resolution for timestamping captured packets.
+ * {@link System#currentTimeMillis()} only has millisecond resolution, which is
+ * not enough to order the packets of a media stream, so the clock is anchored
+ * to the wall clock once and advanced with {@link System#nanoTime()}. The
+ * anchor is taken right after the wall clock ticks over to the next
+ * millisecond which bounds the offset of the clock to the time it takes to
+ * read the two clocks.
+ * <p>
+ * The anchor is kept as a single offset between the two clocks so that
+ * {@link #calibrate()} may run concurrently with {@link #currentTimeNanos()}
+ * without the latter ever seeing half of an update.
+ * {@link AbstractPacketLoggingService} recalibrates its clock every
+ * {@link #CALIBRATION_INTERVAL_MILLIS} milliseconds while it is started so
+ * that the timestamps follow adjustments of the wall clock, for example by
+ * NTP; other users own the recalibration of their clocks.
+ * </p>
+ */
+public class PacketClock
+{
+    /**
+     * The interval in milliseconds at which
+     * {@link AbstractPacketLoggingService} recalibrates its clock.
+     */
+    public static final long CALIBRATION_INTERVAL_MILLIS = 60000;
+
+    /**
+     * The wall clock time in nanoseconds since the epoch minus the value of
+     * {@link System#nanoTime()} at the anchor.
+     */
+    private volatile long offsetNanos;
+
+    /**
+     * Initializes a new {@code PacketClock} and calibrates it.
+     */
+    public PacketClock()
+    {
+        calibrate();
+    }
+
+    /**
+     * Anchors this clock to the wall clock. May be invoked periodically to
+     * compensate the drift between the wall clock and
+     * {@link System#nanoTime()}; the clock may jump when doing so.
+     */
+    public synchronized void calibrate()
+    {
+        long millis = System.currentTimeMillis();
+        long nextMillis;
+        long nanoTime;
+
+        // Wait for the wall clock to tick over so that the anchor is taken at
+        // the start of a millisecond rather than anywhere within it.
+        do
+        {
+            nanoTime = System.nanoTime();
+            nextMillis = System.currentTimeMillis();
+        }
+        while (nextMillis == millis);
+
+        offsetNanos = nextMillis * 1000000L - nanoTime;
+    }
+
+    /**
+     * Gets the current time.
+     *
+     * @return the current time in nanoseconds since the epoch
+     */
+    public long currentTimeNanos()
+    {
+        return offsetNanos + System.nanoTime();
+    }
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.text.*;
+import java.util.*;
+
+/**
+ * A {@link PacketRecordSink} which keeps the most recently captured packets in
+ * an off-heap ring buffer instead of writing them to disk. The oldest packets
+ * are overwritten once the buffer is full. Nothing reaches the disk until
+ * {@link #dump(String)} is called, for example when a call fails, at which
+ * point the packets captured in the last configured number of seconds are
+ * written out as a pcap file.
+ * <p>
+ * Dumping copies the buffer a chunk of whole records at a time under a lock
+ * which the writer thread only holds while appending a single packet, and
+ * writes each chunk out after releasing the lock, so capture carries on while
+ * the dump is being written. Records which capture overwrites before the dump
+ * has reached them are left out of it.
+ * </p>
+ */
+public class PacketFlightRecorder
+    implements PacketRecordSink
+{
+    /**
+     * The maximum number of bytes a dump copies out of the ring buffer at a
+     * time, unless a single record is larger.
+     */
+    private static final int DUMP_CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * The directory the dumps are written to.
+     */
+    private final File directory;
+
+    /**
+     * The prefix of the names of the dump files.
+     */
+    private final String baseName;
+
+    /**
+     * The maximum age in nanoseconds of the packets written by a dump or
+     * {@code 0} for no limit.
+     */
+    private final long maxAgeNanos;
+
+    /**
+     * The off-heap ring buffer of encoded pcap records.
+     */
+    private final ByteBuffer ring;
+
+    /**
+     * The buffer records are encoded into before they are copied into
+     * {@link #ring}.
+     */
+    private ByteBuffer scratch
+        = ByteBuffer.allocateDirect(
+                PcapFormat.RECORD_HEADER_LENGTH
+                    + PcapFormat.MAX_NETWORK_HEADER_LENGTH
+                    + 2048);
+
+    /**
+     * The offset in {@link #ring} of the oldest record.
+     */
+    private int head = 0;
+
+    /**
+     * The offset in {@link #ring} at which the next record is appended.
+     */
+    private int tail = 0;
+
+    /**
+     * The number of bytes of {@link #ring} in use.
+     */
+    private int used = 0;
+
+    /**
+     * The number of bytes evicted from {@link #ring} since it was created,
+     * which identifies the oldest record independently of wrapping.
+     */
+    private long headSequence = 0;
+
+    /**
+     * The number of bytes appended to {@link #ring} since it was created.
+     */
+    private long tailSequence = 0;
+
+    /**
+     * The capture time in nanoseconds since the epoch of the most recently
+     * recorded packet.
+     */
+    private long newestTimestampNanos = 0;
+
+    /**
+     * Whether this recorder has been closed and its buffers released.
+     */
+    private boolean closed = false;
+
+    /**
+     * The number of packets which were too large to be recorded.
+     */
+    private long oversizedPackets = 0;
+
+    /**
+     * The number of dumps written.
+     */
+    private int dumpCount = 0;
+
+    /**
+     * Initializes a new {@code PacketFlightRecorder} instance.
+     *
+     * @param directory the directory to write the dumps to
+     * @param baseName the prefix of the names of the dump files
+     * @param maxBytes the size in bytes of the ring buffer
+     * @param maxAgeSeconds the maximum age in seconds of the packets written
+     * by a dump or {@code 0} for no limit other than {@code maxBytes}
+     */
+    public PacketFlightRecorder(
+            File directory,
+            String baseName,
+            int maxBytes,
+            int maxAgeSeconds)
+    {
+        this.directory = directory;
+        this.baseName = baseName;
+        this.maxAgeNanos = maxAgeSeconds * 1000000000L;
+
+        ring = ByteBuffer.allocateDirect(maxBytes);
+        ring.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void write(PacketRecord record)
+    {
+        if (closed)
+            return;
+
+        int encodedLength = PcapFormat.getEncodedLength(record);
+
+        if (encodedLength > ring.capacity())
+        {
+            oversizedPackets++;
+            return;
+        }
+        if (scratch.capacity() < encodedLength)
+            scratch = ByteBuffer.allocateDirect(encodedLength);
+
+        scratch.clear();
+        PcapFormat.writeRecordHeaders(scratch, record);
+        scratch.put(record.getData(), 0, record.getLength());
+        scratch.flip();
+
+        while (used + encodedLength > ring.capacity())
+            evict();
+
+        int first = Math.min(encodedLength, ring.capacity() - tail);
+
+        ring.limit(tail + first).position(tail);
+        scratch.limit(first);
+        ring.put(scratch);
+        if (first < encodedLength)
+        {
+            ring.limit(encodedLength - first).position(0);
+            scratch.limit(encodedLength);
+            ring.put(scratch);
+        }
+        ring.clear();
+        tail = (tail + encodedLength) % ring.capacity();
+        used += encodedLength;
+        tailSequence += encodedLength;
+        newestTimestampNanos = record.getTimestampNanos();
+    }
+
+    /**
+     * Drops the oldest record from {@link #ring}.
+     */
+    private void evict()
+    {
+        int inclLen = getInt(head + 8);
+        int length = PcapFormat.RECORD_HEADER_LENGTH + inclLen;
+
+        head = (head + length) % ring.capacity();
+        used -= length;
+        headSequence += length;
+    }
+
+    /**
+     * Reads a big-endian integer from {@link #ring}, wrapping around its end.
+     *
+     * @param offset the offset in {@link #ring} of the integer
+     * @return the integer
+     */
+    private int getInt(int offset)
+    {
+        int capacity = ring.capacity();
+        int value = 0;
+
+        for (int i = 0; i < 4; i++)
+            value = (value << 8) | (ring.get((offset + i) % capacity) & 0xff);
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Packets are kept in memory until dumped.
+     */
+    @Override
+    public void flush()
+    {
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Releases the ring buffer right away rather than when it is garbage
+     * collected.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (closed)
+            return;
+
+        closed = true;
+        head = tail = used = 0;
+        BufferUnmapper.unmap(ring);
+        BufferUnmapper.unmap(scratch);
+    }
+
+    /**
+     * Writes the recorded packets which are not older than the configured
+     * maximum age, measured from the capture time of the most recently
+     * recorded packet, to a new pcap file. Capture continues while the file
+     * is being written.
+     *
+     * @param reason a short description of why the dump is taken, made part
+     * of the name of the dump file
+     * @return the dump file
+     * @throws IOException if writing the dump file fails
+     */
+    public File dump(String reason)
+        throws IOException
+    {
+        long nowNanos;
+
+        synchronized (this)
+        {
+            nowNanos = newestTimestampNanos;
+        }
+        return dump(reason, nowNanos);
+    }
+
+    /**
+     * Writes the recorded packets which are not older than the configured
+     * maximum age to a new pcap file. Capture continues while the file is
+     * being written.
+     *
+     * @param reason a short description of why the dump is taken, made part
+     * of the name of the dump file
+     * @param nowNanos the current time in nanoseconds since the epoch on the
+     * clock the recorded packets have been timestamped with, for example a
+     * {@link PacketClock}
+     * @return the dump file
+     * @throws IOException if writing the dump file fails
+     */
+    public File dump(String reason, long nowNanos)
+        throws IOException
+    {
+        long position;
+        long end;
+        int dumpNumber;
+
+        synchronized (this)
+        {
+            checkOpen();
+            position = headSequence;
+            end = tailSequence;
+            dumpNumber = ++dumpCount;
+        }
+
+        long minTimestampMicros
+            = (maxAgeNanos == 0)
+                ? Long.MIN_VALUE
+                : (nowNanos - maxAgeNanos) / 1000L;
+        File file = new File(directory, getDumpFileName(reason, dumpNumber));
+        FileChannel channel = new FileOutputStream(file).getChannel();
+
+        try
+        {
+            ByteBuffer chunk = ByteBuffer.allocate(DUMP_CHUNK_SIZE);
+
+            PcapFormat.writeFileHeader(chunk);
+            chunk.flip();
+            while (chunk.hasRemaining())
+                channel.write(chunk);
+
+            boolean skipping = (maxAgeNanos != 0);
+
+            while (position < end)
+            {
+                chunk.clear();
+                synchronized (this)
+                {
+                    checkOpen();
+                    // Capture may have overwritten the records in between.
+                    if (position < headSequence)
+                        position = headSequence;
+                    if (position >= end)
+                        break;
+
+                    int capacity = ring.capacity();
+                    long walkStart = position;
+                    long chunkEnd = position;
+
+                    while ((chunkEnd < end)
+                            && (chunkEnd - walkStart < DUMP_CHUNK_SIZE))
+                    {
+                        int offset = (int) (chunkEnd % capacity);
+                        int length
+                            = PcapFormat.RECORD_HEADER_LENGTH
+                                + getInt(offset + 8);
+
+                        if (skipping)
+                        {
+                            long timestampMicros
+                                = (getInt(offset) & 0xffffffffL) * 1000000L
+                                    + getInt(offset + 4);
+
+                            if (timestampMicros < minTimestampMicros)
+                            {
+                                chunkEnd += length;
+                                position = chunkEnd;
+                                continue;
+                            }
+                            skipping = false;
+                        }
+                        if ((chunkEnd != position)
+                                && (chunkEnd - position + length
+                                        > DUMP_CHUNK_SIZE))
+                        {
+                            break;
+                        }
+                        chunkEnd += length;
+                    }
+
+                    int length = (int) (chunkEnd - position);
+
+                    if (chunk.capacity() < length)
+                        chunk = ByteBuffer.allocate(length);
+                    copy((int) (position % capacity), chunk.array(), length);
+                    chunk.limit(length);
+                    position = chunkEnd;
+                }
+                while (chunk.hasRemaining())
+                    channel.write(chunk);
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+        return file;
+    }
+
+    /**
+     * Copies bytes out of {@link #ring}, wrapping around its end.
+     *
+     * @param offset the offset in {@link #ring} to copy from
+     * @param dst the array to copy into at offset {@code 0}
+     * @param length the number of bytes to copy
+     */
+    private void copy(int offset, byte[] dst, int length)
+    {
+        int first = Math.min(length, ring.capacity() - offset);
+
+        ring.limit(ring.capacity()).position(offset);
+        ring.get(dst, 0, first);
+        if (first < length)
+        {
+            ring.position(0);
+            ring.get(dst, first, length - first);
+        }
+        ring.clear();
+    }
+
+    /**
+     * Throws if this recorder has been closed and its buffers released.
+     *
+     * @throws IOException if this recorder has been closed
+     */
+    private void checkOpen()
+        throws IOException
+    {
+        if (closed)
+            throw new IOException("The flight recorder has been closed");
+    }
+
+    /**
+     * Gets the name of a dump file.
+     *
+     * @param reason the reason of the dump
+     * @param dumpNumber the number of the dump
+     * @return the name of the dump file
+     */
+    private String getDumpFileName(String reason, int dumpNumber)
+    {
+        String timestamp
+            = new SimpleDateFormat("yyyyMMdd'T'HHmmss").format(new Date());
+        String sanitizedReason
+            = (reason == null)
+                ? ""
+                : "-" + reason.replaceAll("[^A-Za-z0-9._-]", "_");
+
+        return
+            baseName + "-" + timestamp + "-" + dumpNumber + sanitizedReason
+                + MappedPcapFileSink.FILE_EXTENSION;
+    }
+
+    /**
+     * Gets the number of bytes of recorded packets.
+     *
+     * @return the number of bytes of recorded packets
+     */
+    public synchronized int getRecordedBytes()
+    {
+        return used;
+    }
+
+    /**
+     * Gets the number of packets which were too large to be recorded.
+     *
+     * @return the number of packets which were too large to be recorded
+     */
+    public synchronized long getOversizedPacketCount()
+    {
+        return oversizedPackets;
+    }
+}
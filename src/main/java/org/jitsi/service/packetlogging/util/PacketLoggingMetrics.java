@@ -0,0 +1,286 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * Collects the per-protocol counters of an
+ * {@link AbstractPacketLoggingService}. The counters updated by the threads
+ * which log packets are {@link LongAdder}s so that they do not contend; the
+ * ones updated by the writer thread only are published with lazy sets. With
+ * several writer lanes, each writer thread updates the counters of its own
+ * lane, see {@link #getLane(int)}.
+ */
+public class PacketLoggingMetrics
+{
+    /**
+     * The number of packets offered, indexed by protocol ordinal.
+     */
+    private final LongAdder[] offered;
+
+    /**
+     * The number of packets filtered out, indexed by protocol ordinal.
+     */
+    private final LongAdder[] filtered;
+
+    /**
+     * The number of packets dropped, indexed by protocol ordinal.
+     */
+    private final LongAdder[] dropped;
+
+    /**
+     * The number of packets written, indexed by protocol ordinal.
+     */
+    private final AtomicLongArray packetsWritten;
+
+    /**
+     * The number of bytes written, indexed by protocol ordinal.
+     */
+    private final AtomicLongArray bytesWritten;
+
+    /**
+     * The number of flushes per latency bucket.
+     */
+    private final AtomicLongArray flushLatencies
+        = new AtomicLongArray(PacketLoggingStatistics.FLUSH_LATENCY_BUCKETS);
+
+    /**
+     * The metrics of the writer lanes other than the first, which is this
+     * instance. Empty in the metrics of a lane.
+     */
+    private final List<PacketLoggingMetrics> lanes
+        = new ArrayList<PacketLoggingMetrics>();
+
+    /**
+     * Initializes a new {@code PacketLoggingMetrics} instance.
+     */
+    public PacketLoggingMetrics()
+    {
+        int count = ProtocolName.values().length;
+
+        offered = newAdders(count);
+        filtered = newAdders(count);
+        dropped = newAdders(count);
+        packetsWritten = new AtomicLongArray(count);
+        bytesWritten = new AtomicLongArray(count);
+    }
+
+    /**
+     * Initializes the metrics of a writer lane, which shares the counters
+     * updated by the threads which log packets with the metrics of the first
+     * lane.
+     *
+     * @param first the metrics of the first lane
+     */
+    private PacketLoggingMetrics(PacketLoggingMetrics first)
+    {
+        int count = ProtocolName.values().length;
+
+        offered = first.offered;
+        filtered = first.filtered;
+        dropped = first.dropped;
+        packetsWritten = new AtomicLongArray(count);
+        bytesWritten = new AtomicLongArray(count);
+    }
+
+    /**
+     * Gets the metrics to be updated by the writer thread of a specific
+     * writer lane. The statistics of this instance include the ones of all
+     * of its lanes.
+     *
+     * @param lane the index of the writer lane
+     * @return the metrics of {@code lane}; this instance for lane 0
+     */
+    public PacketLoggingMetrics getLane(int lane)
+    {
+        if (lane == 0)
+            return this;
+
+        synchronized (lanes)
+        {
+            while (lanes.size() < lane)
+                lanes.add(new PacketLoggingMetrics(this));
+            return lanes.get(lane - 1);
+        }
+    }
+
+    /**
+     * Creates an array of {@link LongAdder}s.
+     *
+     * @param count the length of the array
+     * @return the new array
+     */
+    private static LongAdder[] newAdders(int count)
+    {
+        LongAdder[] adders = new LongAdder[count];
+
+        for (int i = 0; i < count; i++)
+            adders[i] = new LongAdder();
+        return adders;
+    }
+
+    /**
+     * Counts a packet offered for capture.
+     *
+     * @param protocol the protocol of the packet
+     */
+    public void packetOffered(ProtocolName protocol)
+    {
+        offered[protocol.ordinal()].increment();
+    }
+
+    /**
+     * Counts a packet rejected by the capture filter.
+     *
+     * @param protocol the protocol of the packet
+     */
+    public void packetFiltered(ProtocolName protocol)
+    {
+        filtered[protocol.ordinal()].increment();
+    }
+
+    /**
+     * Counts a packet dropped because the queue was full.
+     *
+     * @param protocol the protocol of the packet
+     */
+    public void packetDropped(ProtocolName protocol)
+    {
+        dropped[protocol.ordinal()].increment();
+    }
+
+    /**
+     * Counts a packet written to the sink. Only invoked by the writer thread.
+     *
+     * @param record the written packet
+     */
+    public void packetWritten(PacketRecord record)
+    {
+        int i = record.getProtocol().ordinal();
+
+        packetsWritten.lazySet(i, packetsWritten.get(i) + 1);
+        bytesWritten.lazySet(i, bytesWritten.get(i) + record.getLength());
+    }
+
+    /**
+     * Counts a flush of the sink. Only invoked by the writer thread.
+     *
+     * @param latencyNanos the time the flush took in nanoseconds
+     */
+    public void sinkFlushed(long latencyNanos)
+    {
+        int bucket
+            = PacketLoggingStatistics.getFlushLatencyBucket(
+                    latencyNanos / 1000);
+
+        flushLatencies.lazySet(bucket, flushLatencies.get(bucket) + 1);
+    }
+
+    /**
+     * Takes a snapshot of the counters.
+     *
+     * @param samplers the samplers of the protocols, indexed by ordinal
+     * @param queueDepth the number of packets in the queue
+     * @param queueCapacity the capacity of the queue
+     * @param rotationCount the number of capture file rotations
+     * @return the snapshot of the counters
+     */
+    public PacketLoggingStatistics getStatistics(
+            PacketSampler[] samplers,
+            int queueDepth,
+            int queueCapacity,
+            long rotationCount)
+    {
+        int count = offered.length;
+        long[] sampledOut = new long[count];
+
+        for (int i = 0; i < count; i++)
+            sampledOut[i] = samplers[i].getSampledOutCount();
+
+        long[] packetsWritten = toArray(this.packetsWritten);
+        long[] bytesWritten = toArray(this.bytesWritten);
+        long[] flushLatencies = toArray(this.flushLatencies);
+
+        synchronized (lanes)
+        {
+            for (PacketLoggingMetrics lane : lanes)
+            {
+                add(packetsWritten, lane.packetsWritten);
+                add(bytesWritten, lane.bytesWritten);
+                add(flushLatencies, lane.flushLatencies);
+            }
+        }
+
+        return
+            new PacketLoggingStatistics(
+                    sum(offered),
+                    sum(filtered),
+                    sampledOut,
+                    sum(dropped),
+                    packetsWritten,
+                    bytesWritten,
+                    flushLatencies,
+                    queueDepth,
+                    queueCapacity,
+                    rotationCount);
+    }
+
+    /**
+     * Sums an array of {@link LongAdder}s.
+     *
+     * @param adders the adders to sum
+     * @return the sums of {@code adders}
+     */
+    private static long[] sum(LongAdder[] adders)
+    {
+        long[] sums = new long[adders.length];
+
+        for (int i = 0; i < adders.length; i++)
+            sums[i] = adders[i].sum();
+        return sums;
+    }
+
+    /**
+     * Copies an {@link AtomicLongArray}.
+     *
+     * @param array the array to copy
+     * @return the copy of {@code array}
+     */
+    private static long[] toArray(AtomicLongArray array)
+    {
+        long[] copy = new long[array.length()];
+
+        for (int i = 0; i < copy.length; i++)
+            copy[i] = array.get(i);
+        return copy;
+    }
+
+    /**
+     * Adds the values of an {@link AtomicLongArray} to an array.
+     *
+     * @param sums the array to add to
+     * @param array the values to add
+     */
+    private static void add(long[] sums, AtomicLongArray array)
+    {
+        for (int i = 0; i < sums.length; i++)
+            sums[i] += array.get(i);
+    }
+}
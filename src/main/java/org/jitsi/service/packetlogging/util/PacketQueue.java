@@ -0,0 +1,132 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+import java.nio.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * A bounded queue of captured packets with multiple producers, the threads
+ * which log packets, and a single consumer, the writer thread. Producers
+ * never block; packets which do not fit are dropped and counted.
+ */
+public interface PacketQueue
+{
+    /**
+     * Copies a packet into the queue. Never blocks.
+     *
+     * @param protocol the protocol which logged the packet
+     * @param sourceAddress the source address of the packet
+     * @param sourcePort the source port of the packet
+     * @param destinationAddress the destination address of the packet
+     * @param destinationPort the destination port of the packet
+     * @param transport the transport of the packet
+     * @param sender whether the packet was sent rather than received
+     * @param timestampNanos the time the packet was captured in nanoseconds
+     * since the epoch
+     * @param packet the bytes of the packet
+     * @param offset the offset in {@code packet} at which the packet starts
+     * @param length the length of the packet
+     * @param capturedLength the number of bytes of the packet to copy
+     * @return {@code true} if the packet was queued; {@code false} if the
+     * queue was full and the packet was dropped
+     */
+    boolean offer(
+            ProtocolName protocol,
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            TransportName transport,
+            boolean sender,
+            long timestampNanos,
+            byte[] packet,
+            int offset,
+            int length,
+            int capturedLength);
+
+    /**
+     * Copies a packet held in a {@link ByteBuffer} into the queue. Never
+     * blocks. The position and limit of {@code packet} are not modified.
+     *
+     * @param protocol the protocol which logged the packet
+     * @param source the source endpoint of the packet
+     * @param destination the destination endpoint of the packet
+     * @param transport the transport of the packet
+     * @param sender whether the packet was sent rather than received
+     * @param timestampNanos the time the packet was captured in nanoseconds
+     * since the epoch
+     * @param packet the packet between its position and limit
+     * @param capturedLength the number of bytes of the packet to copy
+     * @return {@code true} if the packet was queued; {@code false} if the
+     * queue was full and the packet was dropped
+     */
+    boolean offer(
+            ProtocolName protocol,
+            PacketEndpoint source,
+            PacketEndpoint destination,
+            TransportName transport,
+            boolean sender,
+            long timestampNanos,
+            ByteBuffer packet,
+            int capturedLength);
+
+    /**
+     * Writes the queued packets to a {@link PacketRecordSink}. May only be
+     * invoked by the single consumer thread.
+     *
+     * @param sink the sink to write the queued packets to
+     * @param maxRecords the maximum number of packets to write
+     * @return the number of packets written
+     * @throws IOException if writing to {@code sink} fails; the packet which
+     * failed to be written is removed from the queue nonetheless
+     */
+    int drain(PacketRecordSink sink, int maxRecords)
+        throws IOException;
+
+    /**
+     * Blocks the consumer thread until a packet is queued or a specific time
+     * has elapsed. Returns right away if the queue is not empty. May return
+     * early, for example when the consumer thread is unparked. May only be
+     * invoked by the single consumer thread.
+     *
+     * @param timeoutNanos the maximum time to wait in nanoseconds
+     */
+    void awaitPackets(long timeoutNanos);
+
+    /**
+     * Gets the maximum number of queued packets.
+     *
+     * @return the maximum number of queued packets
+     */
+    int getCapacity();
+
+    /**
+     * Gets the approximate number of queued packets.
+     *
+     * @return the approximate number of queued packets
+     */
+    int size();
+
+    /**
+     * Gets the number of packets dropped because the queue was full.
+     *
+     * @return the number of packets dropped because the queue was full
+     */
+    long getDroppedCount();
+}
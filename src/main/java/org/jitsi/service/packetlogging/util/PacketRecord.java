@@ -0,0 +1,506 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.nio.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * A packet captured by a {@link PacketLoggingService} together with the
+ * information needed to log it. Instances are preallocated and reused by
+ * {@link PacketRingBuffer} so that capturing a packet on an I/O thread only
+ * copies its bytes and does not allocate.
+ */
+public class PacketRecord
+{
+    /**
+     * The maximum length in bytes of an IP address.
+     */
+    static final int MAX_ADDRESS_LENGTH = 16;
+
+    /**
+     * The length of the captured bytes buffer a record keeps for reuse once
+     * it has been written, enough for a packet of the usual 1500-byte MTU.
+     */
+    static final int RETAINED_DATA_LENGTH = 2048;
+
+    /**
+     * The protocol which logged the packet.
+     */
+    private ProtocolName protocol;
+
+    /**
+     * The transport of the packet.
+     */
+    private TransportName transport;
+
+    /**
+     * The source address of the packet.
+     */
+    private final byte[] sourceAddress = new byte[MAX_ADDRESS_LENGTH];
+
+    /**
+     * The number of bytes in {@link #sourceAddress} which are in use.
+     */
+    private int sourceAddressLength;
+
+    /**
+     * The source port of the packet.
+     */
+    private int sourcePort;
+
+    /**
+     * The destination address of the packet.
+     */
+    private final byte[] destinationAddress = new byte[MAX_ADDRESS_LENGTH];
+
+    /**
+     * The number of bytes in {@link #destinationAddress} which are in use.
+     */
+    private int destinationAddressLength;
+
+    /**
+     * The destination port of the packet.
+     */
+    private int destinationPort;
+
+    /**
+     * Whether the packet was sent rather than received.
+     */
+    private boolean sender;
+
+    /**
+     * The time the packet was captured in nanoseconds since the epoch.
+     */
+    private long timestampNanos;
+
+    /**
+     * The captured bytes of the packet. Grows on demand and is shrunk back to
+     * {@link #RETAINED_DATA_LENGTH} by {@link #trimData()}.
+     */
+    private byte[] data = new byte[0];
+
+    /**
+     * A view of {@link #data} through which packets are copied out of direct
+     * buffers or {@code null}. Recreated when {@link #data} grows.
+     */
+    private ByteBuffer dataView;
+
+    /**
+     * The number of bytes in {@link #data} which are in use.
+     */
+    private int length;
+
+    /**
+     * The length of the packet as it was seen on the wire, which is larger
+     * than {@link #length} if the packet was truncated when captured.
+     */
+    private int originalLength;
+
+    /**
+     * The pre-encoded headers of the flow of the packet or {@code null} if
+     * the headers are to be encoded from the addresses and ports.
+     */
+    private NetworkHeaderTemplate template;
+
+    /**
+     * Copies a packet into this record.
+     *
+     * @param protocol the protocol which logged the packet
+     * @param sourceAddress the source address of the packet
+     * @param sourcePort the source port of the packet
+     * @param destinationAddress the destination address of the packet
+     * @param destinationPort the destination port of the packet
+     * @param transport the transport of the packet
+     * @param sender whether the packet was sent rather than received
+     * @param timestampNanos the time the packet was captured in nanoseconds
+     * since the epoch
+     * @param packet the bytes of the packet
+     * @param offset the offset in {@code packet} at which the packet starts
+     * @param length the length of the packet
+     * @param capturedLength the number of bytes of the packet to copy, at
+     * most {@code length}
+     */
+    public void set(
+            ProtocolName protocol,
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            TransportName transport,
+            boolean sender,
+            long timestampNanos,
+            byte[] packet,
+            int offset,
+            int length,
+            int capturedLength)
+    {
+        this.protocol = protocol;
+        template = null;
+        this.sourceAddressLength
+            = copyAddress(sourceAddress, this.sourceAddress);
+        this.sourcePort = sourcePort;
+        this.destinationAddressLength
+            = copyAddress(destinationAddress, this.destinationAddress);
+        this.destinationPort = destinationPort;
+        this.transport = transport;
+        this.sender = sender;
+        this.timestampNanos = timestampNanos;
+
+        if (data.length < capturedLength)
+            data = new byte[capturedLength];
+        System.arraycopy(packet, offset, data, 0, capturedLength);
+        this.length = capturedLength;
+        this.originalLength = length;
+    }
+
+    /**
+     * Copies a packet held in a {@link ByteBuffer} into this record. The
+     * position and limit of {@code packet} are not modified.
+     *
+     * @param protocol the protocol which logged the packet
+     * @param source the source endpoint of the packet
+     * @param destination the destination endpoint of the packet
+     * @param transport the transport of the packet
+     * @param sender whether the packet was sent rather than received
+     * @param timestampNanos the time the packet was captured in nanoseconds
+     * since the epoch
+     * @param packet the packet between its position and limit
+     * @param capturedLength the number of bytes of the packet to copy, at
+     * most {@code packet.remaining()}
+     */
+    public void set(
+            ProtocolName protocol,
+            PacketEndpoint source,
+            PacketEndpoint destination,
+            TransportName transport,
+            boolean sender,
+            long timestampNanos,
+            ByteBuffer packet,
+            int capturedLength)
+    {
+        this.protocol = protocol;
+        template
+            = ((source instanceof CachingPacketEndpoint)
+                    && (destination != null))
+                ? ((CachingPacketEndpoint) source).getTemplate(
+                        destination,
+                        transport)
+                : null;
+        if (source == null)
+        {
+            sourceAddressLength = 0;
+            sourcePort = 0;
+        }
+        else
+        {
+            sourceAddressLength = source.copyAddressTo(sourceAddress, 0);
+            sourcePort = source.getPort();
+        }
+        if (destination == null)
+        {
+            destinationAddressLength = 0;
+            destinationPort = 0;
+        }
+        else
+        {
+            destinationAddressLength
+                = destination.copyAddressTo(destinationAddress, 0);
+            destinationPort = destination.getPort();
+        }
+        this.transport = transport;
+        this.sender = sender;
+        this.timestampNanos = timestampNanos;
+
+        if (data.length < capturedLength)
+            data = new byte[capturedLength];
+        if (packet.hasArray())
+        {
+            System.arraycopy(
+                    packet.array(), packet.arrayOffset() + packet.position(),
+                    data, 0,
+                    capturedLength);
+        }
+        else
+        {
+            copyDirect(packet, capturedLength);
+        }
+        this.length = capturedLength;
+        this.originalLength = packet.remaining();
+    }
+
+    /**
+     * Copies the first bytes of a packet held in a buffer which is not
+     * backed by an accessible array into {@link #data}. The buffer is only
+     * read at absolute offsets so that neither it nor its position is
+     * touched, even though the caller may be using it concurrently. Reads
+     * eight bytes at a time and does not allocate unless {@link #data} has
+     * grown.
+     *
+     * @param packet the packet between its position and limit
+     * @param capturedLength the number of bytes of the packet to copy
+     */
+    private void copyDirect(ByteBuffer packet, int capturedLength)
+    {
+        ByteBuffer dataView = this.dataView;
+
+        if ((dataView == null) || (dataView.array() != data))
+        {
+            dataView = ByteBuffer.wrap(data);
+            this.dataView = dataView;
+        }
+        dataView.order(packet.order());
+
+        int position = packet.position();
+        int i = 0;
+
+        for (int end = capturedLength - 7; i < end; i += 8)
+            dataView.putLong(i, packet.getLong(position + i));
+        for (; i < capturedLength; i++)
+            data[i] = packet.get(position + i);
+    }
+
+    /**
+     * Sets the fields of this record to a packet held at an absolute offset
+     * of a buffer, for example one read back from a capture file.
+     *
+     * @param protocol the protocol which logged the packet
+     * @param sourceAddress the source address of the packet
+     * @param sourcePort the source port of the packet
+     * @param destinationAddress the destination address of the packet
+     * @param destinationPort the destination port of the packet
+     * @param transport the transport of the packet
+     * @param sender whether the packet was sent rather than received
+     * @param timestampNanos the time the packet was captured in nanoseconds
+     * since the epoch
+     * @param buf the buffer which holds the packet
+     * @param offset the absolute offset in {@code buf} at which the packet
+     * starts
+     * @param capturedLength the number of bytes of the packet to copy
+     * @param originalLength the length of the packet before it was truncated
+     */
+    public void set(
+            ProtocolName protocol,
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            TransportName transport,
+            boolean sender,
+            long timestampNanos,
+            ByteBuffer buf,
+            int offset,
+            int capturedLength,
+            int originalLength)
+    {
+        this.protocol = protocol;
+        template = null;
+        sourceAddressLength = copyAddress(sourceAddress, this.sourceAddress);
+        this.sourcePort = sourcePort;
+        destinationAddressLength
+            = copyAddress(destinationAddress, this.destinationAddress);
+        this.destinationPort = destinationPort;
+        this.transport = transport;
+        this.sender = sender;
+        this.timestampNanos = timestampNanos;
+
+        if (data.length < capturedLength)
+            data = new byte[capturedLength];
+
+        ByteBuffer src = buf.duplicate();
+
+        src.position(offset);
+        src.get(data, 0, capturedLength);
+        this.length = capturedLength;
+        this.originalLength = originalLength;
+    }
+
+    /**
+     * Copies an address into one of the address fields of this record.
+     *
+     * @param address the address to copy or {@code null}
+     * @param field the address field to copy {@code address} into
+     * @return the number of bytes copied into {@code field}
+     */
+    private static int copyAddress(byte[] address, byte[] field)
+    {
+        if (address == null)
+            return 0;
+
+        int length = Math.min(address.length, MAX_ADDRESS_LENGTH);
+
+        System.arraycopy(address, 0, field, 0, length);
+        return length;
+    }
+
+    /**
+     * Gets the protocol which logged the packet.
+     *
+     * @return the protocol which logged the packet
+     */
+    public ProtocolName getProtocol()
+    {
+        return protocol;
+    }
+
+    /**
+     * Gets the transport of the packet.
+     *
+     * @return the transport of the packet
+     */
+    public TransportName getTransport()
+    {
+        return transport;
+    }
+
+    /**
+     * Gets the source address of the packet. Only the first
+     * {@link #getSourceAddressLength()} bytes are in use.
+     *
+     * @return the source address of the packet
+     */
+    public byte[] getSourceAddress()
+    {
+        return sourceAddress;
+    }
+
+    /**
+     * Gets the length of the source address of the packet.
+     *
+     * @return 4 for IPv4, 16 for IPv6 or 0 if the address is unknown
+     */
+    public int getSourceAddressLength()
+    {
+        return sourceAddressLength;
+    }
+
+    /**
+     * Gets the source port of the packet.
+     *
+     * @return the source port of the packet
+     */
+    public int getSourcePort()
+    {
+        return sourcePort;
+    }
+
+    /**
+     * Gets the destination address of the packet. Only the first
+     * {@link #getDestinationAddressLength()} bytes are in use.
+     *
+     * @return the destination address of the packet
+     */
+    public byte[] getDestinationAddress()
+    {
+        return destinationAddress;
+    }
+
+    /**
+     * Gets the length of the destination address of the packet.
+     *
+     * @return 4 for IPv4, 16 for IPv6 or 0 if the address is unknown
+     */
+    public int getDestinationAddressLength()
+    {
+        return destinationAddressLength;
+    }
+
+    /**
+     * Gets the destination port of the packet.
+     *
+     * @return the destination port of the packet
+     */
+    public int getDestinationPort()
+    {
+        return destinationPort;
+    }
+
+    /**
+     * Determines whether the packet was sent rather than received.
+     *
+     * @return {@code true} if we were the sender of the packet
+     */
+    public boolean isSender()
+    {
+        return sender;
+    }
+
+    /**
+     * Gets the time the packet was captured.
+     *
+     * @return the time the packet was captured in nanoseconds since the epoch
+     */
+    public long getTimestampNanos()
+    {
+        return timestampNanos;
+    }
+
+    /**
+     * Gets the captured bytes of the packet. Only the first
+     * {@link #getLength()} bytes are in use.
+     *
+     * @return the captured bytes of the packet
+     */
+    public byte[] getData()
+    {
+        return data;
+    }
+
+    /**
+     * Gets the number of captured bytes of the packet.
+     *
+     * @return the number of captured bytes of the packet
+     */
+    public int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Gets the length of the packet as it was seen on the wire.
+     *
+     * @return the length of the packet as it was seen on the wire
+     */
+    public int getOriginalLength()
+    {
+        return originalLength;
+    }
+
+    /**
+     * Drops the captured bytes buffer if a packet larger than
+     * {@link #RETAINED_DATA_LENGTH} has grown it, so that a queue does not
+     * hold on to the memory of the largest packets it has ever seen. Invoked
+     * once the record has been written and before it is reused.
+     */
+    void trimData()
+    {
+        if (data.length > RETAINED_DATA_LENGTH)
+            data = new byte[RETAINED_DATA_LENGTH];
+    }
+
+    /**
+     * Gets the pre-encoded headers of the flow of the packet.
+     *
+     * @return the pre-encoded headers of the flow of the packet or
+     * {@code null} if the headers are to be encoded from the addresses and
+     * ports
+     */
+    NetworkHeaderTemplate getNetworkHeaderTemplate()
+    {
+        return template;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+
+/**
+ * The destination of the packets captured by a
+ * {@link org.jitsi.service.packetlogging.PacketLoggingService}, for example a
+ * pcap file. A sink is only ever invoked by a single writer
+ * thread.
+ */
+public interface PacketRecordSink
+    extends Closeable
+{
+    /**
+     * Writes a captured packet. The record is reused once this method returns
+     * so implementations must copy whatever they need to keep.
+     *
+     * @param record the captured packet
+     * @throws IOException if writing fails
+     */
+    void write(PacketRecord record)
+        throws IOException;
+
+    /**
+     * Makes sure all packets written so far have reached their destination.
+     * Invoked by the writer thread whenever it runs out of packets to write.
+     *
+     * @throws IOException if flushing fails
+     */
+    void flush()
+        throws IOException;
+}
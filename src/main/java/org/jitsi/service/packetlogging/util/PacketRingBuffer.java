@@ -0,0 +1,318 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * A bounded, lock-free queue of {@link PacketRecord}s with multiple producers
+ * and a single consumer. Producers are the I/O threads which log packets: they
+ * claim a slot with a single compare-and-set, copy the packet into the
+ * preallocated record of the slot and publish it. The consumer is the writer
+ * thread which drains the records to a {@link PacketRecordSink} in place.
+ * <p>
+ * Producers never block. If the queue is full, the packet is dropped and
+ * counted. The algorithm is the bounded queue of Dmitry Vyukov in which every
+ * slot carries a sequence number telling producers and the consumer whose turn
+ * it is.
+ * </p>
+ */
+public class PacketRingBuffer
+    implements PacketQueue
+{
+    /**
+     * {@code capacity - 1}, used to map positions to slots.
+     */
+    private final int mask;
+
+    /**
+     * The preallocated records.
+     */
+    private final PacketRecord[] records;
+
+    /**
+     * The sequence numbers of the slots. A slot at position {@code p} may be
+     * claimed by a producer when its sequence is {@code p} and may be consumed
+     * when its sequence is {@code p + 1}.
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * The position of the next slot to be claimed by a producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The position of the next slot to be consumed. Only written by the
+     * consumer.
+     */
+    private volatile long head = 0;
+
+    /**
+     * The number of packets dropped because the queue was full.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Wakes the consumer up when a packet is queued.
+     */
+    private final ConsumerSignal signal = new ConsumerSignal();
+
+    /**
+     * Initializes a new {@code PacketRingBuffer} instance.
+     *
+     * @param capacity the maximum number of queued packets; rounded up to the
+     * next power of two
+     */
+    public PacketRingBuffer(int capacity)
+    {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity " + capacity);
+
+        int size = Integer.highestOneBit(capacity);
+
+        if (size < capacity)
+            size <<= 1;
+
+        mask = size - 1;
+        records = new PacketRecord[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+        {
+            records[i] = new PacketRecord();
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean offer(
+            ProtocolName protocol,
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            TransportName transport,
+            boolean sender,
+            long timestampNanos,
+            byte[] packet,
+            int offset,
+            int length,
+            int capturedLength)
+    {
+        long position = claim();
+
+        if (position < 0)
+            return false;
+
+        int index = (int) position & mask;
+
+        records[index].set(
+                protocol,
+                sourceAddress, sourcePort,
+                destinationAddress, destinationPort,
+                transport,
+                sender,
+                timestampNanos,
+                packet, offset, length, capturedLength);
+        sequences.lazySet(index, position + 1);
+        signal.signal();
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean offer(
+            ProtocolName protocol,
+            PacketEndpoint source,
+            PacketEndpoint destination,
+            TransportName transport,
+            boolean sender,
+            long timestampNanos,
+            ByteBuffer packet,
+            int capturedLength)
+    {
+        long position = claim();
+
+        if (position < 0)
+            return false;
+
+        int index = (int) position & mask;
+
+        records[index].set(
+                protocol,
+                source, destination,
+                transport,
+                sender,
+                timestampNanos,
+                packet, capturedLength);
+        sequences.lazySet(index, position + 1);
+        signal.signal();
+        return true;
+    }
+
+    /**
+     * Claims the next free slot for a producer.
+     *
+     * @return the position of the claimed slot or {@code -1} if the queue is
+     * full
+     */
+    private long claim()
+    {
+        while (true)
+        {
+            long position = tail.get();
+            long sequence = sequences.get((int) position & mask);
+            long difference = sequence - position;
+
+            if (difference == 0)
+            {
+                if (tail.compareAndSet(position, position + 1))
+                    return position;
+            }
+            else if (difference < 0)
+            {
+                dropped.incrementAndGet();
+                return -1;
+            }
+            // Otherwise another producer claimed the slot; try the next one.
+        }
+    }
+
+    /**
+     * Gets the record of the next packet to be consumed without consuming
+     * it. Only invoked by the consumer.
+     *
+     * @return the record of the next packet to be consumed or {@code null} if
+     * the queue is empty
+     */
+    public PacketRecord peek()
+    {
+        long position = head;
+        int index = (int) position & mask;
+
+        return (sequences.get(index) == position + 1) ? records[index] : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int drain(PacketRecordSink sink, int maxRecords)
+        throws IOException
+    {
+        return drain(sink, maxRecords, Long.MAX_VALUE);
+    }
+
+    /**
+     * Writes the queued packets up to a specific capture time to a
+     * {@link PacketRecordSink}. May only be invoked by the single consumer
+     * thread.
+     *
+     * @param sink the sink to write the queued packets to
+     * @param maxRecords the maximum number of packets to write
+     * @param maxTimestampNanos the capture time in nanoseconds since the epoch
+     * of the newest packet to write; the drain stops at the first packet
+     * captured after it
+     * @return the number of packets written
+     * @throws IOException if writing to {@code sink} fails; the packet which
+     * failed to be written is removed from the queue nonetheless
+     */
+    int drain(PacketRecordSink sink, int maxRecords, long maxTimestampNanos)
+        throws IOException
+    {
+        long position = head;
+        int count = 0;
+
+        try
+        {
+            while (count < maxRecords)
+            {
+                int index = (int) position & mask;
+
+                if ((sequences.get(index) != position + 1)
+                        || (records[index].getTimestampNanos()
+                                > maxTimestampNanos))
+                {
+                    break;
+                }
+
+                try
+                {
+                    sink.write(records[index]);
+                }
+                finally
+                {
+                    records[index].trimData();
+                    sequences.lazySet(index, position + mask + 1);
+                    position++;
+                    count++;
+                }
+            }
+        }
+        finally
+        {
+            head = position;
+        }
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void awaitPackets(long timeoutNanos)
+    {
+        signal.await(this, timeoutNanos);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getCapacity()
+    {
+        return mask + 1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size()
+    {
+        long size = tail.get() - head;
+
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getDroppedCount()
+    {
+        return dropped.get();
+    }
+}
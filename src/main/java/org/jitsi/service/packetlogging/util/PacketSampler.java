@@ -0,0 +1,195 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * Decides on the thread which logs a packet, before the packet is copied,
+ * whether the packet is to be captured according to the sampling and rate
+ * limiting settings of its {@link ProtocolName} in a
+ * {@link PacketLoggingConfiguration.Snapshot}. The settings are passed in with
+ * every decision so changes take effect immediately.
+ * <p>
+ * Sampling of 1 in N packets is random rather than counted so that it does
+ * not need any state shared between threads. The packets-per-second cap is a
+ * token bucket implemented as a virtual scheduling (GCRA) with a burst of one
+ * second worth of packets, which costs a single compare-and-set per accepted
+ * packet.
+ * </p>
+ */
+public class PacketSampler
+{
+    /**
+     * The number of nanoseconds in a second.
+     */
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    /**
+     * The protocol this sampler decides for.
+     */
+    private final ProtocolName protocol;
+
+    /**
+     * The theoretical arrival time of the next packet according to the rate
+     * limit, in nanoseconds since the epoch.
+     */
+    private final AtomicLong theoreticalArrivalTime = new AtomicLong();
+
+    /**
+     * The number of packets accepted.
+     */
+    private final LongAdder accepted = new LongAdder();
+
+    /**
+     * The number of packets rejected.
+     */
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * The time in nanoseconds at which the current rate measurement window
+     * started.
+     */
+    private long windowStartNanos = System.nanoTime();
+
+    /**
+     * The number of accepted packets when the current rate measurement window
+     * started.
+     */
+    private long windowStartCount = 0;
+
+    /**
+     * The rate measured in the last completed window in packets per second.
+     */
+    private double lastRate = 0;
+
+    /**
+     * Initializes a new {@code PacketSampler} instance.
+     *
+     * @param protocol the protocol the new instance is to decide for
+     */
+    public PacketSampler(ProtocolName protocol)
+    {
+        this.protocol = protocol;
+    }
+
+    /**
+     * Decides whether a packet is to be captured.
+     *
+     * @param settings the settings to read the sampling settings from
+     * @param timestampNanos the time the packet was logged in nanoseconds
+     * since the epoch
+     * @return {@code true} if the packet is to be captured; {@code false} if
+     * it is sampled out
+     */
+    public boolean sample(
+            PacketLoggingConfiguration.Snapshot settings,
+            long timestampNanos)
+    {
+        int sampleEvery = settings.getSampleEvery(protocol);
+
+        if ((sampleEvery > 1)
+                && (ThreadLocalRandom.current().nextInt(sampleEvery) != 0))
+        {
+            rejected.increment();
+            return false;
+        }
+
+        int maxPacketsPerSecond
+            = settings.getMaxPacketsPerSecond(protocol);
+
+        if ((maxPacketsPerSecond > 0)
+                && !acquire(maxPacketsPerSecond, timestampNanos))
+        {
+            rejected.increment();
+            return false;
+        }
+
+        accepted.increment();
+        return true;
+    }
+
+    /**
+     * Takes a token from the bucket.
+     *
+     * @param maxPacketsPerSecond the rate at which the bucket is refilled
+     * @param now the current time in nanoseconds since the epoch
+     * @return {@code true} if a token was taken; {@code false} if the bucket
+     * is empty
+     */
+    private boolean acquire(int maxPacketsPerSecond, long now)
+    {
+        long interval = NANOS_PER_SECOND / maxPacketsPerSecond;
+
+        while (true)
+        {
+            long tat = theoreticalArrivalTime.get();
+            long start = Math.max(tat, now - NANOS_PER_SECOND);
+
+            if (start - now > 0)
+                return false;
+            if (theoreticalArrivalTime.compareAndSet(tat, start + interval))
+                return true;
+        }
+    }
+
+    /**
+     * Gets the number of packets which have been accepted.
+     *
+     * @return the number of packets which have been accepted
+     */
+    public long getAcceptedCount()
+    {
+        return accepted.sum();
+    }
+
+    /**
+     * Gets the number of packets which have been sampled out.
+     *
+     * @return the number of packets which have been sampled out
+     */
+    public long getSampledOutCount()
+    {
+        return rejected.sum();
+    }
+
+    /**
+     * Gets the rate at which packets are actually accepted, measured over
+     * windows of at least one second.
+     *
+     * @return the rate at which packets are accepted in packets per second
+     */
+    public synchronized double getActualRate()
+    {
+        long now = System.nanoTime();
+        long elapsed = now - windowStartNanos;
+
+        if (elapsed >= NANOS_PER_SECOND)
+        {
+            long count = accepted.sum();
+
+            lastRate
+                = (count - windowStartCount)
+                    * (double) NANOS_PER_SECOND / elapsed;
+            windowStartNanos = now;
+            windowStartCount = count;
+        }
+        return lastRate;
+    }
+}
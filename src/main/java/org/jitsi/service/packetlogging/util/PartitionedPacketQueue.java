@@ -0,0 +1,247 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+import java.nio.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * A {@link PacketQueue} which partitions the packets over several independent
+ * lanes, each a {@link StripedPacketQueue} meant to be drained by its own
+ * {@link AsyncPacketWriter} into its own set of capture files, so that
+ * writing is not limited to a single core. The lane of a packet is selected
+ * by a hash of its addresses and ports which does not depend on the
+ * direction, so that all the packets of a flow, in both directions, end up
+ * in the same lane and in order. The lanes are merged on read by a
+ * {@link MergingCaptureFileReader}.
+ */
+public class PartitionedPacketQueue
+    implements PacketQueue
+{
+    /**
+     * The lanes.
+     */
+    private final StripedPacketQueue[] lanes;
+
+    /**
+     * The lane {@link #drain(PacketRecordSink, int)} continues with.
+     */
+    private int drainLane = 0;
+
+    /**
+     * Wakes the consumer up when a packet is queued.
+     */
+    private final ConsumerSignal signal = new ConsumerSignal();
+
+    /**
+     * Initializes a new {@code PartitionedPacketQueue} instance.
+     *
+     * @param laneCount the number of lanes
+     * @param capacity the maximum number of queued packets per lane
+     * @param stripeCount the number of stripes of each lane, see
+     * {@link StripedPacketQueue#StripedPacketQueue(int, int)}
+     */
+    public PartitionedPacketQueue(int laneCount, int capacity, int stripeCount)
+    {
+        if (laneCount < 1)
+            throw new IllegalArgumentException("laneCount " + laneCount);
+
+        lanes = new StripedPacketQueue[laneCount];
+        for (int i = 0; i < laneCount; i++)
+            lanes[i] = new StripedPacketQueue(capacity, stripeCount);
+    }
+
+    /**
+     * Gets the number of lanes.
+     *
+     * @return the number of lanes
+     */
+    public int getLaneCount()
+    {
+        return lanes.length;
+    }
+
+    /**
+     * Gets one of the lanes.
+     *
+     * @param lane the index of the lane
+     * @return the lane with index {@code lane}
+     */
+    public PacketQueue getLane(int lane)
+    {
+        return lanes[lane];
+    }
+
+    /**
+     * Gets the lane of the packets of a flow.
+     *
+     * @param hash the hash of the flow, which is the same for both of its
+     * directions
+     * @return the lane of the packets of the flow
+     */
+    private StripedPacketQueue lane(int hash)
+    {
+        hash *= 0x9e3779b9;
+        return lanes[((hash ^ (hash >>> 16)) & 0x7fffffff) % lanes.length];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean offer(
+            ProtocolName protocol,
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            TransportName transport,
+            boolean sender,
+            long timestampNanos,
+            byte[] packet,
+            int offset,
+            int length,
+            int capturedLength)
+    {
+        // The sum of the hash codes of the endpoints, as in the other offer.
+        int hash
+            = PacketEndpoint.hashCode(sourceAddress, sourcePort)
+                + PacketEndpoint.hashCode(destinationAddress, destinationPort);
+
+        boolean queued
+            = lane(hash).offer(
+                    protocol,
+                    sourceAddress, sourcePort,
+                    destinationAddress, destinationPort,
+                    transport,
+                    sender,
+                    timestampNanos,
+                    packet, offset, length,
+                    capturedLength);
+
+        if (queued)
+            signal.signal();
+        return queued;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean offer(
+            ProtocolName protocol,
+            PacketEndpoint source,
+            PacketEndpoint destination,
+            TransportName transport,
+            boolean sender,
+            long timestampNanos,
+            ByteBuffer packet,
+            int capturedLength)
+    {
+        // A missing endpoint is recorded as an unknown address and port 0.
+        int hash
+            = ((source == null)
+                    ? PacketEndpoint.hashCode(null, 0)
+                    : source.hashCode())
+                + ((destination == null)
+                    ? PacketEndpoint.hashCode(null, 0)
+                    : destination.hashCode());
+
+        boolean queued
+            = lane(hash).offer(
+                    protocol,
+                    source, destination,
+                    transport,
+                    sender,
+                    timestampNanos,
+                    packet,
+                    capturedLength);
+
+        if (queued)
+            signal.signal();
+        return queued;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Drains the lanes in turn. The lanes are normally drained by writers of
+     * their own, see {@link #getLane(int)}.
+     */
+    @Override
+    public int drain(PacketRecordSink sink, int maxRecords)
+        throws IOException
+    {
+        int count = 0;
+
+        for (int i = 0; i < lanes.length && count < maxRecords; i++)
+        {
+            count += lanes[drainLane].drain(sink, maxRecords - count);
+            drainLane = (drainLane + 1) % lanes.length;
+        }
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void awaitPackets(long timeoutNanos)
+    {
+        signal.await(this, timeoutNanos);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getCapacity()
+    {
+        int capacity = 0;
+
+        for (StripedPacketQueue lane : lanes)
+            capacity += lane.getCapacity();
+        return capacity;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size()
+    {
+        int size = 0;
+
+        for (StripedPacketQueue lane : lanes)
+            size += lane.size();
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getDroppedCount()
+    {
+        long dropped = 0;
+
+        for (StripedPacketQueue lane : lanes)
+            dropped += lane.getDroppedCount();
+        return dropped;
+    }
+}
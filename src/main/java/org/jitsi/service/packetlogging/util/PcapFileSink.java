@@ -0,0 +1,167 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * A {@link PacketRecordSink} which writes the captured packets to a single
+ * pcap file. The records are batched by a {@link BatchingChannelWriter} and
+ * optionally indexed by a {@link CaptureIndexWriter}.
+ */
+public class PcapFileSink
+    implements PacketRecordSink
+{
+    /**
+     * The channel of the pcap file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The writer which batches the records written to {@link #channel}.
+     */
+    private final BatchingChannelWriter out;
+
+    /**
+     * The writer of the index of the pcap file or {@code null}.
+     */
+    private final CaptureIndexWriter indexWriter;
+
+    /**
+     * Initializes a new {@code PcapFileSink} which (over)writes a specific
+     * file.
+     *
+     * @param file the pcap file to write
+     * @throws IOException if the file cannot be opened
+     */
+    public PcapFileSink(File file)
+        throws IOException
+    {
+        this(file, BatchingChannelWriter.DEFAULT_FLUSH_THRESHOLD);
+    }
+
+    /**
+     * Initializes a new {@code PcapFileSink} which (over)writes a specific
+     * file.
+     *
+     * @param file the pcap file to write
+     * @param flushThreshold the number of batched bytes which triggers a
+     * write to the file
+     * @throws IOException if the file cannot be opened
+     */
+    public PcapFileSink(File file, int flushThreshold)
+        throws IOException
+    {
+        this(file, flushThreshold, 0);
+    }
+
+    /**
+     * Initializes a new {@code PcapFileSink} which (over)writes a specific
+     * file and its index file.
+     *
+     * @param file the pcap file to write
+     * @param flushThreshold the number of batched bytes which triggers a
+     * write to the file
+     * @param indexInterval the number of bytes of the file to be covered by
+     * an index entry or {@code 0} to not index the file
+     * @throws IOException if the file cannot be opened
+     */
+    public PcapFileSink(File file, int flushThreshold, int indexInterval)
+        throws IOException
+    {
+        channel
+            = FileChannel.open(
+                    file.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+
+        out = new BatchingChannelWriter(channel, flushThreshold);
+        PcapFormat.writeFileHeader(out.reserve(PcapFormat.FILE_HEADER_LENGTH));
+        indexWriter
+            = (indexInterval > 0)
+                ? new CaptureIndexWriter(file, indexInterval)
+                : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(PacketRecord record)
+        throws IOException
+    {
+        int encodedLength = PcapFormat.getEncodedLength(record);
+        long offset = out.getPosition();
+        ByteBuffer buffer = out.reserve(encodedLength);
+
+        PcapFormat.writeRecordHeaders(buffer, record);
+        buffer.put(record.getData(), 0, record.getLength());
+        out.commit();
+        if (indexWriter != null)
+            indexWriter.add(record, offset, encodedLength);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush()
+        throws IOException
+    {
+        out.flush();
+        if (indexWriter != null)
+            indexWriter.flush();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        try
+        {
+            out.flush();
+        }
+        finally
+        {
+            try
+            {
+                channel.close();
+            }
+            finally
+            {
+                if (indexWriter != null)
+                    indexWriter.close();
+            }
+        }
+    }
+
+    /**
+     * Gets the average number of write calls made on the file per packet.
+     *
+     * @return the average number of write calls made on the file per packet
+     */
+    public double getWriteCallsPerPacket()
+    {
+        return out.getWriteCallsPerRecord();
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.nio.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * Encodes {@link PacketRecord}s in the libpcap file format. Since the packets
+ * handed to a {@link PacketLoggingService} are application payloads, an IPv4
+ * or IPv6 header and a UDP or TCP header are synthesized in front of each of
+ * them from the addresses, ports and transport of the record and the file uses
+ * the raw IP link type. The identification field of the IPv4 header and the
+ * flow label of the IPv6 header carry the {@link ProtocolName} of the record
+ * and whether we sent it (see {@link #getPacketTag(PacketRecord)}) so that
+ * the file can be read back without losing them.
+ * <p>
+ * All multi-byte fields are written in network byte order; readers detect the
+ * byte order of the file from its magic number.
+ * </p>
+ */
+public final class PcapFormat
+{
+    /**
+     * The magic number of a pcap file with microsecond timestamps.
+     */
+    public static final int MAGIC = 0xa1b2c3d4;
+
+    /**
+     * The link type of raw IPv4 and IPv6 packets.
+     */
+    public static final int LINKTYPE_RAW = 101;
+
+    /**
+     * The length of the pcap file header.
+     */
+    public static final int FILE_HEADER_LENGTH = 24;
+
+    /**
+     * The length of the pcap record header.
+     */
+    public static final int RECORD_HEADER_LENGTH = 16;
+
+    /**
+     * The maximum length of a synthesized IP and transport header.
+     */
+    public static final int MAX_NETWORK_HEADER_LENGTH = 40 + 20;
+
+    /**
+     * The maximum length of a captured packet advertised in the file header.
+     */
+    public static final int SNAPLEN = 65535;
+
+    /**
+     * The IP protocol number of UDP.
+     */
+    static final int IPPROTO_UDP = 17;
+
+    /**
+     * The IP protocol number of TCP.
+     */
+    static final int IPPROTO_TCP = 6;
+
+    /**
+     * The bit of a packet tag which is set if we sent the packet.
+     */
+    static final int TAG_SENDER = 0x8000;
+
+    /**
+     * The bits of a packet tag which hold the ordinal of the protocol plus
+     * one.
+     */
+    static final int TAG_PROTOCOL_MASK = 0x7fff;
+
+    /**
+     * The IPv4 address used when the address of a record is unknown.
+     */
+    private static final byte[] UNKNOWN_ADDRESS = new byte[4];
+
+    /**
+     * Prevents the initialization of {@code PcapFormat} instances.
+     */
+    private PcapFormat()
+    {
+    }
+
+    /**
+     * Writes the pcap file header.
+     *
+     * @param buf the buffer to write to
+     */
+    public static void writeFileHeader(ByteBuffer buf)
+    {
+        buf.order(ByteOrder.BIG_ENDIAN);
+        buf.putInt(MAGIC);
+        buf.putShort((short) 2);
+        buf.putShort((short) 4);
+        buf.putInt(0); // thiszone
+        buf.putInt(0); // sigfigs
+        buf.putInt(SNAPLEN);
+        buf.putInt(LINKTYPE_RAW);
+    }
+
+    /**
+     * Gets the length of the IP and transport headers synthesized for a
+     * specific record.
+     *
+     * @param record the record
+     * @return the length of the synthesized headers of {@code record}
+     */
+    public static int getNetworkHeaderLength(PacketRecord record)
+    {
+        return
+            getNetworkHeaderLength(
+                    record.getSourceAddressLength(),
+                    record.getDestinationAddressLength(),
+                    record.getTransport());
+    }
+
+    /**
+     * Gets the length of the IP and transport headers synthesized for the
+     * packets with specific addresses and transport.
+     *
+     * @param sourceAddressLength the length of the source address
+     * @param destinationAddressLength the length of the destination address
+     * @param transport the transport
+     * @return the length of the synthesized headers
+     */
+    static int getNetworkHeaderLength(
+            int sourceAddressLength,
+            int destinationAddressLength,
+            TransportName transport)
+    {
+        return
+            (isIPv6(sourceAddressLength, destinationAddressLength) ? 40 : 20)
+                + ((transport == TransportName.TCP) ? 20 : 8);
+    }
+
+    /**
+     * Gets the length of the encoded form of a specific record including the
+     * record header.
+     *
+     * @param record the record
+     * @return the length of the encoded form of {@code record}
+     */
+    public static int getEncodedLength(PacketRecord record)
+    {
+        return
+            RECORD_HEADER_LENGTH
+                + getNetworkHeaderLength(record)
+                + record.getLength();
+    }
+
+    /**
+     * Writes the pcap record header and the synthesized IP and transport
+     * headers of a record, but not its payload.
+     *
+     * @param buf the buffer to write to
+     * @param record the record
+     */
+    public static void writeRecordHeaders(ByteBuffer buf, PacketRecord record)
+    {
+        writeRecordHeaders(buf, record, record.getLength());
+    }
+
+    /**
+     * Writes the pcap record header and the synthesized IP and transport
+     * headers of a record of which only a specific number of payload bytes
+     * are to be written.
+     *
+     * @param buf the buffer to write to
+     * @param record the record
+     * @param capturedLength the number of payload bytes of {@code record}
+     * which are to be written
+     */
+    public static void writeRecordHeaders(
+            ByteBuffer buf,
+            PacketRecord record,
+            int capturedLength)
+    {
+        long timestampNanos = record.getTimestampNanos();
+        int networkHeaderLength = getNetworkHeaderLength(record);
+
+        buf.order(ByteOrder.BIG_ENDIAN);
+        buf.putInt((int) (timestampNanos / 1000000000L));
+        buf.putInt((int) ((timestampNanos % 1000000000L) / 1000L));
+        buf.putInt(networkHeaderLength + capturedLength);
+        buf.putInt(networkHeaderLength + record.getOriginalLength());
+        writeNetworkHeaders(buf, record);
+    }
+
+    /**
+     * Writes the synthesized IP and transport headers of a record.
+     *
+     * @param buf the buffer to write to
+     * @param record the record
+     */
+    public static void writeNetworkHeaders(ByteBuffer buf, PacketRecord record)
+    {
+        NetworkHeaderTemplate template = record.getNetworkHeaderTemplate();
+
+        if (template != null)
+        {
+            template.write(
+                    buf,
+                    getPacketTag(record),
+                    record.getOriginalLength());
+            return;
+        }
+
+        writeNetworkHeaders(
+                buf,
+                record.getSourceAddress(),
+                record.getSourceAddressLength(),
+                record.getSourcePort(),
+                record.getDestinationAddress(),
+                record.getDestinationAddressLength(),
+                record.getDestinationPort(),
+                record.getTransport(),
+                getPacketTag(record),
+                record.getOriginalLength());
+    }
+
+    /**
+     * Writes the synthesized IP and transport headers of a packet with
+     * specific addresses, ports and transport.
+     *
+     * @param buf the buffer to write to
+     * @param sourceAddress the source address
+     * @param sourceAddressLength the length of {@code sourceAddress}
+     * @param sourcePort the source port
+     * @param destinationAddress the destination address
+     * @param destinationAddressLength the length of
+     * {@code destinationAddress}
+     * @param destinationPort the destination port
+     * @param transport the transport
+     * @param tag the tag of the packet, see
+     * {@link #getPacketTag(PacketRecord)}
+     * @param originalLength the length of the payload of the packet as it was
+     * seen on the wire
+     */
+    static void writeNetworkHeaders(
+            ByteBuffer buf,
+            byte[] sourceAddress,
+            int sourceAddressLength,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationAddressLength,
+            int destinationPort,
+            TransportName transport,
+            int tag,
+            int originalLength)
+    {
+        boolean tcp = (transport == TransportName.TCP);
+        int transportHeaderLength = tcp ? 20 : 8;
+        int payloadLength
+            = Math.min(transportHeaderLength + originalLength, 0xffff);
+
+        if (isIPv6(sourceAddressLength, destinationAddressLength))
+        {
+            buf.putInt(0x60000000 | tag);
+            buf.putShort((short) payloadLength);
+            buf.put((byte) (tcp ? IPPROTO_TCP : IPPROTO_UDP));
+            buf.put((byte) 64); // hop limit
+            putIPv6Address(buf, sourceAddress, sourceAddressLength);
+            putIPv6Address(buf, destinationAddress, destinationAddressLength);
+        }
+        else
+        {
+            int start = buf.position();
+
+            buf.put((byte) 0x45);
+            buf.put((byte) 0);
+            buf.putShort((short) Math.min(20 + payloadLength, 0xffff));
+            buf.putShort((short) tag); // identification
+            buf.putShort((short) 0x4000); // don't fragment
+            buf.put((byte) 64); // ttl
+            buf.put((byte) (tcp ? IPPROTO_TCP : IPPROTO_UDP));
+            buf.putShort((short) 0); // checksum
+            putIPv4Address(buf, sourceAddress, sourceAddressLength);
+            putIPv4Address(buf, destinationAddress, destinationAddressLength);
+            buf.putShort(start + 10, ipv4HeaderChecksum(buf, start));
+        }
+
+        buf.putShort((short) sourcePort);
+        buf.putShort((short) destinationPort);
+        if (tcp)
+        {
+            buf.putInt(0); // sequence number
+            buf.putInt(0); // acknowledgment number
+            buf.put((byte) 0x50); // data offset
+            buf.put((byte) 0x18); // PSH, ACK
+            buf.putShort((short) 0xffff); // window
+            buf.putShort((short) 0); // checksum
+            buf.putShort((short) 0); // urgent pointer
+        }
+        else
+        {
+            buf.putShort((short) payloadLength);
+            buf.putShort((short) 0); // checksum
+        }
+    }
+
+    /**
+     * Gets the tag which identifies the protocol and the direction of a
+     * record in its synthesized IP header: the ordinal of its
+     * {@link ProtocolName} plus one, with {@link #TAG_SENDER} set if we sent
+     * it.
+     *
+     * @param record the record
+     * @return the tag of {@code record}
+     */
+    public static int getPacketTag(PacketRecord record)
+    {
+        return
+            (record.getProtocol().ordinal() + 1)
+                | (record.isSender() ? TAG_SENDER : 0);
+    }
+
+    /**
+     * Determines whether the synthesized IP header of a packet is IPv6.
+     *
+     * @param sourceAddressLength the length of the source address
+     * @param destinationAddressLength the length of the destination address
+     * @return {@code true} if either address is an IPv6 address
+     */
+    private static boolean isIPv6(
+            int sourceAddressLength,
+            int destinationAddressLength)
+    {
+        return (sourceAddressLength == 16) || (destinationAddressLength == 16);
+    }
+
+    /**
+     * Writes an address as an IPv4 address.
+     *
+     * @param buf the buffer to write to
+     * @param address the address
+     * @param length the length of {@code address}
+     */
+    private static void putIPv4Address(
+            ByteBuffer buf,
+            byte[] address,
+            int length)
+    {
+        buf.put((length == 4) ? address : UNKNOWN_ADDRESS, 0, 4);
+    }
+
+    /**
+     * Writes an address as an IPv6 address, mapping IPv4 addresses.
+     *
+     * @param buf the buffer to write to
+     * @param address the address
+     * @param length the length of {@code address}
+     */
+    private static void putIPv6Address(
+            ByteBuffer buf,
+            byte[] address,
+            int length)
+    {
+        if (length == 16)
+        {
+            buf.put(address, 0, 16);
+        }
+        else
+        {
+            buf.putLong(0);
+            buf.putShort((short) 0);
+            buf.putShort((short) 0xffff);
+            buf.put((length == 4) ? address : UNKNOWN_ADDRESS, 0, 4);
+        }
+    }
+
+    /**
+     * Computes the checksum of an IPv4 header.
+     *
+     * @param buf the buffer containing the header
+     * @param start the position in {@code buf} at which the header starts
+     * @return the checksum of the header
+     */
+    static short ipv4HeaderChecksum(ByteBuffer buf, int start)
+    {
+        int sum = 0;
+
+        for (int i = 0; i < 20; i += 2)
+            sum += buf.getShort(start + i) & 0xffff;
+        while ((sum >>> 16) != 0)
+            sum = (sum & 0xffff) + (sum >>> 16);
+        return (short) ~sum;
+    }
+}
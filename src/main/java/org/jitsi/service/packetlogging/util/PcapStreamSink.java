@@ -0,0 +1,548 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * A {@link PacketRecordSink} which streams the captured packets as a live
+ * pcap stream to a local consumer, such as {@code wireshark -k -i -} fed by
+ * {@code nc}, or an analyzer reading a named pipe, without touching the disk.
+ * The consumer attaches either by connecting to a TCP port on the loopback
+ * interface or by opening a named pipe (FIFO) for reading; every consumer
+ * receives a pcap file header followed by the packets captured while it is
+ * attached.
+ * <p>
+ * The records are encoded into a bounded buffer which a dedicated sender
+ * thread writes to the consumer. A consumer which reads too slowly never
+ * blocks the writer thread: the records which do not fit in the buffer are
+ * dropped and counted. Records captured while no consumer is attached are
+ * discarded.
+ * </p>
+ */
+public class PcapStreamSink
+    implements PacketRecordSink
+{
+    /**
+     * The default size in bytes of the buffer between the writer thread and
+     * the consumer.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The time in milliseconds {@link #close()} waits for the sender thread
+     * to terminate.
+     */
+    private static final long CLOSE_TIMEOUT = 1000;
+
+    /**
+     * The server socket consumers connect to or {@code null} if consumers
+     * attach through {@link #fifo}.
+     */
+    private final ServerSocketChannel server;
+
+    /**
+     * The named pipe consumers open or {@code null} if consumers attach
+     * through {@link #server}.
+     */
+    private final File fifo;
+
+    /**
+     * The bytes waiting to be sent to the consumer.
+     */
+    private final byte[] ring;
+
+    /**
+     * The buffer the records are encoded into.
+     */
+    private ByteBuffer record
+        = ByteBuffer.allocate(
+                PcapFormat.RECORD_HEADER_LENGTH
+                    + PcapFormat.MAX_NETWORK_HEADER_LENGTH
+                    + 2048);
+
+    /**
+     * The number of bytes ever put into {@link #ring}.
+     */
+    private long tail = 0;
+
+    /**
+     * The number of bytes ever sent from {@link #ring}.
+     */
+    private long head = 0;
+
+    /**
+     * The channel to the attached consumer or {@code null}.
+     */
+    private volatile WritableByteChannel consumer;
+
+    /**
+     * Whether this sink has been closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * The thread which sends the buffered records to the consumer.
+     */
+    private final Thread sender;
+
+    /**
+     * The number of records sent or buffered for the consumer.
+     */
+    private volatile long streamedCount = 0;
+
+    /**
+     * The number of records dropped because the buffer was full.
+     */
+    private volatile long droppedCount = 0;
+
+    /**
+     * The number of consumers which have attached.
+     */
+    private volatile long consumerCount = 0;
+
+    /**
+     * Initializes a new {@code PcapStreamSink} which accepts consumers on a
+     * TCP port of the loopback interface.
+     *
+     * @param port the port to listen on or {@code 0} for an ephemeral port,
+     * see {@link #getPort()}
+     * @param bufferSize the size in bytes of the buffer between the writer
+     * thread and the consumer
+     * @throws IOException if listening on {@code port} fails
+     */
+    public PcapStreamSink(int port, int bufferSize)
+        throws IOException
+    {
+        this(
+                ServerSocketChannel.open().bind(
+                        new InetSocketAddress(
+                                InetAddress.getLoopbackAddress(),
+                                port)),
+                null,
+                bufferSize);
+    }
+
+    /**
+     * Initializes a new {@code PcapStreamSink} which writes to consumers
+     * reading from a named pipe.
+     *
+     * @param fifo the named pipe, which must already exist (for example
+     * created with {@code mkfifo})
+     * @param bufferSize the size in bytes of the buffer between the writer
+     * thread and the consumer
+     */
+    public PcapStreamSink(File fifo, int bufferSize)
+    {
+        this(null, fifo, bufferSize);
+    }
+
+    /**
+     * Initializes a new {@code PcapStreamSink} instance and starts its sender
+     * thread.
+     *
+     * @param server the server socket consumers connect to or {@code null}
+     * @param fifo the named pipe consumers open or {@code null}
+     * @param bufferSize the size in bytes of the buffer between the writer
+     * thread and the consumer
+     */
+    private PcapStreamSink(
+            ServerSocketChannel server,
+            File fifo,
+            int bufferSize)
+    {
+        this.server = server;
+        this.fifo = fifo;
+        ring
+            = new byte[
+                    Math.max(
+                            bufferSize,
+                            PcapFormat.FILE_HEADER_LENGTH
+                                + record.capacity())];
+        sender
+            = new Thread(
+                    new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            runSender();
+                        }
+                    },
+                    getClass().getName() + " sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Gets the port consumers connect to.
+     *
+     * @return the port consumers connect to or {@code -1} if consumers
+     * attach through a named pipe
+     */
+    public int getPort()
+    {
+        return
+            (server == null)
+                ? -1
+                : server.socket().getLocalPort();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Never blocks: the record is discarded if no consumer is attached and
+     * dropped if the buffer is full.
+     */
+    @Override
+    public void write(PacketRecord record)
+    {
+        if (consumer == null)
+            return;
+
+        int encodedLength = PcapFormat.getEncodedLength(record);
+
+        // Several writer lanes may share this sink.
+        synchronized (this)
+        {
+            ByteBuffer buf = this.record;
+
+            if (buf.capacity() < encodedLength)
+                this.record = buf = ByteBuffer.allocate(encodedLength);
+
+            buf.clear();
+            PcapFormat.writeRecordHeaders(buf, record);
+            buf.put(record.getData(), 0, record.getLength());
+
+            if (ring.length - (tail - head) < encodedLength)
+            {
+                droppedCount++;
+                return;
+            }
+            put(buf.array(), encodedLength);
+            streamedCount++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Appends bytes to {@link #ring}. The caller holds the lock of this sink
+     * and has made sure that they fit.
+     *
+     * @param bytes the bytes to append
+     * @param length the number of bytes to append
+     */
+    private void put(byte[] bytes, int length)
+    {
+        int start = (int) (tail % ring.length);
+        int first = Math.min(length, ring.length - start);
+
+        System.arraycopy(bytes, 0, ring, start, first);
+        System.arraycopy(bytes, first, ring, 0, length - first);
+        tail += length;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The sender thread writes to the consumer as soon as records arrive.
+     */
+    @Override
+    public void flush()
+    {
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Detaches the consumer and stops the sender thread; the records which
+     * have not been sent yet are discarded. Closing a closed sink has no
+     * effect.
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        synchronized (this)
+        {
+            if (closed)
+                return;
+            closed = true;
+            notifyAll();
+        }
+        try
+        {
+            if (server != null)
+                server.close();
+            else if (consumer == null)
+                unblockFifoOpen();
+            detach();
+        }
+        finally
+        {
+            sender.interrupt();
+            try
+            {
+                sender.join(CLOSE_TIMEOUT);
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Opens {@link #fifo} for reading and closes it at once so that the
+     * sender thread, which may be blocked opening it for writing because no
+     * consumer has attached, returns.
+     */
+    private void unblockFifoOpen()
+    {
+        Thread opener
+            = new Thread(
+                    new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            try
+                            {
+                                new FileInputStream(fifo).close();
+                            }
+                            catch (IOException ioe)
+                            {
+                                // The sender has already returned.
+                            }
+                        }
+                    },
+                    getClass().getName() + " closer");
+
+        opener.setDaemon(true);
+        opener.start();
+    }
+
+    /**
+     * Runs the sender loop: waits for a consumer to attach and sends it the
+     * buffered records until it detaches, then waits for the next one.
+     */
+    private void runSender()
+    {
+        while (!closed)
+        {
+            WritableByteChannel channel;
+
+            try
+            {
+                channel = attach();
+            }
+            catch (IOException ioe)
+            {
+                if (!closed)
+                    pause();
+                continue;
+            }
+            if (closed)
+            {
+                close(channel);
+                break;
+            }
+            try
+            {
+                send(channel);
+            }
+            catch (IOException ioe)
+            {
+                // The consumer has detached.
+            }
+            catch (InterruptedException ie)
+            {
+                // Closing.
+            }
+            detach();
+        }
+    }
+
+    /**
+     * Waits for a consumer to attach, discards the buffered records and
+     * sends the pcap file header to it.
+     *
+     * @return the channel to the consumer
+     * @throws IOException if attaching fails
+     */
+    private WritableByteChannel attach()
+        throws IOException
+    {
+        WritableByteChannel channel
+            = (server != null)
+                ? server.accept()
+                : new FileOutputStream(fifo).getChannel();
+        ByteBuffer header = ByteBuffer.allocate(PcapFormat.FILE_HEADER_LENGTH);
+
+        PcapFormat.writeFileHeader(header);
+        header.flip();
+        try
+        {
+            while (header.hasRemaining())
+                channel.write(header);
+        }
+        catch (IOException ioe)
+        {
+            close(channel);
+            throw ioe;
+        }
+        synchronized (this)
+        {
+            head = tail;
+            consumer = channel;
+        }
+        consumerCount++;
+        return channel;
+    }
+
+    /**
+     * Sends the buffered records to a consumer until it detaches or this
+     * sink is closed.
+     *
+     * @param channel the channel to the consumer
+     * @throws IOException if writing to the consumer fails
+     * @throws InterruptedException if interrupted while waiting for records
+     */
+    private void send(WritableByteChannel channel)
+        throws IOException, InterruptedException
+    {
+        while (!closed)
+        {
+            int start;
+            int length;
+
+            synchronized (this)
+            {
+                while ((head == tail) && !closed)
+                    wait();
+                if (closed)
+                    return;
+                start = (int) (head % ring.length);
+                length = (int) Math.min(tail - head, ring.length - start);
+            }
+
+            // The region is not overwritten until head is advanced.
+            ByteBuffer buf = ByteBuffer.wrap(ring, start, length);
+
+            while (buf.hasRemaining())
+                channel.write(buf);
+            synchronized (this)
+            {
+                head += length;
+            }
+        }
+    }
+
+    /**
+     * Detaches the current consumer, if any.
+     */
+    private void detach()
+    {
+        WritableByteChannel channel;
+
+        synchronized (this)
+        {
+            channel = consumer;
+            consumer = null;
+        }
+        if (channel != null)
+            close(channel);
+    }
+
+    /**
+     * Closes a channel, ignoring failures.
+     *
+     * @param channel the channel to close
+     */
+    private static void close(Channel channel)
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ioe)
+        {
+            // The consumer is gone either way.
+        }
+    }
+
+    /**
+     * Waits a second before attaching is retried after it has failed.
+     */
+    private void pause()
+    {
+        synchronized (this)
+        {
+            try
+            {
+                wait(1000);
+            }
+            catch (InterruptedException ie)
+            {
+                // Closing.
+            }
+        }
+    }
+
+    /**
+     * Determines whether a consumer is attached.
+     *
+     * @return {@code true} if a consumer is attached
+     */
+    public boolean isConsumerAttached()
+    {
+        return consumer != null;
+    }
+
+    /**
+     * Gets the number of consumers which have attached.
+     *
+     * @return the number of consumers which have attached
+     */
+    public long getConsumerCount()
+    {
+        return consumerCount;
+    }
+
+    /**
+     * Gets the number of records sent or buffered for a consumer.
+     *
+     * @return the number of records sent or buffered for a consumer
+     */
+    public long getStreamedCount()
+    {
+        return streamedCount;
+    }
+
+    /**
+     * Gets the number of records dropped because the consumer did not keep
+     * up.
+     *
+     * @return the number of records dropped because the buffer was full
+     */
+    public long getDroppedCount()
+    {
+        return droppedCount;
+    }
+}
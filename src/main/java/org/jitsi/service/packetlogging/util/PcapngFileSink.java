@@ -0,0 +1,346 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * A {@link PacketRecordSink} which writes the captured packets to a pcapng
+ * file. Every combination of {@link ProtocolName} and {@link TransportName}
+ * gets an Interface Description Block of its own, named for example
+ * {@code RTP/UDP}, so that analysis tools can filter by interface without
+ * dissecting the packets. Packets are written as Enhanced Packet Blocks with
+ * nanosecond timestamps and with the direction derived from
+ * {@link PacketRecord#isSender()} in their flags. The blocks are batched by a
+ * {@link BatchingChannelWriter} and optionally indexed by a
+ * {@link CaptureIndexWriter}.
+ */
+public class PcapngFileSink
+    implements PacketRecordSink
+{
+    /**
+     * The type of the Section Header Block.
+     */
+    static final int SECTION_HEADER_BLOCK = 0x0A0D0D0A;
+
+    /**
+     * The type of the Interface Description Block.
+     */
+    static final int INTERFACE_DESCRIPTION_BLOCK = 0x00000001;
+
+    /**
+     * The type of the Enhanced Packet Block.
+     */
+    static final int ENHANCED_PACKET_BLOCK = 0x00000006;
+
+    /**
+     * The byte-order magic of the Section Header Block.
+     */
+    static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+
+    /**
+     * The code of the {@code if_name} option.
+     */
+    static final short OPT_IF_NAME = 2;
+
+    /**
+     * The code of the {@code if_tsresol} option.
+     */
+    static final short OPT_IF_TSRESOL = 9;
+
+    /**
+     * The code of the {@code epb_flags} option.
+     */
+    static final short OPT_EPB_FLAGS = 2;
+
+    /**
+     * The {@code epb_flags} value of an inbound packet.
+     */
+    static final int EPB_FLAGS_INBOUND = 1;
+
+    /**
+     * The {@code epb_flags} value of an outbound packet.
+     */
+    static final int EPB_FLAGS_OUTBOUND = 2;
+
+    /**
+     * The length of an Enhanced Packet Block without its packet data.
+     */
+    private static final int EPB_OVERHEAD = 28 + 12 + 4;
+
+    /**
+     * The channel of the pcapng file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The interface identifiers assigned to the combinations of protocol and
+     * transport, indexed by {@link #interfaceIndex(PacketRecord)}; {@code -1}
+     * if no Interface Description Block has been written for a combination.
+     */
+    private final int[] interfaceIds
+        = new int[ProtocolName.values().length * TransportName.values().length];
+
+    /**
+     * The number of Interface Description Blocks written.
+     */
+    private int interfaceCount = 0;
+
+    /**
+     * The writer which batches the blocks written to {@link #channel}.
+     */
+    private final BatchingChannelWriter out;
+
+    /**
+     * The writer of the index of the pcapng file or {@code null}.
+     */
+    private final CaptureIndexWriter indexWriter;
+
+    /**
+     * Initializes a new {@code PcapngFileSink} which (over)writes a specific
+     * file.
+     *
+     * @param file the pcapng file to write
+     * @throws IOException if the file cannot be opened
+     */
+    public PcapngFileSink(File file)
+        throws IOException
+    {
+        this(file, BatchingChannelWriter.DEFAULT_FLUSH_THRESHOLD);
+    }
+
+    /**
+     * Initializes a new {@code PcapngFileSink} which (over)writes a specific
+     * file.
+     *
+     * @param file the pcapng file to write
+     * @param flushThreshold the number of batched bytes which triggers a
+     * write to the file
+     * @throws IOException if the file cannot be opened
+     */
+    public PcapngFileSink(File file, int flushThreshold)
+        throws IOException
+    {
+        this(file, flushThreshold, 0);
+    }
+
+    /**
+     * Initializes a new {@code PcapngFileSink} which (over)writes a specific
+     * file and its index file.
+     *
+     * @param file the pcapng file to write
+     * @param flushThreshold the number of batched bytes which triggers a
+     * write to the file
+     * @param indexInterval the number of bytes of the file to be covered by
+     * an index entry or {@code 0} to not index the file
+     * @throws IOException if the file cannot be opened
+     */
+    public PcapngFileSink(File file, int flushThreshold, int indexInterval)
+        throws IOException
+    {
+        Arrays.fill(interfaceIds, -1);
+        channel
+            = FileChannel.open(
+                    file.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+
+        out = new BatchingChannelWriter(channel, flushThreshold);
+
+        ByteBuffer buffer = out.reserve(28);
+
+        buffer.putInt(SECTION_HEADER_BLOCK);
+        buffer.putInt(28);
+        buffer.putInt(BYTE_ORDER_MAGIC);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 0);
+        buffer.putLong(-1); // section length not specified
+        buffer.putInt(28);
+        indexWriter
+            = (indexInterval > 0)
+                ? new CaptureIndexWriter(file, indexInterval)
+                : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(PacketRecord record)
+        throws IOException
+    {
+        int interfaceId = getInterfaceId(record);
+        int networkHeaderLength = PcapFormat.getNetworkHeaderLength(record);
+        int capturedLength = networkHeaderLength + record.getLength();
+        int paddedLength = pad(capturedLength);
+        int blockLength = EPB_OVERHEAD + paddedLength;
+        long timestampNanos = record.getTimestampNanos();
+        long offset = out.getPosition();
+        ByteBuffer buffer = out.reserve(blockLength);
+
+        buffer.putInt(ENHANCED_PACKET_BLOCK);
+        buffer.putInt(blockLength);
+        buffer.putInt(interfaceId);
+        buffer.putInt((int) (timestampNanos >>> 32));
+        buffer.putInt((int) timestampNanos);
+        buffer.putInt(capturedLength);
+        buffer.putInt(networkHeaderLength + record.getOriginalLength());
+        PcapFormat.writeNetworkHeaders(buffer, record);
+        buffer.put(record.getData(), 0, record.getLength());
+        for (int i = capturedLength; i < paddedLength; i++)
+            buffer.put((byte) 0);
+        buffer.putShort(OPT_EPB_FLAGS);
+        buffer.putShort((short) 4);
+        buffer.putInt(
+                record.isSender() ? EPB_FLAGS_OUTBOUND : EPB_FLAGS_INBOUND);
+        buffer.putInt(0); // opt_endofopt
+        buffer.putInt(blockLength);
+        out.commit();
+        if (indexWriter != null)
+            indexWriter.add(record, offset, blockLength);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush()
+        throws IOException
+    {
+        out.flush();
+        if (indexWriter != null)
+            indexWriter.flush();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        try
+        {
+            out.flush();
+        }
+        finally
+        {
+            try
+            {
+                channel.close();
+            }
+            finally
+            {
+                if (indexWriter != null)
+                    indexWriter.close();
+            }
+        }
+    }
+
+    /**
+     * Gets the average number of write calls made on the file per packet.
+     *
+     * @return the average number of write calls made on the file per packet
+     */
+    public double getWriteCallsPerPacket()
+    {
+        return out.getWriteCallsPerRecord();
+    }
+
+    /**
+     * Gets the identifier of the interface of the protocol and transport of a
+     * record, writing its Interface Description Block first if necessary.
+     *
+     * @param record the record
+     * @return the interface identifier of the protocol and transport of
+     * {@code record}
+     * @throws IOException if writing the Interface Description Block fails
+     */
+    private int getInterfaceId(PacketRecord record)
+        throws IOException
+    {
+        int index = interfaceIndex(record);
+        int interfaceId = interfaceIds[index];
+
+        if (interfaceId != -1)
+            return interfaceId;
+
+        byte[] name
+            = (record.getProtocol() + "/" + record.getTransport())
+                .getBytes(StandardCharsets.UTF_8);
+        int blockLength = 16 + (4 + pad(name.length)) + (4 + 4) + 4 + 4;
+        long offset = out.getPosition();
+        ByteBuffer buffer = out.reserve(blockLength);
+
+        buffer.putInt(INTERFACE_DESCRIPTION_BLOCK);
+        buffer.putInt(blockLength);
+        buffer.putShort((short) PcapFormat.LINKTYPE_RAW);
+        buffer.putShort((short) 0);
+        buffer.putInt(0); // snaplen not limited
+        buffer.putShort(OPT_IF_NAME);
+        buffer.putShort((short) name.length);
+        buffer.put(name);
+        for (int i = name.length; i < pad(name.length); i++)
+            buffer.put((byte) 0);
+        buffer.putShort(OPT_IF_TSRESOL);
+        buffer.putShort((short) 1);
+        buffer.putInt(9 << 24); // 10^-9 followed by padding
+        buffer.putInt(0); // opt_endofopt
+        buffer.putInt(blockLength);
+        if (indexWriter != null)
+            indexWriter.addMetadata(offset, blockLength);
+
+        interfaceId = interfaceCount++;
+        interfaceIds[index] = interfaceId;
+        return interfaceId;
+    }
+
+    /**
+     * Gets the index in {@link #interfaceIds} of the protocol and transport of
+     * a record.
+     *
+     * @param record the record
+     * @return the index in {@link #interfaceIds} of the protocol and transport
+     * of {@code record}
+     */
+    private static int interfaceIndex(PacketRecord record)
+    {
+        TransportName transport = record.getTransport();
+
+        return
+            record.getProtocol().ordinal() * TransportName.values().length
+                + ((transport == null) ? 0 : transport.ordinal());
+    }
+
+    /**
+     * Rounds a length up to a multiple of 4.
+     *
+     * @param length the length to round up
+     * @return {@code length} rounded up to a multiple of 4
+     */
+    private static int pad(int length)
+    {
+        return (length + 3) & ~3;
+    }
+}
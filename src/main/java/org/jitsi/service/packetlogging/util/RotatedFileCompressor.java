@@ -0,0 +1,418 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * Compresses finished capture rotation files with gzip on a low-priority
+ * background thread so that more history fits in the same disk budget. The
+ * budget counts the compressed sizes: after each compression, the oldest
+ * compressed files are deleted until the capture files in the directory, live
+ * and compressed, fit in it. Without a budget, the number of compressed files
+ * kept may be limited instead.
+ * <p>
+ * A finished file is first renamed to a unique name, on the calling thread,
+ * so that the sink may reuse its original name right away. The compression
+ * itself never runs on the calling thread.
+ * </p>
+ */
+public class RotatedFileCompressor
+    implements CaptureFileRotationListener
+{
+    /**
+     * The extension of compressed capture files.
+     */
+    public static final String COMPRESSED_EXTENSION = ".gz";
+
+    /**
+     * The extension of finished capture files waiting to be compressed.
+     */
+    static final String PENDING_EXTENSION = ".pending";
+
+    /**
+     * The directory of the capture files.
+     */
+    private final File directory;
+
+    /**
+     * The prefix of the names of the capture files.
+     */
+    private final String baseName;
+
+    /**
+     * The maximum number of bytes the capture files may take up on disk.
+     */
+    private final long budget;
+
+    /**
+     * The maximum number of compressed files kept or {@code 0} for no limit.
+     */
+    private final int maxCompressedFiles;
+
+    /**
+     * The executor the compression runs on.
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * The sequence number which makes the names of compressed files unique.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * The number of files compressed.
+     */
+    private final AtomicLong compressedFiles = new AtomicLong();
+
+    /**
+     * The number of compressed files deleted to stay within the budget.
+     */
+    private final AtomicLong deletedFiles = new AtomicLong();
+
+    /**
+     * The last exception thrown while compressing, if any.
+     */
+    private volatile IOException lastFailure;
+
+    /**
+     * Initializes a new {@code RotatedFileCompressor} instance with the budget
+     * of a specific {@link PacketLoggingConfiguration}: its disk quota if it
+     * has one, its size limit times its rotation count otherwise. If neither
+     * is set, at most {@link PacketLoggingConfiguration#getLogfileCount()}
+     * compressed files are kept so that they never pile up indefinitely.
+     *
+     * @param directory the directory of the capture files
+     * @param baseName the prefix of the names of the capture files
+     * @param configuration the configuration to take the budget from
+     */
+    public RotatedFileCompressor(
+            File directory,
+            String baseName,
+            PacketLoggingConfiguration configuration)
+    {
+        this(
+                directory,
+                baseName,
+                getBudget(configuration),
+                (getBudget(configuration) > 0)
+                    ? 0
+                    : Math.max(1, configuration.getLogfileCount()));
+    }
+
+    /**
+     * Initializes a new {@code RotatedFileCompressor} instance.
+     *
+     * @param directory the directory of the capture files
+     * @param baseName the prefix of the names of the capture files
+     * @param budget the maximum number of bytes the capture files may take up
+     * on disk; {@code 0} for no limit
+     */
+    public RotatedFileCompressor(File directory, String baseName, long budget)
+    {
+        this(directory, baseName, budget, 0);
+    }
+
+    /**
+     * Initializes a new {@code RotatedFileCompressor} instance.
+     *
+     * @param directory the directory of the capture files
+     * @param baseName the prefix of the names of the capture files
+     * @param budget the maximum number of bytes the capture files may take up
+     * on disk; {@code 0} for no limit
+     * @param maxCompressedFiles the maximum number of compressed files to
+     * keep; {@code 0} for no limit
+     */
+    public RotatedFileCompressor(
+            File directory,
+            String baseName,
+            long budget,
+            int maxCompressedFiles)
+    {
+        this.directory = directory;
+        this.baseName = baseName;
+        this.budget = budget;
+        this.maxCompressedFiles = Math.max(0, maxCompressedFiles);
+
+        executor
+            = new ThreadPoolExecutor(
+                    1, 1,
+                    0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory()
+                    {
+                        @Override
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread t
+                                = new Thread(
+                                        r,
+                                        RotatedFileCompressor.class
+                                            .getSimpleName());
+
+                            t.setDaemon(true);
+                            t.setPriority(Thread.MIN_PRIORITY);
+                            return t;
+                        }
+                    });
+    }
+
+    /**
+     * Gets the disk budget of the capture files of a specific configuration.
+     *
+     * @param configuration the configuration
+     * @return the disk quota of {@code configuration} if it has one, its size
+     * limit times its rotation count otherwise; {@code 0} for no budget
+     */
+    private static long getBudget(PacketLoggingConfiguration configuration)
+    {
+        long quota = configuration.getDiskQuota();
+
+        return
+            (quota > 0)
+                ? quota
+                : configuration.getLimit()
+                    * Math.max(1, configuration.getLogfileCount());
+    }
+
+    /**
+     * Schedules a finished rotation file for compression.
+     *
+     * @param file the rotation file which has been finished
+     */
+    @Override
+    public void captureFileFinished(File file)
+    {
+        final File pending
+            = new File(
+                    directory,
+                    file.getName()
+                        + "." + System.currentTimeMillis()
+                        + "-" + sequence.incrementAndGet()
+                        + PENDING_EXTENSION);
+
+        if (!file.renameTo(pending))
+        {
+            lastFailure = new IOException("Failed to rename " + file);
+            return;
+        }
+        // The time index cannot seek into the compressed file.
+        CaptureIndex.getIndexFile(file).delete();
+
+        try
+        {
+            executor.execute(
+                    new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            compress(pending);
+                        }
+                    });
+        }
+        catch (RejectedExecutionException ree)
+        {
+            // Shut down; leave the file uncompressed.
+        }
+    }
+
+    /**
+     * Stops the background thread after the scheduled compressions have
+     * completed.
+     *
+     * @param timeout the maximum time to wait in milliseconds
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void shutdown(long timeout)
+        throws InterruptedException
+    {
+        executor.shutdown();
+        executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Compresses a file and then enforces the budget.
+     *
+     * @param pending the file to compress
+     */
+    private void compress(File pending)
+    {
+        String name = pending.getName();
+
+        name = name.substring(0, name.length() - PENDING_EXTENSION.length());
+
+        File compressed = new File(directory, name + COMPRESSED_EXTENSION);
+
+        try
+        {
+            InputStream in = new FileInputStream(pending);
+
+            try
+            {
+                OutputStream out
+                    = new FastGZIPOutputStream(
+                            new FileOutputStream(compressed));
+
+                try
+                {
+                    byte[] buf = new byte[64 * 1024];
+                    int len;
+
+                    while ((len = in.read(buf)) != -1)
+                        out.write(buf, 0, len);
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+            if (!pending.delete())
+                throw new IOException("Failed to delete " + pending);
+            compressedFiles.incrementAndGet();
+        }
+        catch (IOException ioe)
+        {
+            lastFailure = ioe;
+            compressed.delete();
+        }
+
+        enforceBudget();
+    }
+
+    /**
+     * Deletes the oldest compressed files until the capture files fit in the
+     * budget and no more than {@link #maxCompressedFiles} are left.
+     */
+    private void enforceBudget()
+    {
+        if ((budget <= 0) && (maxCompressedFiles <= 0))
+            return;
+
+        File[] files = directory.listFiles();
+
+        if (files == null)
+            return;
+
+        List<File> deletable = new ArrayList<File>();
+        long total = 0;
+
+        for (File file : files)
+        {
+            String name = file.getName();
+
+            if (!CaptureDiskQuota.isCaptureFileName(name, baseName))
+                continue;
+
+            total += file.length();
+            if (name.endsWith(COMPRESSED_EXTENSION))
+                deletable.add(file);
+        }
+
+        Collections.sort(
+                deletable,
+                new Comparator<File>()
+                {
+                    @Override
+                    public int compare(File f1, File f2)
+                    {
+                        return
+                            Long.compare(f1.lastModified(), f2.lastModified());
+                    }
+                });
+
+        int count = deletable.size();
+
+        for (File file : deletable)
+        {
+            if (((budget <= 0) || (total <= budget))
+                    && ((maxCompressedFiles <= 0)
+                        || (count <= maxCompressedFiles)))
+            {
+                break;
+            }
+
+            long length = file.length();
+
+            if (file.delete())
+            {
+                total -= length;
+                count--;
+                deletedFiles.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of files compressed so far.
+     *
+     * @return the number of files compressed so far
+     */
+    public long getCompressedFileCount()
+    {
+        return compressedFiles.get();
+    }
+
+    /**
+     * Gets the number of compressed files deleted to stay within the budget.
+     *
+     * @return the number of compressed files deleted
+     */
+    public long getDeletedFileCount()
+    {
+        return deletedFiles.get();
+    }
+
+    /**
+     * Gets the last exception thrown while compressing.
+     *
+     * @return the last exception thrown while compressing or {@code null}
+     */
+    public IOException getLastFailure()
+    {
+        return lastFailure;
+    }
+
+    /**
+     * A {@link GZIPOutputStream} which favors speed over ratio.
+     */
+    private static class FastGZIPOutputStream
+        extends GZIPOutputStream
+    {
+        /**
+         * Initializes a new {@code FastGZIPOutputStream} instance.
+         *
+         * @param out the stream to write the compressed data to
+         * @throws IOException if writing the gzip header fails
+         */
+        FastGZIPOutputStream(OutputStream out)
+            throws IOException
+        {
+            super(out, 64 * 1024);
+            def.setLevel(Deflater.BEST_SPEED);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.nio.*;
+
+/**
+ * Determines the length of the header of RTP and RTCP packets so that only
+ * the header is captured and the (usually encrypted) payload is dropped.
+ */
+public final class RtpHeaders
+{
+    /**
+     * The length of the fixed part of the RTP header.
+     */
+    static final int FIXED_HEADER_LENGTH = 12;
+
+    /**
+     * Prevents the initialization of {@code RtpHeaders} instances.
+     */
+    private RtpHeaders()
+    {
+    }
+
+    /**
+     * Gets the length of the header of a packet: the fixed RTP header, the
+     * CSRC list and the header extension for RTP packets. RTCP packets, which
+     * are small and consist of reports which are of interest in their
+     * entirety, as well as anything else multiplexed on the RTP port such as
+     * STUN or DTLS, are kept whole.
+     *
+     * @param packet the bytes of the packet
+     * @param offset the offset in {@code packet} at which the packet starts
+     * @param length the length of the packet
+     * @return the length of the header of the packet, at most {@code length}
+     */
+    public static int getHeaderLength(byte[] packet, int offset, int length)
+    {
+        if (length < FIXED_HEADER_LENGTH)
+            return length;
+
+        int b0 = packet[offset] & 0xff;
+        int b1 = packet[offset + 1] & 0xff;
+
+        if (!isRtp(b0, b1))
+            return length;
+
+        int headerLength = FIXED_HEADER_LENGTH + 4 * (b0 & 0x0f);
+
+        if ((b0 & 0x10) != 0 && headerLength + 4 <= length)
+        {
+            int extensionLength
+                = ((packet[offset + headerLength + 2] & 0xff) << 8)
+                    | (packet[offset + headerLength + 3] & 0xff);
+
+            headerLength += 4 + 4 * extensionLength;
+        }
+        return Math.min(headerLength, length);
+    }
+
+    /**
+     * Gets the length of the header of a packet held in a {@link ByteBuffer}
+     * between its position and limit. The position and limit are not
+     * modified.
+     *
+     * @param packet the packet
+     * @return the length of the header of the packet, at most
+     * {@code packet.remaining()}
+     * @see #getHeaderLength(byte[], int, int)
+     */
+    public static int getHeaderLength(ByteBuffer packet)
+    {
+        int offset = packet.position();
+        int length = packet.remaining();
+
+        if (length < FIXED_HEADER_LENGTH)
+            return length;
+
+        int b0 = packet.get(offset) & 0xff;
+        int b1 = packet.get(offset + 1) & 0xff;
+
+        if (!isRtp(b0, b1))
+            return length;
+
+        int headerLength = FIXED_HEADER_LENGTH + 4 * (b0 & 0x0f);
+
+        if ((b0 & 0x10) != 0 && headerLength + 4 <= length)
+        {
+            int extensionLength
+                = ((packet.get(offset + headerLength + 2) & 0xff) << 8)
+                    | (packet.get(offset + headerLength + 3) & 0xff);
+
+            headerLength += 4 + 4 * extensionLength;
+        }
+        return Math.min(headerLength, length);
+    }
+
+    /**
+     * Determines whether a packet is an RTP packet, as opposed to an RTCP
+     * packet or something else multiplexed on the same port, from its first
+     * two bytes.
+     *
+     * @param b0 the first byte of the packet
+     * @param b1 the second byte of the packet
+     * @return {@code true} if the packet is an RTP packet
+     */
+    static boolean isRtp(int b0, int b1)
+    {
+        // Version 2 and not an RTCP packet type (RFC 5761).
+        return ((b0 >>> 6) == 2) && !((b1 >= 192) && (b1 <= 223));
+    }
+}
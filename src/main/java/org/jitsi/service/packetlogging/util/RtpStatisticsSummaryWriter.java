@@ -0,0 +1,117 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+import java.util.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * Appends the periodic summaries of the RTP streams computed in RTP
+ * statistics-only mode to a CSV file, one line per stream and interval, in
+ * place of the raw packets.
+ */
+public class RtpStatisticsSummaryWriter
+    implements Closeable
+{
+    /**
+     * The header line of the summary files.
+     */
+    public static final String HEADER
+        = "time,ssrc,direction,packets,lost,reordered,interval_packets,"
+            + "interval_lost,jitter_ms,clock_rate,bitrate";
+
+    /**
+     * The writer of the summary file.
+     */
+    private final Writer out;
+
+    /**
+     * Opens a summary file for appending, writing the header line if the
+     * file is new.
+     *
+     * @param file the summary file
+     * @throws IOException if the file cannot be opened
+     */
+    public RtpStatisticsSummaryWriter(File file)
+        throws IOException
+    {
+        boolean empty = (file.length() == 0);
+
+        out
+            = new BufferedWriter(
+                    new OutputStreamWriter(
+                            new FileOutputStream(file, true),
+                            "US-ASCII"));
+        if (empty)
+        {
+            out.write(HEADER);
+            out.write('\n');
+            out.flush();
+        }
+    }
+
+    /**
+     * Appends the summaries of an interval.
+     *
+     * @param timeMillis the end of the interval in milliseconds since the
+     * epoch
+     * @param statistics the summaries of the streams
+     * @throws IOException if writing fails
+     */
+    public void write(long timeMillis, List<RtpStreamStatistics> statistics)
+        throws IOException
+    {
+        for (RtpStreamStatistics s : statistics)
+        {
+            double jitterMillis = s.getJitterMillis();
+
+            out.write(
+                    timeMillis
+                        + "," + s.getSsrc()
+                        + "," + (s.isSender() ? "out" : "in")
+                        + "," + s.getPacketCount()
+                        + "," + s.getLostPacketCount()
+                        + "," + s.getReorderedPacketCount()
+                        + "," + s.getIntervalPacketCount()
+                        + "," + s.getIntervalLostPacketCount()
+                        + ","
+                        + (Double.isNaN(jitterMillis)
+                                ? ""
+                                : String.format(
+                                        Locale.ROOT,
+                                        "%.3f",
+                                        jitterMillis))
+                        + "," + s.getClockRate()
+                        + "," + s.getBitrate()
+                        + "\n");
+        }
+        out.flush();
+    }
+
+    /**
+     * Closes the summary file.
+     *
+     * @throws IOException if closing fails
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        out.close();
+    }
+}
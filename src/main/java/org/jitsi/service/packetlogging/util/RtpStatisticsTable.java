@@ -0,0 +1,607 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * Maintains streaming per-SSRC statistics of RTP streams from the headers of
+ * their packets: loss, reordering, interarrival jitter and bitrate. The
+ * streams are kept in a fixed-size open addressing table of primitive arrays
+ * so that accounting for a packet neither allocates nor stores the packet.
+ * Slots are claimed with a compare-and-set and updated under one of a few
+ * striped locks, which the threads which log the packets of different
+ * streams rarely share.
+ * <p>
+ * A stream which has had no packets for
+ * {@link #IDLE_REPORTS_BEFORE_EVICTION} consecutive reports is evicted so
+ * that its slot may be reused by a new stream. The slot of an evicted stream
+ * is marked with a tombstone rather than freed: the lookups of the streams
+ * which were placed past it keep probing over it, and a new stream claims
+ * the first tombstone on its probe sequence once it has made sure that it is
+ * not further along.
+ * </p>
+ * <p>
+ * The RTP clock rate, which the jitter computation needs, is estimated per
+ * stream from the advance of the RTP timestamps against the arrival times
+ * over the first {@link #CLOCK_RATE_ESTIMATION_NANOS} nanoseconds and rounded
+ * to a common rate.
+ * </p>
+ */
+public class RtpStatisticsTable
+{
+    /**
+     * The default maximum number of streams.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * The time in nanoseconds over which the clock rate of a stream is
+     * estimated.
+     */
+    public static final long CLOCK_RATE_ESTIMATION_NANOS = 500000000L;
+
+    /**
+     * The number of consecutive reports without packets after which a stream
+     * is evicted.
+     */
+    public static final int IDLE_REPORTS_BEFORE_EVICTION = 3;
+
+    /**
+     * The common RTP clock rates the estimates are rounded to.
+     */
+    private static final int[] CLOCK_RATES
+        = { 8000, 16000, 32000, 44100, 48000, 90000 };
+
+    /**
+     * The number of locks the slots are striped over.
+     */
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * The key of the slots of evicted streams, which lookups probe over and
+     * new streams may claim.
+     */
+    private static final long TOMBSTONE = 1L;
+
+    /**
+     * The keys of the slots: the SSRC, the direction and a bit marking the
+     * slot used, {@code 0} for free slots and {@link #TOMBSTONE} for the
+     * slots of evicted streams.
+     */
+    private final AtomicLongArray keys;
+
+    /**
+     * {@code keys.length() - 1}, used to map hashes to slots.
+     */
+    private final int mask;
+
+    /**
+     * The locks the slots are striped over.
+     */
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     * The first extended sequence number per slot.
+     */
+    private final int[] baseSeq;
+
+    /**
+     * The highest extended sequence number per slot.
+     */
+    private final int[] highestSeq;
+
+    /**
+     * The number of packets per slot.
+     */
+    private final long[] packets;
+
+    /**
+     * The number of reordered packets per slot.
+     */
+    private final long[] reordered;
+
+    /**
+     * The number of packets per slot since the last report.
+     */
+    private final long[] intervalPackets;
+
+    /**
+     * The number of bytes per slot since the last report.
+     */
+    private final long[] intervalBytes;
+
+    /**
+     * The number of packets expected per slot as of the last report.
+     */
+    private final long[] reportedExpected;
+
+    /**
+     * The arrival time of the first packet per slot.
+     */
+    private final long[] firstArrival;
+
+    /**
+     * The RTP timestamp of the first packet per slot.
+     */
+    private final int[] firstRtpTimestamp;
+
+    /**
+     * The arrival time of the last packet per slot.
+     */
+    private final long[] lastArrival;
+
+    /**
+     * The RTP timestamp of the last packet per slot.
+     */
+    private final int[] lastRtpTimestamp;
+
+    /**
+     * The estimated clock rate per slot, {@code 0} if not known yet.
+     */
+    private final int[] clockRate;
+
+    /**
+     * The interarrival jitter in RTP timestamp units per slot.
+     */
+    private final double[] jitter;
+
+    /**
+     * The number of consecutive reports without packets per slot.
+     */
+    private final int[] idleReports;
+
+    /**
+     * The number of packets not accounted for because the table was full.
+     */
+    private final AtomicLong overflowCount = new AtomicLong();
+
+    /**
+     * The time of the last report in nanoseconds since the epoch.
+     */
+    private long lastReportNanos;
+
+    /**
+     * Initializes a new {@code RtpStatisticsTable} instance.
+     *
+     * @param capacity the maximum number of streams; rounded up to the next
+     * power of two
+     * @param startNanos the time the first reporting interval starts in
+     * nanoseconds since the epoch
+     */
+    public RtpStatisticsTable(int capacity, long startNanos)
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity));
+
+        if (size < capacity)
+            size <<= 1;
+
+        mask = size - 1;
+        keys = new AtomicLongArray(size);
+        baseSeq = new int[size];
+        highestSeq = new int[size];
+        packets = new long[size];
+        reordered = new long[size];
+        intervalPackets = new long[size];
+        intervalBytes = new long[size];
+        reportedExpected = new long[size];
+        firstArrival = new long[size];
+        firstRtpTimestamp = new int[size];
+        lastArrival = new long[size];
+        lastRtpTimestamp = new int[size];
+        clockRate = new int[size];
+        jitter = new double[size];
+        idleReports = new int[size];
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+        lastReportNanos = startNanos;
+    }
+
+    /**
+     * Accounts for a packet if it is an RTP packet.
+     *
+     * @param sender whether we sent the packet rather than received it
+     * @param packet the bytes of the packet
+     * @param offset the offset in {@code packet} at which the packet starts
+     * @param length the length of the packet
+     * @param arrivalNanos the time the packet was captured in nanoseconds
+     * since the epoch
+     * @return {@code true} if the packet is an RTP packet and has been
+     * accounted for; {@code false} for RTCP and anything else multiplexed
+     * with RTP
+     */
+    public boolean update(
+            boolean sender,
+            byte[] packet,
+            int offset,
+            int length,
+            long arrivalNanos)
+    {
+        if ((length < RtpHeaders.FIXED_HEADER_LENGTH)
+                || !RtpHeaders.isRtp(
+                        packet[offset] & 0xff,
+                        packet[offset + 1] & 0xff))
+        {
+            return false;
+        }
+
+        update(
+                sender,
+                readInt(packet, offset + 8) & 0xffffffffL,
+                ((packet[offset + 2] & 0xff) << 8)
+                    | (packet[offset + 3] & 0xff),
+                readInt(packet, offset + 4),
+                length,
+                arrivalNanos);
+        return true;
+    }
+
+    /**
+     * Accounts for a packet if it is an RTP packet.
+     *
+     * @param sender whether we sent the packet rather than received it
+     * @param packet the packet between its position and limit; not modified
+     * @param arrivalNanos the time the packet was captured in nanoseconds
+     * since the epoch
+     * @return {@code true} if the packet is an RTP packet and has been
+     * accounted for; {@code false} for RTCP and anything else multiplexed
+     * with RTP
+     */
+    public boolean update(boolean sender, ByteBuffer packet, long arrivalNanos)
+    {
+        int offset = packet.position();
+        int length = packet.remaining();
+
+        if ((length < RtpHeaders.FIXED_HEADER_LENGTH)
+                || !RtpHeaders.isRtp(
+                        packet.get(offset) & 0xff,
+                        packet.get(offset + 1) & 0xff))
+        {
+            return false;
+        }
+
+        ByteOrder order = packet.order();
+        int ssrc;
+        int seq;
+        int rtpTimestamp;
+
+        if (order == ByteOrder.BIG_ENDIAN)
+        {
+            ssrc = packet.getInt(offset + 8);
+            seq = packet.getShort(offset + 2) & 0xffff;
+            rtpTimestamp = packet.getInt(offset + 4);
+        }
+        else
+        {
+            ssrc = Integer.reverseBytes(packet.getInt(offset + 8));
+            seq = Short.reverseBytes(packet.getShort(offset + 2)) & 0xffff;
+            rtpTimestamp = Integer.reverseBytes(packet.getInt(offset + 4));
+        }
+        update(
+                sender,
+                ssrc & 0xffffffffL,
+                seq,
+                rtpTimestamp,
+                length,
+                arrivalNanos);
+        return true;
+    }
+
+    /**
+     * Reads a big endian 32-bit integer.
+     *
+     * @param buf the bytes to read from
+     * @param offset the offset in {@code buf} of the integer
+     * @return the integer
+     */
+    private static int readInt(byte[] buf, int offset)
+    {
+        return
+            ((buf[offset] & 0xff) << 24)
+                | ((buf[offset + 1] & 0xff) << 16)
+                | ((buf[offset + 2] & 0xff) << 8)
+                | (buf[offset + 3] & 0xff);
+    }
+
+    /**
+     * Accounts for an RTP packet.
+     *
+     * @param sender whether we sent the packet rather than received it
+     * @param ssrc the SSRC of the packet
+     * @param seq the sequence number of the packet
+     * @param rtpTimestamp the RTP timestamp of the packet
+     * @param length the length of the packet
+     * @param arrivalNanos the time the packet was captured in nanoseconds
+     * since the epoch
+     */
+    private void update(
+            boolean sender,
+            long ssrc,
+            int seq,
+            int rtpTimestamp,
+            int length,
+            long arrivalNanos)
+    {
+        long key = (1L << 33) | (sender ? (1L << 32) : 0) | ssrc;
+        int slot;
+
+        do
+        {
+            slot = findSlot(key);
+            if (slot == -1)
+            {
+                overflowCount.incrementAndGet();
+                return;
+            }
+        }
+        while (!update(slot, key, seq, rtpTimestamp, length, arrivalNanos));
+    }
+
+    /**
+     * Accounts for an RTP packet in the slot of its stream.
+     *
+     * @param slot the slot of the stream of the packet
+     * @param key the key of the stream of the packet
+     * @param seq the sequence number of the packet
+     * @param rtpTimestamp the RTP timestamp of the packet
+     * @param length the length of the packet
+     * @param arrivalNanos the time the packet was captured in nanoseconds
+     * since the epoch
+     * @return {@code true} if the packet has been accounted for;
+     * {@code false} if the stream has been evicted from {@code slot} since it
+     * was found there
+     */
+    private boolean update(
+            int slot,
+            long key,
+            int seq,
+            int rtpTimestamp,
+            int length,
+            long arrivalNanos)
+    {
+        synchronized (locks[slot & (LOCK_STRIPES - 1)])
+        {
+            if (keys.get(slot) != key)
+                return false;
+
+            if (packets[slot] == 0)
+            {
+                baseSeq[slot] = highestSeq[slot] = seq;
+                firstArrival[slot] = arrivalNanos;
+                firstRtpTimestamp[slot] = rtpTimestamp;
+            }
+            else
+            {
+                // The difference of the 16-bit sequence numbers, which may
+                // have wrapped around.
+                int delta = (short) (seq - highestSeq[slot]);
+
+                if (delta > 0)
+                    highestSeq[slot] += delta;
+                else if (delta < 0)
+                    reordered[slot]++;
+
+                int rate = clockRate[slot];
+
+                if (rate == 0)
+                {
+                    clockRate[slot]
+                        = estimateClockRate(
+                                arrivalNanos - firstArrival[slot],
+                                rtpTimestamp - firstRtpTimestamp[slot]);
+                }
+                else
+                {
+                    // RFC 3550 section 6.4.1.
+                    double d
+                        = (arrivalNanos - lastArrival[slot]) * rate / 1e9
+                            - (rtpTimestamp - lastRtpTimestamp[slot]);
+
+                    jitter[slot] += (Math.abs(d) - jitter[slot]) / 16;
+                }
+            }
+            lastArrival[slot] = arrivalNanos;
+            lastRtpTimestamp[slot] = rtpTimestamp;
+            packets[slot]++;
+            intervalPackets[slot]++;
+            intervalBytes[slot] += length;
+        }
+        return true;
+    }
+
+    /**
+     * Finds the slot of a stream, claiming a free one for a new stream. A new
+     * stream claims the first tombstone on its probe sequence, if any, and
+     * the first free slot otherwise.
+     *
+     * @param key the key of the stream
+     * @return the slot of the stream or {@code -1} if the table is full
+     */
+    private int findSlot(long key)
+    {
+        int hash = (int) (key ^ (key >>> 32)) * 0x9e3779b9;
+        int home = (hash ^ (hash >>> 16)) & mask;
+
+        while (true)
+        {
+            int slot = home;
+            int tombstone = -1;
+
+            for (int i = 0; i <= mask; i++)
+            {
+                long k = keys.get(slot);
+
+                if (k == key)
+                    return slot;
+                if (k == 0)
+                {
+                    // The stream is not further along.
+                    if (tombstone != -1)
+                        break;
+                    if (keys.compareAndSet(slot, 0, key)
+                            || (keys.get(slot) == key))
+                    {
+                        return slot;
+                    }
+                }
+                else if ((k == TOMBSTONE) && (tombstone == -1))
+                {
+                    tombstone = slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (tombstone == -1)
+                return -1;
+            if (keys.compareAndSet(tombstone, TOMBSTONE, key))
+                return tombstone;
+            // The tombstone has been claimed meanwhile, possibly for the same
+            // stream. Probe again.
+        }
+    }
+
+    /**
+     * Evicts the stream of a slot and resets the statistics of the slot for
+     * the next stream to claim it. Invoked with the lock of the slot held.
+     *
+     * @param slot the slot of the stream to evict
+     */
+    private void evict(int slot)
+    {
+        packets[slot] = 0;
+        reordered[slot] = 0;
+        intervalPackets[slot] = 0;
+        intervalBytes[slot] = 0;
+        reportedExpected[slot] = 0;
+        clockRate[slot] = 0;
+        jitter[slot] = 0;
+        idleReports[slot] = 0;
+        keys.set(slot, TOMBSTONE);
+    }
+
+    /**
+     * Estimates the RTP clock rate of a stream.
+     *
+     * @param elapsedNanos the time elapsed since the first packet of the
+     * stream
+     * @param ticks the advance of the RTP timestamp since the first packet
+     * @return the estimated clock rate or {@code 0} if not enough time has
+     * elapsed
+     */
+    private static int estimateClockRate(long elapsedNanos, int ticks)
+    {
+        if ((elapsedNanos < CLOCK_RATE_ESTIMATION_NANOS) || (ticks <= 0))
+            return 0;
+
+        double estimate = ticks * 1e9 / elapsedNanos;
+        int rate = 0;
+
+        for (int candidate : CLOCK_RATES)
+        {
+            if ((rate == 0)
+                    || (Math.abs(candidate - estimate)
+                            < Math.abs(rate - estimate)))
+            {
+                rate = candidate;
+            }
+        }
+        // An uncommon rate is rounded to the kHz.
+        return
+            (Math.abs(rate - estimate) <= rate / 10)
+                ? rate
+                : (int) Math.max(1000, Math.round(estimate / 1000) * 1000);
+    }
+
+    /**
+     * Summarizes the streams which have had packets since the last report
+     * and starts a new reporting interval. Evicts the streams which have had
+     * no packets for {@link #IDLE_REPORTS_BEFORE_EVICTION} reports.
+     *
+     * @param nowNanos the current time in nanoseconds since the epoch
+     * @return the summaries of the streams which have had packets during the
+     * interval
+     */
+    public List<RtpStreamStatistics> report(long nowNanos)
+    {
+        List<RtpStreamStatistics> report
+            = new ArrayList<RtpStreamStatistics>();
+        long intervalNanos;
+
+        synchronized (this)
+        {
+            intervalNanos = Math.max(1, nowNanos - lastReportNanos);
+            lastReportNanos = nowNanos;
+        }
+
+        for (int slot = 0; slot <= mask; slot++)
+        {
+            long key = keys.get(slot);
+
+            if ((key == 0) || (key == TOMBSTONE))
+                continue;
+
+            synchronized (locks[slot & (LOCK_STRIPES - 1)])
+            {
+                if (intervalPackets[slot] == 0)
+                {
+                    if (++idleReports[slot] >= IDLE_REPORTS_BEFORE_EVICTION)
+                        evict(slot);
+                    continue;
+                }
+                idleReports[slot] = 0;
+
+                long expected = highestSeq[slot] - baseSeq[slot] + 1L;
+                long intervalExpected = expected - reportedExpected[slot];
+
+                report.add(
+                        new RtpStreamStatistics(
+                                key & 0xffffffffL,
+                                (key & (1L << 32)) != 0,
+                                packets[slot],
+                                Math.max(0, expected - packets[slot]),
+                                reordered[slot],
+                                intervalPackets[slot],
+                                Math.max(
+                                        0,
+                                        intervalExpected
+                                            - intervalPackets[slot]),
+                                jitter[slot],
+                                clockRate[slot],
+                                (long)
+                                    (intervalBytes[slot] * 8 * 1e9
+                                        / intervalNanos)));
+                reportedExpected[slot] = expected;
+                intervalPackets[slot] = 0;
+                intervalBytes[slot] = 0;
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Gets the number of RTP packets not accounted for because the table was
+     * full.
+     *
+     * @return the number of RTP packets not accounted for
+     */
+    public long getOverflowCount()
+    {
+        return overflowCount.get();
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+import java.nio.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * A {@link PacketQueue} which spreads the producers over several
+ * {@link PacketRingBuffer} stripes, selected by a hash of the identifier of
+ * the producing thread, so that hundreds of threads logging packets at the
+ * same time do not all compete for the tail of a single queue. The consumer
+ * merges the stripes by timestamp, always writing the oldest of the packets
+ * at their heads. It writes a run of packets from the same stripe at once, up
+ * to the timestamp of the oldest packet at the head of any other stripe, so
+ * that the merge costs a pass over the stripes per run rather than per
+ * packet.
+ * <p>
+ * Every stripe has the full capacity so that a single busy producer thread
+ * can use as much of the queue as it would without striping. Once a packet
+ * has been written, its record keeps a buffer of at most 2 KiB for reuse
+ * (see {@link PacketLoggingConfiguration#getQueueCapacity()}), so the memory
+ * the queue retains is bounded by the number of stripes in use times the
+ * capacity times about 2 KiB. While a burst of larger packets is queued, each
+ * of them takes up its captured length instead.
+ * </p>
+ * <p>
+ * The merge orders the packets which are queued when it runs. A packet
+ * timestamped just before another but published after it in a different
+ * stripe may still be written after it.
+ * </p>
+ */
+public class StripedPacketQueue
+    implements PacketQueue
+{
+    /**
+     * The stripes.
+     */
+    private final PacketRingBuffer[] stripes;
+
+    /**
+     * {@code stripes.length - 1}, used to map thread hashes to stripes.
+     */
+    private final int mask;
+
+    /**
+     * The records at the heads of the stripes as last seen by the consumer,
+     * {@code null} for stripes which were empty.
+     */
+    private final PacketRecord[] heads;
+
+    /**
+     * Wakes the consumer up when a packet is queued.
+     */
+    private final ConsumerSignal signal = new ConsumerSignal();
+
+    /**
+     * Initializes a new {@code StripedPacketQueue} instance.
+     *
+     * @param capacity the maximum number of queued packets of each stripe
+     * @param stripeCount the number of stripes; rounded up to the next power
+     * of two. {@code 0} or less selects twice the number of available
+     * processors.
+     */
+    public StripedPacketQueue(int capacity, int stripeCount)
+    {
+        if (stripeCount <= 0)
+            stripeCount = 2 * Runtime.getRuntime().availableProcessors();
+
+        int size = Integer.highestOneBit(stripeCount);
+
+        if (size < stripeCount)
+            size <<= 1;
+
+        mask = size - 1;
+        stripes = new PacketRingBuffer[size];
+        heads = new PacketRecord[size];
+        for (int i = 0; i < size; i++)
+            stripes[i] = new PacketRingBuffer(capacity);
+    }
+
+    /**
+     * Gets the stripe of the current thread.
+     *
+     * @return the stripe the current thread queues its packets in
+     */
+    private PacketRingBuffer stripe()
+    {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+
+        return stripes[(hash ^ (hash >>> 16)) & mask];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean offer(
+            ProtocolName protocol,
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            TransportName transport,
+            boolean sender,
+            long timestampNanos,
+            byte[] packet,
+            int offset,
+            int length,
+            int capturedLength)
+    {
+        boolean queued
+            = stripe().offer(
+                    protocol,
+                    sourceAddress, sourcePort,
+                    destinationAddress, destinationPort,
+                    transport,
+                    sender,
+                    timestampNanos,
+                    packet, offset, length,
+                    capturedLength);
+
+        if (queued)
+            signal.signal();
+        return queued;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean offer(
+            ProtocolName protocol,
+            PacketEndpoint source,
+            PacketEndpoint destination,
+            TransportName transport,
+            boolean sender,
+            long timestampNanos,
+            ByteBuffer packet,
+            int capturedLength)
+    {
+        boolean queued
+            = stripe().offer(
+                    protocol,
+                    source, destination,
+                    transport,
+                    sender,
+                    timestampNanos,
+                    packet,
+                    capturedLength);
+
+        if (queued)
+            signal.signal();
+        return queued;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The packets are written in the order of their timestamps across the
+     * stripes.
+     */
+    @Override
+    public int drain(PacketRecordSink sink, int maxRecords)
+        throws IOException
+    {
+        if (stripes.length == 1)
+            return stripes[0].drain(sink, maxRecords);
+
+        int count = 0;
+
+        while (count < maxRecords)
+        {
+            int oldest = -1;
+            long oldestTimestampNanos = 0;
+            // The timestamp of the oldest head of the other stripes, up to
+            // which the oldest stripe may be drained without breaking the
+            // order.
+            long nextTimestampNanos = Long.MAX_VALUE;
+
+            for (int i = 0; i < stripes.length; i++)
+            {
+                PacketRecord head = heads[i];
+
+                if (head == null)
+                {
+                    head = stripes[i].peek();
+                    if (head == null)
+                        continue;
+                    heads[i] = head;
+                }
+
+                long timestampNanos = head.getTimestampNanos();
+
+                if (oldest == -1)
+                {
+                    oldest = i;
+                    oldestTimestampNanos = timestampNanos;
+                }
+                else if (timestampNanos < oldestTimestampNanos)
+                {
+                    nextTimestampNanos
+                        = Math.min(nextTimestampNanos, oldestTimestampNanos);
+                    oldest = i;
+                    oldestTimestampNanos = timestampNanos;
+                }
+                else
+                {
+                    nextTimestampNanos
+                        = Math.min(nextTimestampNanos, timestampNanos);
+                }
+            }
+            if (oldest == -1)
+                break;
+
+            heads[oldest] = null;
+            count
+                += stripes[oldest].drain(
+                        sink,
+                        maxRecords - count,
+                        nextTimestampNanos);
+        }
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void awaitPackets(long timeoutNanos)
+    {
+        signal.await(this, timeoutNanos);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getCapacity()
+    {
+        int capacity = 0;
+
+        for (PacketRingBuffer stripe : stripes)
+            capacity += stripe.getCapacity();
+        return capacity;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size()
+    {
+        int size = 0;
+
+        for (PacketRingBuffer stripe : stripes)
+            size += stripe.size();
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getDroppedCount()
+    {
+        long dropped = 0;
+
+        for (PacketRingBuffer stripe : stripes)
+            dropped += stripe.getDroppedCount();
+        return dropped;
+    }
+
+    /**
+     * Gets the number of stripes.
+     *
+     * @return the number of stripes
+     */
+    public int getStripeCount()
+    {
+        return stripes.length;
+    }
+}
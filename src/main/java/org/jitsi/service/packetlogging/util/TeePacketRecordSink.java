@@ -0,0 +1,119 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.packetlogging.util;
+
+import java.io.*;
+
+/**
+ * A {@link PacketRecordSink} which writes every record to several sinks, for
+ * example to a capture file and to a {@link PcapStreamSink}.
+ */
+public class TeePacketRecordSink
+    implements PacketRecordSink
+{
+    /**
+     * The sinks the records are written to.
+     */
+    private final PacketRecordSink[] sinks;
+
+    /**
+     * Initializes a new {@code TeePacketRecordSink} instance.
+     *
+     * @param sinks the sinks to write the records to
+     */
+    public TeePacketRecordSink(PacketRecordSink... sinks)
+    {
+        this.sinks = sinks.clone();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The record is written to all sinks even if one of them fails; the
+     * first failure is rethrown.
+     */
+    @Override
+    public void write(PacketRecord record)
+        throws IOException
+    {
+        IOException failure = null;
+
+        for (PacketRecordSink sink : sinks)
+        {
+            try
+            {
+                sink.write(record);
+            }
+            catch (IOException ioe)
+            {
+                if (failure == null)
+                    failure = ioe;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush()
+        throws IOException
+    {
+        IOException failure = null;
+
+        for (PacketRecordSink sink : sinks)
+        {
+            try
+            {
+                sink.flush();
+            }
+            catch (IOException ioe)
+            {
+                if (failure == null)
+                    failure = ioe;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        IOException failure = null;
+
+        for (PacketRecordSink sink : sinks)
+        {
+            try
+            {
+                sink.close();
+            }
+            catch (IOException ioe)
+            {
+                if (failure == null)
+                    failure = ioe;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+}